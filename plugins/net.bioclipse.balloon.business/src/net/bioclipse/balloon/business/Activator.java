@@ -36,6 +36,71 @@ public class Activator extends AbstractUIPlugin {
     //Default timeout is 10 minutes
     public static final int DEFAULT_BALLOON_TIMEOUT = 60*10;
 
+    //Preference string for the scratch space quota in MB
+    public static final String BALLOON_SCRATCH_QUOTA = "balloon.scratch.quota";
+
+    //Default scratch space quota is 1 GB
+    public static final int DEFAULT_BALLOON_SCRATCH_QUOTA = 1024;
+
+    //Preference string for passing molecules to Balloon through pipes
+    public static final String BALLOON_PIPES = "balloon.pipes";
+
+    //Preference string for adapting the number of Balloon processes
+    public static final String BALLOON_ADAPTIVE = "balloon.adaptive";
+
+    //Preference strings for the per process limits, 0 means no limit
+    public static final String BALLOON_MEMORY_LIMIT = "balloon.limit.memory";
+    public static final String BALLOON_CPU_LIMIT = "balloon.limit.cpu";
+    public static final String BALLOON_OUTPUT_LIMIT = "balloon.limit.output";
+
+    //Default limits are 2 GB of memory, no CPU limit and 512 MB of output
+    public static final int DEFAULT_BALLOON_MEMORY_LIMIT = 2048;
+    public static final int DEFAULT_BALLOON_CPU_LIMIT = 0;
+    public static final int DEFAULT_BALLOON_OUTPUT_LIMIT = 512;
+
+    //Preference strings for the nice level and CPU list of bulk runs
+    public static final String BALLOON_NICE = "balloon.nice";
+    public static final String BALLOON_CPU_SET = "balloon.cpuset";
+
+    //Bulk runs give way to the user interface by default
+    public static final int DEFAULT_BALLOON_NICE = 10;
+
+    //Preference strings for checking molecules before running Balloon
+    public static final String BALLOON_PREFLIGHT = "balloon.preflight";
+    public static final String BALLOON_MAX_HEAVY_ATOMS
+        = "balloon.preflight.maxatoms";
+    public static final String BALLOON_FRAGMENTS = "balloon.preflight.fragments";
+
+    //Default is to reject molecules of more than 150 heavy atoms
+    public static final int DEFAULT_BALLOON_MAX_HEAVY_ATOMS = 150;
+
+    //Preference string for what to do with quarantined molecules, one of
+    //"skip", "fallback" or "off"
+    public static final String BALLOON_QUARANTINE = "balloon.quarantine";
+
+    //Preference string for keeping the conformers of runs that timed out
+    public static final String BALLOON_SALVAGE = "balloon.salvage";
+
+    //Preference string for the fewest conformations worth a Balloon run of
+    //their own when splitting a molecule over parallel runs, 0 to never split
+    public static final String BALLOON_SPLIT = "balloon.split";
+
+    //Default is to split from 40 conformations, in runs of at least 20
+    public static final int DEFAULT_BALLOON_SPLIT = 20;
+
+    //Preference strings for pruning conformers closer than an RMSD in
+    //Angstrom, "0" for no pruning, and for keeping the one of lowest energy
+    public static final String BALLOON_PRUNE_RMSD = "balloon.prune.rmsd";
+    public static final String BALLOON_PRUNE_ENERGY = "balloon.prune.energy";
+
+    //Preference string for also writing a binary conformer store next to
+    //the SD files written
+    public static final String BALLOON_STORE = "balloon.store";
+
+    //Preference string for putting the coordinates Balloon generates for a
+    //single molecule into copies of it instead of reading new molecules
+    public static final String BALLOON_PATCH = "balloon.patch";
+
     private ServiceTracker javaScriptFinderTracker;
     private ServiceTracker javaFinderTracker;
     
@@ -64,7 +129,14 @@ public class Activator extends AbstractUIPlugin {
                                   IJavaBalloonManager.class.getName(), 
                                   null );
         javaFinderTracker.open();
-        
+
+        try {
+            ScratchSpace.getDefault().cleanStale();
+            ScratchSpace.getDisk().cleanStale();
+        } catch ( Exception e ) {
+            logger.warn( "Could not clean Balloon scratch space: "
+                         + e.getMessage() );
+        }
     }
 
     /*
@@ -72,6 +144,7 @@ public class Activator extends AbstractUIPlugin {
      * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
      */
     public void stop(BundleContext context) throws Exception {
+        BalloonEngine.shutdown();
         plugin = null;
         super.stop(context);
     }
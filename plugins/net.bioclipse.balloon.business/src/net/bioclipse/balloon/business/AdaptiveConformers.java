@@ -0,0 +1,221 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.util.Arrays;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * Picks the number of conformations to ask Balloon for per molecule from
+ * how flexible it is, so that rigid molecules do not cost as much as
+ * flexible ones. Every rotatable bond counts as one degree of freedom and
+ * every three ring atoms joined by single, non aromatic bonds count as one
+ * more, since Balloon also samples the conformations of aliphatic rings.
+ * The target grows linearly from the minimum for a rigid molecule to the
+ * maximum at {@link #SATURATION} degrees of freedom.
+ */
+class AdaptiveConformers {
+
+    /** Degrees of freedom at which the maximum is asked for */
+    static final int SATURATION = 12;
+
+    private final int min;
+    private final int max;
+
+    /**
+     * @param min conformations for a rigid molecule
+     * @param max conformations for the most flexible molecules
+     */
+    AdaptiveConformers( int min, int max ) {
+        if ( min <= 0 || max < min )
+            throw new IllegalArgumentException( "Conformations must be "
+                                                + "positive with min at most "
+                                                + "max, not " + min + "-"
+                                                + max );
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return the same number of conformations for every molecule
+     */
+    static AdaptiveConformers fixed( int numConformations ) {
+        return new AdaptiveConformers( numConformations, numConformations );
+    }
+
+    int getMax() {
+        return max;
+    }
+
+    boolean isFixed() {
+        return min == max;
+    }
+
+    /**
+     * @return conformations to ask Balloon for for <code>molecule</code>
+     */
+    int numConformations( IAtomContainer molecule ) {
+        if ( isFixed() )
+            return min;
+        double freedom = rotatableBonds( molecule )
+                         + flexibleRingAtoms( molecule ) / 3.0;
+        double share = Math.min( 1, freedom / SATURATION );
+        return min + (int) Math.round( (max - min) * share );
+    }
+
+    /**
+     * @return number of single, non aromatic bonds outside rings between
+     *         two atoms that both have other heavy neighbours
+     */
+    static int rotatableBonds( IAtomContainer molecule ) {
+        int[] heavyDegree = heavyDegrees( molecule );
+        boolean[] ringBond = ringBonds( molecule );
+        int count = 0;
+        for ( int b = 0; b < molecule.getBondCount(); b++ ) {
+            IBond bond = molecule.getBond( b );
+            if ( ringBond[b] || !isFlexible( bond ) )
+                continue;
+            int i = molecule.getAtomNumber( bond.getAtom( 0 ) );
+            int j = molecule.getAtomNumber( bond.getAtom( 1 ) );
+            if ( heavyDegree[i] > 1 && heavyDegree[j] > 1 )
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return number of ring atoms all of whose ring bonds are single and
+     *         not aromatic
+     */
+    static int flexibleRingAtoms( IAtomContainer molecule ) {
+        boolean[] ringBond = ringBonds( molecule );
+        int n = molecule.getAtomCount();
+        boolean[] inRing = new boolean[n];
+        boolean[] rigid = new boolean[n];
+        for ( int b = 0; b < molecule.getBondCount(); b++ ) {
+            if ( !ringBond[b] )
+                continue;
+            IBond bond = molecule.getBond( b );
+            boolean flexible = isFlexible( bond );
+            for ( int a = 0; a < 2; a++ ) {
+                int i = molecule.getAtomNumber( bond.getAtom( a ) );
+                inRing[i] = true;
+                if ( !flexible )
+                    rigid[i] = true;
+            }
+        }
+        int count = 0;
+        for ( int i = 0; i < n; i++ ) {
+            if ( inRing[i] && !rigid[i] )
+                count++;
+        }
+        return count;
+    }
+
+    private static boolean isFlexible( IBond bond ) {
+        return IBond.Order.SINGLE.equals( bond.getOrder() )
+               && !bond.getFlag( CDKConstants.ISAROMATIC );
+    }
+
+    private static boolean isHydrogen( IAtomContainer molecule, int atom ) {
+        return "H".equals( molecule.getAtom( atom ).getSymbol() );
+    }
+
+    private static int[] heavyDegrees( IAtomContainer molecule ) {
+        int[] degree = new int[molecule.getAtomCount()];
+        for ( int b = 0; b < molecule.getBondCount(); b++ ) {
+            IBond bond = molecule.getBond( b );
+            int i = molecule.getAtomNumber( bond.getAtom( 0 ) );
+            int j = molecule.getAtomNumber( bond.getAtom( 1 ) );
+            if ( !isHydrogen( molecule, j ) )
+                degree[i]++;
+            if ( !isHydrogen( molecule, i ) )
+                degree[j]++;
+        }
+        return degree;
+    }
+
+    /**
+     * A bond is in a ring unless it is a bridge, found with the depth
+     * first search lowpoints of Tarjan.
+     *
+     * @return for every bond whether it is in a ring
+     */
+    static boolean[] ringBonds( IAtomContainer molecule ) {
+        int n = molecule.getAtomCount();
+        int m = molecule.getBondCount();
+        // Adjacency as bond indices per atom
+        int[] degree = new int[n];
+        int[][] ends = new int[m][2];
+        for ( int b = 0; b < m; b++ ) {
+            IBond bond = molecule.getBond( b );
+            ends[b][0] = molecule.getAtomNumber( bond.getAtom( 0 ) );
+            ends[b][1] = molecule.getAtomNumber( bond.getAtom( 1 ) );
+            degree[ends[b][0]]++;
+            degree[ends[b][1]]++;
+        }
+        int[][] bonds = new int[n][];
+        for ( int i = 0; i < n; i++ )
+            bonds[i] = new int[degree[i]];
+        int[] filled = new int[n];
+        for ( int b = 0; b < m; b++ ) {
+            bonds[ends[b][0]][filled[ends[b][0]]++] = b;
+            bonds[ends[b][1]][filled[ends[b][1]]++] = b;
+        }
+
+        boolean[] ring = new boolean[m];
+        Arrays.fill( ring, true );
+        int[] order = new int[n];
+        int[] low = new int[n];
+        Arrays.fill( order, -1 );
+        // Iterative, molecules may be long chains
+        int[] stackAtom = new int[n];
+        int[] stackBond = new int[n];
+        int[] next = new int[n];
+        int counter = 0;
+        for ( int root = 0; root < n; root++ ) {
+            if ( order[root] != -1 )
+                continue;
+            int depth = 0;
+            stackAtom[0] = root;
+            stackBond[0] = -1;
+            order[root] = low[root] = counter++;
+            next[root] = 0;
+            while ( depth >= 0 ) {
+                int atom = stackAtom[depth];
+                if ( next[atom] < bonds[atom].length ) {
+                    int b = bonds[atom][next[atom]++];
+                    if ( b == stackBond[depth] )
+                        continue;
+                    int other = ends[b][0] == atom ? ends[b][1] : ends[b][0];
+                    if ( order[other] == -1 ) {
+                        order[other] = low[other] = counter++;
+                        next[other] = 0;
+                        depth++;
+                        stackAtom[depth] = other;
+                        stackBond[depth] = b;
+                    } else {
+                        low[atom] = Math.min( low[atom], order[other] );
+                    }
+                } else {
+                    if ( depth > 0 ) {
+                        int parent = stackAtom[depth - 1];
+                        low[parent] = Math.min( low[parent], low[atom] );
+                        if ( low[atom] > order[parent] )
+                            ring[stackBond[depth]] = false;
+                    }
+                    depth--;
+                }
+            }
+        }
+        return ring;
+    }
+}
@@ -0,0 +1,271 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the Balloon pipelines on virtual threads. Parsing, waiting for
+ * Balloon processes and their output, and writing are all blocking, so
+ * every task gets a cheap virtual thread of its own instead of a thread
+ * from a pool. How many Balloon processes actually run at the same time
+ * is limited separately, callers take a slot around every native run. The
+ * limit starts at the number of cores and is then moved by a
+ * {@link ConcurrencyController} towards the highest throughput.
+ * <p>
+ * Slots are handed out in two lanes. Batch runs only start below the
+ * limit and only when no interactive run is waiting. Interactive runs
+ * may in addition use a few reserved slots above the limit, so a single
+ * molecule starts at once even when bulk jobs keep every slot busy.
+ */
+class BalloonEngine {
+
+    /**
+     * Whether a run is waited for by a user or is part of a bulk job.
+     */
+    enum Lane {
+        INTERACTIVE,
+        BATCH
+    }
+
+    private static BalloonEngine instance;
+
+    private final int maxConcurrency;
+    private final int reserved;
+    private volatile int limit;
+    private final ReentrantLock slots = new ReentrantLock( true );
+    private final Condition interactiveSlot = slots.newCondition();
+    private final Condition batchSlot = slots.newCondition();
+    private final int[] running = new int[Lane.values().length];
+    private final int[] waiting = new int[Lane.values().length];
+    private final AtomicLong completed = new AtomicLong();
+    private final ThreadFactory factory;
+    private final PinningMonitor pinning = new PinningMonitor();
+    private final ConcurrencyController controller;
+
+    /**
+     * @param nativeConcurrency Balloon processes allowed at first
+     * @param maxConcurrency the most Balloon processes ever allowed
+     * @param reserved slots above the limit kept for interactive runs
+     */
+    BalloonEngine( int nativeConcurrency, int maxConcurrency, int reserved ) {
+        if ( nativeConcurrency <= 0 || maxConcurrency < nativeConcurrency )
+            throw new IllegalArgumentException( "Native concurrency must be "
+                                                + "positive and at most "
+                                                + maxConcurrency );
+        if ( reserved < 0 )
+            throw new IllegalArgumentException( "Reserved slots can not be "
+                                                + "negative" );
+        this.limit = nativeConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.reserved = reserved;
+        this.factory = Thread.ofVirtual().name( "Balloon task ", 0 ).factory();
+        this.controller = new ConcurrencyController( this, nativeConcurrency );
+    }
+
+    BalloonEngine( int nativeConcurrency, int maxConcurrency ) {
+        this( nativeConcurrency, maxConcurrency, 1 );
+    }
+
+    BalloonEngine( int nativeConcurrency ) {
+        this( nativeConcurrency, nativeConcurrency );
+    }
+
+    static synchronized BalloonEngine getDefault() {
+        if ( instance == null ) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            // Leave room above the core count for hosts where Balloon
+            // waits on memory rather than on the CPU
+            instance = new BalloonEngine( cores, cores * 2,
+                                          Math.max( 1, cores / 8 ) );
+            instance.pinning.start();
+            instance.controller.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Stops measuring pinning and adapting the concurrency for the shared
+     * engine, called when the bundle stops.
+     */
+    static synchronized void shutdown() {
+        if ( instance != null ) {
+            instance.pinning.stop();
+            instance.controller.stop();
+        }
+    }
+
+    /**
+     * Starts <code>task</code> on a new virtual thread.
+     */
+    Thread start( String name, Runnable task ) {
+        return Thread.ofVirtual().name( name ).start( task );
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, shut it down
+     *         when done
+     */
+    ExecutorService newExecutor() {
+        return Executors.newThreadPerTaskExecutor( factory );
+    }
+
+    /**
+     * Waits until another Balloon process may be started in
+     * <code>lane</code>. Every call must be followed by a
+     * {@link #release(Lane)} for the same lane.
+     */
+    void acquire( Lane lane ) throws InterruptedException {
+        slots.lock();
+        try {
+            waiting[lane.ordinal()]++;
+            try {
+                while ( !mayStart( lane ) ) {
+                    if ( lane == Lane.INTERACTIVE )
+                        interactiveSlot.await();
+                    else
+                        batchSlot.await();
+                }
+            } finally {
+                waiting[lane.ordinal()]--;
+            }
+            running[lane.ordinal()]++;
+        } finally {
+            slots.unlock();
+        }
+    }
+
+    void release( Lane lane ) {
+        completed.incrementAndGet();
+        slots.lock();
+        try {
+            running[lane.ordinal()]--;
+            wakeUp();
+        } finally {
+            slots.unlock();
+        }
+    }
+
+    private boolean mayStart( Lane lane ) {
+        int total = running[Lane.INTERACTIVE.ordinal()]
+                    + running[Lane.BATCH.ordinal()];
+        if ( lane == Lane.INTERACTIVE )
+            return total < limit + reserved;
+        return total < limit && waiting[Lane.INTERACTIVE.ordinal()] == 0;
+    }
+
+    private void wakeUp() {
+        // Waiting interactive runs go first, batch runs check again
+        // themselves whether they may start
+        interactiveSlot.signalAll();
+        batchSlot.signalAll();
+    }
+
+    /**
+     * Changes the number of Balloon processes allowed at once. Processes
+     * already running above a lowered limit are left to finish.
+     */
+    void setLimit( int newLimit ) {
+        slots.lock();
+        try {
+            limit = Math.max( 1, Math.min( maxConcurrency, newLimit ) );
+            wakeUp();
+        } finally {
+            slots.unlock();
+        }
+    }
+
+    /**
+     * @return the number of Balloon processes allowed to run at once now
+     */
+    int getNativeConcurrency() {
+        return limit;
+    }
+
+    /**
+     * @return the most Balloon processes that will ever be allowed at once,
+     *         use it to size work that should keep them all busy
+     */
+    int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return the slots above the limit kept for interactive runs
+     */
+    int getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return number of Balloon processes running now
+     */
+    int getRunning() {
+        return getRunning( Lane.INTERACTIVE ) + getRunning( Lane.BATCH );
+    }
+
+    int getRunning( Lane lane ) {
+        slots.lock();
+        try {
+            return running[lane.ordinal()];
+        } finally {
+            slots.unlock();
+        }
+    }
+
+    /**
+     * @return number of Balloon runs finished since the engine started
+     */
+    long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return number of tasks waiting to start a Balloon process
+     */
+    int getWaiting() {
+        return getWaiting( Lane.INTERACTIVE ) + getWaiting( Lane.BATCH );
+    }
+
+    int getWaiting( Lane lane ) {
+        slots.lock();
+        try {
+            return waiting[lane.ordinal()];
+        } finally {
+            slots.unlock();
+        }
+    }
+
+    PinningMonitor getPinning() {
+        return pinning;
+    }
+
+    ConcurrencyController getController() {
+        return controller;
+    }
+
+    /**
+     * @return a one line summary of the engine state
+     */
+    String describe() {
+        return "Balloon processes: " + getRunning() + " running ("
+               + getRunning( Lane.INTERACTIVE ) + " interactive) of "
+               + limit + " allowed (at most " + maxConcurrency + ", "
+               + controller.getReason() + ", " + reserved
+               + " more for interactive runs), " + getWaiting()
+               + " waiting (" + getWaiting( Lane.INTERACTIVE )
+               + " interactive), " + String.format( "%.2f",
+                                               controller.getThroughput() )
+               + " molecules/s, " + pinning.snapshot();
+    }
+}
@@ -0,0 +1,122 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import net.bioclipse.balloon.runner.ProcessResult;
+import net.bioclipse.balloon.runner.ResourceLimits;
+import net.bioclipse.core.business.BioclipseException;
+
+/**
+ * A Balloon run that failed, telling why so that callers can treat e.g.
+ * a molecule that hit a resource limit differently from a broken Balloon
+ * installation.
+ */
+public class BalloonException extends BioclipseException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why a Balloon run failed.
+     */
+    public enum FailureClass {
+        /** Balloon could not be started */
+        EXECUTION,
+        /** Balloon exited with a failure or produced no output */
+        FAILED,
+        /** Balloon ran past the timeout */
+        TIMEOUT,
+        /** Balloon hit the CPU time limit */
+        CPU_LIMIT,
+        /** Balloon hit the memory limit */
+        MEMORY_LIMIT,
+        /** Balloon hit the output size limit */
+        OUTPUT_LIMIT,
+        /** The run was interrupted */
+        INTERRUPTED,
+        /** Reading or writing molecules failed */
+        IO,
+        /** The molecule was turned down before Balloon was started */
+        REJECTED,
+        /** The molecule was skipped after failing repeatedly before */
+        QUARANTINED,
+        /** The input record could not be read */
+        PARSE;
+
+        /**
+         * @return whether the run was stopped by one of the resource limits
+         */
+        public boolean isResourceLimit() {
+            return this == CPU_LIMIT || this == MEMORY_LIMIT
+                   || this == OUTPUT_LIMIT;
+        }
+    }
+
+    private final FailureClass failureClass;
+    private final transient ProcessResult result;
+
+    public BalloonException( FailureClass failureClass, String message ) {
+        super( message );
+        this.failureClass = failureClass;
+        this.result = null;
+    }
+
+    public BalloonException( FailureClass failureClass, String message,
+                             Throwable cause ) {
+        this( failureClass, message, cause, null );
+    }
+
+    /**
+     * @param result how the Balloon run went, <code>null</code> if it was
+     *               never started
+     */
+    public BalloonException( FailureClass failureClass, String message,
+                             Throwable cause, ProcessResult result ) {
+        super( message, cause );
+        this.failureClass = failureClass;
+        this.result = result;
+    }
+
+    public FailureClass getFailureClass() {
+        return failureClass;
+    }
+
+    /**
+     * @return exit value, timing and standard error of the failed run,
+     *         <code>null</code> if Balloon was never started
+     */
+    public ProcessResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return an exception for a run that did not succeed
+     */
+    static BalloonException forResult( ProcessResult result ) {
+        FailureClass failureClass = FailureClass.FAILED;
+        if ( result.isTimedOut() )
+            failureClass = FailureClass.TIMEOUT;
+        else if ( result.getBreach() != null )
+            failureClass = forBreach( result.getBreach() );
+        return new BalloonException( failureClass,
+                                     "Balloon execution failed with "
+                                     + result.describe(), null, result );
+    }
+
+    private static FailureClass forBreach( ResourceLimits.Breach breach ) {
+        switch ( breach ) {
+            case CPU_TIME:
+                return FailureClass.CPU_LIMIT;
+            case MEMORY:
+                return FailureClass.MEMORY_LIMIT;
+            case FILE_SIZE:
+                return FailureClass.OUTPUT_LIMIT;
+            default:
+                return FailureClass.FAILED;
+        }
+    }
+}
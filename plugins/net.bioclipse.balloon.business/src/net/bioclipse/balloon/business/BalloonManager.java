@@ -11,12 +11,22 @@
  ******************************************************************************/
 package net.bioclipse.balloon.business;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -24,11 +34,18 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 import net.bioclipse.balloon.runner.BalloonRunner;
+import net.bioclipse.balloon.runner.NamedPipes;
+import net.bioclipse.balloon.runner.ResourceLimits;
+import net.bioclipse.balloon.runner.SchedulingPolicy;
 import net.bioclipse.cdk.business.ICDKManager;
+import net.bioclipse.cdk.domain.CDKMolecule;
 import net.bioclipse.cdk.domain.ICDKMolecule;
 import net.bioclipse.core.ResourcePathTransformer;
 import net.bioclipse.core.business.BioclipseException;
@@ -46,13 +63,17 @@ import org.eclipse.core.resources.IFile;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.core.runtime.content.IContentDescription;
 import org.eclipse.core.runtime.content.IContentType;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.openscience.cdk.interfaces.IAtomContainer;
 import org.openscience.cdk.io.SDFWriter;
 import org.openscience.cdk.io.formats.IChemFormat;
+import org.openscience.cdk.io.formats.SDFFormat;
 
 /**
  * A Bioclipse Manager for invoking Balloon
@@ -70,6 +91,22 @@ public class BalloonManager implements IBioclipseManager {
     private final Logger logger
         = Logger.getLogger( BalloonManager.class );
 
+    /**
+     * Whether named pipes can be set up for Balloon, <code>null</code>
+     * until a run has told
+     */
+    private static volatile Boolean pipesWork = null;
+
+    /**
+     * Whether quarantined molecules are run as any other
+     */
+    private static volatile boolean forceQuarantined = false;
+
+    /**
+     * Timeout for quarantined molecules when trying them again
+     */
+    private static final long FALLBACK_TIMEOUT_MS = 60 * 1000L;
+
     private static List<String> supportedContentTypes;
     static {
         // These entries need to match the command in plugin.xml but found
@@ -80,6 +117,8 @@ public class BalloonManager implements IBioclipseManager {
         supportedContentTypes.add( "net.bioclipse.contenttypes.mdlMolFile" );
         supportedContentTypes
                         .add( "net.bioclipse.contenttypes.cml.singleMolecule2d" );
+        supportedContentTypes
+                        .add( "net.bioclipse.contenttypes.cml.multipleMolecule2d" );
     }
     
     /**
@@ -149,6 +188,120 @@ public class BalloonManager implements IBioclipseManager {
        return retlist;
    }
     
+    /**
+     * Generate 3D for a list of molecules into a temporary file, returning
+     * a list that reads the molecules from it when they are got
+     */
+    public List<ICDKMolecule> generateMultiple3DconformationsOnDisk(
+                                                     List<IMolecule> molecules,
+                                                     int numConf,
+                                                     IProgressMonitor monitor )
+                              throws BioclipseException {
+        return conformationsOnDisk( molecules, numConf, monitor, true );
+    }
+
+    /**
+     * Generate 3D for a single molecule into a temporary file, returning
+     * a list that reads the conformations from it when they are got
+     */
+    public List<ICDKMolecule> generate3DconformationsOnDisk( IMolecule molecule,
+                                                             int numConf )
+                              throws BioclipseException {
+        return conformationsOnDisk( Collections.singletonList( molecule ),
+                                    numConf, new NullProgressMonitor(),
+                                    false );
+    }
+
+    /**
+     * Writes the conformations of every molecule to a temporary SD file,
+     * only the first if <code>numConf</code> is 1, keeping nothing but
+     * the offsets of the records on the heap.
+     *
+     * @param skipFailed whether to log molecules Balloon fails on and go
+     *                   on, or to give up
+     */
+    private LazyMoleculeList conformationsOnDisk(
+                                 List<? extends IMolecule> molecules,
+                                 int numConf,
+                                 IProgressMonitor monitor,
+                                 boolean skipFailed )
+                             throws BioclipseException {
+        ICDKManager cdk = net.bioclipse.cdk.business.Activator
+                            .getDefault().getJavaCDKManager();
+        monitor.beginTask( "Balloon conformation generation",
+                           molecules.size() );
+        File results = null;
+        OutputStream out = null;
+        try {
+            results = File.createTempFile( "balloon-results", ".sdf" );
+            out = new BufferedOutputStream( new FileOutputStream( results ),
+                                            1 << 16 );
+            OutputIndex.Builder index = new OutputIndex.Builder();
+            List<Map<Object, Object>> properties
+                = new ArrayList<Map<Object, Object>>( molecules.size() );
+            int i = 0;
+            long before = System.currentTimeMillis();
+            for ( IMolecule mol : molecules ) {
+                i++;
+                ICDKMolecule cdkmol = cdk.asCDKMolecule( mol );
+                properties.add( cdkmol.getAtomContainer().getProperties() );
+                int written = 0;
+                try {
+                    SDFRecordReader reader = new SDFRecordReader(
+                        new ByteArrayInputStream(
+                            conformerOutput( cdk, cdkmol, numConf, null )
+                                .getBytes( SDFRecordReader.CHARSET ) ) );
+                    SDFRecordReader.SDFRecord record;
+                    //We only enforce one conformation for target conf 1
+                    while ( (record = reader.next()) != null
+                            && (numConf != 1 || written == 0) ) {
+                        out.write( record.text.getBytes(
+                                       SDFRecordReader.CHARSET ) );
+                        written++;
+                    }
+                } catch ( BioclipseException e ) {
+                    if ( !skipFailed )
+                        throw e;
+                    logger.error( "Balloon failed on mol " + i
+                                  + ". Reason: " + e.getMessage() );
+                }
+                index.add( i, written );
+                monitor.worked( 1 );
+                if ( i % 5 == 0 )
+                    monitor.subTask(
+                        "Processed: " + i + "/" + molecules.size()
+                        + " molecules ("
+                        + TimeCalculator.generateTimeRemainEst(
+                              before, i, molecules.size() ) + ")" );
+            }
+            out.close();
+            out = null;
+            LazyMoleculeList list = new LazyMoleculeList(
+                                        results, index.write( results ), cdk,
+                                        properties,
+                                        LazyMoleculeList.CACHE_SIZE );
+            results = null;
+            return list;
+        } catch ( IOException e ) {
+            throw new BioclipseException( "Could not write Balloon results: "
+                                          + e.getMessage(), e );
+        } finally {
+            if ( out != null ) {
+                try {
+                    out.close();
+                } catch ( IOException e ) {
+                    logger.debug( e.getMessage() );
+                }
+            }
+            // Only set if no list took the file over
+            if ( results != null ) {
+                results.delete();
+                OutputIndex.indexFor( results.getPath() ).delete();
+            }
+            monitor.done();
+        }
+    }
+
     /**
      * Generate 3D conf for a single molecule
      */
@@ -164,52 +317,586 @@ public class BalloonManager implements IBioclipseManager {
     public List<ICDKMolecule> generate3Dconformations( IMolecule molecule,
                                                        int numConf) 
                   throws BioclipseException {
+        return generate3Dconformations( molecule, numConf,
+                                        (LowestEnergyConformers) null );
+    }
+
+    /**
+     * Generate 3D for a single molecule, keeping the conformations of
+     * lowest energy
+     */
+    public List<ICDKMolecule> generate3Dconformations( IMolecule molecule,
+                                                       int numConf,
+                                                       int keepLowest )
+                  throws BioclipseException {
+        return generate3Dconformations( molecule, numConf,
+                                        lowestEnergy( keepLowest ) );
+    }
+
+    /**
+     * @param lowest selects the conformers to load, <code>null</code> for
+     *               all of them
+     */
+    private List<ICDKMolecule> generate3Dconformations(
+                                   IMolecule molecule,
+                                   int numConf,
+                                   LowestEnergyConformers lowest )
+                  throws BioclipseException {
         
         ICDKManager cdk = net.bioclipse.cdk.business.Activator
                             .getDefault().getJavaCDKManager();
-        
-        IUIManager ui = Activator.getDefault().getUIManager();
 
         //Copy back properties from input mol to retmol
         ICDKMolecule cdkmol = cdk.asCDKMolecule(molecule);
         Map<Object, Object> props = cdkmol.getAtomContainer().getProperties();
 
-        String inputfile=serializeMoleculeToTempFile(cdkmol);
-        String outputFile = generate3Dconformations( inputfile, numConf );
-        
         List<ICDKMolecule> retmols=null;
+        String output = conformerOutput( cdk, cdkmol, numConf, lowest );
+        if ( patchCoordinates() ) {
+            retmols = patch( cdkmol.getAtomContainer(), output );
+            if ( retmols != null )
+                return retmols;
+            logger.debug( "Could not map the atoms Balloon wrote to the "
+                          + "input, reading them as new molecules" );
+        }
         try {
-            retmols = cdk.loadMolecules( outputFile);
+            retmols = cdk.loadMolecules(
+                new ByteArrayInputStream(
+                    output.getBytes( SDFRecordReader.CHARSET ) ),
+                (IChemFormat) SDFFormat.getInstance(),
+                new NullProgressMonitor() );
+        } catch ( Exception e ) {
+            throw new BioclipseException("Could not load Balloon " +
+                                         "output: " + e.getMessage());
+        }
 
-            for (ICDKMolecule newmol : retmols){
-                for (Object key : props.keySet()){
-                	Object value = props.get(key);
-                	newmol.getAtomContainer().setProperty(key, value);
-                }
+        for (ICDKMolecule newmol : retmols){
+            for (Object key : props.keySet()){
+            	Object value = props.get(key);
+            	newmol.getAtomContainer().setProperty(key, value);
             }
-            	
-            
-        } catch ( Exception e ) {
-            throw new BioclipseException("Could not load output file: " 
-                                         + outputFile);
         }
-        ui.remove( inputfile);
-        ui.remove( outputFile);
         for (ICDKMolecule mol : retmols){
             mol.setResource( null );
         }
         return retmols;
     }
 
+    /**
+     * @return whether to put coordinates into copies of single molecules
+     */
+    private static boolean patchCoordinates() {
+        return net.bioclipse.balloon.business.Activator.getDefault()
+                   .getPreferenceStore()
+                   .getBoolean( net.bioclipse.balloon.business.Activator
+                                   .BALLOON_PATCH );
+    }
+
+    /**
+     * @return copies of <code>original</code> with the coordinates of
+     *         every conformer in <code>output</code>, <code>null</code> if
+     *         the atoms of any of them can not be mapped
+     */
+    private static List<ICDKMolecule> patch( IAtomContainer original,
+                                             String output )
+                                      throws BioclipseException {
+        CoordinatePatcher patcher = new CoordinatePatcher( original );
+        SDFRecordReader reader = new SDFRecordReader(
+            new ByteArrayInputStream( output.getBytes(
+                SDFRecordReader.CHARSET ) ) );
+        List<ICDKMolecule> patched = new ArrayList<ICDKMolecule>();
+        try {
+            SDFRecordReader.SDFRecord record;
+            while ( (record = reader.next()) != null ) {
+                IAtomContainer copy = patcher.patch( record.text );
+                if ( copy == null )
+                    return null;
+                patched.add( new CDKMolecule( copy ) );
+            }
+        } catch ( IOException e ) {
+            throw new BioclipseException( "Could not read Balloon output: "
+                                          + e.getMessage(), e );
+        }
+        return patched.isEmpty() ? null : patched;
+    }
+
+    /**
+     * Generate 3D for a single molecule into an ensemble that keeps the
+     * atoms and bonds once and only the coordinates of every conformation
+     */
+    public ConformerEnsemble generate3DconformerEnsemble( IMolecule molecule,
+                                                          int numConf )
+                             throws BioclipseException {
+
+        ICDKManager cdk = net.bioclipse.cdk.business.Activator
+                            .getDefault().getJavaCDKManager();
+        ICDKMolecule cdkmol = cdk.asCDKMolecule( molecule );
+        Map<Object, Object> props = cdkmol.getAtomContainer().getProperties();
+
+        String output = conformerOutput( cdk, cdkmol, numConf, null );
+        try {
+            // Only the first conformer is made a molecule, for its topology
+            SDFRecordReader.SDFRecord first = new SDFRecordReader(
+                new ByteArrayInputStream(
+                    output.getBytes( SDFRecordReader.CHARSET ) ) ).next();
+            if ( first == null )
+                throw new BioclipseException( "Balloon returned no "
+                                              + "conformations" );
+            IAtomContainer topology = cdk.loadMolecules(
+                new ByteArrayInputStream(
+                    first.normalizedText().getBytes( SDFRecordReader.CHARSET ) ),
+                (IChemFormat) SDFFormat.getInstance(),
+                new NullProgressMonitor() ).get( 0 ).getAtomContainer();
+            for ( Object key : new ArrayList<Object>( topology.getProperties()
+                                                              .keySet() ) )
+                topology.removeProperty( key );
+            for ( Object key : props.keySet() )
+                topology.setProperty( key, props.get( key ) );
+            return ConformerEnsemble.read( topology, output );
+        } catch ( BioclipseException e ) {
+            throw e;
+        } catch ( Exception e ) {
+            throw new BioclipseException( "Could not load Balloon output: "
+                                          + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Runs Balloon for one molecule and prunes and selects among the
+     * conformers returned.
+     * @return SD formatted conformers
+     */
+    private String conformerOutput( ICDKManager cdk,
+                                    ICDKMolecule cdkmol,
+                                    int numConf,
+                                    LowestEnergyConformers lowest )
+                   throws BioclipseException {
+        ScratchSpace.Job scratch = newScratchJob();
+        try {
+            // Through pipes where possible, otherwise through temp files
+            String output = calculateSplit( cdk.getMDLMolfileString( cdkmol ),
+                                            scratch, numConf );
+            ConformerPruner pruner = conformerPruner();
+            if ( pruner != null && numConf > 1 ) {
+                try {
+                    output = pruner.prune( output );
+                } catch ( IOException e ) {
+                    throw new BioclipseException( "Could not prune Balloon "
+                                                  + "output: "
+                                                  + e.getMessage(), e );
+                }
+            }
+            // Before any molecule is made of the output
+            if ( lowest != null && lowest.getKeep() < numConf ) {
+                try {
+                    output = lowest.select( output );
+                } catch ( IOException e ) {
+                    throw new BioclipseException( "Could not read energies "
+                                                  + "of Balloon output: "
+                                                  + e.getMessage(), e );
+                }
+            }
+            return output;
+        } finally {
+            scratch.close();
+        }
+    }
+
+
+
+    /**
+     * Runs Balloon for one molecule the user waits for. A large number of
+     * conformations is split over parallel runs with different seeds, see
+     * {@link ConformerMerge}.
+     * @return SD formatted output
+     */
+    private String calculateSplit( final String input,
+                                   final ScratchSpace.Job scratch,
+                                   int numConformations )
+                   throws BioclipseException {
+        BalloonEngine engine = BalloonEngine.getDefault();
+        int runs = ConformerMerge.runsFor(
+            numConformations,
+            net.bioclipse.balloon.business.Activator.getDefault()
+                .getPreferenceStore()
+                .getInt( net.bioclipse.balloon.business.Activator
+                            .BALLOON_SPLIT ),
+            engine.getNativeConcurrency() + engine.getReserved() );
+        if ( runs == 1 )
+            return calculateWithBalloon( input, scratch, numConformations,
+                                         BalloonEngine.Lane.INTERACTIVE );
+
+        final long timeoutMs = balloonTimeoutMs();
+        int[] parts = ConformerMerge.split( numConformations, runs );
+        logger.info( "Splitting " + numConformations + " conformations over "
+                     + runs + " Balloon runs" );
+        ExecutorService executor = engine.newExecutor();
+        List<Future<String>> outputs = new ArrayList<Future<String>>();
+        try {
+            for ( int i = 0; i < runs; i++ ) {
+                final int part = parts[i];
+                final long seed = i + 1;
+                outputs.add( executor.submit( new Callable<String>() {
+                    public String call() throws BioclipseException {
+                        return calculateWithBalloon(
+                                   input, scratch, part,
+                                   BalloonEngine.Lane.INTERACTIVE, timeoutMs,
+                                   seed );
+                    }
+                } ) );
+            }
+            // Keep what the runs that worked returned
+            List<String> results = new ArrayList<String>();
+            BioclipseException firstError = null;
+            for ( Future<String> output : outputs ) {
+                try {
+                    results.add( output.get() );
+                } catch ( ExecutionException e ) {
+                    BioclipseException error
+                        = e.getCause() instanceof BioclipseException
+                              ? (BioclipseException) e.getCause()
+                              : new BioclipseException( "Balloon failed: "
+                                    + e.getCause().getMessage(),
+                                    e.getCause() );
+                    logger.warn( "One of " + runs + " Balloon runs failed: "
+                                 + error.getMessage() );
+                    if ( firstError == null )
+                        firstError = error;
+                }
+            }
+            if ( results.isEmpty() )
+                throw firstError;
+            String merged = ConformerMerge.merge(
+                                results, ConformerMerge.DUPLICATE_THRESHOLD );
+            logger.debug( "Kept " + PartialOutput.countRecords( merged )
+                          + " unique of " + numConformations
+                          + " conformations" );
+            return merged;
+        } catch ( InterruptedException e ) {
+            throw new BalloonException( BalloonException.FailureClass.INTERRUPTED,
+                                        "Balloon Was interrupted. Reason: "
+                                        + e.getMessage(), e );
+        } catch ( IOException e ) {
+            throw new BalloonException( BalloonException.FailureClass.IO,
+                                        "Could not merge Balloon output: "
+                                        + e.getMessage(), e );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs Balloon for a SMILES file in parallel chunks.
+     *
+     * @param failures where to write the molecules that fail
+     * @return number of molecules in the file
+     */
+    private int calculateSmilesFile( String infile, String outfile,
+                                     File failures, int numConformations )
+                throws BioclipseException {
+        ScratchSpace.Job scratch = newScratchJob();
+        try {
+            File smiles = new File( infile );
+            int molecules = SmilesChunks.countMolecules( smiles );
+            calculateSmiles( SmilesChunks.open( smiles ), molecules,
+                             outfile, failures, numConformations, scratch );
+            return molecules;
+        } catch ( IOException e ) {
+            throw new BalloonException( BalloonException.FailureClass.IO,
+                                        "Could not read " + infile + ": "
+                                        + e.getMessage(), e );
+        } finally {
+            scratch.close();
+        }
+    }
+
+    /**
+     * Splits SMILES into chunks that are written to the scratch space and
+     * run by Balloon in parallel, and writes the output of the chunks to
+     * <code>outfile</code> in the order of the input. Chunks that fail are
+     * run again in halves, down to single molecules, and chunks that time
+     * out one molecule at a time, so that only the molecules Balloon can
+     * not do are left out. Those are logged and
+     * written to <code>failuresFile</code>, and an error is thrown only if
+     * all molecules fail.
+     *
+     * @param in SMILES, one molecule per line, closed when done
+     * @param molecules number of molecules in <code>in</code>
+     * @param failuresFile where to write the molecules that fail,
+     *                     <code>null</code> to only log them
+     */
+    private void calculateSmiles( BufferedReader in, int molecules,
+                                  String outfile, File failuresFile,
+                                  final int numConformations,
+                                  final ScratchSpace.Job scratch )
+                 throws BioclipseException, IOException {
+        BalloonEngine engine = BalloonEngine.getDefault();
+        int runs = engine.getMaxConcurrency();
+        SmilesChunks chunks = new SmilesChunks(
+                                  in, SmilesChunks.chunkLines( molecules,
+                                                               runs ) );
+        long timeoutMs = balloonTimeoutMs();
+        ExecutorService executor = engine.newExecutor();
+        LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+        // The marked lines of every pending chunk
+        LinkedList<String> inputs = new LinkedList<String>();
+        FailureWriter failures = failuresFile == null
+                                 ? null : new FailureWriter( failuresFile );
+        SmilesOutput output = null;
+        try {
+            output = new SmilesOutput( outfile, executor, failures,
+                                       numConformations, timeoutMs,
+                                       scratch );
+            String chunk;
+            while ( (chunk = chunks.next()) != null ) {
+                String lines = PositionTags.tagSmiles( chunks.getFirst(),
+                                                       chunk );
+                File input = scratch.write( "smiles", ".smi", lines );
+                pending.add( executor.submit(
+                    smilesTask( input, numConformations,
+                                SmilesChunks.timeoutMs( timeoutMs,
+                                                        chunks.getSize() ),
+                                scratch ) ) );
+                inputs.add( lines );
+                while ( pending.size() > runs * 2 )
+                    output.write( pending.removeFirst(), inputs.removeFirst() );
+            }
+            while ( !pending.isEmpty() )
+                output.write( pending.removeFirst(), inputs.removeFirst() );
+        } catch ( InterruptedException e ) {
+            throw new BalloonException( BalloonException.FailureClass.INTERRUPTED,
+                                        "Balloon Was interrupted. Reason: "
+                                        + e.getMessage(), e );
+        } finally {
+            for ( Future<String> f : pending )
+                f.cancel( true );
+            executor.shutdownNow();
+            chunks.close();
+            if ( output != null )
+                output.close();
+            if ( failures != null )
+                failures.close();
+        }
+        if ( output.failed > 0 )
+            logger.info( output.failed + " of " + molecules + " SMILES failed"
+                         + (failures == null ? ""
+                                             : ", written to "
+                                               + failures.getFile()) );
+        if ( output.firstError != null && output.failed == molecules )
+            throw output.firstError;
+    }
+
+    private Callable<String> smilesTask( final File input,
+                                         final int numConformations,
+                                         final long timeoutMs,
+                                         final ScratchSpace.Job scratch ) {
+        return new Callable<String>() {
+            public String call() throws BioclipseException {
+                return runSmiles( input, numConformations, timeoutMs,
+                                  scratch );
+            }
+        };
+    }
+
+    /**
+     * Runs Balloon for a file of SMILES in the scratch space, which is
+     * released when done.
+     *
+     * @return the output file, tracked by <code>scratch</code>
+     */
+    private String runSmiles( File input, int numConformations,
+                              long timeoutMs, ScratchSpace.Job scratch )
+                   throws BioclipseException {
+        String path = input.getAbsolutePath();
+        File output = new File( path.substring( 0, path.length() - 4 )
+                                + ".sdf" );
+        try {
+            calculateWithBalloon( path, output.getPath(), numConformations,
+                                  BalloonEngine.Lane.BATCH, timeoutMs, null );
+            scratch.track( output );
+            return output.getPath();
+        } catch ( BioclipseException e ) {
+            output.delete();
+            throw e;
+        } finally {
+            scratch.release( input );
+        }
+    }
+
+    /**
+     * Writes the output of chunks of SMILES in order. A chunk that failed
+     * is run again in two halves, and so on for the halves that fail, so
+     * that a molecule Balloon can not do costs only itself. A chunk that
+     * timed out is run again one molecule at a time, as halving it would
+     * wait for the molecule that hangs once for every half it is in. The
+     * runs again are submitted to the executor, with the timeout for one
+     * molecule, and only waited for here.
+     */
+    private class SmilesOutput {
+
+        private final OutputStream     out;
+        private final ExecutorService  executor;
+        private final FailureWriter    failures;
+        private final int              numConformations;
+        private final long             timeoutMs;
+        private final ScratchSpace.Job scratch;
+        /** Molecules that failed on their own */
+        int                            failed;
+        BioclipseException             firstError;
+
+        SmilesOutput( String outfile, ExecutorService executor,
+                      FailureWriter failures, int numConformations,
+                      long timeoutMs, ScratchSpace.Job scratch )
+                      throws IOException {
+            this.out = new BufferedOutputStream(
+                           new FileOutputStream( outfile ), 1 << 16 );
+            this.executor = executor;
+            this.failures = failures;
+            this.numConformations = numConformations;
+            this.timeoutMs = timeoutMs;
+            this.scratch = scratch;
+        }
+
+        /**
+         * Writes the output of a chunk, or of its molecules that can be
+         * done if it failed.
+         *
+         * @param lines the marked SMILES of the chunk
+         */
+        void write( Future<String> result, String lines )
+             throws IOException, InterruptedException {
+            write( result, lines.split( "\n" ) );
+        }
+
+        private void write( Future<String> result, String[] lines )
+                     throws IOException, InterruptedException {
+            File output;
+            try {
+                output = new File( result.get() );
+            } catch ( ExecutionException e ) {
+                retry( lines, cause( e ) );
+                return;
+            }
+            copy( output );
+        }
+
+        /**
+         * Runs the SMILES that failed together again, in halves or one by
+         * one if they timed out, or writes the failure of one that failed
+         * on its own.
+         */
+        private void retry( String[] lines, BioclipseException error )
+                     throws IOException, InterruptedException {
+            if ( error.getCause() instanceof InterruptedException
+                 || failureClass( error )
+                    == BalloonException.FailureClass.INTERRUPTED )
+                throw new InterruptedException( error.getMessage() );
+            if ( lines.length == 1 ) {
+                fail( lines[0], error );
+                return;
+            }
+            boolean timedOut = failureClass( error )
+                               == BalloonException.FailureClass.TIMEOUT;
+            logger.warn( "Balloon failed for SMILES "
+                         + PositionTags.smilesPosition( lines[0] ) + " to "
+                         + PositionTags.smilesPosition(
+                               lines[lines.length - 1] )
+                         + (timedOut ? ", running them again one by one: "
+                                     : ", running them again in halves: ")
+                         + error.getMessage() );
+            List<String[]> parts = new ArrayList<String[]>();
+            if ( timedOut ) {
+                for ( String line : lines )
+                    parts.add( new String[] { line } );
+            } else {
+                int middle = lines.length / 2;
+                parts.add( Arrays.copyOfRange( lines, 0, middle ) );
+                parts.add( Arrays.copyOfRange( lines, middle,
+                                               lines.length ) );
+            }
+            List<Future<String>> runs = new ArrayList<Future<String>>();
+            try {
+                for ( String[] part : parts )
+                    runs.add( submit( part ) );
+                for ( int i = 0; i < parts.size(); i++ )
+                    write( runs.get( i ), parts.get( i ) );
+            } finally {
+                for ( Future<String> run : runs )
+                    run.cancel( true );
+            }
+        }
+
+        private Future<String> submit( String[] lines ) throws IOException {
+            StringBuilder chunk = new StringBuilder();
+            for ( String line : lines )
+                chunk.append( line ).append( '\n' );
+            File input = scratch.write( "smiles", ".smi", chunk.toString() );
+            return executor.submit( smilesTask( input, numConformations,
+                                                timeoutMs, scratch ) );
+        }
+
+        private void fail( String line, BioclipseException error )
+                     throws IOException {
+            long position = PositionTags.smilesPosition( line );
+            logger.warn( "Balloon failed for SMILES " + position + ": "
+                         + error.getMessage() );
+            failed++;
+            if ( firstError == null )
+                firstError = error;
+            if ( failures != null ) {
+                Map<Object, Object> properties
+                    = new HashMap<Object, Object>();
+                properties.put( "SMILES", PositionTags.untagSmiles( line ) );
+                failures.write( position, null, properties, error );
+            }
+        }
+
+        private void copy( File output ) throws IOException {
+            InputStream in = new FileInputStream( output );
+            try {
+                byte[] buffer = new byte[1 << 16];
+                int read;
+                while ( (read = in.read( buffer )) > 0 )
+                    out.write( buffer, 0, read );
+            } finally {
+                in.close();
+            }
+            scratch.release( output );
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the failure class of <code>e</code>, <code>null</code> if it
+     *         is not a {@link BalloonException}
+     */
+    private static BalloonException.FailureClass failureClass(
+                                                      BioclipseException e ) {
+        return e instanceof BalloonException
+                   ? ((BalloonException) e).getFailureClass() : null;
+    }
 
+    private static BioclipseException cause( ExecutionException e ) {
+        return e.getCause() instanceof BioclipseException
+                   ? (BioclipseException) e.getCause()
+                   : new BioclipseException( "Balloon failed: "
+                                             + e.getCause().getMessage(),
+                                             e.getCause() );
+    }
 
     /**
-     * Serialize a temp molecule in Virtual and return the absolute path
+     * Serialize a temp molecule in the scratch space and return the absolute
+     * path
      * @param molecule
+     * @param scratch job to create the file in
      * @return
      * @throws BioclipseException 
      */
-    private String serializeMoleculeToTempFile( IMolecule molecule ) 
+    private String serializeMoleculeToTempFile( IMolecule molecule,
+                                                ScratchSpace.Job scratch )
     throws BioclipseException {
 
         ICDKManager cdk = net.bioclipse.cdk.business.Activator
@@ -219,13 +906,9 @@ public class BalloonManager implements IBioclipseManager {
         //Write a temp molfile and return path
         File tempfile=null;
         try {
-            tempfile = File.createTempFile("balloon", ".mol");
-
             //Write mol as MDL to the temp file
             String mdlString=cdk.getMDLMolfileString( molecule );
-            FileWriter w = new FileWriter(tempfile);
-            w.write( mdlString );
-            w.close();
+            tempfile = scratch.write( "balloon", ".mol", mdlString );
 
         } catch ( Exception e ) {
             throw new BioclipseException("Could not save temp file: " 
@@ -242,6 +925,16 @@ public class BalloonManager implements IBioclipseManager {
     }
 
 
+    private ScratchSpace.Job newScratchJob() throws BioclipseException {
+        try {
+            return ScratchSpace.getDefault().newJob();
+        } catch ( IOException e ) {
+            throw new BioclipseException( "Could not create Balloon scratch " +
+                                          "space: " + e.getMessage(), e );
+        }
+    }
+
+
     /**
      * Generate 3D for a list of files
      */
@@ -283,6 +976,41 @@ public class BalloonManager implements IBioclipseManager {
           return outputfiles;
       }
 
+    /**
+     * Generate 3D conformations for a list of files, for each molecule as
+     * many as its flexibility calls for within the bounds
+     */
+    public List<String> generate3Dconformations( List<String> inputfiles,
+                                                 int minConformations,
+                                                 int maxConformations )
+                        throws BioclipseException {
+        AdaptiveConformers target;
+        try {
+            target = new AdaptiveConformers( minConformations,
+                                             maxConformations );
+        } catch ( IllegalArgumentException e ) {
+            throw new BioclipseException( e.getMessage() );
+        }
+        List<String> outputfiles = new ArrayList<String>();
+        for ( String inputfile : inputfiles ) {
+            IFile input = ResourcePathTransformer.getInstance()
+                                                 .transform( inputfile );
+            try {
+                IFile output = generate3Dconformations(
+                                   input, target, new NullProgressMonitor() );
+                outputfiles.add( output.getRawLocation().toOSString() );
+            } catch ( CoreException e ) {
+                throw new BioclipseException( "Could not read " + inputfile
+                                              + ": " + e.getMessage(), e );
+            } catch ( IOException e ) {
+                throw new BioclipseException( "Balloon I/O error on "
+                                              + inputfile + ": "
+                                              + e.getMessage(), e );
+            }
+        }
+        return outputfiles;
+    }
+
     /**
      * Generate a number of 3D conformations for a file with one or more
      * chemical structures.
@@ -295,6 +1023,74 @@ public class BalloonManager implements IBioclipseManager {
                                            String outputfile,
                                            int numConformations ) 
                   throws BioclipseException {
+        return generate3Dconformations( inputfile, outputfile,
+                                        numConformations,
+                                        (LowestEnergyConformers) null );
+    }
+
+    /**
+     * Generate a number of 3D conformations for a file with one or more
+     * chemical structures, writing only the ones of lowest energy of
+     * every molecule.
+     *
+     * @param keepLowest Number of conformations to keep per molecule
+     */
+    public String generate3Dconformations( String inputfile,
+                                           String outputfile,
+                                           int numConformations,
+                                           int keepLowest )
+                  throws BioclipseException {
+        return generate3Dconformations( inputfile, outputfile,
+                                        numConformations,
+                                        lowestEnergy( keepLowest ) );
+    }
+
+    /**
+     * Generate n 3D conformations for molecules given as SMILES, which
+     * Balloon reads in chunks run in parallel without any molecules being
+     * made of them.
+     *
+     * @param smiles one molecule each, optionally followed by its name
+     * @return SD formatted conformers in the order of the SMILES, without
+     *         those Balloon failed for
+     */
+    public String generate3DconformationsFromSmiles( List<String> smiles,
+                                                     int numConformations )
+                  throws BioclipseException {
+        String lines;
+        try {
+            lines = SmilesChunks.join( smiles );
+        } catch ( IllegalArgumentException e ) {
+            throw new BioclipseException( e.getMessage() );
+        }
+        ScratchSpace.Job scratch = newScratchJob();
+        try {
+            File output = new File( scratch.getDirectory(), "smiles.sdf" );
+            calculateSmiles( new BufferedReader( new StringReader( lines ) ),
+                             smiles.size(), output.getPath(), null,
+                             numConformations, scratch );
+            OutputIndex index = untagOutput( output.getPath() );
+            if ( numConformations > 1 )
+                pruneFile( output.getPath(), index );
+            return readFile( output.getPath() );
+        } catch ( IOException e ) {
+            throw new BalloonException( BalloonException.FailureClass.IO,
+                                        "Could not read Balloon output: "
+                                        + e.getMessage(), e );
+        } finally {
+            scratch.close();
+        }
+    }
+
+    /**
+     * @param lowest selects the conformers to write, <code>null</code> for
+     *               all of them
+     */
+    private String generate3Dconformations( String inputfile,
+                                            String outputfile,
+                                            int numConformations,
+                                            LowestEnergyConformers lowest )
+                   throws BioclipseException {
         
         //Must have different input as output files
         if (inputfile.equals( outputfile )) 
@@ -305,24 +1101,24 @@ public class BalloonManager implements IBioclipseManager {
                                                .transform( inputfile );
         String infile = inIfile.getRawLocation().toOSString();
 
-        IContentDescription condesc=null;
+        IContentType type;
         try {
-            condesc = inIfile.getContentDescription();
+            type = contentType( inIfile );
         } catch ( CoreException e ) {
             throw new BioclipseException("The file " + inputfile + 
             " has unknown contenttype: " + e.getMessage()); 
         }
 
-        if (condesc==null)
+        if (type==null)
             throw new BioclipseException("The file " + inputfile + 
                                          " has no contenttype and is hence " +
                                          "not supported for ballloon"); 
             
         //Verify content types
-        if (!isSupportedContenttype(condesc))
+        if (!isSupportedContenttype(type))
                 throw new BioclipseException("The file " + inputfile + 
                        " has content type: " + 
-                       condesc.getContentType().getName() + 
+                       type.getName() + 
                        " which is not supported by balloon.");
 
 
@@ -340,103 +1136,451 @@ public class BalloonManager implements IBioclipseManager {
             outfile=outIfile.getRawLocation().toOSString();
             containerToRefresh=outIfile.getParent();
         }
-        
-        //If this is a CML file we need to serialize an MDL file as input
-        IContentType cmlType = Platform.getContentTypeManager()
-        .getContentType( "net.bioclipse.contenttypes.cml.singleMolecule2d" );
 
-        if (condesc.getContentType().isKindOf( cmlType )){
+        //The offsets of an incremental run on this output are gone now
+        RunManifest.manifestFor( outfile ).delete();
+        OutputIndex.indexFor( outfile ).delete();
+
+        //Balloon writes plain text, compressed output is made of it after
+        String balloonOut = plainOutput( outfile );
+        
+        //Input Balloon reads while it is made, with every title marked with
+        //the position of its molecule so that the output can be told apart
+        //by molecule
+        boolean cml = isCml( type );
+        PositionTags.Feed feed;
+        if ( cml ) {
             
-            logger.debug("File is CML, serialize to temp file as MDL");
+            logger.debug("File is CML, serialize to SDF as Balloon reads it");
 
             ICDKManager cdk=net.bioclipse.cdk.business.Activator.getDefault().
                 getJavaCDKManager();
             
+            //Write the molecules as SDF, one at a time
+            feed = cmlAsSDF( cdk, new File( infile ) );
+        } else {
+
+            //Decompressed as Balloon reads it if gzipped, SMILES are marked
+            //as they are split
+            feed = PositionTags.tagging( new File( infile ) );
+        }
+
+
+        logger.debug( "Infile transformed to: " + infile );
+        logger.debug( "Outfile transformed to: " + outfile );
+        logger.debug( "Parent folder to refresh: " 
+                      + containerToRefresh.getName() );
+        
+        //Number of molecules in the input
+        long inputs;
+        OutputIndex index;
+        try {
+            BalloonRunner runner = null;
             try {
-                ICDKMolecule cdkmol = cdk.loadMolecule( inIfile );
-                File f = File.createTempFile("balloon", ".mdl");
 
-                //Write mol as MDL to the temp file
-                String mdlString=cdk.getMDLMolfileString( cdkmol );
-                FileWriter w = new FileWriter(f);
-                w.write( mdlString );
-                w.close();
-                logger.debug("Wrote temp MDL file as: " + f.getAbsolutePath());
+                if ( isSmiles( type ) ) {
+                    // Balloon reads SMILES itself, no molecules are parsed
+                    inputs = calculateSmilesFile(
+                                 infile, balloonOut,
+                                 FailureWriter.failuresFor( outfile ),
+                                 numConformations );
+                } else {
+                    //Create a native runner and execute Balloon with it for a 
+                    //certain timeout writing from inputfile to outputfile with 
+                    //desired number of conformations
+                    runner=newRunner( BalloonEngine.Lane.BATCH );
+                    BalloonEngine engine = BalloonEngine.getDefault();
+                    boolean status;
+                    engine.acquire( BalloonEngine.Lane.BATCH );
+                    try {
+                        status = runBalloon( runner, feed, balloonOut,
+                                             numConformations );
+                    } finally {
+                        engine.release( BalloonEngine.Lane.BATCH );
+                    }
+                    if (!status){
+                        throw BalloonException.forResult( runner.getResult() );
+                    }
+                    inputs = feed.getMolecules();
+                }
+            } catch ( ExecutionException e ) {
+                throw new BalloonException( BalloonException.FailureClass.EXECUTION,
+                                            "Balloon execution failed. Reason: "
+                                            + e.getMessage(), e );
+            } catch ( InterruptedException e ) {
+                throw new BalloonException( BalloonException.FailureClass.INTERRUPTED,
+                                            "Balloon Was interrupted. Reason: "
+                                            + e.getMessage(), e );
+            } catch ( TimeoutException e ) {
+                throw new BalloonException( BalloonException.FailureClass.TIMEOUT,
+                                            "Balloon timed out. Reason: "
+                                            + e.getMessage(), e,
+                                            runner.getResult() );
+            } catch ( IOException e ) {
+                throw new BalloonException( BalloonException.FailureClass.IO,
+                                            "Balloon I/O error. Reason: "
+                                            + e.getMessage(), e );
+            }
+
+            index = untagOutput( balloonOut );
+            // SMILES that failed have been written as they failed
+            if ( index != null && !isSmiles( type ) )
+                writeMissing( cml ? null : infile, index, inputs, outfile );
+            if ( numConformations > 1 )
+                index = pruneFile( balloonOut, index );
+            if ( lowest != null && lowest.getKeep() < numConformations )
+                index = selectLowestEnergy( balloonOut, lowest, index );
+            if ( !balloonOut.equals( outfile ) )
+                compressOutput( balloonOut, outfile );
+        } finally {
+            // Gone already if it was compressed
+            if ( !balloonOut.equals( outfile ) )
+                new File( balloonOut ).delete();
+        }
+        if ( writeConformerStore() )
+            createConformerStore( outfile, index, inputs );
+        
+        logger.debug("Balloon run successful, wrote file: " + outfile);
+        
+        //Refresh navigator and select the produced file
+        ui.refresh(containerToRefresh.getFullPath().toOSString());
+//        ui.revealAndSelect( outfile );
+
+        return outfile;
+
+    }
+
+    /**
+     * Regenerate 3D conformations for the records in an SD file that are new
+     * or changed since the output file was last written by this method,
+     * copying the earlier results for all other records.
+     *
+     * @param inputfile The SD file with the existing structures
+     * @param outputfile Outputfile to update, <code>null</code> for the
+     *                   default <code>_3d.sdf</code> next to the input
+     * @param numConformations Number of conformations to generate
+     */
+    public String regenerate3Dconformations( String inputfile,
+                                             String outputfile,
+                                             int numConformations )
+                  throws BioclipseException {
+
+        if (inputfile.equals( outputfile ))
+            throw new IllegalArgumentException("Outputfile must be different " +
+                    "from inputfile for Balloon ");
+
+        IFile inIfile = ResourcePathTransformer.getInstance()
+                                               .transform( inputfile );
+        String infile = inIfile.getRawLocation().toOSString();
+
+        IContentDescription condesc=null;
+        try {
+            condesc = inIfile.getContentDescription();
+        } catch ( CoreException e ) {
+            throw new BioclipseException("The file " + inputfile +
+            " has unknown contenttype: " + e.getMessage());
+        }
+        IContentType sdfType = Platform.getContentTypeManager()
+            .getContentType( "net.bioclipse.contenttypes.sdf" );
+        IContentType mdlType = Platform.getContentTypeManager()
+            .getContentType( "net.bioclipse.contenttypes.mdlMolFile" );
+        if ( condesc == null
+             || !( condesc.getContentType().isKindOf( sdfType )
+                   || condesc.getContentType().isKindOf( mdlType ) ) )
+            throw new BioclipseException("The file " + inputfile +
+                          " is not an SD file, incremental Balloon runs " +
+                          "need one record per molecule.");
+
+        String outfile;
+        IContainer containerToRefresh;
+        if (outputfile==null){
+            // Not constructOutputFilename, we want to find the same file
+            // again next time
+            outfile = getAFilename( infile.substring( 0,
+                                                      infile.lastIndexOf( '.' ) ),
+                                    ".sdf", 1 );
+            containerToRefresh=inIfile.getParent();
+        }else{
+            IFile outIfile = ResourcePathTransformer.getInstance()
+                                                    .transform( outputfile );
+            outfile=outIfile.getRawLocation().toOSString();
+            containerToRefresh=outIfile.getParent();
+        }
+
+        new IncrementalRebuild( this, numConformations ).run( infile, outfile );
+        if ( writeConformerStore() )
+            createConformerStore( outfile );
+
+        IUIManager ui = Activator.getDefault().getUIManager();
+        ui.refresh(containerToRefresh.getFullPath().toOSString());
+        return outfile;
+    }
+
+    public String getEngineStatus() {
+        return BalloonEngine.getDefault().describe();
+    }
+
+    public void setBackgroundPriority( int niceLevel, String cpuSet )
+                throws BioclipseException {
+        SchedulingPolicy policy;
+        try {
+            policy = new SchedulingPolicy( niceLevel, cpuSet );
+        } catch ( IllegalArgumentException e ) {
+            throw new BioclipseException( e.getMessage() );
+        }
+        IPreferenceStore prefs = net.bioclipse.balloon.business.Activator
+                                    .getDefault().getPreferenceStore();
+        prefs.setValue( net.bioclipse.balloon.business.Activator.BALLOON_NICE,
+                        policy.getNiceLevel() );
+        prefs.setValue( net.bioclipse.balloon.business.Activator.BALLOON_CPU_SET,
+                        policy.getCpuSet() == null ? "" : policy.getCpuSet() );
+    }
+
+    public String getBackgroundPriority() {
+        return backgroundScheduling().toString();
+    }
+
+    public void setForceQuarantined( boolean force ) {
+        forceQuarantined = force;
+    }
+
+    public void clearQuarantine() throws BioclipseException {
+        Quarantine quarantine = Quarantine.getDefault();
+        quarantine.clear();
+        try {
+            quarantine.save();
+        } catch ( IOException e ) {
+            throw new BioclipseException( "Could not clear the Balloon "
+                                          + "quarantine: " + e.getMessage(),
+                                          e );
+        }
+    }
+
+    /**
+     * @return the quarantine file jobs should use, <code>null</code> if
+     *         turned off in the preferences
+     */
+    private static Quarantine quarantine() {
+        String mode = net.bioclipse.balloon.business.Activator.getDefault()
+                          .getPreferenceStore()
+                          .getString( net.bioclipse.balloon.business.Activator
+                                         .BALLOON_QUARANTINE );
+        return "off".equals( mode ) ? null : Quarantine.getDefault();
+    }
+
+    /**
+     * @return whether quarantined molecules are tried with a short timeout
+     *         instead of being skipped
+     */
+    private static boolean quarantineFallback() {
+        return "fallback".equals(
+                   net.bioclipse.balloon.business.Activator.getDefault()
+                       .getPreferenceStore()
+                       .getString( net.bioclipse.balloon.business.Activator
+                                      .BALLOON_QUARANTINE ) );
+    }
+
+    /**
+     * @return the settings a quarantine entry is only valid for, a
+     *         molecule may well work with another timeout or other limits
+     */
+    static String runParameters( int numConformations, long timeoutMs ) {
+        return "c=" + numConformations + ", timeout " + timeoutMs / 1000
+               + " s, " + resourceLimits();
+    }
+
+    /**
+     * @return the canonical SMILES identifying the structure in the
+     *         quarantine, <code>null</code> if it can not be created
+     */
+    private String canonicalSmiles( ICDKMolecule molecule ) {
+        try {
+            return molecule.toSMILES();
+        } catch ( Exception e ) {
+            logger.debug( "No SMILES for quarantine: " + e.getMessage() );
+            return null;
+        }
+    }
+
+    private static boolean isCml( IContentType type ) {
+        if ( type == null )
+            return false;
+        for ( String id : new String[] {
+                  "net.bioclipse.contenttypes.cml.singleMolecule2d",
+                  "net.bioclipse.contenttypes.cml.multipleMolecule2d" } ) {
+            IContentType cmlType = Platform.getContentTypeManager()
+                                           .getContentType( id );
+            if ( cmlType != null && type.isKindOf( cmlType ) )
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return writes the molecules of a CML file, gzipped or not, as an SD
+     *         file with marked titles, reading one molecule at a time
+     */
+    private static PositionTags.Feed cmlAsSDF( final ICDKManager cdk,
+                                               final File cml ) {
+        return new PositionTags.Feed() {
+            public void writeTo( OutputStream out ) throws IOException {
+                CmlMoleculeStream molecules = new CmlMoleculeStream(
+                                                  Compression.open( cml ) );
+                try {
+                    Iterator<ICDKMolecule> i = molecules.molecules( cdk );
+                    while ( i.hasNext() ) {
+                        String record = tag( cdk.getMDLMolfileString(
+                                                 i.next() ) );
+                        if ( !record.endsWith( "\n" ) )
+                            record += "\n";
+                        out.write( (record + "$$$$\n").getBytes(
+                                                  SDFRecordReader.CHARSET ) );
+                    }
+                } catch ( BioclipseException e ) {
+                    throw new IOException( "Could not write molecule "
+                                           + (getMolecules() + 1) + " of "
+                                           + cml + ": " + e.getMessage(),
+                                           e );
+                } catch ( IllegalStateException e ) {
+                    // A molecule that could not be parsed
+                    throw new IOException( e.getMessage(), e );
+                } finally {
+                    molecules.close();
+                }
+                if ( getMolecules() == 0 )
+                    throw new IOException( "No molecules in " + cml );
+            }
+        };
+    }
+
+    /**
+     * @return the molecules of an input file, pulled one at a time from
+     *         CML files so that they need not fit in memory, and
+     *         decompressed while read from gzipped files
+     */
+    private static Iterator<? extends ICDKMolecule> moleculeIterator(
+                                                        ICDKManager cdk,
+                                                        IFile input,
+                                                        boolean cml )
+                                                 throws BioclipseException,
+                                                        CoreException,
+                                                        IOException {
+        if ( cml )
+            return new CmlMoleculeStream( open( input ) ).molecules( cdk );
+        if ( Compression.isGzip( input.getName() ) )
+            return new SDFRecordReader( open( input ) ).molecules( cdk );
+        return cdk.createMoleculeIterator( input );
+    }
+
+    /**
+     * @return the contents of a file, decompressed if it is gzipped
+     */
+    private static InputStream open( IFile file ) throws CoreException,
+                                                         IOException {
+        return Compression.open( file.getContents(), file.getName() );
+    }
+
+    private static boolean isSmiles( IContentType type ) {
+        IContentType smiType = Platform.getContentTypeManager()
+            .getContentType( "net.bioclipse.contenttypes.smi" );
+        return smiType != null && type != null && type.isKindOf( smiType );
+    }
 
-                //Set this file as input file
-                infile=f.getAbsolutePath();
+    /**
+     * @return the content type of a file, for gzipped files that of the
+     *         file it decompresses to as told by its name, as Eclipse can
+     *         not look into them
+     */
+    private static IContentType contentType( IFile file )
+                                throws CoreException {
+        if ( Compression.isGzip( file.getName() ) )
+            return Platform.getContentTypeManager().findContentTypeFor(
+                       Compression.strip( file.getName() ) );
+        IContentDescription condesc = file.getContentDescription();
+        return condesc == null ? null : condesc.getContentType();
+    }
 
-            } catch ( Exception e ) {
-                throw new BioclipseException("Could not parse input file: " + 
-                                             e.getMessage());
-            }
+    /**
+     * Runs Balloon on input that is written while Balloon reads it, which
+     * may be as large as a whole library. It goes through named pipes
+     * where possible, otherwise through a file in the scratch space on
+     * disk so that it is not held in <code>/dev/shm</code>.
+     *
+     * @return whether Balloon succeeded
+     */
+    private boolean runBalloon( BalloonRunner runner, NamedPipes.Feed feed,
+                                String outfile, int numConformations )
+                    throws ExecutionException, InterruptedException,
+                           TimeoutException, IOException {
+        boolean pipes = usePipes();
+        ScratchSpace.Job scratch = pipes ? ScratchSpace.getDefault().newJob()
+                                         : ScratchSpace.getDisk().newJob();
+        try {
+            if ( pipes )
+                return runner.runBalloon( feed, outfile,
+                                          scratch.getDirectory(),
+                                          numConformations );
+            File input = scratch.write( "balloon", ".sdf", feed );
+            return runner.runBalloon( input.getPath(), outfile,
+                                      numConformations );
+        } finally {
+            scratch.close();
         }
+    }
 
-
-        logger.debug( "Infile transformed to: " + infile );
-        logger.debug( "Outfile transformed to: " + outfile );
-        logger.debug( "Parent folder to refresh: " 
-                      + containerToRefresh.getName() );
-        
+    /**
+     * @return where Balloon is to write output that goes to
+     *         <code>outfile</code>, a temporary file next to it if it is to
+     *         be compressed
+     */
+    private static String plainOutput( String outfile )
+                          throws BioclipseException {
+        if ( !Compression.isGzip( outfile ) )
+            return outfile;
+        String name = Compression.strip( new File( outfile ).getName() );
+        int dot = name.lastIndexOf( '.' );
         try {
-
-            //Read timeout from prefs
-            int timeout = net.bioclipse.balloon.business.Activator
-            		.getDefault().getPreferenceStore()
-                    .getInt( net.bioclipse.balloon.business.Activator
-                    		.BALLOON_TIMEOUT );
-
-            //Just to be sure...
-            if (timeout<=0)
-                timeout = net.bioclipse.balloon.business
-                             .Activator.DEFAULT_BALLOON_TIMEOUT;
-            
-            //Seconds -> ms
-            Long msTimout=new Long(timeout*1000);
-            
-            //Create a native runner and execute Balloon with it for a 
-            //certain timeout writing from inputfile to outputfile with 
-            //desired number of conformations
-            BalloonRunner runner=new BalloonRunner(msTimout);
-            boolean status=runner.runBalloon( infile,outfile,
-                                                 numConformations );
-            if (!status){
-                throw new BioclipseException(
-                              "Balloon execution failed. Native " +
-                              "BalloonRunner returned false." );
-            }
-        } catch ( ExecutionException e ) {
-            throw new BioclipseException( "Balloon execution failed. Reason: " 
-                                          + e.getMessage() );
-        } catch ( InterruptedException e ) {
-            throw new BioclipseException( "Balloon Was interrupted. Reason: " 
-                                          + e.getMessage() );
-        } catch ( TimeoutException e ) {
-            throw new BioclipseException( "Balloon timed out. Reason: " 
-                                          + e.getMessage() );
+            File plain = File.createTempFile( "balloon",
+                                              dot > 0 ? name.substring( dot )
+                                                      : ".sdf",
+                                              new File( outfile )
+                                                  .getAbsoluteFile()
+                                                  .getParentFile() );
+            return plain.getPath();
         } catch ( IOException e ) {
-            throw new BioclipseException( "Balloon I/O error. Reason: " 
-                                          + e.getMessage() );
+            throw new BioclipseException( "Could not create a file next to "
+                                          + outfile + ": " + e.getMessage(),
+                                          e );
         }
-        
-        logger.debug("Balloon run successful, wrote file: " + outfile);
-        
-        //Refresh navigator and select the produced file
-        ui.refresh(containerToRefresh.getFullPath().toOSString());
-//        ui.revealAndSelect( outfile );
-
-        return outfile;
+    }
 
+    /**
+     * Compresses Balloon output in parallel blocks and deletes the plain
+     * file.
+     */
+    private static void compressOutput( String plain, String outfile )
+                        throws BioclipseException {
+        try {
+            Compression.compress( new File( plain ), new File( outfile ),
+                                  BalloonEngine.getDefault().newExecutor() );
+        } catch ( IOException e ) {
+            new File( outfile ).delete();
+            throw new BalloonException( BalloonException.FailureClass.IO,
+                                        "Could not compress " + outfile + ": "
+                                        + e.getMessage(), e );
+        } finally {
+            new File( plain ).delete();
+        }
     }
 
-    private boolean isSupportedContenttype(IContentDescription condesc) {
+    private boolean isSupportedContenttype(IContentType type) {
 
         for (String supCon : supportedContentTypes){
             IContentType testType = Platform.getContentTypeManager()
                 .getContentType( supCon );
             
             if ( testType != null && 
-                 condesc.getContentType().isKindOf( testType ) )
+                 type.isKindOf( testType ) )
                 return true;
             
         }
@@ -446,12 +1590,18 @@ public class BalloonManager implements IBioclipseManager {
 
 
     static IPath constructOutputFile(IPath inPath,int numConformations) {
+    	// Compressed input gives compressed output
+    	boolean gzip = Compression.isGzip( inPath.lastSegment() );
+    	if ( gzip )
+    		inPath = inPath.removeFileExtension();
     	String ext="";
-    	if(numConformations >1 || inPath.getFileExtension().equals("sdf")) {
+    	if(numConformations >1 || "sdf".equals(inPath.getFileExtension())) {
     		ext="sdf";
     	} else {
     		ext="mdl";
     	}
+    	if ( gzip )
+    		ext += Compression.GZIP;
     	String name = inPath.removeFileExtension().lastSegment()+"_3d";
     	IPath rootPath = inPath.removeFileExtension().removeLastSegments(1);
     	IPath result = rootPath.append(name);
@@ -469,6 +1619,14 @@ public class BalloonManager implements IBioclipseManager {
     static String constructOutputFilename( String inputfile,
                                             int numConformations ) {
 
+        // Compressed input gives compressed output, mols.sdf.gz gives
+        // mols_3d.sdf.gz
+        String compression = "";
+        if ( Compression.isGzip( inputfile ) ) {
+            compression = Compression.GZIP;
+            inputfile = Compression.strip( inputfile );
+        }
+
         int lastpathsep = inputfile.lastIndexOf( File.separator );
         String path = inputfile.substring( 0, lastpathsep );
         String name = inputfile.substring( lastpathsep + 1, 
@@ -482,6 +1640,7 @@ public class BalloonManager implements IBioclipseManager {
         else ext = ".mdl";
 //        else ext = currentExtension;
         //TODO: bring this back if we decide to convert back to CML after balloon
+        ext += compression;
 
         String pathfile = path + File.separator + name;
 
@@ -512,58 +1671,641 @@ public class BalloonManager implements IBioclipseManager {
 
     }
 
+    /**
+     * Thread safe method for calling balloon through named pipes, falling
+     * back to temp files where the pipes can not be set up.
+     *
+     * @param input MDL or SD formatted molecules
+     * @param scratch job to create pipes and temp files in
+     * @param numConformations
+     * @param lane whether the run is waited for by a user or part of a
+     *             bulk job
+     * @return SD formatted output
+     * @throws BioclipseException
+     */
+    String calculateWithBalloon( String input, ScratchSpace.Job scratch,
+                                 int numConformations,
+                                 BalloonEngine.Lane lane )
+                                 throws BioclipseException {
+        return calculateWithBalloon( input, scratch, numConformations, lane,
+                                     balloonTimeoutMs() );
+    }
+
+    /**
+     * @param timeoutMs timeout for the run instead of the one in the
+     *                  preferences
+     */
+    String calculateWithBalloon( String input, ScratchSpace.Job scratch,
+                                 int numConformations,
+                                 BalloonEngine.Lane lane, long timeoutMs )
+                                 throws BioclipseException {
+        return calculateWithBalloon( input, scratch, numConformations, lane,
+                                     timeoutMs, null );
+    }
+
+    /**
+     * @param randomSeed seed for Balloon, <code>null</code> to let Balloon
+     *                   pick one
+     */
+    String calculateWithBalloon( String input, ScratchSpace.Job scratch,
+                                 int numConformations,
+                                 BalloonEngine.Lane lane, long timeoutMs,
+                                 Long randomSeed )
+                                 throws BioclipseException {
+
+        if ( usePipes() ) {
+            try {
+                String output = calculateWithPipes( input, scratch,
+                                                    numConformations, lane,
+                                                    timeoutMs, randomSeed );
+                pipesWork = Boolean.TRUE;
+                return output;
+            } catch ( BalloonException e ) {
+                // Only the pipes failing to be set up is an I/O failure
+                // here, Balloon failing on the molecule would fail the
+                // same with files
+                if ( e.getFailureClass() != BalloonException.FailureClass.IO )
+                    throw e;
+                logger.warn( "Balloon can not use pipes, using temp files: "
+                             + e.getMessage() );
+                pipesWork = Boolean.FALSE;
+            }
+        }
+
+        String infile = null;
+        String outfile = null;
+        try {
+            infile = scratch.write( "balloon", ".mol", input ).getPath();
+            outfile = calculateWithBalloon( infile, numConformations, lane,
+                                            timeoutMs, randomSeed );
+            scratch.track( outfile );
+            return readFile( outfile );
+        } catch ( IOException e ) {
+            throw new BalloonException( BalloonException.FailureClass.IO,
+                                        "Balloon I/O error. Reason: "
+                                        + e.getMessage(), e );
+        } finally {
+            if ( infile != null )
+                scratch.release( infile );
+            if ( outfile != null )
+                scratch.release( outfile );
+        }
+    }
+
+    /**
+     * @throws BalloonException of {@link BalloonException.FailureClass#IO}
+     *         only if the pipes could not be set up
+     */
+    private String calculateWithPipes( String input, ScratchSpace.Job scratch,
+                                       int numConformations,
+                                       BalloonEngine.Lane lane,
+                                       long timeoutMs, Long randomSeed )
+                   throws BalloonException {
+        BalloonRunner runner;
+        try {
+            runner = newRunner( lane, timeoutMs );
+        } catch ( IOException e ) {
+            throw new BalloonException( BalloonException.FailureClass.EXECUTION,
+                                        "Balloon execution failed. Reason: "
+                                        + e.getMessage(), e );
+        }
+        try {
+            runner.setRandomSeed( randomSeed );
+            BalloonEngine engine = BalloonEngine.getDefault();
+            String output;
+            engine.acquire( lane );
+            try {
+                output = runner.runBalloon( input, scratch.getDirectory(),
+                                            numConformations );
+            } finally {
+                engine.release( lane );
+            }
+            if ( output.length() == 0 ) {
+                throw BalloonException.forResult( runner.getResult() );
+            }
+            return output;
+        } catch ( ExecutionException e ) {
+            throw new BalloonException( BalloonException.FailureClass.EXECUTION,
+                                        "Balloon execution failed. Reason: "
+                                        + e.getMessage(), e );
+        } catch ( InterruptedException e ) {
+            throw new BalloonException( BalloonException.FailureClass.INTERRUPTED,
+                                        "Balloon Was interrupted. Reason: "
+                                        + e.getMessage(), e );
+        } catch ( TimeoutException e ) {
+            String salvaged = salvagePartial( numConformations )
+                ? PartialOutput.salvage( runner.getPartialOutput(),
+                                         numConformations )
+                : null;
+            if ( salvaged != null ) {
+                logger.warn( "Balloon timed out, keeping "
+                             + PartialOutput.countRecords( salvaged ) + "/"
+                             + numConformations + " conformers" );
+                return salvaged;
+            }
+            throw new BalloonException( BalloonException.FailureClass.TIMEOUT,
+                                        "Balloon timed out. Reason: "
+                                        + e.getMessage(), e,
+                                        runner.getResult() );
+        } catch ( IOException e ) {
+            throw new BalloonException( BalloonException.FailureClass.IO,
+                                        "Balloon I/O error. Reason: "
+                                        + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * @return whether the conformers of a run that timed out should be
+     *         kept, which is only worth it for more than one conformer
+     */
+    private static boolean salvagePartial( int numConformations ) {
+        return numConformations > 1
+               && net.bioclipse.balloon.business.Activator.getDefault()
+                      .getPreferenceStore()
+                      .getBoolean( net.bioclipse.balloon.business.Activator
+                                      .BALLOON_SALVAGE );
+    }
+
+    /**
+     * Cuts a Balloon output file that timed out down to its complete
+     * records, marked as partial.
+     * @return whether any conformers were saved
+     */
+    private boolean salvageFile( String outfile, int numConformations ) {
+        if ( !new File( outfile ).exists() )
+            return false;
+        try {
+            String salvaged = PartialOutput.salvage( readFile( outfile ),
+                                                     numConformations );
+            if ( salvaged == null )
+                return false;
+            OutputStream out = new FileOutputStream( outfile );
+            try {
+                out.write( salvaged.getBytes( SDFRecordReader.CHARSET ) );
+            } finally {
+                out.close();
+            }
+            logger.warn( "Balloon timed out, keeping "
+                         + PartialOutput.countRecords( salvaged ) + "/"
+                         + numConformations + " conformers in " + outfile );
+            return true;
+        } catch ( IOException e ) {
+            logger.warn( "Could not keep the conformers of " + outfile + ": "
+                         + e.getMessage() );
+            return false;
+        }
+    }
+
+    /**
+     * @return whether molecules should be passed to Balloon through pipes
+     */
+    private boolean usePipes() {
+        return !Boolean.FALSE.equals( pipesWork )
+               && BalloonRunner.isPipeSupported()
+               && net.bioclipse.balloon.business.Activator.getDefault()
+                      .getPreferenceStore()
+                      .getBoolean( net.bioclipse.balloon.business.Activator
+                                      .BALLOON_PIPES );
+    }
+
+    private static String readFile( String file ) throws IOException {
+        InputStream in = new FileInputStream( file );
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ( (n = in.read( buffer )) != -1 )
+                out.write( buffer, 0, n );
+            return out.toString( SDFRecordReader.CHARSET );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return a runner with the timeout and resource limits from the
+     *         preferences, and the background priority for batch runs
+     */
+    private BalloonRunner newRunner( BalloonEngine.Lane lane )
+                          throws IOException {
+        return newRunner( lane, balloonTimeoutMs() );
+    }
+
+    private BalloonRunner newRunner( BalloonEngine.Lane lane, long timeoutMs )
+                          throws IOException {
+        BalloonRunner runner = new BalloonRunner( timeoutMs );
+        runner.setLimits( resourceLimits() );
+        if ( lane == BalloonEngine.Lane.BATCH )
+            runner.setScheduling( backgroundScheduling() );
+        return runner;
+    }
+
+    /**
+     * @return the nice level and CPU set for batch runs from the
+     *         preferences, normal scheduling if they are not valid
+     */
+    SchedulingPolicy backgroundScheduling() {
+        IPreferenceStore prefs = net.bioclipse.balloon.business.Activator
+                                    .getDefault().getPreferenceStore();
+        try {
+            return new SchedulingPolicy(
+                prefs.getInt( net.bioclipse.balloon.business.Activator
+                                 .BALLOON_NICE ),
+                prefs.getString( net.bioclipse.balloon.business.Activator
+                                    .BALLOON_CPU_SET ) );
+        } catch ( IllegalArgumentException e ) {
+            logger.warn( "Ignoring background priority: " + e.getMessage() );
+            return SchedulingPolicy.NORMAL;
+        }
+    }
+
+    /**
+     * @return the check to run on molecules before Balloon is started for
+     *         them, <code>null</code> if turned off in the preferences
+     */
+    static PreflightFilter preflightFilter() {
+        IPreferenceStore prefs = net.bioclipse.balloon.business.Activator
+                                    .getDefault().getPreferenceStore();
+        if ( !prefs.getBoolean( net.bioclipse.balloon.business.Activator
+                                   .BALLOON_PREFLIGHT ) )
+            return null;
+        return new PreflightFilter(
+            prefs.getInt( net.bioclipse.balloon.business.Activator
+                             .BALLOON_MAX_HEAVY_ATOMS ),
+            PreflightFilter.Fragments.fromPreference(
+                prefs.getString( net.bioclipse.balloon.business.Activator
+                                    .BALLOON_FRAGMENTS ) ) );
+    }
+
+    /**
+     * @return the pruning of close conformers from the preferences,
+     *         <code>null</code> if turned off
+     */
+    static ConformerPruner conformerPruner() {
+        IPreferenceStore prefs = net.bioclipse.balloon.business.Activator
+                                    .getDefault().getPreferenceStore();
+        double rmsd;
+        try {
+            rmsd = Double.parseDouble(
+                       prefs.getString( net.bioclipse.balloon.business.Activator
+                                           .BALLOON_PRUNE_RMSD ).trim() );
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+        if ( rmsd <= 0 )
+            return null;
+        return new ConformerPruner(
+            rmsd, prefs.getBoolean( net.bioclipse.balloon.business.Activator
+                                       .BALLOON_PRUNE_ENERGY ) );
+    }
+
+    /**
+     * Prunes the conformers in a Balloon output file in place, the
+     * molecules in it in parallel.
+     *
+     * @param index of <code>outfile</code>, <code>null</code> to tell the
+     *              molecules apart by their records
+     * @return the index of the replaced file, <code>null</code> if none
+     *         was given
+     */
+    private OutputIndex pruneFile( String outfile, OutputIndex index )
+                        throws BioclipseException {
+        ConformerPruner pruner = conformerPruner();
+        if ( pruner == null )
+            return index;
+        File out = new File( outfile );
+        File pruned = new File( outfile + ".prune" );
+        BalloonEngine engine = BalloonEngine.getDefault();
+        ExecutorService executor = engine.newExecutor();
+        try {
+            OutputIndex written = null;
+            int kept;
+            if ( index == null ) {
+                kept = pruner.pruneFile( out, pruned, executor,
+                                         engine.getMaxConcurrency() * 4 );
+            } else {
+                written = pruner.pruneFile( out, index, pruned, executor,
+                                            engine.getMaxConcurrency() * 4 );
+                kept = written.size();
+            }
+            if ( !out.delete() || !pruned.renameTo( out ) )
+                throw new IOException( "Could not replace " + outfile );
+            logger.debug( "Kept " + kept + " conformers apart by at least "
+                          + pruner.getThreshold() + " A RMSD" );
+            return written;
+        } catch ( IOException e ) {
+            pruned.delete();
+            throw new BioclipseException( "Could not prune " + outfile + ": "
+                                          + e.getMessage(), e );
+        } catch ( InterruptedException e ) {
+            pruned.delete();
+            throw new BalloonException( BalloonException.FailureClass.INTERRUPTED,
+                                        "Pruning was interrupted", e );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return whether to write a conformer store next to SD output
+     */
+    private static boolean writeConformerStore() {
+        return net.bioclipse.balloon.business.Activator.getDefault()
+                   .getPreferenceStore()
+                   .getBoolean( net.bioclipse.balloon.business.Activator
+                                   .BALLOON_STORE );
+    }
+
+    /**
+     * Writes the conformers of an SD file to a conformer store next to it
+     */
+    public String createConformerStore( String sdfile )
+                  throws BioclipseException {
+        OutputIndex index = null;
+        try {
+            index = OutputIndex.read( OutputIndex.indexFor( sdfile ) );
+        } catch ( IOException e ) {
+            logger.warn( "Could not read the index of " + sdfile + ": "
+                         + e.getMessage() );
+        }
+        return createConformerStore( sdfile, index, -1 );
+    }
+
+    /**
+     * Writes the conformers of an SD file to a conformer store next to it,
+     * one molecule for every molecule of the input if the file is indexed.
+     *
+     * @param index of <code>sdfile</code>, <code>null</code> to tell the
+     *              molecules apart by their records
+     * @param inputs number of molecules in the input, -1 if not known
+     */
+    private String createConformerStore( String sdfile, OutputIndex index,
+                                         long inputs )
+                   throws BioclipseException {
+        File store = ConformerStore.storeFor( sdfile );
+        try {
+            int molecules = index == null
+                            ? ConformerStore.write( new File( sdfile ), store )
+                            : ConformerStore.write( new File( sdfile ), index,
+                                                    inputs, store );
+            logger.debug( "Wrote " + molecules + " molecules to " + store );
+        } catch ( IOException e ) {
+            store.delete();
+            throw new BioclipseException( "Could not write a conformer "
+                                          + "store for " + sdfile + ": "
+                                          + e.getMessage(), e );
+        }
+        return store.getPath();
+    }
+
+    /**
+     * @return keeps <code>keepLowest</code> conformers per molecule
+     */
+    private static LowestEnergyConformers lowestEnergy( int keepLowest )
+                                          throws BioclipseException {
+        try {
+            return new LowestEnergyConformers( keepLowest );
+        } catch ( IllegalArgumentException e ) {
+            throw new BioclipseException( e.getMessage() );
+        }
+    }
+
+    /**
+     * Takes the position marks off the titles in Balloon output and indexes
+     * its records by the molecule they were generated for.
+     *
+     * @return the index of <code>outfile</code>, not written, or
+     *         <code>null</code> if not all records were marked
+     */
+    private OutputIndex untagOutput( String outfile )
+                        throws BioclipseException {
+        File out = new File( outfile );
+        File untagged = new File( outfile + ".untag" );
+        try {
+            OutputIndex.Builder index = PositionTags.untag( out, untagged );
+            if ( !out.delete() || !untagged.renameTo( out ) )
+                throw new IOException( "Could not replace " + outfile );
+            if ( index == null ) {
+                logger.warn( "Not all records of " + outfile + " tell the "
+                             + "molecule they are of, consecutive records "
+                             + "alike are taken to be one molecule" );
+                return null;
+            }
+            return index.locate( out );
+        } catch ( IOException e ) {
+            untagged.delete();
+            throw new BioclipseException( "Could not index " + outfile + ": "
+                                          + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Writes the molecules of a run over a whole file that Balloon wrote no
+     * conformers for to the failures file of <code>outfile</code>.
+     *
+     * @param sdf the SD file of the input, gzipped or not, to copy the
+     *            records of the molecules from, <code>null</code> to write
+     *            them without their records
+     * @param index of the Balloon output
+     * @param inputs number of molecules in the input
+     */
+    private void writeMissing( String sdf, OutputIndex index, long inputs,
+                               String outfile ) throws BioclipseException {
+        FailureWriter failures = new FailureWriter(
+                                     FailureWriter.failuresFor( outfile ) );
+        SDFRecordReader reader = null;
+        try {
+            if ( sdf != null )
+                reader = new SDFRecordReader(
+                             Compression.open( new File( sdf ) ) );
+            int i = 0;
+            for ( long position = 1; position <= inputs; position++ ) {
+                SDFRecordReader.SDFRecord record = reader == null
+                                                   ? null : reader.next();
+                while ( i < index.size() && index.getPosition( i ) < position )
+                    i++;
+                if ( i < index.size() && index.getPosition( i ) == position )
+                    continue;
+                failures.write( position, record == null ? null : record.text,
+                                null,
+                                new BalloonException(
+                                    BalloonException.FailureClass.FAILED,
+                                    "Balloon wrote no conformers for "
+                                    + "molecule " + position ) );
+            }
+            if ( failures.getCount() > 0 )
+                logger.info( failures.getCount() + " of " + inputs
+                             + " molecules failed, written to "
+                             + failures.getFile() );
+        } catch ( IOException e ) {
+            throw new BioclipseException( "Could not write the failures of "
+                                          + outfile + ": " + e.getMessage(),
+                                          e );
+        } finally {
+            try {
+                if ( reader != null )
+                    reader.close();
+                failures.close();
+            } catch ( IOException e ) {
+                logger.warn( "Could not close " + failures.getFile() + ": "
+                             + e.getMessage() );
+            }
+        }
+    }
+
+    /**
+     * Replaces a Balloon output file with the conformers of lowest energy
+     * of every molecule in it.
+     *
+     * @param index of <code>outfile</code>, <code>null</code> to tell the
+     *              molecules apart by their records
+     * @return the index of the replaced file, <code>null</code> if none
+     *         was given
+     */
+    private OutputIndex selectLowestEnergy( String outfile,
+                                            LowestEnergyConformers lowest,
+                                            OutputIndex index )
+                        throws BioclipseException {
+        File out = new File( outfile );
+        File selected = new File( outfile + ".lowest" );
+        try {
+            OutputIndex written = null;
+            int kept;
+            if ( index == null ) {
+                kept = lowest.selectFile( out, selected );
+            } else {
+                written = lowest.selectFile( out, index, selected );
+                kept = written.size();
+            }
+            if ( !out.delete() || !selected.renameTo( out ) )
+                throw new IOException( "Could not replace " + outfile );
+            logger.debug( "Kept " + kept + " conformers of lowest energy, "
+                          + "at most " + lowest.getKeep() + " per molecule" );
+            return written;
+        } catch ( IOException e ) {
+            selected.delete();
+            throw new BioclipseException( "Could not select conformers in "
+                                          + outfile + ": " + e.getMessage(),
+                                          e );
+        }
+    }
+
+    /**
+     * @return the per process limits from the preferences
+     */
+    static ResourceLimits resourceLimits() {
+        IPreferenceStore prefs = net.bioclipse.balloon.business.Activator
+                                    .getDefault().getPreferenceStore();
+        return new ResourceLimits(
+            prefs.getInt( net.bioclipse.balloon.business.Activator
+                             .BALLOON_MEMORY_LIMIT ) * 1024L * 1024L,
+            prefs.getInt( net.bioclipse.balloon.business.Activator
+                             .BALLOON_CPU_LIMIT ),
+            prefs.getInt( net.bioclipse.balloon.business.Activator
+                             .BALLOON_OUTPUT_LIMIT ) * 1024L * 1024L );
+    }
+
+    /**
+     * @return the Balloon timeout from the preferences in milliseconds
+     */
+    private static long balloonTimeoutMs() {
+        //Read timeout from prefs
+        int timeout = net.bioclipse.balloon.business.Activator
+                .getDefault().getPreferenceStore()
+                .getInt( net.bioclipse.balloon.business.Activator
+                        .BALLOON_TIMEOUT );
+
+        //Just to be sure...
+        if (timeout<=0)
+            timeout = net.bioclipse.balloon.business
+                         .Activator.DEFAULT_BALLOON_TIMEOUT;
+
+        //Seconds -> ms
+        return timeout * 1000L;
+    }
+
     /**
      * Thread safe method for calling balloon with one mdl-file
      * 
      * @param infile
      * @param numConformations
+     * @param lane whether the run is waited for by a user or part of a
+     *             bulk job
      * @return
      * @throws BioclipseException
      */
-    private String calculateWithBalloon( String infile, int numConformations )
+    String calculateWithBalloon( String infile, int numConformations,
+                                 BalloonEngine.Lane lane )
                                                                               throws BioclipseException {
+        return calculateWithBalloon( infile, numConformations, lane,
+                                     balloonTimeoutMs() );
+    }
 
-        String outfile = constructOutputFilename( infile, numConformations );
-        try {
+    private String calculateWithBalloon( String infile, int numConformations,
+                                         BalloonEngine.Lane lane,
+                                         long timeoutMs )
+                                         throws BioclipseException {
+        return calculateWithBalloon( infile, numConformations, lane,
+                                     timeoutMs, null );
+    }
 
-            //Read timeout from prefs
-            int timeout = net.bioclipse.balloon.business.Activator
-                    .getDefault().getPreferenceStore()
-                    .getInt( net.bioclipse.balloon.business.Activator
-                            .BALLOON_TIMEOUT );
+    private String calculateWithBalloon( String infile, int numConformations,
+                                         BalloonEngine.Lane lane,
+                                         long timeoutMs, Long randomSeed )
+                                         throws BioclipseException {
+        return calculateWithBalloon( infile,
+                                     constructOutputFilename( infile,
+                                                              numConformations ),
+                                     numConformations, lane, timeoutMs,
+                                     randomSeed );
+    }
+
+    private String calculateWithBalloon( String infile, String outfile,
+                                         int numConformations,
+                                         BalloonEngine.Lane lane,
+                                         long timeoutMs, Long randomSeed )
+                                         throws BioclipseException {
+
+        BalloonRunner runner = null;
+        try {
 
-            //Just to be sure...
-            if (timeout<=0)
-                timeout = net.bioclipse.balloon.business
-                             .Activator.DEFAULT_BALLOON_TIMEOUT;
-            
-            //Seconds -> ms
-            Long msTimout=new Long(timeout*1000);
-            
             //Create a native runner and execute Balloon with it for a 
             //certain timeout writing from inputfile to outputfile with 
             //desired number of conformations
-            BalloonRunner runner=new BalloonRunner(msTimout);
-            boolean failed =
-                            !runner.runBalloon( infile, outfile,
-                                                 numConformations );
+            runner=newRunner( lane, timeoutMs );
+            runner.setRandomSeed( randomSeed );
+            BalloonEngine engine = BalloonEngine.getDefault();
+            boolean failed;
+            engine.acquire( lane );
+            try {
+                failed = !runner.runBalloon( infile, outfile,
+                                             numConformations );
+            } finally {
+                engine.release( lane );
+            }
             if ( failed ) {
-                throw new BioclipseException(
-                              "Balloon execution failed. Native " +
-                              "BalloonRunner returned false." );
+                throw BalloonException.forResult( runner.getResult() );
             }
         } catch ( ExecutionException e ) {
-            throw new BioclipseException( "Balloon execution failed. Reason: " 
-                                          + e.getMessage(), e );
+            throw new BalloonException( BalloonException.FailureClass.EXECUTION,
+                                        "Balloon execution failed. Reason: "
+                                        + e.getMessage(), e );
         } catch ( InterruptedException e ) {
-            throw new BioclipseException( "Balloon Was interrupted. Reason: " 
-                                          + e.getMessage(), e );
+            throw new BalloonException( BalloonException.FailureClass.INTERRUPTED,
+                                        "Balloon Was interrupted. Reason: "
+                                        + e.getMessage(), e );
         } catch ( TimeoutException e ) {
-            throw new BioclipseException( "Balloon timed out. Reason: " 
-                                          + e.getMessage(), e );
+            if ( salvagePartial( numConformations )
+                 && salvageFile( outfile, numConformations ) )
+                return outfile;
+            throw new BalloonException( BalloonException.FailureClass.TIMEOUT,
+                                        "Balloon timed out. Reason: "
+                                        + e.getMessage(), e,
+                                        runner.getResult() );
         } catch ( IOException e ) {
-            throw new BioclipseException( "Balloon I/O error. Reason: " 
-                                          + e.getMessage(), e );
+            throw new BalloonException( BalloonException.FailureClass.IO,
+                                        "Balloon I/O error. Reason: "
+                                        + e.getMessage(), e );
         }
         
         return outfile;
@@ -575,16 +2317,41 @@ public class BalloonManager implements IBioclipseManager {
                                                                         throws BioclipseException,
                                                                         CoreException,
                                                                         IOException {
+        return generate3Dconformations( input, AdaptiveConformers.fixed( 1 ),
+                                        progressMonitor );
+    }
+
+    /**
+     * Runs Balloon for every molecule of <code>input</code> in parallel,
+     * asking for as many conformations as <code>target</code> says for
+     * each molecule.
+     * @return the output file
+     */
+    private IFile generate3Dconformations( final IFile input,
+                                           final AdaptiveConformers target,
+                                           final IProgressMonitor progressMonitor )
+                                           throws BioclipseException,
+                                                  CoreException,
+                                                  IOException {
     	final SubMonitor monitor = SubMonitor.convert(progressMonitor);
     	final ICDKManager cdk = net.bioclipse.cdk.business.Activator.getDefault().getJavaCDKManager();
         monitor.beginTask( "Generating 3D coordinates", 10000 );
-        final int numOfMolcules = cdk.numberOfEntriesInSDF( input, monitor.newChild(10) );
+        final boolean cml = isCml( contentType( input ) );
+        final int numOfMolcules;
+        if ( cml )
+            numOfMolcules = CmlMoleculeStream.count( open( input ) );
+        else if ( Compression.isGzip( input.getName() ) )
+            numOfMolcules = SDFRecordReader.count( open( input ) );
+        else
+            numOfMolcules = cdk.numberOfEntriesInSDF( input,
+                                                      monitor.newChild(10) );
 
         monitor.setWorkRemaining(numOfMolcules *30);
 
         final String file =
                         constructOutputFilename( input.getRawLocation()
-                                        .toOSString(), 1 );
+                                        .toOSString(), target.getMax() );
+        RunManifest.manifestFor( file ).delete();
     	
         final BlockingQueue<MolInfo<MolPos>> inputMoleculesQueue =
                         new ArrayBlockingQueue<MolInfo<MolPos>>( 10 );
@@ -592,14 +2359,37 @@ public class BalloonManager implements IBioclipseManager {
                         new ArrayBlockingQueue<MolInfo<MolPos>>( 10 );
     	final Boolean[] fileIsParsed = { Boolean.FALSE};
         final MolInfo<MolPos> POISION = MolInfo.poision();
-        final int numThreads = Runtime.getRuntime().availableProcessors();
+        final BalloonEngine engine = BalloonEngine.getDefault();
+        // Workers are virtual threads, have one for every Balloon process
+        // the engine may allow
+        final int numThreads = engine.getMaxConcurrency();
+        final PinningMonitor.Stats pinnedBefore = engine.getPinning().snapshot();
+        final ScratchSpace.Job scratch = newScratchJob();
+        final boolean pipes = usePipes();
+        final PreflightFilter preflight = preflightFilter();
+        final Quarantine quarantine = quarantine();
+        final boolean skipQuarantined = !forceQuarantined
+                                        && !quarantineFallback();
+        final long timeoutMs = balloonTimeoutMs();
+        final long fallbackTimeoutMs = Math.min( timeoutMs,
+                                                 FALLBACK_TIMEOUT_MS );
+        final String version = BalloonRunner.getVersion();
+        final FailureWriter failures
+            = new FailureWriter( FailureWriter.failuresFor( file ) );
+        final OutputIndex.Builder outputIndex = new OutputIndex.Builder();
     	// @new thread
     	Runnable parse = new Runnable() {
+    		/** Keeps the record of a molecule turned down by the parser */
+    		MolPos failed( ICDKMolecule molecule ) throws BioclipseException {
+    			return new MolPos( molecule.getAtomContainer().getProperties(),
+    			                   null, cdk.getMDLMolfileString( molecule ) );
+    		}
+
     		public void run() {
 
                 try {
                     Iterator<? extends ICDKMolecule> parserIterator =
-                                    cdk.createMoleculeIterator( input );
+                                    moleculeIterator( cdk, input, cml );
                     long pos = 0;
                     while ( parserIterator.hasNext() ) {
                     	++pos;
@@ -607,18 +2397,79 @@ public class BalloonManager implements IBioclipseManager {
                     	MolInfo<MolPos> newMol = MolInfo.nothing(pos);
                     	try {
                     		ICDKMolecule molecule = parserIterator.next();
-                    		// save to temp file
-                    		String tempFile = serializeMoleculeToTempFile( molecule );
-                    		mp = new MolPos( molecule .getAtomContainer()
-                                                        .getProperties(),
-                                                    tempFile );
+                    		FailureWriter.clearTags( molecule.getAtomContainer()
+                    		                                 .getProperties() );
+                    		if ( preflight != null ) {
+                    			try {
+                    				IAtomContainer checked = preflight.check(
+                    				                 molecule.getAtomContainer() );
+                    				if ( checked != molecule.getAtomContainer() )
+                    					molecule = new CDKMolecule( checked );
+                    			} catch ( BalloonException rejected ) {
+                    				// Straight to the writer, no worker needed
+                    				outputMoleculesQueue.put(
+                    				    MolInfo.error( pos, rejected,
+                    				                   failed( molecule ) ) );
+                    				continue;
+                    			}
+                    		}
+                    		int numConformations = target.numConformations(
+                    		                       molecule.getAtomContainer() );
+                    		String parameters = runParameters( numConformations,
+                    		                                   timeoutMs );
+                    		String structure = null;
+                    		boolean fallback = false;
+                    		if ( quarantine != null ) {
+                    			structure = canonicalSmiles( molecule );
+                    			Quarantine.Entry entry = structure == null
+                    			    ? null
+                    			    : quarantine.lookup( structure, version,
+                    			                         parameters );
+                    			if ( entry != null && !forceQuarantined ) {
+                    				if ( skipQuarantined ) {
+                    					outputMoleculesQueue.put(
+                    					    MolInfo.error( pos,
+                    					        new BalloonException(
+                    					            BalloonException.FailureClass.QUARANTINED,
+                    					            "Molecule is quarantined after "
+                    					            + entry.count + " failures ("
+                    					            + entry.failureClass + ")" ),
+                    					        failed( molecule ) ) );
+                    					continue;
+                    				}
+                    				fallback = true;
+                    			}
+                    		}
+                    		if ( pipes ) {
+                    			// keep in memory and pipe to Balloon
+                    			mp = new MolPos( molecule.getAtomContainer()
+                    			                         .getProperties(),
+                    			                 null,
+                    			                 cdk.getMDLMolfileString( molecule ),
+                    			                 structure, fallback,
+                    			                 numConformations );
+                    		} else {
+                    			// save to temp file
+                    			String tempFile = serializeMoleculeToTempFile( molecule,
+                    			                                               scratch );
+                    			mp = new MolPos( molecule .getAtomContainer()
+                    			                          .getProperties(),
+                    			                 tempFile, null,
+                    			                 structure, fallback,
+                    			                 numConformations );
+                    		}
                         if ( monitor.isCanceled() )
                             break;
                     	} catch (Exception e) {
                     		logger.error(e.getMessage(),e);
-                    		newMol = MolInfo.error(newMol, e);
+                    		newMol = MolInfo.error(pos, new BalloonException(
+                    		             BalloonException.FailureClass.PARSE,
+                    		             "Could not read molecule: "
+                    		             + e.getMessage(), e ));
                     	}
-                    	inputMoleculesQueue.put( MolInfo.some(newMol,mp) );
+                    	inputMoleculesQueue.put( newMol instanceof MolInfo.Error
+                    	                             ? newMol
+                    	                             : MolInfo.some(newMol,mp) );
                     }
                     for ( int i = 0; i < numThreads; i++ )
                         inputMoleculesQueue.put( POISION );
@@ -639,18 +2490,53 @@ public class BalloonManager implements IBioclipseManager {
     					if(input.equals(POISION)) {
     						break;
     					}
+    					if ( input instanceof MolInfo.Error ) {
+    						outputMoleculesQueue.put( input );
+    						continue;
+    					}
     					try{
     					for(MolPos in:input){
-    						String outputFile = calculateWithBalloon(in.file, 1);
-    						MolPos out = in.newOutput(outputFile);
-    						output = MolInfo.some(input, out);
+    						long timeout = in.fallback ? fallbackTimeoutMs : timeoutMs;
+    						if ( in.content != null ) {
+    							String result = calculateWithBalloon(in.content, scratch, in.numConformations, BalloonEngine.Lane.BATCH, timeout);
+    							output = MolInfo.some(input, in.newContent(result));
+    						} else {
+    							String outputFile = calculateWithBalloon(in.file, in.numConformations, BalloonEngine.Lane.BATCH, timeout);
+    							scratch.release(in.file);
+    							scratch.track(outputFile);
+    							MolPos out = in.newOutput(outputFile);
+    							output = MolInfo.some(input, out);
+    						}
+    						if ( quarantine != null && in.structure != null
+    						     && !in.fallback )
+    							quarantine.recordSuccess( in.structure );
     					}
     					} catch ( Exception e) {
+    						MolPos failed = null;
     						for(MolPos in:input){
+    							if ( quarantine != null && in.structure != null
+    							     && !in.fallback
+    							     && e instanceof BalloonException )
+    								quarantine.recordFailure( in.structure,
+    								    ((BalloonException) e).getFailureClass(),
+    								    version,
+    								    runParameters( in.numConformations,
+    								                   timeoutMs ) );
+    							failed = in;
+    							if ( in.file == null )
+    								continue;
     							logger.error("File: "+in.file);
+    							// Keep the record for the failures file
+    							try {
+    								failed = new MolPos( in.properties, null,
+    								                     readFile( in.file ) );
+    							} catch ( IOException readFailed ) {
+    								failed = null;
+    							}
+    							scratch.release(in.file);
     						}
     						logger.error(e.getMessage(),e);
-    						output = MolInfo.error(input,e);
+    						output = MolInfo.error(input.pos,e,failed);
     					}
     					outputMoleculesQueue.put( output );
                         if ( monitor.isCanceled() )
@@ -673,8 +2559,11 @@ public class BalloonManager implements IBioclipseManager {
 
                 SDFWriter mdlwriter;
                 try {
+                    // Compressed in parallel for .gz output
                     mdlwriter = new SDFWriter(
-                                   new FileWriter( new File( file ) ) );
+                        new OutputStreamWriter(
+                            Compression.output( new File( file ),
+                                                engine.newExecutor() ) ) );
                 } catch ( IOException e) {
                     logger.error( e.getMessage(), e );
                     return;
@@ -684,8 +2573,10 @@ public class BalloonManager implements IBioclipseManager {
                 LinkedList<MolInfo<MolPos>> buffer = new LinkedList<MolInfo<MolPos>>();
     			int foundPoinsions = 0;
                 while ( !buffer.isEmpty() || foundPoinsions < numberOfThreads ) {
+                    MolInfo<MolPos> input = null;
+                    // Records of the molecule written so far
+                    int written = 0;
     				try {
-                        MolInfo<MolPos> input = null;
                         if ( !buffer.isEmpty()
                              && outputMoleculesQueue.isEmpty() )
                             input = buffer.pop();
@@ -716,30 +2607,76 @@ public class BalloonManager implements IBioclipseManager {
                                 input = newInput;
                         }
                         ++pos;
+                        if ( input instanceof MolInfo.Error ) {
+                            MolInfo.Error<MolPos> error
+                                = (MolInfo.Error<MolPos>) input;
+                            logger.warn( "Molecule " + input.pos
+                                         + " skipped: "
+                                         + error.getError().getMessage() );
+                            MolPos failed = error.getValue();
+                            failures.write( input.pos,
+                                            failed == null ? null
+                                                           : failed.content,
+                                            failed == null ? null
+                                                           : failed.properties,
+                                            error.getError() );
+                        }
                         SubMonitor progress = monitor.newChild(30);
                         for(MolPos in:input) {
                         	List<ICDKMolecule> molecules = Collections.emptyList();
-                        	IChemFormat format = cdk.guessFormatFromExtension(in.file);
-
-                        	IFileStore fileStore =  EFS.getLocalFileSystem().getStore(new Path(in.file));
-                        	InputStream is = fileStore.openInputStream(EFS.NONE, progress.newChild(10));
-                        	molecules = cdk.loadMolecules(is, format, progress.newChild(10));
-
-                        	ICDKMolecule molecule = molecules.get(0);
-                        	molecule.getAtomContainer()
-                        	.setProperties( in.properties );
-                        	mdlwriter.write(molecule.getAtomContainer());
+                        	IChemFormat format;
+                        	InputStream is;
+                        	if ( in.content != null ) {
+                        		format = (IChemFormat) SDFFormat.getInstance();
+                        		is = new ByteArrayInputStream(
+                        		         in.content.getBytes( SDFRecordReader.CHARSET ) );
+                        		progress.worked(10);
+                        	} else {
+                        		format = cdk.guessFormatFromExtension(in.file);
+                        		IFileStore fileStore =  EFS.getLocalFileSystem().getStore(new Path(in.file));
+                        		is = fileStore.openInputStream(EFS.NONE, progress.newChild(10));
+                        	}
+                        	try {
+                        		molecules = cdk.loadMolecules(is, format, progress.newChild(10));
+                        	} finally {
+                        		is.close();
+                        		if ( in.file != null )
+                        			scratch.release(in.file);
+                        	}
+
+                        	for ( ICDKMolecule molecule : molecules ) {
+                        		molecule.getAtomContainer()
+                        		.setProperties( in.properties );
+                        		mdlwriter.write(molecule.getAtomContainer());
+                        		written++;
+                        	}
                         	progress.worked(10);
                         }
+                        outputIndex.add( input.pos, written );
 
                         monitor.setWorkRemaining((int) (numOfMolcules-pos)*30);
                         monitor.subTask( "Done " + pos + "/" + numOfMolcules
                         		+ " (" + TimeCalculator.generateTimeRemainEst(
-                        				before, (int)pos, numOfMolcules ) + ")" );
+                        				before, (int)pos, numOfMolcules ) + ", "
+                        		+ engine.getNativeConcurrency()
+                        		+ " Balloon processes)" );
                         if ( monitor.isCanceled() )
                             break;
                     } catch ( Exception e ) {
                         logger.error( e.getMessage(), e );
+                        if ( input == null || input == POISION )
+                            continue;
+                        // Keeps the index in step with the records written
+                        if ( written > 0 )
+                            outputIndex.add( input.pos, written );
+                        Map<Object, Object> properties = null;
+                        for ( MolPos in : input )
+                            properties = in.properties;
+                        try {
+                            failures.write( input.pos, null, properties, e );
+                        } catch ( IOException f ) {
+                            logger.error( f.getMessage(), f );
+                        }
 					}
     			}
     			try {
@@ -747,18 +2684,21 @@ public class BalloonManager implements IBioclipseManager {
 				} catch (IOException e) {
                     logger.error( e.getMessage(), e );
 				}
+    			try {
+    				failures.close();
+    			} catch (IOException e) {
+    				logger.error( e.getMessage(), e );
+    			}
     		}
     	};
 
-        Thread parserThread = new Thread( parse );
-        parserThread.start();
+        Thread parserThread = engine.start( "Balloon Parser", parse );
 
         Thread[] workers = new Thread[numThreads];
         for ( int i = 0; i < numThreads; i++ )
-            (workers[i] = new Thread( generator,"Balloon Worker "+i )).start();
+            workers[i] = engine.start( "Balloon Worker "+i, generator );
 
-        Thread writerThread = new Thread( writer );
-        writerThread.start();
+        Thread writerThread = engine.start( "Balloon Writer", writer );
         while ( true ) {
             try {
                 writerThread.join();
@@ -777,6 +2717,34 @@ public class BalloonManager implements IBioclipseManager {
         	}
         }
         logger.debug(runCount+" treads is still alive");
+        if ( quarantine != null ) {
+            try {
+                quarantine.save();
+            } catch ( IOException e ) {
+                logger.warn( "Could not save the Balloon quarantine: "
+                             + e.getMessage() );
+            }
+        }
+        logger.info( engine.describe() );
+        if ( failures.getCount() > 0 )
+            logger.info( failures.getCount() + " molecules failed, written to "
+                         + failures.getFile() );
+        if ( engine.getPinning().isEnabled() )
+            logger.info( "Balloon run on " + input.getName() + ": "
+                         + engine.getPinning().snapshot().since( pinnedBefore ) );
+        scratch.close();
+        // Offsets into compressed output would be of no use
+        if ( !Compression.isGzip( file ) ) {
+            try {
+                outputIndex.write( new File( file ) );
+            } catch ( IOException e ) {
+                logger.warn( "Could not index " + file + ": "
+                             + e.getMessage() );
+                OutputIndex.indexFor( file ).delete();
+            }
+        }
+        if ( writeConformerStore() )
+            createConformerStore( file, outputIndex.build(), numOfMolcules );
         return ResourcePathTransformer.getInstance()
 .transform( file );
     }
@@ -817,9 +2785,20 @@ abstract class MolInfo<T> implements Iterable<T>{
 	};
 	public static class Error<T> extends MolInfo<T> {
 		private final Throwable e;
-		Error(long pos, Throwable e) {
+		private final T value;
+		Error(long pos, Throwable e, T value) {
 			super(pos);
 			this.e = e;
+			this.value = value;
+		}
+		
+		Throwable getError() {
+			return e;
+		}
+		
+		/** The molecule that failed, null if it could not be read */
+		T getValue() {
+			return value;
 		}
 		
 		public Iterator<T> iterator() { return EMPTY;}
@@ -844,9 +2823,11 @@ abstract class MolInfo<T> implements Iterable<T>{
 			throw new UnsupportedOperationException();
 		}
 	}
-	@SuppressWarnings("unchecked")
 	static <T> MolInfo<T> error(long pos,Throwable e) {
-		return (Error<T>) new Error<Object>(pos,e);
+		return error(pos,e,null);
+	}
+	static <T> MolInfo<T> error(long pos,Throwable e,T value) {
+		return new Error<T>(pos,e,value);
 	}
 	static <T> MolInfo<T> error(MolInfo<T> in,Throwable e) {
 		return error(in.pos,e);
@@ -875,14 +2856,49 @@ class MolPos{
 
     final Map<Object, Object> properties;
     final String              file;
+    /** The molecule data when kept in memory instead of in file */
+    final String              content;
+    /** Canonical SMILES for the quarantine, null if not used */
+    final String              structure;
+    /** Whether the molecule is quarantined and tried with a short timeout */
+    final boolean             fallback;
+    /** Conformations to ask Balloon for */
+    final int                 numConformations;
 
     public MolPos( Map<Object, Object> properties, String file) {
+        this( properties, file, null );
+    }
+
+    public MolPos( Map<Object, Object> properties, String file,
+                   String content ) {
+        this( properties, file, content, null, false );
+    }
+
+    public MolPos( Map<Object, Object> properties, String file,
+                   String content, String structure, boolean fallback ) {
+        this( properties, file, content, structure, fallback, 1 );
+    }
+
+    public MolPos( Map<Object, Object> properties, String file,
+                   String content, String structure, boolean fallback,
+                   int numConformations ) {
         this.properties = properties;
         this.file = file;
+        this.content = content;
+        this.structure = structure;
+        this.fallback = fallback;
+        this.numConformations = numConformations;
     }
 
     public MolPos newOutput( String outputFile ) {
 
-        return new MolPos( properties, outputFile );
+        return new MolPos( properties, outputFile, null, structure, fallback,
+                           numConformations );
+    }
+
+    public MolPos newContent( String outputContent ) {
+
+        return new MolPos( properties, null, outputContent, structure,
+                           fallback, numConformations );
     }
 }
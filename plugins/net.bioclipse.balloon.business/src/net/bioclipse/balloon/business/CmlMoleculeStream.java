@@ -0,0 +1,283 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import net.bioclipse.cdk.business.ICDKManager;
+import net.bioclipse.cdk.domain.ICDKMolecule;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.openscience.cdk.io.formats.CMLFormat;
+import org.openscience.cdk.io.formats.IChemFormat;
+
+/**
+ * Pulls the molecules out of a CML document one at a time, each as a
+ * document of its own, so that a file of any number of molecules can be
+ * read with memory for one. Molecules inside other molecules are part of
+ * them and not returned on their own.
+ */
+class CmlMoleculeStream {
+
+    static final String MOLECULE = "molecule";
+
+    private final InputStream    in;
+    private final XMLEventReader reader;
+    private final XMLOutputFactory outputs;
+    private final XMLEventFactory events;
+    /** Namespaces declared by the elements around the next molecule */
+    private final LinkedList<List<Namespace>> scopes
+        = new LinkedList<List<Namespace>>();
+    /** Molecules returned so far */
+    private int                  read;
+
+    CmlMoleculeStream( InputStream in ) throws IOException {
+        this.in = in;
+        try {
+            reader = inputs().createXMLEventReader( in );
+        } catch ( XMLStreamException e ) {
+            throw new IOException( "Could not read CML: " + e.getMessage(),
+                                   e );
+        }
+        outputs = XMLOutputFactory.newInstance();
+        events = XMLEventFactory.newInstance();
+    }
+
+    private static XMLInputFactory inputs() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                             Boolean.FALSE );
+        factory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE );
+        return factory;
+    }
+
+    /**
+     * @return number of molecules in a CML document, read without keeping
+     *         any of them
+     */
+    static int count( InputStream in ) throws IOException {
+        try {
+            XMLStreamReader reader = inputs().createXMLStreamReader( in );
+            try {
+                int molecules = 0;
+                int depth = 0;
+                while ( reader.hasNext() ) {
+                    int event = reader.next();
+                    if ( event == XMLStreamReader.START_ELEMENT
+                         && MOLECULE.equals( reader.getLocalName() ) ) {
+                        if ( depth++ == 0 )
+                            molecules++;
+                    } else if ( event == XMLStreamReader.END_ELEMENT
+                                && MOLECULE.equals( reader.getLocalName() ) ) {
+                        depth--;
+                    }
+                }
+                return molecules;
+            } finally {
+                reader.close();
+            }
+        } catch ( XMLStreamException e ) {
+            throw new IOException( "Could not read CML: " + e.getMessage(),
+                                   e );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the next molecule as a CML document, <code>null</code> when
+     *         all have been returned
+     */
+    String next() throws IOException {
+        try {
+            while ( reader.hasNext() ) {
+                XMLEvent event = reader.nextEvent();
+                if ( event.isStartElement() ) {
+                    StartElement start = event.asStartElement();
+                    if ( MOLECULE.equals( start.getName().getLocalPart() ) ) {
+                        String molecule
+                            = copyMolecule( declareScopes( start ) );
+                        read++;
+                        return molecule;
+                    }
+                    List<Namespace> declared = new ArrayList<Namespace>();
+                    for ( Iterator<?> i = start.getNamespaces(); i.hasNext(); )
+                        declared.add( (Namespace) i.next() );
+                    scopes.push( declared );
+                } else if ( event.isEndElement() && !scopes.isEmpty() ) {
+                    scopes.pop();
+                }
+            }
+            return null;
+        } catch ( XMLStreamException e ) {
+            throw new IOException( "Could not read CML after molecule "
+                                   + read + ": " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * @return <code>start</code> also declaring the namespaces of the
+     *         elements around it, so that it can stand on its own
+     */
+    private StartElement declareScopes( StartElement start ) {
+        List<Namespace> namespaces = new ArrayList<Namespace>();
+        Set<String> prefixes = new HashSet<String>();
+        for ( Iterator<?> i = start.getNamespaces(); i.hasNext(); ) {
+            Namespace namespace = (Namespace) i.next();
+            namespaces.add( namespace );
+            prefixes.add( namespace.getPrefix() );
+        }
+        // Innermost first, so the declaration in scope wins
+        for ( List<Namespace> scope : scopes )
+            for ( Namespace namespace : scope )
+                if ( prefixes.add( namespace.getPrefix() ) )
+                    namespaces.add( namespace );
+        return events.createStartElement( start.getName().getPrefix(),
+                                          start.getName().getNamespaceURI(),
+                                          start.getName().getLocalPart(),
+                                          start.getAttributes(),
+                                          namespaces.iterator() );
+    }
+
+    /**
+     * Copies the molecule starting with <code>start</code> up to and
+     * including its end.
+     */
+    private String copyMolecule( XMLEvent start ) throws XMLStreamException {
+        StringWriter text = new StringWriter();
+        XMLEventWriter writer = outputs.createXMLEventWriter( text );
+        writer.add( start );
+        int depth = 1;
+        while ( depth > 0 ) {
+            if ( !reader.hasNext() )
+                throw new XMLStreamException( "Molecule " + (read + 1)
+                                              + " does not end" );
+            XMLEvent event = reader.nextEvent();
+            if ( event.isStartElement()
+                 && MOLECULE.equals( event.asStartElement().getName()
+                                          .getLocalPart() ) )
+                depth++;
+            else if ( event.isEndElement()
+                      && MOLECULE.equals( event.asEndElement().getName()
+                                               .getLocalPart() ) )
+                depth--;
+            writer.add( event );
+        }
+        writer.close();
+        return text.toString();
+    }
+
+    /**
+     * The molecules parsed one at a time. A molecule that can not be read
+     * throws an {@link IllegalStateException} from <code>next()</code>,
+     * after which the others can still be read unless the document itself
+     * is broken. The stream is closed when the last molecule has been got.
+     *
+     * @param cdk parses every molecule
+     */
+    Iterator<ICDKMolecule> molecules( final ICDKManager cdk ) {
+        return new Iterator<ICDKMolecule>() {
+            private String      molecule;
+            private IOException error;
+            private boolean     done;
+
+            public boolean hasNext() {
+                if ( molecule == null && error == null && !done ) {
+                    try {
+                        molecule = CmlMoleculeStream.this.next();
+                    } catch ( IOException e ) {
+                        error = e;
+                    }
+                    if ( molecule == null )
+                        finish();
+                }
+                return molecule != null || error != null;
+            }
+
+            public ICDKMolecule next() {
+                if ( !hasNext() )
+                    throw new NoSuchElementException();
+                if ( error != null ) {
+                    IOException e = error;
+                    error = null;
+                    throw new IllegalStateException( e.getMessage(), e );
+                }
+                String cml = molecule;
+                molecule = null;
+                List<ICDKMolecule> parsed;
+                try {
+                    parsed = cdk.loadMolecules(
+                                 new ByteArrayInputStream(
+                                     cml.getBytes( "UTF-8" ) ),
+                                 (IChemFormat) CMLFormat.getInstance(),
+                                 new NullProgressMonitor() );
+                } catch ( Exception e ) {
+                    throw new IllegalStateException( "Could not parse CML "
+                                                     + "molecule " + read
+                                                     + ": " + e.getMessage(),
+                                                     e );
+                }
+                if ( parsed.isEmpty() )
+                    throw new IllegalStateException( "No molecule in CML "
+                                                     + "molecule " + read );
+                return parsed.get( 0 );
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private void finish() {
+                done = true;
+                try {
+                    close();
+                } catch ( IOException e ) {
+                    // Nothing more is read
+                }
+            }
+        };
+    }
+
+    /**
+     * @return number of molecules returned so far
+     */
+    int getRead() {
+        return read;
+    }
+
+    void close() throws IOException {
+        try {
+            reader.close();
+        } catch ( XMLStreamException e ) {
+            // Closing the stream is what matters
+        } finally {
+            in.close();
+        }
+    }
+}
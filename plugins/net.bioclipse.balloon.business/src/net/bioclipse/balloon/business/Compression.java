@@ -0,0 +1,241 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compressed input and output, told by the <code>.gz</code> ending
+ * of the file name. Input is decompressed while it is read. Output is cut
+ * into blocks that are compressed in parallel, each into a gzip member of
+ * its own, which gzip and {@link GZIPInputStream} read as one stream.
+ */
+class Compression {
+
+    static final String GZIP = ".gz";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    static boolean isGzip( String file ) {
+        return file != null && file.toLowerCase().endsWith( GZIP );
+    }
+
+    /**
+     * @return the name of the file without <code>.gz</code>, e.g.
+     *         <code>mols.sdf</code> for <code>mols.sdf.gz</code>
+     */
+    static String strip( String file ) {
+        return isGzip( file ) ? file.substring( 0, file.length() - 3 ) : file;
+    }
+
+    /**
+     * @return the contents of <code>file</code>, decompressed if it is
+     *         gzipped
+     */
+    static InputStream open( File file ) throws IOException {
+        return open( new FileInputStream( file ), file.getName() );
+    }
+
+    /**
+     * @param name of the file <code>in</code> reads
+     */
+    static InputStream open( InputStream in, String name ) throws IOException {
+        if ( !isGzip( name ) )
+            return in;
+        try {
+            return new GZIPInputStream( in, BUFFER_SIZE );
+        } catch ( IOException e ) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param executor compresses the output if <code>file</code> is to be
+     *                 gzipped, shut down when the stream is closed or at
+     *                 once if it is not needed
+     * @return a stream writing to <code>file</code>
+     */
+    static OutputStream output( File file, ExecutorService executor )
+                        throws IOException {
+        OutputStream out = new FileOutputStream( file );
+        if ( !isGzip( file.getName() ) ) {
+            executor.shutdown();
+            return out;
+        }
+        return new ParallelGzipOutputStream(
+                       out, executor, ParallelGzipOutputStream.BLOCK_SIZE,
+                       Runtime.getRuntime().availableProcessors() * 2 );
+    }
+
+    /**
+     * Compresses a file in parallel blocks.
+     */
+    static void compress( File in, File out, ExecutorService executor )
+                throws IOException {
+        InputStream input = new BufferedInputStream( new FileInputStream( in ),
+                                                     BUFFER_SIZE );
+        OutputStream output = null;
+        try {
+            output = output( out, executor );
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ( (read = input.read( buffer )) > 0 )
+                output.write( buffer, 0, read );
+        } finally {
+            input.close();
+            if ( output != null )
+                output.close();
+        }
+    }
+
+    /**
+     * Gzip output compressed a block at a time by an executor, the blocks
+     * written in order. {@link #flush()} only writes blocks that are
+     * compressed, so that writers flushing after every record do not end
+     * up with a gzip member each.
+     */
+    static class ParallelGzipOutputStream extends OutputStream {
+
+        /** Uncompressed bytes per gzip member */
+        static final int BLOCK_SIZE = 1 << 20;
+
+        private final OutputStream    out;
+        private final ExecutorService executor;
+        private final int             blockSize;
+        /** Most blocks compressed or waiting to be written at once */
+        private final int             window;
+        private final LinkedList<Future<byte[]>> pending
+            = new LinkedList<Future<byte[]>>();
+        private byte[]                block;
+        private int                   size;
+        private boolean               written;
+        private boolean               closed;
+
+        /**
+         * @param executor runs the compression, shut down on close
+         */
+        ParallelGzipOutputStream( OutputStream out, ExecutorService executor,
+                                  int blockSize, int window ) {
+            this.out = out;
+            this.executor = executor;
+            this.blockSize = blockSize;
+            this.window = Math.max( 1, window );
+            this.block = new byte[blockSize];
+        }
+
+        @Override
+        public void write( int b ) throws IOException {
+            ensureOpen();
+            block[size++] = (byte) b;
+            if ( size == blockSize )
+                submit();
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            ensureOpen();
+            while ( len > 0 ) {
+                int n = Math.min( len, blockSize - size );
+                System.arraycopy( b, off, block, size, n );
+                size += n;
+                off += n;
+                len -= n;
+                if ( size == blockSize )
+                    submit();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            while ( !pending.isEmpty() && pending.getFirst().isDone() )
+                writeMember( pending.removeFirst() );
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if ( closed )
+                return;
+            closed = true;
+            try {
+                // An empty file is not gzip, one empty member is
+                if ( size > 0 || !written )
+                    submit();
+                while ( !pending.isEmpty() )
+                    writeMember( pending.removeFirst() );
+            } finally {
+                for ( Future<byte[]> f : pending )
+                    f.cancel( true );
+                executor.shutdownNow();
+                out.close();
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if ( closed )
+                throw new IOException( "Stream closed" );
+        }
+
+        private void submit() throws IOException {
+            final byte[] data = block;
+            final int length = size;
+            pending.add( executor.submit( new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return compress( data, length );
+                }
+            } ) );
+            written = true;
+            block = new byte[blockSize];
+            size = 0;
+            while ( pending.size() > window
+                    || (!pending.isEmpty() && pending.getFirst().isDone()) )
+                writeMember( pending.removeFirst() );
+        }
+
+        private static byte[] compress( byte[] data, int length )
+                              throws IOException {
+            ByteArrayOutputStream member
+                = new ByteArrayOutputStream( length / 4 + 64 );
+            GZIPOutputStream gzip = new GZIPOutputStream( member,
+                                                          BUFFER_SIZE );
+            gzip.write( data, 0, length );
+            gzip.close();
+            return member.toByteArray();
+        }
+
+        private void writeMember( Future<byte[]> member ) throws IOException {
+            try {
+                out.write( member.get() );
+            } catch ( ExecutionException e ) {
+                throw new IOException( "Could not compress: "
+                                       + e.getCause().getMessage(),
+                                       e.getCause() );
+            } catch ( InterruptedException e ) {
+                throw new InterruptedIOException( "Compression was "
+                                                  + "interrupted" );
+            }
+        }
+    }
+}
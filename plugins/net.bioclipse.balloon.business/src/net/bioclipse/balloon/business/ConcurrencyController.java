@@ -0,0 +1,288 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Finds the number of Balloon processes giving the highest throughput on
+ * this host. Every few seconds the molecules per second finished since the
+ * last look are compared to the previous value. While throughput holds up
+ * the level is raised by one, when it drops, or when the host runs low on
+ * memory or is overloaded by other jobs, the level is cut to three
+ * quarters (additive increase, multiplicative decrease).
+ * <p>
+ * The load average counts the Balloon processes too. Their share of it is
+ * followed with the same one minute decay the kernel uses and taken off,
+ * so that the engine does not cut its own level for the load it makes.
+ */
+class ConcurrencyController {
+
+    private static final Logger logger
+        = Logger.getLogger( ConcurrencyController.class );
+
+    static final long INTERVAL_MS = 5000;
+
+    /** Throughput drop that is still counted as noise */
+    static final double TOLERANCE = 0.05;
+
+    static final double DECREASE = 0.75;
+
+    /** Fraction of physical memory that should stay free */
+    static final double MIN_FREE_MEMORY = 0.10;
+
+    /** Load average per core above which the host counts as overloaded */
+    static final double MAX_LOAD_PER_CORE = 1.25;
+
+    /**
+     * What is left of a process in the one minute load average after one
+     * interval, as the kernel samples every five seconds
+     */
+    static final double LOAD_DECAY = Math.exp( -INTERVAL_MS / 60000.0 );
+
+    private final BalloonEngine engine;
+    private final int cores;
+    private ScheduledExecutorService timer;
+
+    private long lastCompleted;
+    private long lastTime;
+    private double previous = -1;
+    private volatile double throughput = 0;
+    /** The Balloon processes' share of the one minute load average */
+    private double ownLoad = 0;
+    private volatile String reason = "starting";
+
+    ConcurrencyController( BalloonEngine engine, int cores ) {
+        this.engine = engine;
+        this.cores = cores;
+    }
+
+    synchronized void start() {
+        if ( timer != null )
+            return;
+        lastCompleted = engine.getCompleted();
+        lastTime = System.currentTimeMillis();
+        timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "Balloon concurrency control" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        timer.scheduleWithFixedDelay( new Runnable() {
+            public void run() {
+                try {
+                    tick();
+                } catch ( RuntimeException e ) {
+                    logger.warn( "Balloon concurrency control failed: "
+                                 + e.getMessage(), e );
+                }
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS );
+    }
+
+    synchronized void stop() {
+        if ( timer != null ) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    /**
+     * @return molecules per second over the last interval
+     */
+    double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return why the level was last changed or kept
+     */
+    String getReason() {
+        return reason;
+    }
+
+    synchronized void tick() {
+        long now = System.currentTimeMillis();
+        long completed = engine.getCompleted();
+        if ( now <= lastTime )
+            return;
+        throughput = ( completed - lastCompleted ) * 1000.0
+                     / ( now - lastTime );
+        lastCompleted = completed;
+        lastTime = now;
+
+        trackOwnLoad( engine.getRunning() );
+        int limit = engine.getNativeConcurrency();
+        if ( !isAdaptive() ) {
+            reason = "adaptive concurrency is turned off";
+            if ( limit != cores )
+                engine.setLimit( cores );
+            previous = -1;
+            return;
+        }
+        int next = decide( limit, throughput, systemLoad(), ownLoad,
+                           freeMemory(),
+                           engine.getWaiting( BalloonEngine.Lane.BATCH ) > 0 );
+        if ( next != limit ) {
+            logger.info( "Balloon processes " + limit + " -> " + next
+                         + " (" + reason + ")" );
+            engine.setLimit( next );
+        }
+    }
+
+    /**
+     * Adds one interval with <code>running</code> Balloon processes to
+     * their share of the load average, lagging behind as the load average
+     * itself does.
+     *
+     * @return the share of the load average that is Balloon's
+     */
+    double trackOwnLoad( int running ) {
+        ownLoad = ownLoad * LOAD_DECAY + running * ( 1 - LOAD_DECAY );
+        return ownLoad;
+    }
+
+    /**
+     * Picks the next level and remembers the throughput to compare with
+     * next time.
+     *
+     * @param load one minute load average of the host, negative if
+     *             unknown
+     * @param ownLoad the part of <code>load</code> that is Balloon's own
+     *                processes
+     * @param freeMemory fraction of physical memory free, negative if
+     *                   unknown
+     * @param saturated whether work is waiting for a Balloon process
+     */
+    int decide( int limit, double throughput, double load, double ownLoad,
+                double freeMemory, boolean saturated ) {
+        int max = engine.getMaxConcurrency();
+        // Only other jobs can overload the host, Balloon's own processes
+        // are what the throughput is measured on
+        double loadPerCore = load < 0 ? -1
+                                      : Math.max( 0, load - ownLoad ) / cores;
+        if ( freeMemory >= 0 && freeMemory < MIN_FREE_MEMORY ) {
+            reason = "low on memory";
+            return decrease( limit );
+        }
+        if ( loadPerCore > MAX_LOAD_PER_CORE ) {
+            reason = "host overloaded";
+            return decrease( limit );
+        }
+        if ( !saturated ) {
+            // Nothing to learn when there is no work waiting
+            reason = "no work waiting";
+            previous = -1;
+            return limit;
+        }
+        if ( previous >= 0 && throughput < previous * ( 1 - TOLERANCE ) ) {
+            reason = "throughput dropped";
+            return decrease( limit );
+        }
+        previous = throughput;
+        if ( limit >= max ) {
+            reason = "at maximum";
+            return max;
+        }
+        reason = "throughput holding";
+        return limit + 1;
+    }
+
+    private int decrease( int limit ) {
+        // The next interval runs at a new level, do not compare it with
+        // this one
+        previous = -1;
+        return Math.max( 1, Math.min( limit - 1, (int) ( limit * DECREASE ) ) );
+    }
+
+    private boolean isAdaptive() {
+        Activator activator = Activator.getDefault();
+        return activator == null
+               || activator.getPreferenceStore()
+                           .getBoolean( Activator.BALLOON_ADAPTIVE );
+    }
+
+    private static double systemLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os.getSystemLoadAverage();
+    }
+
+    private static double freeMemory() {
+        double available = memAvailable();
+        if ( available >= 0 )
+            return available;
+        try {
+            OperatingSystemMXBean os
+                = ManagementFactory.getOperatingSystemMXBean();
+            if ( os instanceof com.sun.management.OperatingSystemMXBean ) {
+                com.sun.management.OperatingSystemMXBean sun
+                    = (com.sun.management.OperatingSystemMXBean) os;
+                long total = sun.getTotalMemorySize();
+                if ( total > 0 )
+                    return (double) sun.getFreeMemorySize() / total;
+            }
+        } catch ( LinkageError e ) {
+            // Not a JDK with com.sun.management
+        }
+        return -1;
+    }
+
+    /**
+     * Reads MemAvailable from <code>/proc/meminfo</code> on Linux, which
+     * unlike the free memory counts reclaimable page cache.
+     */
+    private static double memAvailable() {
+        File meminfo = new File( "/proc/meminfo" );
+        if ( !meminfo.canRead() )
+            return -1;
+        long total = -1;
+        long available = -1;
+        try {
+            BufferedReader reader = new BufferedReader(
+                                        new FileReader( meminfo ) );
+            try {
+                String line;
+                while ( (line = reader.readLine()) != null ) {
+                    if ( line.startsWith( "MemTotal:" ) )
+                        total = kilobytes( line );
+                    else if ( line.startsWith( "MemAvailable:" ) )
+                        available = kilobytes( line );
+                }
+            } finally {
+                reader.close();
+            }
+        } catch ( IOException e ) {
+            return -1;
+        }
+        if ( total <= 0 || available < 0 )
+            return -1;
+        return (double) available / total;
+    }
+
+    private static long kilobytes( String line ) {
+        String[] parts = line.trim().split( "\\s+" );
+        try {
+            return Long.parseLong( parts[1] );
+        } catch ( RuntimeException e ) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.List;
+
+import javax.vecmath.Point3d;
+
+import net.bioclipse.cdk.domain.CDKMolecule;
+import net.bioclipse.cdk.domain.ICDKMolecule;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * The conformers of one molecule, with the atoms, bonds and properties
+ * stored once and the coordinates of every conformer in one
+ * <code>double[]</code>. A conformer only becomes a CDK molecule when it
+ * is asked for with {@link #getConformer(int)}, so an ensemble of a
+ * hundred conformers costs about one molecule and the coordinates.
+ */
+public class ConformerEnsemble {
+
+    private static final String MOLFILE_END = "M  END";
+
+    private final IAtomContainer topology;
+    private final int            atoms;
+    /** x, y, z of every atom of every conformer, conformer after conformer */
+    private final double[]       coordinates;
+    private final double[]       energies;
+    /** Name of the data item the energies were read from, or null */
+    private final String         energyName;
+
+    private ConformerEnsemble( IAtomContainer topology, double[] coordinates,
+                               double[] energies, String energyName ) {
+        this.topology = topology;
+        this.atoms = topology.getAtomCount();
+        this.coordinates = coordinates;
+        this.energies = energies;
+        this.energyName = energyName;
+    }
+
+    /**
+     * Reads the coordinates and energies of the conformers in Balloon
+     * output. The atoms of every record must be those of
+     * <code>topology</code>, in the same order.
+     *
+     * @param topology atoms, bonds and properties of the molecule, owned
+     *                 by the ensemble from now on
+     * @param sdf SD formatted conformers of the molecule
+     */
+    static ConformerEnsemble read( IAtomContainer topology, String sdf )
+                             throws IOException {
+        int atoms = topology.getAtomCount();
+        int size = PartialOutput.countRecords( sdf );
+        double[] coordinates = new double[size * atoms * 3];
+        double[] energies = new double[size];
+        String energyName = null;
+        SDFRecordReader reader = new SDFRecordReader(
+            new ByteArrayInputStream( sdf.getBytes( SDFRecordReader.CHARSET ) ) );
+        SDFRecordReader.SDFRecord record;
+        int n = 0;
+        while ( n < size && (record = reader.next()) != null ) {
+            String[] lines = record.normalizedText().split( "\n", -1 );
+            readAtoms( topology, lines, coordinates, n * atoms * 3 );
+            energies[n] = Double.NaN;
+            for ( int i = endOfMolfile( lines ); i < lines.length - 1; i++ ) {
+                String line = lines[i];
+                if ( line.startsWith( ">" )
+                     && line.toLowerCase().contains( "energy" ) ) {
+                    if ( energyName == null )
+                        energyName = dataItemName( line );
+                    try {
+                        energies[n] = Double.parseDouble( lines[i + 1].trim() );
+                    } catch ( NumberFormatException e ) {
+                        // No energy then
+                    }
+                    break;
+                }
+            }
+            n++;
+        }
+        if ( n < size )
+            throw new IOException( "Expected " + size + " conformers but "
+                                   + "read " + n );
+        return new ConformerEnsemble( topology, coordinates, energies,
+                                      energyName );
+    }
+
+    private static void readAtoms( IAtomContainer topology, String[] lines,
+                                   double[] coordinates, int offset )
+                        throws IOException {
+        int atoms = topology.getAtomCount();
+        int count = -1;
+        if ( lines.length > 3 && lines[3].length() >= 3
+             && lines[3].contains( "V2000" ) ) {
+            try {
+                count = Integer.parseInt( lines[3].substring( 0, 3 ).trim() );
+            } catch ( NumberFormatException e ) {
+                // Reported below
+            }
+        }
+        if ( count != atoms || lines.length < 4 + atoms )
+            throw new IOException( "Conformer of " + lines[0] + " does not "
+                                   + "have the " + atoms + " atoms of the "
+                                   + "molecule" );
+        for ( int i = 0; i < atoms; i++ ) {
+            String line = lines[4 + i];
+            if ( line.length() < 34
+                 || !line.substring( 31, 34 ).trim()
+                         .equals( topology.getAtom( i ).getSymbol() ) )
+                throw new IOException( "Atom " + (i + 1) + " of a conformer "
+                                       + "of " + lines[0] + " is not a "
+                                       + topology.getAtom( i ).getSymbol() );
+            try {
+                coordinates[offset++] = Double.parseDouble(
+                                            line.substring( 0, 10 ).trim() );
+                coordinates[offset++] = Double.parseDouble(
+                                            line.substring( 10, 20 ).trim() );
+                coordinates[offset++] = Double.parseDouble(
+                                            line.substring( 20, 30 ).trim() );
+            } catch ( NumberFormatException e ) {
+                throw new IOException( "Bad coordinates of atom " + (i + 1)
+                                       + " of " + lines[0] );
+            }
+        }
+    }
+
+    private static int endOfMolfile( String[] lines ) {
+        int i = 0;
+        while ( i < lines.length && !lines[i].startsWith( MOLFILE_END ) )
+            i++;
+        return i;
+    }
+
+    private static String dataItemName( String header ) {
+        int start = header.indexOf( '<' );
+        int end = header.indexOf( '>', start + 1 );
+        if ( start < 0 || end < 0 )
+            return null;
+        return header.substring( start + 1, end );
+    }
+
+    /**
+     * @return number of conformers
+     */
+    public int size() {
+        return energies.length;
+    }
+
+    public int getAtomCount() {
+        return atoms;
+    }
+
+    /**
+     * @return x, y, z of every atom of the conformer, a copy
+     */
+    public double[] getCoordinates( int conformer ) {
+        double[] c = new double[atoms * 3];
+        System.arraycopy( coordinates, offset( conformer ), c, 0, c.length );
+        return c;
+    }
+
+    /**
+     * @return the energy Balloon gave the conformer, <code>NaN</code> if
+     *         none
+     */
+    public double getEnergy( int conformer ) {
+        checkIndex( conformer );
+        return energies[conformer];
+    }
+
+    /**
+     * @return a new molecule with the coordinates of the conformer
+     */
+    public ICDKMolecule getConformer( int conformer ) {
+        int c = offset( conformer );
+        IAtomContainer molecule;
+        try {
+            molecule = (IAtomContainer) topology.clone();
+        } catch ( CloneNotSupportedException e ) {
+            throw new IllegalStateException( e );
+        }
+        for ( int i = 0; i < atoms; i++, c += 3 )
+            molecule.getAtom( i ).setPoint3d(
+                new Point3d( coordinates[c], coordinates[c + 1],
+                             coordinates[c + 2] ) );
+        if ( energyName != null && !Double.isNaN( energies[conformer] ) )
+            molecule.setProperty( energyName,
+                                  Double.toString( energies[conformer] ) );
+        return new CDKMolecule( molecule );
+    }
+
+    /**
+     * @return the conformers as molecules, each made when it is got
+     */
+    public List<ICDKMolecule> asMolecules() {
+        return new AbstractList<ICDKMolecule>() {
+            public ICDKMolecule get( int index ) {
+                return getConformer( index );
+            }
+            public int size() {
+                return ConformerEnsemble.this.size();
+            }
+        };
+    }
+
+    private int offset( int conformer ) {
+        checkIndex( conformer );
+        return conformer * atoms * 3;
+    }
+
+    private void checkIndex( int conformer ) {
+        if ( conformer < 0 || conformer >= size() )
+            throw new IndexOutOfBoundsException( "No conformer " + conformer
+                                                 + " of " + size() );
+    }
+}
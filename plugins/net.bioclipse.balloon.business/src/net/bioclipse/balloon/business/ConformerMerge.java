@@ -0,0 +1,93 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a large conformer target over several Balloon runs with different
+ * random seeds and merges what they return. Runs started from different
+ * seeds may well end up in the same minimum, so conformers that repeat one
+ * already kept are dropped.
+ * <p>
+ * Conformers are compared by heavy atom RMSD after superposition, see
+ * {@link ConformerPruner}, since each run places the molecule in space
+ * its own way.
+ */
+class ConformerMerge {
+
+    /**
+     * Heavy atom RMSD in Angstrom below which two conformers count as the
+     * same
+     */
+    static final double DUPLICATE_THRESHOLD = 0.1;
+
+    private ConformerMerge() {
+    }
+
+    /**
+     * @param numConformations conformers asked for
+     * @param perRun fewest conformers worth a run of its own, 0 to never
+     *               split
+     * @param maxRuns the most runs to use
+     * @return number of runs to split <code>numConformations</code> over
+     */
+    static int runsFor( int numConformations, int perRun, int maxRuns ) {
+        if ( perRun <= 0 )
+            return 1;
+        return Math.max( 1, Math.min( maxRuns, numConformations / perRun ) );
+    }
+
+    /**
+     * @return the conformers for each of <code>runs</code> runs, adding up
+     *         to <code>numConformations</code>
+     */
+    static int[] split( int numConformations, int runs ) {
+        int[] parts = new int[runs];
+        for ( int i = 0; i < runs; i++ )
+            parts[i] = numConformations / runs
+                       + ( i < numConformations % runs ? 1 : 0 );
+        return parts;
+    }
+
+    /**
+     * Joins the SD formatted outputs of several runs of the same molecule,
+     * keeping the first of every set of duplicate conformers. Records
+     * whose coordinates can not be read are all kept.
+     *
+     * @param outputs SD formatted outputs, in the order to keep them
+     * @param threshold see {@link #DUPLICATE_THRESHOLD}
+     * @return the SD formatted unique conformers
+     */
+    static String merge( List<String> outputs, double threshold )
+                  throws IOException {
+        List<ConformerPruner.Conformer> conformers
+            = new ArrayList<ConformerPruner.Conformer>();
+        for ( String output : outputs ) {
+            SDFRecordReader reader = new SDFRecordReader(
+                new ByteArrayInputStream( output.getBytes(
+                    SDFRecordReader.CHARSET ) ) );
+            SDFRecordReader.SDFRecord record;
+            while ( (record = reader.next()) != null )
+                conformers.add( ConformerPruner.Conformer.read(
+                                    record.normalizedText() ) );
+        }
+        StringBuilder merged = new StringBuilder();
+        for ( ConformerPruner.Conformer c
+                  : new ConformerPruner( threshold, false )
+                        .prune( conformers ) ) {
+            merged.append( c.record );
+            if ( !c.record.endsWith( "\n" ) )
+                merged.append( '\n' );
+        }
+        return merged.toString();
+    }
+}
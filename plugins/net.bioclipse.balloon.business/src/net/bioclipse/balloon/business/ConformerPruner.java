@@ -0,0 +1,469 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Drops conformers that are nearly the same as another conformer of the
+ * same molecule. Conformers are superimposed on their heavy atoms and
+ * clustered greedily: a conformer within the RMSD threshold of one already
+ * kept joins its cluster, otherwise it starts a new one. Only the first
+ * conformer of every cluster is kept, or the one of lowest energy when
+ * conformers are taken in order of energy.
+ * <p>
+ * Works on SD records and <code>double[]</code> coordinates only, no CDK
+ * molecules are created. The molecules of a file are taken from its index
+ * when there is one, otherwise consecutive records with the same title,
+ * heavy atoms and bonds are taken to be conformers of one molecule, which
+ * is how Balloon writes them.
+ */
+class ConformerPruner {
+
+    private static final String MOLFILE_END = "M  END";
+
+    private final double  threshold;
+    private final boolean lowestEnergy;
+
+    /**
+     * @param threshold heavy atom RMSD in Angstrom below which two
+     *                  conformers are in the same cluster
+     * @param lowestEnergy whether to keep the conformer of lowest energy of
+     *                     every cluster instead of the first
+     */
+    ConformerPruner( double threshold, boolean lowestEnergy ) {
+        this.threshold = threshold;
+        this.lowestEnergy = lowestEnergy;
+    }
+
+    double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param sdf SD formatted conformers, of one or more molecules
+     * @return the conformers kept, in the order of <code>sdf</code>
+     */
+    String prune( String sdf ) throws IOException {
+        SDFRecordReader reader = new SDFRecordReader(
+            new ByteArrayInputStream( sdf.getBytes(
+                SDFRecordReader.CHARSET ) ) );
+        StringBuilder pruned = new StringBuilder( sdf.length() );
+        List<Conformer> molecule = new ArrayList<Conformer>();
+        SDFRecordReader.SDFRecord record;
+        while ( (record = reader.next()) != null ) {
+            Conformer conformer = Conformer.read( record.normalizedText() );
+            if ( !molecule.isEmpty()
+                 && !molecule.get( 0 ).key.equals( conformer.key ) ) {
+                append( pruned, prune( molecule ) );
+                molecule = new ArrayList<Conformer>();
+            }
+            molecule.add( conformer );
+        }
+        append( pruned, prune( molecule ) );
+        return pruned.toString();
+    }
+
+    /**
+     * Prunes the conformers of every molecule in an SD file, several
+     * molecules at a time.
+     *
+     * @param in SD file as written by Balloon
+     * @param out file to write the conformers kept to
+     * @param executor runs the pruning of each molecule
+     * @param window most molecules being pruned at once
+     * @return number of conformers kept
+     */
+    int pruneFile( File in, File out, ExecutorService executor, int window )
+        throws IOException, InterruptedException {
+        return pruneFile( in, null, out, null, executor, window );
+    }
+
+    /**
+     * As {@link #pruneFile(File, File, ExecutorService, int)} but with the
+     * molecules taken from the index of <code>in</code>, so that molecules
+     * next to each other are never pruned as one however alike their
+     * records are.
+     *
+     * @param index of <code>in</code>
+     * @return the index of <code>out</code>, not written
+     */
+    OutputIndex pruneFile( File in, OutputIndex index, File out,
+                           ExecutorService executor, int window )
+                throws IOException, InterruptedException {
+        OutputIndex.Builder written = new OutputIndex.Builder();
+        pruneFile( in, index, out, written, executor, window );
+        return written.locate( out );
+    }
+
+    private int pruneFile( File in, OutputIndex index, File out,
+                           OutputIndex.Builder written,
+                           ExecutorService executor, int window )
+                throws IOException, InterruptedException {
+        SDFRecordReader reader = new SDFRecordReader( new FileInputStream( in ) );
+        OutputStream writer = null;
+        LinkedList<Future<List<Conformer>>> pending
+            = new LinkedList<Future<List<Conformer>>>();
+        LinkedList<Long> positions = new LinkedList<Long>();
+        int kept = 0;
+        try {
+            writer = new BufferedOutputStream( new FileOutputStream( out ),
+                                               1 << 16 );
+            List<Conformer> molecule = new ArrayList<Conformer>();
+            String key = null;
+            long position = -1;
+            int i = 0;
+            SDFRecordReader.SDFRecord record;
+            while ( (record = reader.next()) != null ) {
+                Conformer conformer = Conformer.read( record.normalizedText() );
+                long p = index == null ? -1 : index.positionOf( i++, record );
+                String k = index == null ? conformer.key : Long.toString( p );
+                if ( !molecule.isEmpty() && !key.equals( k ) ) {
+                    pending.add( executor.submit( task( molecule ) ) );
+                    positions.add( position );
+                    molecule = new ArrayList<Conformer>();
+                    while ( pending.size() > window )
+                        kept += write( pending.removeFirst(),
+                                       positions.removeFirst(), writer,
+                                       written );
+                }
+                key = k;
+                position = p;
+                molecule.add( conformer );
+            }
+            if ( index != null && i != index.size() )
+                throw new IOException( "Read " + i + " records, "
+                                       + index.size() + " are indexed" );
+            if ( !molecule.isEmpty() ) {
+                pending.add( executor.submit( task( molecule ) ) );
+                positions.add( position );
+            }
+            while ( !pending.isEmpty() )
+                kept += write( pending.removeFirst(), positions.removeFirst(),
+                               writer, written );
+        } finally {
+            for ( Future<List<Conformer>> f : pending )
+                f.cancel( true );
+            reader.close();
+            if ( writer != null )
+                writer.close();
+        }
+        return kept;
+    }
+
+    private Callable<List<Conformer>> task( final List<Conformer> molecule ) {
+        return new Callable<List<Conformer>>() {
+            public List<Conformer> call() {
+                return prune( molecule );
+            }
+        };
+    }
+
+    /**
+     * @param written adds the conformers written to, if not
+     *                <code>null</code>
+     */
+    private static int write( Future<List<Conformer>> result, long position,
+                              OutputStream writer,
+                              OutputIndex.Builder written )
+                       throws IOException, InterruptedException {
+        List<Conformer> conformers;
+        try {
+            conformers = result.get();
+        } catch ( ExecutionException e ) {
+            throw new IOException( "Could not prune conformers: "
+                                   + e.getCause().getMessage(), e.getCause() );
+        }
+        StringBuilder text = new StringBuilder();
+        append( text, conformers );
+        writer.write( text.toString().getBytes( SDFRecordReader.CHARSET ) );
+        if ( written != null && !conformers.isEmpty() )
+            written.add( position, conformers.size() );
+        return conformers.size();
+    }
+
+    private static void append( StringBuilder sdf,
+                                List<Conformer> conformers ) {
+        for ( Conformer c : conformers ) {
+            sdf.append( c.record );
+            if ( !c.record.endsWith( "\n" ) )
+                sdf.append( '\n' );
+        }
+    }
+
+    /**
+     * @param conformers conformers of one molecule
+     * @return the conformers kept, in the order given
+     */
+    List<Conformer> prune( List<Conformer> conformers ) {
+        Integer[] order = new Integer[conformers.size()];
+        for ( int i = 0; i < order.length; i++ )
+            order[i] = i;
+        if ( lowestEnergy ) {
+            final List<Conformer> c = conformers;
+            // Stable, and conformers without an energy go last
+            Arrays.sort( order, new Comparator<Integer>() {
+                public int compare( Integer a, Integer b ) {
+                    return Double.compare( energyKey( c.get( a ) ),
+                                           energyKey( c.get( b ) ) );
+                }
+            } );
+        }
+        boolean[] keep = new boolean[order.length];
+        List<double[]> representatives = new ArrayList<double[]>();
+        for ( int i : order ) {
+            double[] coordinates = conformers.get( i ).coordinates;
+            if ( coordinates == null || !isClustered( coordinates,
+                                                      representatives ) ) {
+                keep[i] = true;
+                if ( coordinates != null )
+                    representatives.add( coordinates );
+            }
+        }
+        List<Conformer> kept = new ArrayList<Conformer>();
+        for ( int i = 0; i < keep.length; i++ ) {
+            if ( keep[i] )
+                kept.add( conformers.get( i ) );
+        }
+        return kept;
+    }
+
+    /**
+     * @return the energy, conformers without one sorting after all others
+     */
+    static double energyKey( Conformer c ) {
+        return Double.isNaN( c.energy ) ? Double.POSITIVE_INFINITY : c.energy;
+    }
+
+    private boolean isClustered( double[] coordinates,
+                                 List<double[]> representatives ) {
+        for ( double[] r : representatives ) {
+            if ( r.length == coordinates.length
+                 && rmsd( r, coordinates ) < threshold )
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Root mean square deviation of two sets of points after optimal
+     * superposition, from the largest eigenvalue of Horn's quaternion
+     * matrix. The rotation itself is never needed.
+     *
+     * @param a x, y, z of each point
+     * @param b x, y, z of each point, as many as in <code>a</code>
+     * @return the RMSD, in the unit of the coordinates
+     */
+    static double rmsd( double[] a, double[] b ) {
+        int n = a.length / 3;
+        if ( n == 0 )
+            return 0;
+        double[] ca = centroid( a );
+        double[] cb = centroid( b );
+        double ga = 0, gb = 0;
+        double sxx = 0, sxy = 0, sxz = 0, syx = 0, syy = 0, syz = 0,
+               szx = 0, szy = 0, szz = 0;
+        for ( int i = 0; i < a.length; i += 3 ) {
+            double ax = a[i] - ca[0], ay = a[i + 1] - ca[1],
+                   az = a[i + 2] - ca[2];
+            double bx = b[i] - cb[0], by = b[i + 1] - cb[1],
+                   bz = b[i + 2] - cb[2];
+            ga += ax * ax + ay * ay + az * az;
+            gb += bx * bx + by * by + bz * bz;
+            sxx += ax * bx; sxy += ax * by; sxz += ax * bz;
+            syx += ay * bx; syy += ay * by; syz += ay * bz;
+            szx += az * bx; szy += az * by; szz += az * bz;
+        }
+        double[][] k = {
+            { sxx + syy + szz, syz - szy, szx - sxz, sxy - syx },
+            { syz - szy, sxx - syy - szz, sxy + syx, szx + sxz },
+            { szx - sxz, sxy + syx, -sxx + syy - szz, syz + szy },
+            { sxy - syx, szx + sxz, syz + szy, -sxx - syy + szz } };
+        double lambda = largestEigenvalue( k );
+        return Math.sqrt( Math.max( 0, (ga + gb - 2 * lambda) / n ) );
+    }
+
+    private static double[] centroid( double[] p ) {
+        double[] c = new double[3];
+        for ( int i = 0; i < p.length; i += 3 ) {
+            c[0] += p[i];
+            c[1] += p[i + 1];
+            c[2] += p[i + 2];
+        }
+        int n = p.length / 3;
+        c[0] /= n;
+        c[1] /= n;
+        c[2] /= n;
+        return c;
+    }
+
+    /**
+     * Cyclic Jacobi rotations, plenty fast and exact enough for a 4x4
+     * symmetric matrix. <code>m</code> is overwritten.
+     */
+    static double largestEigenvalue( double[][] m ) {
+        int n = m.length;
+        for ( int sweep = 0; sweep < 50; sweep++ ) {
+            double off = 0;
+            for ( int p = 0; p < n; p++ )
+                for ( int q = p + 1; q < n; q++ )
+                    off += m[p][q] * m[p][q];
+            if ( off < 1e-22 )
+                break;
+            for ( int p = 0; p < n; p++ ) {
+                for ( int q = p + 1; q < n; q++ ) {
+                    if ( m[p][q] == 0 )
+                        continue;
+                    double theta = (m[q][q] - m[p][p]) / (2 * m[p][q]);
+                    double t = Math.signum( theta )
+                               / (Math.abs( theta )
+                                  + Math.sqrt( theta * theta + 1 ));
+                    if ( theta == 0 )
+                        t = 1;
+                    double c = 1 / Math.sqrt( t * t + 1 );
+                    double s = t * c;
+                    for ( int r = 0; r < n; r++ ) {
+                        double mrp = m[r][p], mrq = m[r][q];
+                        m[r][p] = c * mrp - s * mrq;
+                        m[r][q] = s * mrp + c * mrq;
+                    }
+                    for ( int r = 0; r < n; r++ ) {
+                        double mpr = m[p][r], mqr = m[q][r];
+                        m[p][r] = c * mpr - s * mqr;
+                        m[q][r] = s * mpr + c * mqr;
+                    }
+                }
+            }
+        }
+        double largest = m[0][0];
+        for ( int i = 1; i < n; i++ )
+            largest = Math.max( largest, m[i][i] );
+        return largest;
+    }
+
+    /**
+     * One conformer as read from its SD record.
+     */
+    static class Conformer {
+
+        final String   record;
+        /**
+         * Title, heavy atoms and bond table, the same for conformers of a
+         * molecule
+         */
+        final String   key;
+        /** x, y, z of each heavy atom, <code>null</code> if not readable */
+        final double[] coordinates;
+        /** <code>NaN</code> if the record has no energy */
+        final double   energy;
+
+        private Conformer( String record, String key, double[] coordinates,
+                           double energy ) {
+            this.record = record;
+            this.key = key;
+            this.coordinates = coordinates;
+            this.energy = energy;
+        }
+
+        /**
+         * Reads the heavy atom coordinates of the V2000 molfile at the
+         * start of <code>record</code> and the energy Balloon wrote as the
+         * first data item with "energy" in its name.
+         */
+        static Conformer read( String record ) {
+            String[] lines = record.split( "\n", -1 );
+            String title = lines[0];
+            double energy = energy( lines );
+            if ( lines.length < 4 || lines[3].length() < 6
+                 || !lines[3].contains( "V2000" ) )
+                return new Conformer( record, record, null, energy );
+            int atoms;
+            int bonds;
+            try {
+                atoms = Integer.parseInt( lines[3].substring( 0, 3 ).trim() );
+                bonds = Integer.parseInt( lines[3].substring( 3, 6 ).trim() );
+            } catch ( NumberFormatException e ) {
+                return new Conformer( record, record, null, energy );
+            }
+            if ( lines.length < 4 + atoms + bonds )
+                return new Conformer( record, record, null, energy );
+            StringBuilder key = new StringBuilder( title ).append( '\n' );
+            double[] heavy = new double[atoms * 3];
+            int n = 0;
+            for ( int i = 0; i < atoms; i++ ) {
+                String line = lines[4 + i];
+                if ( line.startsWith( MOLFILE_END ) || line.length() < 34 )
+                    return new Conformer( record, record, null, energy );
+                String symbol = line.substring( 31, 34 ).trim();
+                if ( symbol.equals( "H" ) )
+                    continue;
+                try {
+                    heavy[n++] = Double.parseDouble( line.substring( 0, 10 )
+                                                         .trim() );
+                    heavy[n++] = Double.parseDouble( line.substring( 10, 20 )
+                                                         .trim() );
+                    heavy[n++] = Double.parseDouble( line.substring( 20, 30 )
+                                                         .trim() );
+                } catch ( NumberFormatException e ) {
+                    return new Conformer( record, record, null, energy );
+                }
+                key.append( symbol ).append( ' ' );
+            }
+            // Isomers may have the same title and heavy atoms but not the
+            // same bonds
+            for ( int i = 0; i < bonds; i++ ) {
+                String line = lines[4 + atoms + i];
+                if ( line.startsWith( MOLFILE_END ) )
+                    return new Conformer( record, record, null, energy );
+                key.append( '\n' ).append( line.length() < 9
+                                               ? line.trim()
+                                               : line.substring( 0, 9 ) );
+            }
+            return new Conformer( record, key.toString(),
+                                  Arrays.copyOf( heavy, n ), energy );
+        }
+
+        /**
+         * @param lines the lines of an SD record
+         * @return the first data item with "energy" in its name,
+         *         <code>NaN</code> if none
+         */
+        static double energy( String[] lines ) {
+            int i = 0;
+            while ( i < lines.length && !lines[i].startsWith( MOLFILE_END ) )
+                i++;
+            for ( ; i < lines.length - 1; i++ ) {
+                String line = lines[i];
+                if ( line.startsWith( ">" )
+                     && line.toLowerCase().contains( "energy" ) ) {
+                    try {
+                        return Double.parseDouble( lines[i + 1].trim() );
+                    } catch ( NumberFormatException e ) {
+                        return Double.NaN;
+                    }
+                }
+            }
+            return Double.NaN;
+        }
+    }
+}
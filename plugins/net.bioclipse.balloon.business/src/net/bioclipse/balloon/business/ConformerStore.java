@@ -0,0 +1,504 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary file of conformers made to be memory mapped, so that jobs after
+ * Balloon can get at the coordinates of any conformer without parsing SD
+ * text or reading the whole file. The layout is fixed and big endian:
+ * <pre>
+ * header   int magic "BCS1", int version, int molecules, int 0,
+ *          long offset of the index
+ * molecule at a multiple of 8,
+ *          int atoms, int bonds, int conformers, int title length,
+ *          title (ISO-8859-1), zero padded to a multiple of 8,
+ *          atoms x 4 bytes element symbol, space padded, the whole zero
+ *          padded to a multiple of 8,
+ *          bonds x (int first atom, int second atom, int bond type), zero
+ *          padded to a multiple of 8,
+ *          conformers x double energy, NaN if none,
+ *          conformers x atoms x (float x, float y, float z)
+ * index    molecules x long offset of the molecule, at a multiple of 8
+ * </pre>
+ * The padding keeps every double and every float at a multiple of its
+ * size in the file.
+ * Atoms are numbered from 0 and bond types are those of the molfile. The
+ * file is written from Balloon output, one molecule for every molecule of
+ * the input when the output is indexed, so that molecule <code>i</code> of
+ * the store is always the molecule at position <code>i + 1</code> in the
+ * input. Molecules that failed have no atoms, bonds or conformers. Without
+ * an index consecutive records with the same title and atoms are taken to
+ * be conformers of one molecule.
+ * <p>
+ * Instances only read and may be shared between threads. The mapping is
+ * released by the garbage collector, not by {@link #close()}.
+ */
+public class ConformerStore implements Closeable {
+
+    /** File extension of conformer stores */
+    public static final String EXTENSION = ".bcs";
+
+    private static final int  MAGIC   = 0x42435331;
+    private static final int  VERSION = 2;
+    private static final int  HEADER  = 24;
+    private static final int  SYMBOL  = 4;
+    /** Largest part of the file mapped at once, a multiple of 8 */
+    private static final long SEGMENT = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final FileChannel      channel;
+    private final long             size;
+    private final MappedByteBuffer[] segments;
+    private final int              molecules;
+    private final long             index;
+
+    /**
+     * Maps a conformer store.
+     * @throws IOException if it is not a conformer store
+     */
+    public ConformerStore( File store ) throws IOException {
+        file = new RandomAccessFile( store, "r" );
+        channel = file.getChannel();
+        try {
+            size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT - 1)
+                                                   / SEGMENT)];
+            for ( int i = 0; i < segments.length; i++ ) {
+                long start = i * SEGMENT;
+                segments[i] = channel.map( FileChannel.MapMode.READ_ONLY,
+                                           start,
+                                           Math.min( SEGMENT, size - start ) );
+            }
+            if ( size < HEADER || segments[0].getInt( 0 ) != MAGIC )
+                throw new IOException( store + " is not a conformer store" );
+            if ( segments[0].getInt( 4 ) != VERSION )
+                throw new IOException( store + " is a conformer store of "
+                                       + "unknown version "
+                                       + segments[0].getInt( 4 ) );
+            molecules = segments[0].getInt( 8 );
+            index = segments[0].getLong( 16 );
+            if ( index < HEADER || index + 8L * molecules > size )
+                throw new IOException( store + " is truncated" );
+        } catch ( IOException e ) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return where the conformer store for an SD file, gzipped or not,
+     *         goes
+     */
+    public static File storeFor( String sdfile ) {
+        sdfile = Compression.strip( sdfile );
+        String base = sdfile.toLowerCase().endsWith( ".sdf" )
+                      ? sdfile.substring( 0, sdfile.length() - 4 )
+                      : sdfile;
+        return new File( base + EXTENSION );
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public int getMoleculeCount() {
+        return molecules;
+    }
+
+    public String getTitle( int molecule ) {
+        ByteBuffer record = record( molecule );
+        byte[] title = new byte[record.getInt( 12 )];
+        record.position( 16 );
+        record.get( title );
+        return new String( title, SDFRecordReader.CHARSET );
+    }
+
+    public int getAtomCount( int molecule ) {
+        return record( molecule ).getInt( 0 );
+    }
+
+    public int getBondCount( int molecule ) {
+        return record( molecule ).getInt( 4 );
+    }
+
+    public int getConformerCount( int molecule ) {
+        return record( molecule ).getInt( 8 );
+    }
+
+    public String[] getAtomSymbols( int molecule ) {
+        ByteBuffer record = record( molecule );
+        String[] symbols = new String[record.getInt( 0 )];
+        byte[] symbol = new byte[SYMBOL];
+        record.position( symbols( record ) );
+        for ( int i = 0; i < symbols.length; i++ ) {
+            record.get( symbol );
+            symbols[i] = new String( symbol, SDFRecordReader.CHARSET ).trim();
+        }
+        return symbols;
+    }
+
+    /**
+     * @return first atom, second atom and bond type of every bond
+     */
+    public int[] getBonds( int molecule ) {
+        ByteBuffer record = record( molecule );
+        int[] bonds = new int[record.getInt( 4 ) * 3];
+        int at = bonds( record );
+        for ( int i = 0; i < bonds.length; i++, at += 4 )
+            bonds[i] = record.getInt( at );
+        return bonds;
+    }
+
+    /**
+     * @return the energy Balloon gave the conformer, <code>NaN</code> if
+     *         none
+     */
+    public double getEnergy( int molecule, int conformer ) {
+        ByteBuffer record = record( molecule );
+        checkConformer( record, conformer );
+        return record.getDouble( energies( record ) + 8 * conformer );
+    }
+
+    /**
+     * @return x, y, z of every atom of the conformer
+     */
+    public float[] getCoordinates( int molecule, int conformer ) {
+        float[] coordinates = new float[getAtomCount( molecule ) * 3];
+        getCoordinates( molecule, conformer, coordinates );
+        return coordinates;
+    }
+
+    /**
+     * Copies x, y, z of every atom of the conformer into
+     * <code>coordinates</code>, so that one array can be used for all.
+     */
+    public void getCoordinates( int molecule, int conformer,
+                                float[] coordinates ) {
+        ByteBuffer record = record( molecule );
+        checkConformer( record, conformer );
+        int n = record.getInt( 0 ) * 3;
+        if ( coordinates.length < n )
+            throw new IllegalArgumentException( "Room for "
+                                                + coordinates.length
+                                                + " coordinates, need " + n );
+        record.position( energies( record ) + 8 * record.getInt( 8 )
+                         + 4 * n * conformer );
+        record.asFloatBuffer().get( coordinates, 0, n );
+    }
+
+    private static int symbols( ByteBuffer record ) {
+        return 16 + pad( record.getInt( 12 ) );
+    }
+
+    private static int bonds( ByteBuffer record ) {
+        return symbols( record ) + pad( SYMBOL * record.getInt( 0 ) );
+    }
+
+    private static int energies( ByteBuffer record ) {
+        return bonds( record ) + pad( 12 * record.getInt( 4 ) );
+    }
+
+    /**
+     * @return <code>n</code> rounded up to a multiple of 8
+     */
+    static int pad( int n ) {
+        return (n + 7) / 8 * 8;
+    }
+
+    private static void checkConformer( ByteBuffer record, int conformer ) {
+        if ( conformer < 0 || conformer >= record.getInt( 8 ) )
+            throw new IndexOutOfBoundsException( "No conformer " + conformer
+                                                 + " of "
+                                                 + record.getInt( 8 ) );
+    }
+
+    /**
+     * @return the record of a molecule, from position 0
+     */
+    private ByteBuffer record( int molecule ) {
+        if ( molecule < 0 || molecule >= molecules )
+            throw new IndexOutOfBoundsException( "No molecule " + molecule
+                                                 + " of " + molecules );
+        long start = offset( molecule );
+        long end = molecule + 1 < molecules ? offset( molecule + 1 )
+                                            : index;
+        int segment = (int) (start / SEGMENT);
+        if ( (end - 1) / SEGMENT == segment ) {
+            ByteBuffer b = segments[segment].duplicate();
+            b.position( (int) (start - segment * SEGMENT) );
+            b.limit( (int) (end - segment * SEGMENT) );
+            return b.slice();
+        }
+        // Across two segments, rare enough to map on its own
+        try {
+            return channel.map( FileChannel.MapMode.READ_ONLY, start,
+                                end - start );
+        } catch ( IOException e ) {
+            throw new IllegalStateException( "Could not map molecule "
+                                             + molecule + ": "
+                                             + e.getMessage(), e );
+        }
+    }
+
+    private long offset( int molecule ) {
+        // The index is at a multiple of 8 so no entry is split
+        long at = index + 8L * molecule;
+        return segments[(int) (at / SEGMENT)].getLong( (int) (at % SEGMENT) );
+    }
+
+    /**
+     * Writes the conformers of an SD file as written by Balloon, gzipped or
+     * not, to a conformer store.
+     *
+     * @return number of molecules written
+     * @throws IOException if a record is not a V2000 molfile
+     */
+    static int write( File sdf, File store ) throws IOException {
+        return write( sdf, null, -1, store );
+    }
+
+    /**
+     * Writes the conformers of an indexed SD file, gzipped or not, to a
+     * conformer store with one molecule for every position in the input.
+     *
+     * @param index of <code>sdf</code>, only the positions are read
+     * @param inputs number of molecules in the input, -1 to end the store
+     *               with the last molecule in the index
+     * @return number of molecules written
+     * @throws IOException if a record is not a V2000 molfile, or the records
+     *                     are not those indexed
+     */
+    static int write( File sdf, OutputIndex index, long inputs, File store )
+               throws IOException {
+        SDFRecordReader reader = new SDFRecordReader( Compression.open( sdf ) );
+        RandomAccessFile out = new RandomAccessFile( store, "rw" );
+        try {
+            out.setLength( 0 );
+            FileChannel channel = out.getChannel();
+            channel.position( HEADER );
+            List<Long> offsets = new ArrayList<Long>();
+            Molecule molecule = null;
+            // Position of molecule and the next one to write
+            long position = 0;
+            long next = 1;
+            int i = 0;
+            SDFRecordReader.SDFRecord record;
+            while ( (record = reader.next()) != null ) {
+                String[] lines = record.normalizedText().split( "\n", -1 );
+                Molecule read = Molecule.read( lines );
+                if ( index == null ) {
+                    if ( molecule != null && molecule.sameAs( read ) ) {
+                        molecule.add( read );
+                        continue;
+                    }
+                } else {
+                    if ( i == index.size() )
+                        throw new IOException( sdf + " has more records "
+                                               + "than its index" );
+                    long p = index.getPosition( i++ );
+                    if ( molecule != null && p == position ) {
+                        if ( !molecule.sameStructure( read ) )
+                            throw new IOException( "The records of molecule "
+                                                   + p + " in " + sdf
+                                                   + " are not of one "
+                                                   + "structure" );
+                        molecule.add( read );
+                        continue;
+                    }
+                    if ( p < position )
+                        throw new IOException( "The index of " + sdf
+                                               + " is out of order" );
+                    if ( molecule != null ) {
+                        add( channel, offsets, molecule );
+                        next = position + 1;
+                        molecule = null;
+                    }
+                    // Those that failed in between
+                    for ( ; next < p; next++ )
+                        add( channel, offsets, Molecule.EMPTY );
+                    position = p;
+                }
+                if ( molecule != null )
+                    add( channel, offsets, molecule );
+                molecule = read;
+            }
+            if ( index != null && i != index.size() )
+                throw new IOException( sdf + " has " + i + " records, "
+                                       + index.size() + " are indexed" );
+            if ( molecule != null ) {
+                add( channel, offsets, molecule );
+                next = position + 1;
+            }
+            if ( index != null )
+                for ( ; next <= inputs; next++ )
+                    add( channel, offsets, Molecule.EMPTY );
+            long indexAt = (channel.position() + 7) / 8 * 8;
+            ByteBuffer buffer = ByteBuffer.allocate( (int) (indexAt
+                                                     - channel.position())
+                                                     + 8 * offsets.size() );
+            buffer.position( (int) (indexAt - channel.position()) );
+            for ( long offset : offsets )
+                buffer.putLong( offset );
+            buffer.flip();
+            writeFully( channel, buffer );
+
+            ByteBuffer header = ByteBuffer.allocate( HEADER );
+            header.putInt( MAGIC ).putInt( VERSION ).putInt( offsets.size() )
+                  .putInt( 0 ).putLong( indexAt );
+            header.flip();
+            channel.position( 0 );
+            writeFully( channel, header );
+            return offsets.size();
+        } finally {
+            reader.close();
+            out.close();
+        }
+    }
+
+    private static void add( FileChannel channel, List<Long> offsets,
+                             Molecule molecule ) throws IOException {
+        long at = (channel.position() + 7) / 8 * 8;
+        if ( at > channel.position() )
+            writeFully( channel,
+                        ByteBuffer.allocate( (int) (at - channel.position()) ) );
+        offsets.add( at );
+        writeFully( channel, molecule.toBuffer() );
+    }
+
+    private static void writeFully( FileChannel channel, ByteBuffer buffer )
+                        throws IOException {
+        while ( buffer.hasRemaining() )
+            channel.write( buffer );
+    }
+
+    /**
+     * The conformers of one molecule while it is being written.
+     */
+    private static class Molecule {
+
+        /** In place of a molecule that failed */
+        static final Molecule EMPTY = new Molecule( "", new String[0],
+                                                    new int[0] );
+
+        final String   title;
+        final String[] symbols;
+        final int[]    bonds;
+        final List<float[]> coordinates = new ArrayList<float[]>();
+        final List<Double>  energies = new ArrayList<Double>();
+
+        private Molecule( String title, String[] symbols, int[] bonds ) {
+            this.title = title;
+            this.symbols = symbols;
+            this.bonds = bonds;
+        }
+
+        static Molecule read( String[] lines ) throws IOException {
+            if ( lines.length < 4 || lines[3].length() < 6
+                 || !lines[3].contains( "V2000" ) )
+                throw new IOException( "Not a V2000 molfile: " + lines[0] );
+            int atoms, bonds;
+            try {
+                atoms = Integer.parseInt( lines[3].substring( 0, 3 ).trim() );
+                bonds = Integer.parseInt( lines[3].substring( 3, 6 ).trim() );
+            } catch ( NumberFormatException e ) {
+                throw new IOException( "Bad counts line in " + lines[0] );
+            }
+            if ( lines.length < 4 + atoms + bonds )
+                throw new IOException( "Truncated molfile: " + lines[0] );
+            String[] symbols = new String[atoms];
+            float[] xyz = new float[atoms * 3];
+            int[] b = new int[bonds * 3];
+            try {
+                for ( int i = 0; i < atoms; i++ ) {
+                    String line = lines[4 + i];
+                    xyz[i * 3] = Float.parseFloat( line.substring( 0, 10 )
+                                                       .trim() );
+                    xyz[i * 3 + 1] = Float.parseFloat( line.substring( 10, 20 )
+                                                           .trim() );
+                    xyz[i * 3 + 2] = Float.parseFloat( line.substring( 20, 30 )
+                                                           .trim() );
+                    symbols[i] = line.substring( 31, Math.min( 34,
+                                                 line.length() ) ).trim();
+                }
+                for ( int i = 0; i < bonds; i++ ) {
+                    String line = lines[4 + atoms + i];
+                    b[i * 3] = Integer.parseInt( line.substring( 0, 3 )
+                                                     .trim() ) - 1;
+                    b[i * 3 + 1] = Integer.parseInt( line.substring( 3, 6 )
+                                                         .trim() ) - 1;
+                    b[i * 3 + 2] = Integer.parseInt( line.substring( 6, 9 )
+                                                         .trim() );
+                }
+            } catch ( RuntimeException e ) {
+                // NumberFormatException or a line too short
+                throw new IOException( "Bad atom or bond line in "
+                                       + lines[0] );
+            }
+            Molecule molecule = new Molecule( lines[0], symbols, b );
+            molecule.coordinates.add( xyz );
+            molecule.energies.add( ConformerPruner.Conformer.energy( lines ) );
+            return molecule;
+        }
+
+        boolean sameAs( Molecule other ) {
+            return title.equals( other.title ) && sameStructure( other );
+        }
+
+        boolean sameStructure( Molecule other ) {
+            return Arrays.equals( symbols, other.symbols )
+                   && Arrays.equals( bonds, other.bonds );
+        }
+
+        void add( Molecule conformer ) {
+            coordinates.addAll( conformer.coordinates );
+            energies.addAll( conformer.energies );
+        }
+
+        ByteBuffer toBuffer() {
+            byte[] name = title.getBytes( SDFRecordReader.CHARSET );
+            int atoms = symbols.length;
+            int conformers = coordinates.size();
+            int symbolsAt = 16 + pad( name.length );
+            int bondsAt = symbolsAt + pad( SYMBOL * atoms );
+            int energiesAt = bondsAt + pad( 4 * bonds.length );
+            // Allocated zeroed, the padding is left as it is
+            ByteBuffer buffer = ByteBuffer.allocate(
+                energiesAt + (8 + 12 * atoms) * conformers );
+            buffer.putInt( atoms ).putInt( bonds.length / 3 )
+                  .putInt( conformers ).putInt( name.length ).put( name );
+            buffer.position( symbolsAt );
+            for ( String symbol : symbols ) {
+                byte[] s = (symbol + "    ").substring( 0, SYMBOL )
+                                           .getBytes( SDFRecordReader.CHARSET );
+                buffer.put( s );
+            }
+            buffer.position( bondsAt );
+            for ( int b : bonds )
+                buffer.putInt( b );
+            buffer.position( energiesAt );
+            for ( Double energy : energies )
+                buffer.putDouble( energy );
+            for ( float[] xyz : coordinates )
+                for ( float f : xyz )
+                    buffer.putFloat( f );
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.vecmath.Point3d;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IChemObjectBuilder;
+
+/**
+ * Puts the coordinates Balloon generated into a copy of the molecule it
+ * was given, so that atom properties, stereo and identifiers of the input
+ * are kept and no molecule has to be parsed from the output.
+ * <p>
+ * Balloon writes the atoms of its input in the same order followed by the
+ * hydrogens it added. That is verified for every conformer: the first
+ * atoms must have the elements of the input, every bond of the input must
+ * be there and the only other bonds must join one added hydrogen each to
+ * an atom of the input. When that does not hold nothing is patched.
+ */
+class CoordinatePatcher {
+
+    private static final String MOLFILE_END = "M  END";
+
+    private final IAtomContainer original;
+    private final int            atoms;
+    /** The bonds of the input as {@link #key(int, int)} */
+    private final Set<Long>      bonds = new HashSet<Long>();
+
+    CoordinatePatcher( IAtomContainer original ) {
+        this.original = original;
+        this.atoms = original.getAtomCount();
+        for ( int b = 0; b < original.getBondCount(); b++ ) {
+            IBond bond = original.getBond( b );
+            bonds.add( key( original.getAtomNumber( bond.getAtom( 0 ) ),
+                            original.getAtomNumber( bond.getAtom( 1 ) ) ) );
+        }
+    }
+
+    /**
+     * @param record SD record of one conformer Balloon wrote for the
+     *               molecule
+     * @return a copy of the molecule with the coordinates and hydrogens of
+     *         <code>record</code>, and its data items where the molecule
+     *         has no property of that name, or <code>null</code> if the
+     *         atoms can not be mapped
+     */
+    IAtomContainer patch( String record ) {
+        String[] lines = record.replace( "\r", "" ).split( "\n", -1 );
+        if ( lines.length < 4 || lines[3].length() < 6
+             || !lines[3].contains( "V2000" ) )
+            return null;
+        int outAtoms, outBonds;
+        try {
+            outAtoms = Integer.parseInt( lines[3].substring( 0, 3 ).trim() );
+            outBonds = Integer.parseInt( lines[3].substring( 3, 6 ).trim() );
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+        if ( outAtoms < atoms || lines.length < 4 + outAtoms + outBonds )
+            return null;
+
+        double[] xyz = new double[outAtoms * 3];
+        try {
+            for ( int i = 0; i < outAtoms; i++ ) {
+                String line = lines[4 + i];
+                String symbol = line.substring( 31, Math.min( 34,
+                                                 line.length() ) ).trim();
+                String expected = i < atoms
+                                  ? original.getAtom( i ).getSymbol()
+                                  : "H";
+                if ( !symbol.equals( expected ) )
+                    return null;
+                xyz[i * 3] = Double.parseDouble( line.substring( 0, 10 )
+                                                     .trim() );
+                xyz[i * 3 + 1] = Double.parseDouble( line.substring( 10, 20 )
+                                                         .trim() );
+                xyz[i * 3 + 2] = Double.parseDouble( line.substring( 20, 30 )
+                                                         .trim() );
+            }
+        } catch ( RuntimeException e ) {
+            // NumberFormatException or a line too short
+            return null;
+        }
+
+        // Which atom of the input every added hydrogen is bonded to
+        int[] hydrogenOf = new int[outAtoms - atoms];
+        Arrays.fill( hydrogenOf, -1 );
+        int inputBonds = 0;
+        try {
+            for ( int b = 0; b < outBonds; b++ ) {
+                String line = lines[4 + outAtoms + b];
+                int i = Integer.parseInt( line.substring( 0, 3 ).trim() ) - 1;
+                int j = Integer.parseInt( line.substring( 3, 6 ).trim() ) - 1;
+                if ( i < atoms && j < atoms ) {
+                    if ( !bonds.contains( key( i, j ) ) )
+                        return null;
+                    inputBonds++;
+                } else if ( i < atoms != j < atoms ) {
+                    int h = Math.max( i, j ) - atoms;
+                    if ( h >= hydrogenOf.length || hydrogenOf[h] != -1 )
+                        return null;
+                    hydrogenOf[h] = Math.min( i, j );
+                } else {
+                    return null;
+                }
+            }
+        } catch ( RuntimeException e ) {
+            return null;
+        }
+        if ( inputBonds != bonds.size() )
+            return null;
+        for ( int parent : hydrogenOf )
+            if ( parent < 0 )
+                return null;
+
+        IAtomContainer copy;
+        try {
+            copy = (IAtomContainer) original.clone();
+        } catch ( CloneNotSupportedException e ) {
+            return null;
+        }
+        for ( int i = 0; i < atoms; i++ )
+            copy.getAtom( i ).setPoint3d( point( xyz, i ) );
+        IChemObjectBuilder builder = copy.getBuilder();
+        for ( int h = 0; h < hydrogenOf.length; h++ ) {
+            IAtom parent = copy.getAtom( hydrogenOf[h] );
+            IAtom hydrogen = builder.newInstance( IAtom.class, "H" );
+            hydrogen.setImplicitHydrogenCount( 0 );
+            hydrogen.setPoint3d( point( xyz, atoms + h ) );
+            copy.addAtom( hydrogen );
+            copy.addBond( builder.newInstance( IBond.class, parent, hydrogen,
+                                               IBond.Order.SINGLE ) );
+            Integer implicit = parent.getImplicitHydrogenCount();
+            if ( implicit != null && implicit > 0 )
+                parent.setImplicitHydrogenCount( implicit - 1 );
+        }
+        addDataItems( copy, lines, 4 + outAtoms + outBonds );
+        return copy;
+    }
+
+    private static Point3d point( double[] xyz, int atom ) {
+        return new Point3d( xyz[atom * 3], xyz[atom * 3 + 1],
+                            xyz[atom * 3 + 2] );
+    }
+
+    private static void addDataItems( IAtomContainer copy, String[] lines,
+                                      int from ) {
+        int i = from;
+        while ( i < lines.length && !lines[i].startsWith( MOLFILE_END ) )
+            i++;
+        for ( ; i < lines.length; i++ ) {
+            String line = lines[i];
+            if ( !line.startsWith( ">" ) )
+                continue;
+            int start = line.indexOf( '<' );
+            int end = line.indexOf( '>', start + 1 );
+            if ( start < 0 || end < 0 )
+                continue;
+            String name = line.substring( start + 1, end );
+            StringBuilder value = new StringBuilder();
+            while ( i + 1 < lines.length && lines[i + 1].length() > 0 ) {
+                if ( value.length() > 0 )
+                    value.append( '\n' );
+                value.append( lines[++i] );
+            }
+            if ( copy.getProperty( name ) == null )
+                copy.setProperty( name, value.toString() );
+        }
+    }
+
+    /**
+     * @return the same key for a bond either way around
+     */
+    private static long key( int i, int j ) {
+        return ((long) Math.min( i, j ) << 32) | Math.max( i, j );
+    }
+}
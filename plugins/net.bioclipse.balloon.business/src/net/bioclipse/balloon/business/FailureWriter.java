@@ -0,0 +1,201 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import net.bioclipse.balloon.runner.ProcessResult;
+
+/**
+ * Writes the molecules a Balloon run failed on to an SD file next to the
+ * output, each with the original record and properties telling where it
+ * was in the input and why it failed. The file can be used as input for
+ * another run, the failure properties are then replaced.
+ * <p>
+ * The file is only created when the first failure is written.
+ */
+class FailureWriter {
+
+    static final String SUFFIX = "_failures";
+
+    /** Position of the molecule in the input, counted from 1 */
+    static final String POSITION = "balloon.position";
+    /** Name of the {@link BalloonException.FailureClass} */
+    static final String FAILURE = "balloon.failure";
+    /** Exit value of Balloon, only for molecules Balloon was run for */
+    static final String EXIT_VALUE = "balloon.exit";
+    /** Wall time of the Balloon run in milliseconds */
+    static final String ELAPSED = "balloon.elapsed.ms";
+    /** The end of what Balloon wrote to standard error */
+    static final String STDERR = "balloon.stderr";
+    static final String MESSAGE = "balloon.message";
+
+    static final Collection<String> TAGS = Arrays.asList( POSITION, FAILURE,
+                                                          EXIT_VALUE, ELAPSED,
+                                                          STDERR, MESSAGE );
+
+    /** Most characters of standard error kept */
+    static final int STDERR_EXCERPT = 1000;
+
+    /** Stands in for records that could not be read at all */
+    private static final String EMPTY_MOLFILE
+        = "\nBioclipse\n\n"
+          + "  0  0  0  0  0  0  0  0  0  0999 V2000\n"
+          + "M  END\n";
+
+    private static final String MOLFILE_END = "M  END";
+
+    private final File file;
+    private Writer writer;
+    private int count = 0;
+
+    FailureWriter( File file ) {
+        this.file = file;
+    }
+
+    /**
+     * @return the failures file for an output file, e.g.
+     *         <code>mols_3d_failures.sdf</code> for <code>mols_3d.sdf</code>
+     *         and <code>mols_3d.sdf.gz</code>
+     */
+    static File failuresFor( String outputFile ) {
+        File output = new File( Compression.strip( outputFile ) );
+        String name = output.getName();
+        int dot = name.lastIndexOf( '.' );
+        String base = dot > 0 ? name.substring( 0, dot ) : name;
+        return new File( output.getParentFile(), base + SUFFIX + ".sdf" );
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of failures written
+     */
+    synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Removes failure properties left from an earlier run, so that a
+     * retried molecule does not carry them into the output.
+     */
+    static void clearTags( Map<Object, Object> properties ) {
+        if ( properties != null )
+            properties.keySet().removeAll( TAGS );
+    }
+
+    /**
+     * Writes one failed molecule.
+     *
+     * @param position position in the input, counted from 1
+     * @param record the molfile or SD record of the molecule,
+     *               <code>null</code> if it could not be read
+     * @param properties properties to add to the record, may be
+     *                   <code>null</code>
+     * @param error why the molecule failed
+     */
+    synchronized void write( long position, String record,
+                             Map<Object, Object> properties,
+                             Throwable error ) throws IOException {
+        if ( writer == null )
+            writer = new BufferedWriter( new OutputStreamWriter(
+                                 new FileOutputStream( file ),
+                                 SDFRecordReader.CHARSET ) );
+        StringBuilder sdf = new StringBuilder();
+        appendRecord( sdf, record == null ? EMPTY_MOLFILE
+                                          : record.replace( "\r", "" ) );
+        if ( properties != null ) {
+            for ( Map.Entry<Object, Object> e : properties.entrySet() ) {
+                if ( e.getKey() instanceof String && e.getValue() != null
+                     && !TAGS.contains( e.getKey() ) )
+                    appendItem( sdf, (String) e.getKey(),
+                                e.getValue().toString() );
+            }
+        }
+        appendItem( sdf, POSITION, Long.toString( position ) );
+        BalloonException.FailureClass failureClass
+            = error instanceof BalloonException
+                  ? ((BalloonException) error).getFailureClass()
+                  : BalloonException.FailureClass.FAILED;
+        appendItem( sdf, FAILURE, failureClass.name() );
+        ProcessResult result = error instanceof BalloonException
+                                   ? ((BalloonException) error).getResult()
+                                   : null;
+        if ( result != null ) {
+            appendItem( sdf, EXIT_VALUE,
+                        Integer.toString( result.getExitValue() ) );
+            appendItem( sdf, ELAPSED, Long.toString( result.getWallTimeMs() ) );
+            String stderr = result.getStderr().toString();
+            if ( stderr.length() > STDERR_EXCERPT )
+                stderr = stderr.substring( stderr.length() - STDERR_EXCERPT );
+            appendItem( sdf, STDERR, stderr );
+        }
+        appendItem( sdf, MESSAGE, String.valueOf( error.getMessage() ) );
+        sdf.append( "$$$$\n" );
+        writer.write( sdf.toString() );
+        count++;
+    }
+
+    /**
+     * Appends the molfile part of <code>record</code> and those of its data
+     * items that are not failure properties.
+     */
+    private static void appendRecord( StringBuilder sdf, String record ) {
+        String[] lines = record.split( "\n" );
+        int i = 0;
+        for ( ; i < lines.length; i++ ) {
+            sdf.append( lines[i] ).append( '\n' );
+            if ( lines[i].startsWith( MOLFILE_END ) )
+                break;
+        }
+        boolean skip = false;
+        for ( i++; i < lines.length; i++ ) {
+            String line = lines[i];
+            if ( line.startsWith( "$$$$" ) )
+                break;
+            if ( line.startsWith( ">" ) )
+                skip = TAGS.contains( tag( line ) );
+            if ( !skip )
+                sdf.append( line ).append( '\n' );
+        }
+    }
+
+    private static String tag( String header ) {
+        int start = header.indexOf( '<' );
+        int end = header.indexOf( '>', start + 1 );
+        return start < 0 || end < 0 ? "" : header.substring( start + 1, end );
+    }
+
+    private static void appendItem( StringBuilder sdf, String tag,
+                                    String value ) {
+        sdf.append( "> <" ).append( tag ).append( ">\n" );
+        // A blank line ends the value and $$$$ the record
+        for ( String line : value.replace( "\r", "" ).split( "\n" ) ) {
+            if ( line.trim().length() == 0 || line.startsWith( "$$$$" ) )
+                continue;
+            sdf.append( line ).append( '\n' );
+        }
+        sdf.append( '\n' );
+    }
+
+    synchronized void close() throws IOException {
+        if ( writer != null )
+            writer.close();
+        writer = null;
+    }
+}
@@ -106,6 +106,31 @@ public interface IBalloonManager extends IBioclipseManager {
                                           int numConformations) 
                  throws BioclipseException;
 
+    /**
+     * Generate 3D conformations for one or more inputfiles in a list as new
+     * files, asking Balloon for more conformations for flexible molecules
+     * than for rigid ones.
+     * @param inputfiles List of paths to the inputfiles.
+     * @param minConformations Conformations for a rigid molecule
+     * @param maxConformations Conformations for the most flexible molecules
+     * @return
+     * @throws BioclipseException
+     */
+    @PublishedMethod(
+        params = "List<String> inputfiles, int minConformations, " +
+                 "int maxConformations",
+        methodSummary = "Generates 3D conformations for each molecule in " +
+                        "all files in inputfiles, between minConformations " +
+                        "for rigid molecules and maxConformations for " +
+                        "molecules of many rotatable bonds and flexible " +
+                        "rings, stores them in new files and returns a List " +
+                        "of file names.")
+    @Recorded
+    List<String> generate3Dconformations( List<String> inputfiles,
+                                          int minConformations,
+                                          int maxConformations )
+                 throws BioclipseException;
+
     /**
      * Generate 3D conformations for an inputfile
      * @param inputfile Paths to the inputfile
@@ -142,8 +167,142 @@ public interface IBalloonManager extends IBioclipseManager {
                                            String outputfile, 
                                            int numConformations ) 
            throws BioclipseException;
-    
- 
+
+    /**
+     * Generate 3D conformations for an inputfile to a dedicated outputfile,
+     * keeping only the conformations of lowest energy of every molecule.
+     * @param inputfile Path to inputfile as String
+     * @param outputfile Path to outputfile as String, or null for the
+     *                   default next to the inputfile
+     * @param numConformations Number of conformations to generate per molecule
+     * @param keepLowest Number of conformations to keep per molecule
+     * @return
+     * @throws BioclipseException
+     */
+    @PublishedMethod(
+        params = "String inputfile, String outputfile, int numConformations, " +
+                 "int keepLowest",
+        methodSummary = "Generates numConformations 3D conformations for " +
+                        "all molecules in the file inputfile, stores the " +
+                        "keepLowest of lowest energy of each in a file and " +
+                        "returns the name of the created file." )
+    @Recorded
+    public String generate3Dconformations( String inputfile,
+                                           String outputfile,
+                                           int numConformations,
+                                           int keepLowest )
+           throws BioclipseException;
+
+    /**
+     * Generate 3D conformations for molecules given as SMILES, without
+     * parsing them into molecules first.
+     * @param smiles SMILES, each optionally followed by a name
+     * @param numConformations Number of conformations to generate per molecule
+     * @return SD formatted conformations in the order of the SMILES
+     * @throws BioclipseException
+     */
+    @PublishedMethod(
+        params = "List<String> smiles, int numConformations",
+        methodSummary = "Generates numConformations 3D conformations for " +
+                        "every SMILES in the list with Balloon reading " +
+                        "them in parallel chunks, and returns them SD " +
+                        "formatted in the order of the list." )
+    @Recorded
+    public String generate3DconformationsFromSmiles( List<String> smiles,
+                                                     int numConformations )
+           throws BioclipseException;
+
+
+    /**
+     * Regenerate 3D conformations for an SD file, only running Balloon on
+     * records that are new or changed since the last run into the same
+     * outputfile. Results for unchanged records are copied from the
+     * earlier output, using the manifest file written next to it.
+     * @param inputfile Path to the SD file
+     * @param outputfile Path to the outputfile, or null for the default
+     *                   _3d.sdf next to the inputfile
+     * @param numConformations Number of conformations to generate per molecule
+     * @return
+     * @throws BioclipseException
+     */
+    @PublishedMethod(
+        params = "String inputfile, String outputfile, int numConformations",
+        methodSummary = "Generates 3D conformations for the molecules in " +
+                        "inputfile that are new or changed since the last " +
+                        "run into outputfile, reusing the earlier results " +
+                        "for all other molecules. Returns the name of the " +
+                        "output file." )
+    @Recorded
+    public String regenerate3Dconformations( String inputfile,
+                                             String outputfile,
+                                             int numConformations )
+           throws BioclipseException;
+
+    /**
+     * Writes the conformers of an SD file written by Balloon to a binary
+     * conformer store next to it, see {@link ConformerStore}.
+     * @param sdfile Path to the SD file as String
+     * @return Path to the conformer store
+     * @throws BioclipseException
+     */
+    @PublishedMethod(
+        params = "String sdfile",
+        methodSummary = "Writes the conformers in the SD file sdfile to a " +
+                        "binary conformer store that can be memory mapped " +
+                        "and returns the name of the created file." )
+    @Recorded
+    public String createConformerStore( String sdfile )
+           throws BioclipseException;
+
+    /**
+     * @return how many Balloon processes are allowed and running, the
+     *         throughput they reach and the virtual thread pinning seen
+     */
+    @PublishedMethod(
+        methodSummary = "Returns the number of Balloon processes currently " +
+                        "allowed and running, the molecules per second " +
+                        "they reach and why the number was last changed." )
+    public String getEngineStatus();
+
+    /**
+     * Sets the priority of Balloon processes started by bulk jobs such as
+     * whole files, leaving single molecule runs at normal priority.
+     * @param niceLevel 0 for normal priority up to 19 for the lowest
+     * @param cpuSet CPUs to run on, e.g. "2-7" or "0,2,4", empty for all
+     * @throws BioclipseException if the nice level or CPU list is not valid
+     */
+    @PublishedMethod(
+        params = "int niceLevel, String cpuSet",
+        methodSummary = "Makes Balloon processes of bulk jobs run with the " +
+                        "nice level niceLevel (0-19) on the CPUs in cpuSet, " +
+                        "e.g. \"2-7\", or on all CPUs if cpuSet is empty. " +
+                        "Nice levels and CPU lists are not applied on " +
+                        "Windows and CPU lists only on Linux." )
+    public void setBackgroundPriority( int niceLevel, String cpuSet )
+                throws BioclipseException;
+
+    @PublishedMethod(
+        methodSummary = "Returns the nice level and CPUs used for Balloon " +
+                        "processes of bulk jobs." )
+    public String getBackgroundPriority();
+
+    /**
+     * Makes file jobs run molecules that repeatedly made Balloon time out
+     * or crash instead of skipping them.
+     * @param force true to run quarantined molecules as any other
+     */
+    @PublishedMethod(
+        params = "boolean force",
+        methodSummary = "If force is true, molecules quarantined after " +
+                        "making Balloon time out or crash repeatedly are " +
+                        "run as any other until this is set to false." )
+    public void setForceQuarantined( boolean force );
+
+    @PublishedMethod(
+        methodSummary = "Forgets all molecules that made Balloon time out " +
+                        "or crash." )
+    public void clearQuarantine() throws BioclipseException;
+
     @PublishedMethod(
                      params = "IMolecule molecule",
                      methodSummary = "Returns a new molecule with 3D " +
@@ -161,7 +320,31 @@ public interface IBalloonManager extends IBioclipseManager {
     @Recorded
     public List<ICDKMolecule> generate3Dconformations( IMolecule molecule, int numConf) 
     throws BioclipseException;
+
+    @PublishedMethod(
+                     params = "IMolecule molecule, int numConf, int keepLowest",
+                     methodSummary = "Returns a list of the keepLowest " +
+                                     "conformations of lowest energy out of " +
+                                     "numConf generated by Balloon for the " +
+                                     "given molecule.")
+    @Recorded
+    public List<ICDKMolecule> generate3Dconformations( IMolecule molecule,
+                                                       int numConf,
+                                                       int keepLowest )
+    throws BioclipseException;
  
+    @PublishedMethod(
+                     params = "IMolecule molecule, int numConf",
+                     methodSummary = "Returns an ensemble of numConf 3D " +
+                                     "conformations generated by Balloon " +
+                                     "for the given molecule, storing the " +
+                                     "atoms and bonds once. Conformations " +
+                                     "become molecules when asked for.")
+    @Recorded
+    public ConformerEnsemble generate3DconformerEnsemble( IMolecule molecule,
+                                                          int numConf )
+    throws BioclipseException;
+
     @PublishedMethod(
                      params = "List<IMolecule> molecules",
                      methodSummary = "Returns a new list of molecules with " +
@@ -195,5 +378,34 @@ public interface IBalloonManager extends IBioclipseManager {
     												   IProgressMonitor monitor) 
     												   throws BioclipseException;
 
+    @PublishedMethod(
+        params = "List<IMolecule> molecules, int numConf",
+        methodSummary = "Returns a list of numConf 3D conformations " +
+                        "generated by Balloon for the molecules in the " +
+                        "given list, kept in a temporary file and read " +
+                        "when got, for results too big for memory.")
+    @Recorded
+    public List<ICDKMolecule> generateMultiple3DconformationsOnDisk(
+                                                      List<IMolecule> molecules,
+                                                      int numConf )
+                                                      throws BioclipseException;
+
+    public List<ICDKMolecule> generateMultiple3DconformationsOnDisk(
+                                                      List<IMolecule> molecules,
+                                                      int numConf,
+                                                      IProgressMonitor monitor )
+                                                      throws BioclipseException;
+
+    @PublishedMethod(
+                     params = "IMolecule molecule, int numConf",
+                     methodSummary = "Returns a list of numConf 3D " +
+                                     "conformations generated by Balloon " +
+                                     "for the given molecule, kept in a " +
+                                     "temporary file and read when got.")
+    @Recorded
+    public List<ICDKMolecule> generate3DconformationsOnDisk( IMolecule molecule,
+                                                             int numConf )
+    throws BioclipseException;
+
     public void generate3Dcoordinates( IFile input, BioclipseUIJob<IFile> uiJob );
 }
\ No newline at end of file
@@ -0,0 +1,301 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.bioclipse.core.business.BioclipseException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Rebuilds a Balloon output file from an edited input SD file, running
+ * Balloon only for records whose content hash is not found in the
+ * {@link RunManifest} of the previous run. Results for unchanged records
+ * are copied byte for byte from the previous output, as long as that is
+ * still the file the manifest was written with.
+ */
+class IncrementalRebuild {
+
+    private static final Logger logger
+        = Logger.getLogger( IncrementalRebuild.class );
+
+    private final BalloonManager balloon;
+    private final int numConformations;
+    private final int numThreads;
+
+    private ScratchSpace.Job scratch;
+    private FailureWriter failures;
+    private long written = 0;
+    private int reused = 0;
+    private int computed = 0;
+    private int failed = 0;
+
+    IncrementalRebuild( BalloonManager balloon, int numConformations ) {
+        this.balloon = balloon;
+        this.numConformations = numConformations;
+        this.numThreads = BalloonEngine.getDefault().getMaxConcurrency();
+    }
+
+    /**
+     * Writes <code>outfile</code> and its manifest for the records in
+     * <code>infile</code>.
+     */
+    void run( String infile, String outfile ) throws BioclipseException {
+
+        File out = new File( outfile );
+        File manifestFile = RunManifest.manifestFor( outfile );
+        RunManifest previous = null;
+        if ( out.exists() ) {
+            try {
+                previous = RunManifest.read( manifestFile );
+            } catch ( IOException e ) {
+                logger.warn( "Ignoring unreadable manifest: " + e.getMessage() );
+            }
+        }
+        try {
+            if ( previous != null && !previous.describes( out ) ) {
+                logger.info( outfile + " is not the output its manifest was "
+                             + "written with, regenerating all records" );
+                previous = null;
+            }
+        } catch ( IOException e ) {
+            logger.warn( "Could not check " + outfile + " against its "
+                         + "manifest: " + e.getMessage() );
+            previous = null;
+        }
+        if ( previous != null
+             && previous.getNumConformations() != numConformations ) {
+            logger.info( "Number of conformations changed from "
+                         + previous.getNumConformations() + " to "
+                         + numConformations + ", regenerating all records" );
+            previous = null;
+        }
+
+        File partial = new File( outfile + ".part" );
+        failures = new FailureWriter( FailureWriter.failuresFor( outfile ) );
+        // Failures of an earlier run are stale now
+        failures.getFile().delete();
+        RunManifest manifest = new RunManifest( numConformations );
+        MessageDigest digest = RunManifest.digest();
+        // A virtual thread per record, the engine limits the Balloon runs
+        ExecutorService executor = BalloonEngine.getDefault().newExecutor();
+        SDFRecordReader reader = null;
+        RandomAccessFile previousOutput = null;
+        OutputStream writer = null;
+        try {
+            scratch = ScratchSpace.getDefault().newJob();
+            reader = new SDFRecordReader( new FileInputStream( infile ) );
+            if ( previous != null )
+                previousOutput = new RandomAccessFile( out, "r" );
+            writer = new BufferedOutputStream(
+                         new DigestOutputStream(
+                             new FileOutputStream( partial ), digest ),
+                         1 << 16 );
+
+            // Keep a bounded number of records in flight and write them
+            // out in input order
+            LinkedList<Slot> window = new LinkedList<Slot>();
+            SDFRecordReader.SDFRecord record;
+            while ( (record = reader.next()) != null ) {
+                String hash = RunManifest.hash( record );
+                RunManifest.Entry old = previous == null ? null
+                                                         : previous.lookup( hash );
+                if ( old != null )
+                    window.add( new Slot( hash, old, null, null ) );
+                else
+                    window.add( new Slot( hash, null, record,
+                                          executor.submit( balloonTask( record ) ) ) );
+                while ( window.size() > numThreads * 4 )
+                    flush( window.removeFirst(), previousOutput, writer, manifest );
+            }
+            while ( !window.isEmpty() )
+                flush( window.removeFirst(), previousOutput, writer, manifest );
+        } catch ( IOException e ) {
+            partial.delete();
+            throw new BioclipseException( "Incremental Balloon run failed: "
+                                          + e.getMessage(), e );
+        } finally {
+            executor.shutdownNow();
+            closeQuietly( reader, previousOutput, writer );
+            try {
+                failures.close();
+            } catch ( IOException e ) {
+                logger.error( e.getMessage(), e );
+            }
+            if ( scratch != null )
+                scratch.close();
+        }
+
+        // The manifest goes first, if the output is not swapped in after
+        // it the fingerprint tells the next run
+        manifest.setOutput( written, RunManifest.hex( digest.digest() ) );
+        try {
+            manifest.write( manifestFile );
+        } catch ( IOException e ) {
+            manifestFile.delete();
+            partial.delete();
+            throw new BioclipseException( "Could not write manifest "
+                                          + manifestFile + ": "
+                                          + e.getMessage(), e );
+        }
+        if ( out.exists() && !out.delete() )
+            throw new BioclipseException( "Could not replace " + outfile );
+        if ( !partial.renameTo( out ) )
+            throw new BioclipseException( "Could not rename " + partial
+                                          + " to " + outfile );
+        try {
+            OutputIndex.write( out, manifest );
+        } catch ( IOException e ) {
+            logger.warn( "Could not index " + outfile + ": " + e.getMessage() );
+            OutputIndex.indexFor( outfile ).delete();
+        }
+        logger.info( "Incremental Balloon run on " + infile + ": reused "
+                     + reused + ", computed " + computed + ", failed "
+                     + failed
+                     + ( failed > 0 ? " (see " + failures.getFile() + ")"
+                                    : "" ) );
+    }
+
+    private Callable<String> balloonTask( SDFRecordReader.SDFRecord record )
+                             throws IOException {
+        final File input = scratch.write( "balloon", ".sdf", record.text );
+        return new Callable<String>() {
+            public String call() throws Exception {
+                try {
+                    String output = balloon.calculateWithBalloon(
+                                               input.getPath(),
+                                               numConformations,
+                                               BalloonEngine.Lane.BATCH );
+                    scratch.track( output );
+                    return output;
+                } finally {
+                    scratch.release( input );
+                }
+            }
+        };
+    }
+
+    private void flush( Slot slot,
+                        RandomAccessFile previousOutput,
+                        OutputStream writer,
+                        RunManifest manifest ) throws IOException {
+
+        long start = written;
+        if ( slot.reused != null ) {
+            previousOutput.seek( slot.reused.offset );
+            copy( previousOutput, slot.reused.length, writer );
+            reused++;
+            manifest.add( new RunManifest.Entry( slot.hash, start,
+                                                 written - start ) );
+            return;
+        }
+        String result = null;
+        try {
+            result = slot.result.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for Balloon" );
+        } catch ( ExecutionException e ) {
+            int position = manifest.getEntries().size() + 1;
+            logger.error( "Balloon failed on record " + position + ": "
+                          + e.getCause().getMessage() );
+            failures.write( position, slot.record.text, null, e.getCause() );
+        }
+        if ( result == null ) {
+            failed++;
+            manifest.add( RunManifest.Entry.failed( slot.hash ) );
+            return;
+        }
+        File resultFile = new File( result );
+        InputStream in = new FileInputStream( resultFile );
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ( (n = in.read( buffer )) != -1 ) {
+                writer.write( buffer, 0, n );
+                written += n;
+            }
+        } finally {
+            in.close();
+            scratch.release( resultFile );
+        }
+        computed++;
+        manifest.add( new RunManifest.Entry( slot.hash, start,
+                                             written - start ) );
+    }
+
+    private void copy( RandomAccessFile from, long length, OutputStream to )
+                 throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        long left = length;
+        while ( left > 0 ) {
+            int n = from.read( buffer, 0, (int) Math.min( buffer.length, left ) );
+            if ( n == -1 )
+                throw new IOException( "Previous output is shorter than "
+                                       + "its manifest says" );
+            to.write( buffer, 0, n );
+            written += n;
+            left -= n;
+        }
+    }
+
+    private void closeQuietly( SDFRecordReader reader,
+                               RandomAccessFile previousOutput,
+                               OutputStream writer ) {
+        try {
+            if ( reader != null )
+                reader.close();
+        } catch ( IOException e ) {
+            logger.error( e.getMessage(), e );
+        }
+        try {
+            if ( previousOutput != null )
+                previousOutput.close();
+        } catch ( IOException e ) {
+            logger.error( e.getMessage(), e );
+        }
+        try {
+            if ( writer != null )
+                writer.close();
+        } catch ( IOException e ) {
+            logger.error( e.getMessage(), e );
+        }
+    }
+
+    private static class Slot {
+
+        final String hash;
+        final RunManifest.Entry reused;
+        /** The input record while Balloon runs for it */
+        final SDFRecordReader.SDFRecord record;
+        final Future<String> result;
+
+        Slot( String hash, RunManifest.Entry reused,
+              SDFRecordReader.SDFRecord record, Future<String> result ) {
+            this.hash = hash;
+            this.reused = reused;
+            this.record = record;
+            this.result = result;
+        }
+    }
+}
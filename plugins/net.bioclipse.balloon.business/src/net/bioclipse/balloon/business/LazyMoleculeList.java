@@ -0,0 +1,160 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import net.bioclipse.cdk.business.ICDKManager;
+import net.bioclipse.cdk.domain.ICDKMolecule;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.openscience.cdk.io.formats.IChemFormat;
+import org.openscience.cdk.io.formats.SDFFormat;
+
+/**
+ * Molecules read from an SD file when they are got, for results too big
+ * to keep on the heap. The records are found with an {@link OutputIndex}
+ * and the molecules last got are kept in a small LRU cache. The file and
+ * its index are deleted on {@link #close()}, or once the list is no longer
+ * reachable if it was never closed.
+ */
+public class LazyMoleculeList extends AbstractList<ICDKMolecule>
+                              implements RandomAccess, Closeable {
+
+    /** Molecules kept parsed */
+    static final int CACHE_SIZE = 32;
+
+    /** Deletes the files of lists that were not closed */
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final File             file;
+    private final OutputIndex      index;
+    private final ICDKManager      cdk;
+    /** Properties for every position, null for none */
+    private final List<Map<Object, Object>> properties;
+    private final Map<Integer, ICDKMolecule> cache;
+    private final Cleaner.Cleanable files;
+    private RandomAccessFile       in;
+
+    /**
+     * @param file SD file of the molecules, owned by the list
+     * @param index where the records of <code>file</code> are
+     * @param cdk parses the records
+     * @param properties set on the molecules of every position in the
+     *                   index, <code>null</code> to use those of the records
+     */
+    LazyMoleculeList( File file, OutputIndex index, ICDKManager cdk,
+                      List<Map<Object, Object>> properties, int cacheSize ) {
+        this.file = file;
+        this.index = index;
+        this.cdk = cdk;
+        this.properties = properties;
+        final int capacity = cacheSize;
+        this.cache = new LinkedHashMap<Integer, ICDKMolecule>( capacity * 2,
+                                                               0.75f, true ) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                                  Map.Entry<Integer, ICDKMolecule> eldest ) {
+                return size() > capacity;
+            }
+        };
+        this.files = cleaner.register( this, new Deletion( file ) );
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @throws IllegalStateException if the record can not be read
+     */
+    @Override
+    public synchronized ICDKMolecule get( int i ) {
+        if ( i < 0 || i >= size() )
+            throw new IndexOutOfBoundsException( "No molecule " + i + " of "
+                                                 + size() );
+        ICDKMolecule molecule = cache.get( i );
+        if ( molecule == null ) {
+            molecule = read( i );
+            cache.put( i, molecule );
+        }
+        return molecule;
+    }
+
+    private ICDKMolecule read( int i ) {
+        try {
+            if ( in == null )
+                in = new RandomAccessFile( file, "r" );
+            byte[] record = new byte[(int) index.getLength( i )];
+            in.seek( index.getOffset( i ) );
+            in.readFully( record );
+            ICDKMolecule molecule = cdk.loadMolecules(
+                                        new ByteArrayInputStream( record ),
+                                        (IChemFormat) SDFFormat.getInstance(),
+                                        new NullProgressMonitor() ).get( 0 );
+            if ( properties != null ) {
+                Map<Object, Object> props = properties.get(
+                                                (int) index.getPosition( i ) - 1 );
+                if ( props != null )
+                    for ( Object key : props.keySet() )
+                        molecule.getAtomContainer()
+                                .setProperty( key, props.get( key ) );
+            }
+            molecule.setResource( null );
+            return molecule;
+        } catch ( Exception e ) {
+            throw new IllegalStateException( "Could not read molecule " + i
+                                             + " from " + file + ": "
+                                             + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Deletes the file behind the list, which can not be used after.
+     */
+    public synchronized void close() throws IOException {
+        cache.clear();
+        try {
+            if ( in != null )
+                in.close();
+        } finally {
+            in = null;
+            files.clean();
+        }
+    }
+
+    /**
+     * Deletes the file of a list and its index. Must not refer to the list
+     * or it would never be unreachable.
+     */
+    private static class Deletion implements Runnable {
+
+        private final File file;
+
+        Deletion( File file ) {
+            this.file = file;
+        }
+
+        public void run() {
+            file.delete();
+            OutputIndex.indexFor( file.getPath() ).delete();
+        }
+    }
+}
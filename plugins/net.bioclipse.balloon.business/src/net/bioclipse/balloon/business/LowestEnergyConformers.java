@@ -0,0 +1,209 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.bioclipse.balloon.business.ConformerPruner.Conformer;
+
+/**
+ * Keeps the conformers of lowest energy of every molecule in Balloon
+ * output. Records are read one at a time and only the best conformers seen
+ * so far for the current molecule are held, in a heap bounded to the
+ * number kept, so memory and output grow with that number and not with
+ * the number of conformations Balloon was asked for.
+ * <p>
+ * Energies are read as in {@link ConformerPruner}, conformers without one
+ * rank after all others and ties keep the order of the input. The
+ * molecules are taken from the index of the file when there is one,
+ * otherwise consecutive records with the same title, heavy atoms and
+ * bonds are one molecule.
+ */
+class LowestEnergyConformers {
+
+    private final int keep;
+
+    /**
+     * @param keep most conformers to keep per molecule
+     */
+    LowestEnergyConformers( int keep ) {
+        if ( keep <= 0 )
+            throw new IllegalArgumentException( "Must keep at least one "
+                                                + "conformer, not " + keep );
+        this.keep = keep;
+    }
+
+    int getKeep() {
+        return keep;
+    }
+
+    /**
+     * @param sdf SD formatted conformers, of one or more molecules
+     * @return the conformers kept, for every molecule lowest energy first
+     */
+    String select( String sdf ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( sdf.length() );
+        select( new SDFRecordReader(
+                    new ByteArrayInputStream( sdf.getBytes(
+                        SDFRecordReader.CHARSET ) ) ),
+                out, null, null );
+        return out.toString( SDFRecordReader.CHARSET );
+    }
+
+    /**
+     * @param in SD file as written by Balloon
+     * @param out file to write the conformers kept to
+     * @return number of conformers kept
+     */
+    int selectFile( File in, File out ) throws IOException {
+        SDFRecordReader reader = new SDFRecordReader( new FileInputStream( in ) );
+        OutputStream writer = null;
+        try {
+            writer = new BufferedOutputStream( new FileOutputStream( out ),
+                                               1 << 16 );
+            return select( reader, writer, null, null );
+        } finally {
+            reader.close();
+            if ( writer != null )
+                writer.close();
+        }
+    }
+
+    /**
+     * As {@link #selectFile(File, File)} but with the molecules taken from
+     * the index of <code>in</code>, so that molecules next to each other
+     * are never mixed up however alike their records are.
+     *
+     * @param index of <code>in</code>
+     * @return the index of <code>out</code>, not written
+     */
+    OutputIndex selectFile( File in, OutputIndex index, File out )
+                throws IOException {
+        SDFRecordReader reader = new SDFRecordReader( new FileInputStream( in ) );
+        OutputStream writer = null;
+        OutputIndex.Builder written = new OutputIndex.Builder();
+        try {
+            writer = new BufferedOutputStream( new FileOutputStream( out ),
+                                               1 << 16 );
+            select( reader, writer, index, written );
+        } finally {
+            reader.close();
+            if ( writer != null )
+                writer.close();
+        }
+        return written.locate( out );
+    }
+
+    private int select( SDFRecordReader reader, OutputStream out,
+                        OutputIndex index, OutputIndex.Builder written )
+                throws IOException {
+        Heap heap = new Heap();
+        int kept = 0;
+        int i = 0;
+        SDFRecordReader.SDFRecord record;
+        while ( (record = reader.next()) != null ) {
+            Conformer conformer = Conformer.read( record.normalizedText() );
+            long position = index == null ? -1
+                                          : index.positionOf( i, record );
+            String key = index == null ? conformer.key
+                                       : Long.toString( position );
+            if ( heap.key != null && !heap.key.equals( key ) )
+                kept += heap.drain( out, written );
+            heap.offer( conformer, key, position );
+            i++;
+        }
+        if ( index != null && i != index.size() )
+            throw new IOException( "Read " + i + " records, " + index.size()
+                                   + " are indexed" );
+        return kept + heap.drain( out, written );
+    }
+
+    /**
+     * The best conformers of one molecule, the worst of them on top.
+     */
+    private class Heap {
+
+        private final PriorityQueue<Ranked> queue
+            = new PriorityQueue<Ranked>( keep + 1, Collections.reverseOrder(
+                                                       BEST_FIRST ) );
+        private String key;
+        private long   position;
+        private int    seen;
+
+        void offer( Conformer conformer, String key, long position ) {
+            this.key = key;
+            this.position = position;
+            Ranked ranked = new Ranked( conformer, seen++ );
+            if ( queue.size() < keep ) {
+                queue.add( ranked );
+            } else if ( BEST_FIRST.compare( ranked, queue.peek() ) < 0 ) {
+                queue.poll();
+                queue.add( ranked );
+            }
+        }
+
+        /**
+         * Writes the conformers held, best first, and starts over.
+         * @param written adds the conformers written to, if not
+         *                <code>null</code>
+         * @return number of conformers written
+         */
+        int drain( OutputStream out, OutputIndex.Builder written )
+            throws IOException {
+            List<Ranked> best = new ArrayList<Ranked>( queue );
+            Collections.sort( best, BEST_FIRST );
+            StringBuilder text = new StringBuilder();
+            for ( Ranked r : best ) {
+                text.append( r.conformer.record );
+                if ( !r.conformer.record.endsWith( "\n" ) )
+                    text.append( '\n' );
+            }
+            out.write( text.toString().getBytes( SDFRecordReader.CHARSET ) );
+            if ( written != null && !best.isEmpty() )
+                written.add( position, best.size() );
+            queue.clear();
+            key = null;
+            seen = 0;
+            return best.size();
+        }
+    }
+
+    private static class Ranked {
+
+        final Conformer conformer;
+        final int       index;
+
+        Ranked( Conformer conformer, int index ) {
+            this.conformer = conformer;
+            this.index = index;
+        }
+    }
+
+    private static final Comparator<Ranked> BEST_FIRST
+        = new Comparator<Ranked>() {
+            public int compare( Ranked a, Ranked b ) {
+                int c = Double.compare( ConformerPruner.energyKey( a.conformer ),
+                                        ConformerPruner.energyKey( b.conformer ) );
+                if ( c != 0 )
+                    return c;
+                return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+            }
+        };
+}
@@ -0,0 +1,321 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Where every conformer is in a Balloon output file, so that it can be
+ * read from any molecule on or split into chunks without scanning it.
+ * Stored next to the output file as <code>&lt;output&gt;.idx</code> with
+ * one line per conformer record: the position of its molecule in the
+ * input counting from 1, the number of the conformer counting from 1, and
+ * the byte offset and length of the record. Molecules that failed have no
+ * lines.
+ */
+public class OutputIndex {
+
+    public static final String SUFFIX = ".idx";
+
+    private static final String HEADER = "# Balloon output index";
+
+    private final long[] positions;
+    private final int[]  conformers;
+    private final long[] offsets;
+    private final long[] lengths;
+
+    private OutputIndex( long[] positions, int[] conformers, long[] offsets,
+                         long[] lengths ) {
+        this.positions = positions;
+        this.conformers = conformers;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    public static File indexFor( String outputFile ) {
+        return new File( outputFile + SUFFIX );
+    }
+
+    /**
+     * @return number of records in the output file
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * @return position in the input of the molecule of record
+     *         <code>i</code>, counting from 1
+     */
+    public long getPosition( int i ) {
+        return positions[i];
+    }
+
+    /**
+     * @return position in the input of the molecule of record
+     *         <code>i</code>, which must be <code>record</code>
+     * @throws IOException if the record read is not the one indexed
+     */
+    long positionOf( int i, SDFRecordReader.SDFRecord record )
+         throws IOException {
+        if ( i >= size() || offsets[i] != record.offset )
+            throw new IOException( "Record at " + record.offset
+                                   + " is not the one indexed" );
+        return positions[i];
+    }
+
+    /**
+     * @return which conformer of its molecule record <code>i</code> is,
+     *         counting from 1
+     */
+    public int getConformer( int i ) {
+        return conformers[i];
+    }
+
+    public long getOffset( int i ) {
+        return offsets[i];
+    }
+
+    public long getLength( int i ) {
+        return lengths[i];
+    }
+
+    /**
+     * @return the first record of the molecule at <code>position</code>
+     *         in the input, -1 if it has none
+     */
+    public int firstRecordOf( long position ) {
+        int i = Arrays.binarySearch( positions, position );
+        if ( i < 0 )
+            return -1;
+        while ( i > 0 && positions[i - 1] == position )
+            i--;
+        return i;
+    }
+
+    /**
+     * Splits the output file into at most <code>chunks</code> byte ranges
+     * of about the same size, never splitting the conformers of a
+     * molecule.
+     *
+     * @return the byte offsets where the chunks start followed by where
+     *         the last one ends
+     */
+    public long[] split( int chunks ) {
+        if ( size() == 0 )
+            return new long[] { 0 };
+        long start = offsets[0];
+        long end = offsets[size() - 1] + lengths[size() - 1];
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add( start );
+        int i = 0;
+        for ( int c = 1; c < chunks; c++ ) {
+            long target = start + (end - start) * c / chunks;
+            // On to the first record of a molecule at or after the target
+            while ( i < size()
+                    && (offsets[i] < target
+                        || (i > 0 && positions[i] == positions[i - 1])) )
+                i++;
+            if ( i == size() )
+                break;
+            if ( offsets[i] > bounds.get( bounds.size() - 1 ) )
+                bounds.add( offsets[i] );
+        }
+        bounds.add( end );
+        long[] split = new long[bounds.size()];
+        for ( int b = 0; b < split.length; b++ )
+            split[b] = bounds.get( b );
+        return split;
+    }
+
+    /**
+     * Reads an index, returns <code>null</code> if there is none.
+     */
+    public static OutputIndex read( File file ) throws IOException {
+        if ( !file.exists() )
+            return null;
+        BufferedReader reader = new BufferedReader(
+                           new InputStreamReader( new FileInputStream( file ),
+                                                  "UTF-8" ) );
+        try {
+            String line = reader.readLine();
+            if ( line == null || !line.equals( HEADER ) )
+                throw new IOException( "Not a Balloon output index: " + file );
+            Builder builder = new Builder();
+            while ( (line = reader.readLine()) != null ) {
+                String[] fields = line.split( "\t" );
+                if ( fields.length != 4 )
+                    throw new IOException( "Malformed index line: " + line );
+                builder.addRecord( Long.parseLong( fields[0] ),
+                                   Integer.parseInt( fields[1] ),
+                                   Long.parseLong( fields[2] ),
+                                   Long.parseLong( fields[3] ) );
+            }
+            return builder.build();
+        } catch ( NumberFormatException e ) {
+            throw new IOException( "Malformed index " + file + ": "
+                                   + e.getMessage() );
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Indexes an output file written with a manifest, whose entries tell
+     * which bytes belong to which input record.
+     *
+     * @return the index written next to <code>output</code>
+     */
+    static OutputIndex write( File output, RunManifest manifest )
+                       throws IOException {
+        List<RunManifest.Entry> entries = manifest.getEntries();
+        Builder builder = new Builder();
+        SDFRecordReader reader = new SDFRecordReader(
+                                     new FileInputStream( output ) );
+        try {
+            int e = 0;
+            int conformer = 0;
+            SDFRecordReader.SDFRecord record;
+            while ( (record = reader.next()) != null ) {
+                while ( e < entries.size()
+                        && (!entries.get( e ).succeeded()
+                            || record.offset >= entries.get( e ).offset
+                                                + entries.get( e ).length) ) {
+                    e++;
+                    conformer = 0;
+                }
+                if ( e == entries.size() )
+                    throw new IOException( "Record at " + record.offset
+                                           + " of " + output + " is not in "
+                                           + "its manifest" );
+                builder.addRecord( e + 1, ++conformer, record.offset,
+                                   record.length() );
+            }
+        } finally {
+            reader.close();
+        }
+        OutputIndex index = builder.build();
+        index.write( indexFor( output.getPath() ) );
+        return index;
+    }
+
+    void write( File file ) throws IOException {
+        BufferedWriter writer = new BufferedWriter(
+                           new OutputStreamWriter( new FileOutputStream( file ),
+                                                   "UTF-8" ) );
+        try {
+            writer.write( HEADER );
+            writer.newLine();
+            for ( int i = 0; i < size(); i++ ) {
+                writer.write( positions[i] + "\t" + conformers[i] + "\t"
+                              + offsets[i] + "\t" + lengths[i] );
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Collects how many records the writer of an output file wrote for
+     * each molecule, in the order written.
+     */
+    static class Builder {
+
+        private long[] positions  = new long[64];
+        private int[]  conformers = new int[64];
+        private long[] offsets    = new long[64];
+        private long[] lengths    = new long[64];
+        private int    size;
+
+        /**
+         * @param position of the molecule in the input, increasing
+         * @param records number of records written for it
+         */
+        void add( long position, int records ) {
+            for ( int c = 1; c <= records; c++ )
+                addRecord( position, c, -1, 0 );
+        }
+
+        private void addRecord( long position, int conformer, long offset,
+                                long length ) {
+            if ( size == positions.length ) {
+                positions = Arrays.copyOf( positions, size * 2 );
+                conformers = Arrays.copyOf( conformers, size * 2 );
+                offsets = Arrays.copyOf( offsets, size * 2 );
+                lengths = Arrays.copyOf( lengths, size * 2 );
+            }
+            positions[size] = position;
+            conformers[size] = conformer;
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        /**
+         * @return the records added, at unknown offsets
+         */
+        OutputIndex build() {
+            return new OutputIndex( Arrays.copyOf( positions, size ),
+                                    Arrays.copyOf( conformers, size ),
+                                    Arrays.copyOf( offsets, size ),
+                                    Arrays.copyOf( lengths, size ) );
+        }
+
+        /**
+         * Finds the records of the finished output file, which must be
+         * those added, and writes the index next to it.
+         *
+         * @return the index written
+         */
+        OutputIndex write( File output ) throws IOException {
+            OutputIndex index = locate( output );
+            index.write( indexFor( output.getPath() ) );
+            return index;
+        }
+
+        /**
+         * Finds the records of the finished output file, which must be
+         * those added.
+         *
+         * @return the index of <code>output</code>, not written
+         */
+        OutputIndex locate( File output ) throws IOException {
+            SDFRecordReader reader = new SDFRecordReader(
+                                         new FileInputStream( output ) );
+            int found = 0;
+            try {
+                SDFRecordReader.SDFRecord record;
+                while ( (record = reader.next()) != null ) {
+                    if ( found < size ) {
+                        offsets[found] = record.offset;
+                        lengths[found] = record.length();
+                    }
+                    found++;
+                }
+            } finally {
+                reader.close();
+            }
+            if ( found != size )
+                throw new IOException( output + " has " + found
+                                       + " records, " + size
+                                       + " were written" );
+            return build();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+/**
+ * Saves the conformers a Balloon run wrote before it was killed at the
+ * timeout. Balloon writes one complete SD record per conformer, so every
+ * record up to the last <code>$$$$</code> line can be used and only the
+ * one being written when the run was killed is dropped.
+ */
+class PartialOutput {
+
+    /**
+     * Data item on salvaged conformers telling how many were generated
+     * of how many asked for, e.g. <code>7/50</code>
+     */
+    static final String CONFORMERS = "balloon.conformers";
+
+    private static final String RECORD_END = "$$$$";
+
+    private PartialOutput() {
+    }
+
+    /**
+     * @return number of complete records in <code>sdf</code>
+     */
+    static int countRecords( String sdf ) {
+        int count = 0;
+        for ( String line : sdf.split( "\n" ) ) {
+            if ( line.trim().equals( RECORD_END ) )
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param sdf what Balloon wrote before it was killed
+     * @param target number of conformers asked for
+     * @return the complete records of <code>sdf</code>, each marked with
+     *         {@link #CONFORMERS}, or <code>null</code> if there are none
+     */
+    static String salvage( String sdf, int target ) {
+        if ( sdf == null )
+            return null;
+        int count = countRecords( sdf );
+        if ( count == 0 )
+            return null;
+        String mark = "> <" + CONFORMERS + ">\n" + count + "/" + target
+                      + "\n\n";
+        StringBuilder salvaged = new StringBuilder( sdf.length()
+                                                    + count * mark.length() );
+        int seen = 0;
+        for ( String line : sdf.replace( "\r", "" ).split( "\n" ) ) {
+            if ( line.trim().equals( RECORD_END ) ) {
+                salvaged.append( mark );
+                salvaged.append( RECORD_END ).append( '\n' );
+                if ( ++seen == count )
+                    break;
+                continue;
+            }
+            salvaged.append( line ).append( '\n' );
+        }
+        return salvaged.toString();
+    }
+}
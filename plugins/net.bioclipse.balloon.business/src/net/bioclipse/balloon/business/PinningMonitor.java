@@ -0,0 +1,149 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts the times a virtual thread blocked while pinned to its carrier
+ * thread, e.g. inside a <code>synchronized</code> block, using the
+ * <code>jdk.VirtualThreadPinned</code> flight recorder event. Pinned waits
+ * take a carrier away from all other virtual threads, so they should stay
+ * rare.
+ */
+class PinningMonitor {
+
+    private static final Logger logger = Logger.getLogger( PinningMonitor.class );
+
+    private static final String EVENT = "jdk.VirtualThreadPinned";
+
+    /** Shorter pinned waits are not recorded */
+    private static final Duration THRESHOLD = Duration.ofMillis( 20 );
+
+    private RecordingStream stream;
+    private long count = 0;
+    private long totalMs = 0;
+    private long longestMs = 0;
+    private String longestAt = null;
+
+    /**
+     * Starts listening for pinned virtual threads. If the flight recorder
+     * is not available nothing is counted.
+     */
+    synchronized void start() {
+        if ( stream != null )
+            return;
+        try {
+            stream = new RecordingStream();
+            stream.enable( EVENT ).withThreshold( THRESHOLD ).withStackTrace();
+            stream.onEvent( EVENT, new Consumer<RecordedEvent>() {
+                public void accept( RecordedEvent event ) {
+                    record( event.getDuration().toMillis(),
+                            topFrame( event.getStackTrace() ) );
+                }
+            } );
+            stream.startAsync();
+        } catch ( Throwable t ) {
+            // No jdk.jfr module or flight recorder disabled
+            logger.info( "Can not measure virtual thread pinning: " + t );
+            stream = null;
+        }
+    }
+
+    synchronized void stop() {
+        if ( stream != null ) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    /**
+     * @return whether pinning is being measured
+     */
+    synchronized boolean isEnabled() {
+        return stream != null;
+    }
+
+    synchronized void record( long ms, String at ) {
+        count++;
+        totalMs += ms;
+        if ( ms >= longestMs ) {
+            longestMs = ms;
+            longestAt = at;
+        }
+    }
+
+    /**
+     * @return the pinned waits counted so far
+     */
+    synchronized Stats snapshot() {
+        return new Stats( count, totalMs, longestMs, longestAt );
+    }
+
+    private static String topFrame( RecordedStackTrace trace ) {
+        if ( trace == null )
+            return null;
+        List<RecordedFrame> frames = trace.getFrames();
+        for ( RecordedFrame frame : frames ) {
+            if ( !frame.isJavaFrame() )
+                continue;
+            String type = frame.getMethod().getType().getName();
+            // Skip the JDK frames doing the actual parking
+            if ( type.startsWith( "java." ) || type.startsWith( "jdk." ) )
+                continue;
+            return type + "." + frame.getMethod().getName()
+                   + ":" + frame.getLineNumber();
+        }
+        return frames.isEmpty() ? null : frames.get( 0 ).getMethod().getName();
+    }
+
+    /**
+     * Pinned waits counted up to some point.
+     */
+    static class Stats {
+
+        final long count;
+        final long totalMs;
+        final long longestMs;
+        final String longestAt;
+
+        Stats( long count, long totalMs, long longestMs, String longestAt ) {
+            this.count = count;
+            this.totalMs = totalMs;
+            this.longestMs = longestMs;
+            this.longestAt = longestAt;
+        }
+
+        /**
+         * @return the waits counted since <code>earlier</code>, the longest
+         *         wait is the longest ever seen
+         */
+        Stats since( Stats earlier ) {
+            return new Stats( count - earlier.count, totalMs - earlier.totalMs,
+                              longestMs, longestAt );
+        }
+
+        @Override
+        public String toString() {
+            if ( count == 0 )
+                return "no pinned virtual threads";
+            return count + " pinned virtual thread waits, " + totalMs
+                   + " ms in total, longest " + longestMs + " ms"
+                   + ( longestAt == null ? "" : " at " + longestAt );
+        }
+    }
+}
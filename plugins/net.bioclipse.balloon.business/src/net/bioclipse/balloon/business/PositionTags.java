@@ -0,0 +1,223 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.bioclipse.balloon.runner.NamedPipes;
+
+/**
+ * Marks the title of every molecule given to Balloon with its position in
+ * the input, so that the conformers of a run over a whole file can be told
+ * apart by molecule. Balloon writes the title of a molecule on all its
+ * conformers, but molecules next to each other may well have the same
+ * title and atoms, as isomers without a name do. The marks are taken off
+ * the output again while the index of its records is built.
+ * <p>
+ * A mark is the position counting from 1 in brackets, put in front of the
+ * title: <code>[12]aspirin</code>.
+ */
+class PositionTags {
+
+    private PositionTags() {
+    }
+
+    /**
+     * @return <code>title</code> marked with <code>position</code>
+     */
+    static String tag( long position, String title ) {
+        return "[" + position + "]" + title;
+    }
+
+    /**
+     * @return the position a title is marked with, -1 if it is not
+     */
+    static long position( String title ) {
+        int end = end( title );
+        return end < 0 ? -1 : Long.parseLong( title.substring( 1, end ) );
+    }
+
+    /**
+     * @return <code>text</code> without the mark it starts with, if any
+     */
+    static String untag( String text ) {
+        int end = end( text );
+        return end < 0 ? text : text.substring( end + 1 );
+    }
+
+    /**
+     * @return where the mark <code>text</code> starts with ends, -1 if it
+     *         does not start with one
+     */
+    private static int end( String text ) {
+        if ( !text.startsWith( "[" ) )
+            return -1;
+        int i = 1;
+        while ( i < text.length() && i < 20
+                && Character.isDigit( text.charAt( i ) ) )
+            i++;
+        return i > 1 && i < text.length() && text.charAt( i ) == ']' ? i
+                                                                     : -1;
+    }
+
+    /**
+     * @return <code>chunk</code> of SMILES, one molecule per line, with the
+     *         name of every molecule marked, counting from
+     *         <code>first</code>. Molecules without a name get the mark as
+     *         their name.
+     */
+    static String tagSmiles( long first, String chunk ) {
+        StringBuilder tagged = new StringBuilder( chunk.length() + 64 );
+        long position = first;
+        int start = 0;
+        while ( start < chunk.length() ) {
+            int end = chunk.indexOf( '\n', start );
+            if ( end < 0 )
+                end = chunk.length();
+            String line = chunk.substring( start, end ).trim();
+            start = end + 1;
+            if ( line.length() == 0 )
+                continue;
+            int space = 0;
+            while ( space < line.length()
+                    && !Character.isWhitespace( line.charAt( space ) ) )
+                space++;
+            String name = line.substring( space ).trim();
+            tagged.append( line.substring( 0, space ) ).append( ' ' )
+                  .append( tag( position++, name ) ).append( '\n' );
+        }
+        return tagged.toString();
+    }
+
+    /**
+     * @return the position a line of SMILES from
+     *         {@link #tagSmiles(long, String)} is marked with, -1 if it is
+     *         not
+     */
+    static long smilesPosition( String line ) {
+        int space = line.indexOf( ' ' );
+        return space < 0 ? -1 : position( line.substring( space + 1 ) );
+    }
+
+    /**
+     * @return a line of SMILES from {@link #tagSmiles(long, String)}
+     *         without its mark
+     */
+    static String untagSmiles( String line ) {
+        int space = line.indexOf( ' ' );
+        if ( space < 0 )
+            return line;
+        return (line.substring( 0, space + 1 )
+                + untag( line.substring( space + 1 ) )).trim();
+    }
+
+    /**
+     * Writes molecules with their titles marked, counting them.
+     */
+    abstract static class Feed implements NamedPipes.Feed {
+
+        private volatile long molecules;
+
+        /**
+         * @return <code>record</code> with its title marked with the
+         *         position of the next molecule
+         */
+        String tag( String record ) {
+            return PositionTags.tag( ++molecules, record );
+        }
+
+        /**
+         * @return number of molecules written so far
+         */
+        long getMolecules() {
+            return molecules;
+        }
+    }
+
+    /**
+     * @return writes the records of an SD file, gzipped or not, with their
+     *         titles marked
+     */
+    static Feed tagging( final File sdf ) {
+        return new Feed() {
+            public void writeTo( OutputStream out ) throws IOException {
+                SDFRecordReader reader = new SDFRecordReader(
+                                             Compression.open( sdf ) );
+                try {
+                    SDFRecordReader.SDFRecord record;
+                    while ( (record = reader.next()) != null )
+                        out.write( tag( record.text ).getBytes(
+                                       SDFRecordReader.CHARSET ) );
+                } finally {
+                    reader.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Takes the marks off the titles of the records in Balloon output and
+     * counts the records of every molecule.
+     *
+     * @param in SD file of marked records
+     * @param out file to write the records to without the marks
+     * @return the records written for every position, to index
+     *         <code>out</code> by, or <code>null</code> if a record was
+     *         not marked or out of order so that the molecules can not be
+     *         told apart
+     */
+    static OutputIndex.Builder untag( File in, File out ) throws IOException {
+        InputStream is = new FileInputStream( in );
+        try {
+            OutputStream os = new BufferedOutputStream(
+                                  new FileOutputStream( out ), 1 << 16 );
+            try {
+                return untag( is, os );
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * As {@link #untag(File, File)}, for streams that are left open.
+     */
+    static OutputIndex.Builder untag( InputStream in, OutputStream out )
+                               throws IOException {
+        SDFRecordReader reader = new SDFRecordReader( in );
+        OutputIndex.Builder index = new OutputIndex.Builder();
+        boolean ordered = true;
+        long position = 0;
+        int records = 0;
+        SDFRecordReader.SDFRecord record;
+        while ( (record = reader.next()) != null ) {
+            long p = position( record.text );
+            if ( p != position ) {
+                if ( records > 0 )
+                    index.add( position, records );
+                ordered &= p > position;
+                position = p;
+                records = 0;
+            }
+            records++;
+            out.write( untag( record.text ).getBytes(
+                           SDFRecordReader.CHARSET ) );
+        }
+        if ( records > 0 )
+            index.add( position, records );
+        return ordered ? index : null;
+    }
+}
@@ -0,0 +1,227 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * Finds molecules Balloon can never handle before a process is started
+ * for them: atoms without MMFF94 parameters, disconnected mixtures and
+ * molecules too large to finish within the timeout. Counter-ions and
+ * other fragments can be stripped instead of rejecting the molecule.
+ * <p>
+ * Only the connection table is looked at, so a check costs next to
+ * nothing compared to a Balloon run.
+ */
+class PreflightFilter {
+
+    /**
+     * What to do with molecules of more than one fragment.
+     */
+    enum Fragments {
+        /** Reject the molecule as a mixture */
+        KEEP( "keep" ),
+        /** Remove small counter-ions, reject if more than one fragment stays */
+        STRIP_SALTS( "strip" ),
+        /** Keep only the fragment with the most heavy atoms */
+        LARGEST( "largest" );
+
+        private final String preference;
+
+        private Fragments( String preference ) {
+            this.preference = preference;
+        }
+
+        String getPreference() {
+            return preference;
+        }
+
+        /**
+         * @return the handling for a preference value, the default
+         *         {@link #STRIP_SALTS} for values not known
+         */
+        static Fragments fromPreference( String value ) {
+            for ( Fragments fragments : values() ) {
+                if ( fragments.preference.equals( value ) )
+                    return fragments;
+            }
+            return STRIP_SALTS;
+        }
+    }
+
+    /**
+     * Elements with MMFF94 parameters for covalently bound atoms. The ions
+     * MMFF94 knows only occur as fragments of their own.
+     */
+    static final Set<String> MMFF94_ELEMENTS = new HashSet<String>(
+        Arrays.asList( "H", "C", "N", "O", "F", "Si", "P", "S", "Cl", "Br",
+                       "I" ) );
+
+    /**
+     * The most heavy atoms of a fragment stripped as a salt, enough for
+     * the common counter-ions up to citrate. A salt also has at most half
+     * the heavy atoms of the fragment that is kept.
+     */
+    static final int MAX_SALT_HEAVY_ATOMS = 13;
+
+    private final int maxHeavyAtoms;
+    private final Fragments fragments;
+
+    /**
+     * @param maxHeavyAtoms the most heavy atoms a molecule may have, 0 for
+     *                      no limit
+     * @param fragments what to do with disconnected molecules
+     */
+    PreflightFilter( int maxHeavyAtoms, Fragments fragments ) {
+        this.maxHeavyAtoms = Math.max( 0, maxHeavyAtoms );
+        this.fragments = fragments;
+    }
+
+    int getMaxHeavyAtoms() {
+        return maxHeavyAtoms;
+    }
+
+    Fragments getFragments() {
+        return fragments;
+    }
+
+    /**
+     * @return <code>molecule</code> itself or, if fragments were removed,
+     *         a copy holding what is left of it
+     * @throws BalloonException of class
+     *         {@link BalloonException.FailureClass#REJECTED} telling why
+     *         Balloon should not be run for the molecule
+     */
+    IAtomContainer check( IAtomContainer molecule ) throws BalloonException {
+        if ( molecule.getAtomCount() == 0 )
+            throw reject( "has no atoms" );
+
+        int[] fragmentOf = partition( molecule );
+        int count = 0;
+        for ( int f : fragmentOf )
+            count = Math.max( count, f + 1 );
+        IAtomContainer result = molecule;
+        if ( count > 1 )
+            result = keep( molecule, fragmentOf,
+                           chooseFragment( molecule, fragmentOf, count ) );
+
+        int heavyAtoms = 0;
+        for ( int i = 0; i < result.getAtomCount(); i++ ) {
+            IAtom atom = result.getAtom( i );
+            String symbol = atom.getSymbol();
+            if ( symbol == null || !MMFF94_ELEMENTS.contains( symbol ) )
+                throw reject( "contains " + symbol
+                              + " which has no MMFF94 parameters" );
+            if ( !"H".equals( symbol ) )
+                heavyAtoms++;
+        }
+        if ( maxHeavyAtoms > 0 && heavyAtoms > maxHeavyAtoms )
+            throw reject( "has " + heavyAtoms + " heavy atoms, more than "
+                          + "the limit of " + maxHeavyAtoms );
+        return result;
+    }
+
+    /**
+     * @return the fragment to keep of a disconnected molecule
+     */
+    private int chooseFragment( IAtomContainer molecule, int[] fragmentOf,
+                                int count ) throws BalloonException {
+        if ( fragments == Fragments.KEEP )
+            throw reject( "is a mixture of " + count + " fragments" );
+
+        int[] heavyAtoms = new int[count];
+        for ( int i = 0; i < fragmentOf.length; i++ ) {
+            if ( !"H".equals( molecule.getAtom( i ).getSymbol() ) )
+                heavyAtoms[fragmentOf[i]]++;
+        }
+        int largest = 0;
+        for ( int f = 1; f < count; f++ ) {
+            if ( heavyAtoms[f] > heavyAtoms[largest] )
+                largest = f;
+        }
+        if ( fragments == Fragments.STRIP_SALTS ) {
+            for ( int f = 0; f < count; f++ ) {
+                if ( f != largest
+                     && ( heavyAtoms[f] > MAX_SALT_HEAVY_ATOMS
+                          || 2 * heavyAtoms[f] > heavyAtoms[largest] ) )
+                    throw reject( "is a mixture of " + count + " fragments "
+                                  + "that are not salts" );
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * @return for every atom the number of the fragment it belongs to,
+     *         numbered from 0 in order of first atom
+     */
+    static int[] partition( IAtomContainer molecule ) {
+        int atoms = molecule.getAtomCount();
+        int[] parent = new int[atoms];
+        for ( int i = 0; i < atoms; i++ )
+            parent[i] = i;
+        for ( int b = 0; b < molecule.getBondCount(); b++ ) {
+            IBond bond = molecule.getBond( b );
+            int root = find( parent, molecule.getAtomNumber( bond.getAtom( 0 ) ) );
+            for ( int a = 1; a < bond.getAtomCount(); a++ ) {
+                int other = find( parent,
+                                  molecule.getAtomNumber( bond.getAtom( a ) ) );
+                if ( other != root ) {
+                    parent[Math.max( root, other )] = Math.min( root, other );
+                    root = Math.min( root, other );
+                }
+            }
+        }
+        int[] fragmentOf = new int[atoms];
+        int count = 0;
+        for ( int i = 0; i < atoms; i++ ) {
+            int root = find( parent, i );
+            fragmentOf[i] = root == i ? count++ : fragmentOf[root];
+        }
+        return fragmentOf;
+    }
+
+    private static int find( int[] parent, int i ) {
+        while ( parent[i] != i ) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static IAtomContainer keep( IAtomContainer molecule,
+                                        int[] fragmentOf, int fragment )
+                                        throws BalloonException {
+        IAtomContainer copy;
+        try {
+            copy = (IAtomContainer) molecule.clone();
+        } catch ( CloneNotSupportedException e ) {
+            throw new BalloonException( BalloonException.FailureClass.REJECTED,
+                                        "Could not remove fragments: "
+                                        + e.getMessage(), e );
+        }
+        for ( int i = fragmentOf.length - 1; i >= 0; i-- ) {
+            if ( fragmentOf[i] != fragment )
+                copy.removeAtomAndConnectedElectronContainers(
+                                                          copy.getAtom( i ) );
+        }
+        return copy;
+    }
+
+    private static BalloonException reject( String reason ) {
+        return new BalloonException( BalloonException.FailureClass.REJECTED,
+                                     "Molecule " + reason );
+    }
+
+}
@@ -0,0 +1,237 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers structures that made Balloon time out, hit a resource limit
+ * or crash, so that later runs can skip them instead of paying the full
+ * timeout again. Structures are keyed by canonical SMILES.
+ * <p>
+ * An entry only counts for the Balloon version and run parameters it was
+ * recorded with, when either changes the entry is dropped. Stored as
+ * <code>quarantine.txt</code> in the state location of the bundle with
+ * one tab separated line per structure: failure class, count, Balloon
+ * version, parameters and SMILES.
+ */
+class Quarantine {
+
+    private static final Logger logger = Logger.getLogger( Quarantine.class );
+
+    static final String FILE_NAME = "quarantine.txt";
+
+    /** Failures before a structure is skipped */
+    static final int THRESHOLD = 2;
+
+    private static final String HEADER = "# Balloon quarantine";
+
+    private static Quarantine instance;
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean changed = false;
+
+    Quarantine( File file ) {
+        this.file = file;
+    }
+
+    /**
+     * @return the quarantine in the state location of the bundle, read
+     *         from disk the first time
+     */
+    static synchronized Quarantine getDefault() {
+        if ( instance == null ) {
+            instance = new Quarantine( Activator.getDefault().getStateLocation()
+                                                .append( FILE_NAME ).toFile() );
+            try {
+                instance.read();
+            } catch ( IOException e ) {
+                logger.warn( "Starting with an empty Balloon quarantine: "
+                             + e.getMessage() );
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return whether a failure of this class says something about the
+     *         molecule rather than about the installation or the run
+     */
+    static boolean counts( BalloonException.FailureClass failureClass ) {
+        switch ( failureClass ) {
+            case FAILED:
+            case TIMEOUT:
+            case CPU_LIMIT:
+            case MEMORY_LIMIT:
+            case OUTPUT_LIMIT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the entry for <code>smiles</code> if it is quarantined for
+     *         this Balloon version and these parameters, otherwise
+     *         <code>null</code>
+     */
+    synchronized Entry lookup( String smiles, String version,
+                               String parameters ) {
+        Entry entry = current( smiles, version, parameters );
+        return entry != null && entry.count >= THRESHOLD ? entry : null;
+    }
+
+    /**
+     * Counts a failed run of <code>smiles</code>. Failures that are not
+     * the molecule's fault are ignored.
+     */
+    synchronized void recordFailure( String smiles,
+                                     BalloonException.FailureClass failureClass,
+                                     String version, String parameters ) {
+        if ( !counts( failureClass ) )
+            return;
+        Entry entry = current( smiles, version, parameters );
+        int count = entry == null ? 1 : entry.count + 1;
+        entries.put( smiles, new Entry( smiles, failureClass, count, version,
+                                        parameters ) );
+        changed = true;
+        if ( count == THRESHOLD )
+            logger.info( "Quarantined after " + count + " failures ("
+                         + failureClass + "): " + smiles );
+    }
+
+    /**
+     * Forgets earlier failures of <code>smiles</code> after a run that
+     * worked.
+     */
+    synchronized void recordSuccess( String smiles ) {
+        if ( entries.remove( smiles ) != null )
+            changed = true;
+    }
+
+    synchronized void clear() {
+        if ( !entries.isEmpty() )
+            changed = true;
+        entries.clear();
+    }
+
+    /**
+     * @return number of structures quarantined or on their way to be
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the entry if it was recorded with this version and these
+     *         parameters, a stale entry is dropped
+     */
+    private Entry current( String smiles, String version,
+                           String parameters ) {
+        Entry entry = entries.get( smiles );
+        if ( entry != null && ( !entry.version.equals( version )
+                                || !entry.parameters.equals( parameters ) ) ) {
+            entries.remove( smiles );
+            changed = true;
+            entry = null;
+        }
+        return entry;
+    }
+
+    synchronized void read() throws IOException {
+        entries.clear();
+        if ( !file.exists() )
+            return;
+        BufferedReader reader = new BufferedReader(
+                           new InputStreamReader( new FileInputStream( file ),
+                                                  "UTF-8" ) );
+        try {
+            String line = reader.readLine();
+            if ( line == null || !line.equals( HEADER ) )
+                throw new IOException( "Not a Balloon quarantine: " + file );
+            while ( (line = reader.readLine()) != null ) {
+                String[] fields = line.split( "\t", 5 );
+                if ( fields.length != 5 )
+                    throw new IOException( "Malformed quarantine line: "
+                                           + line );
+                entries.put( fields[4], new Entry(
+                                 fields[4],
+                                 BalloonException.FailureClass.valueOf( fields[0] ),
+                                 Integer.parseInt( fields[1] ),
+                                 fields[2], fields[3] ) );
+            }
+        } catch ( IllegalArgumentException e ) {
+            throw new IOException( "Malformed quarantine " + file + ": "
+                                   + e.getMessage() );
+        } finally {
+            reader.close();
+        }
+        changed = false;
+    }
+
+    /**
+     * Writes the quarantine if anything changed since it was read, through
+     * a temporary file so that a crash leaves the old one in place.
+     */
+    synchronized void save() throws IOException {
+        if ( !changed )
+            return;
+        File temp = new File( file.getPath() + ".tmp" );
+        BufferedWriter writer = new BufferedWriter(
+                           new OutputStreamWriter( new FileOutputStream( temp ),
+                                                   "UTF-8" ) );
+        try {
+            writer.write( HEADER );
+            writer.newLine();
+            for ( Entry e : entries.values() ) {
+                writer.write( e.failureClass + "\t" + e.count + "\t"
+                              + e.version + "\t" + e.parameters + "\t"
+                              + e.smiles );
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        if ( !temp.renameTo( file ) ) {
+            file.delete();
+            if ( !temp.renameTo( file ) )
+                throw new IOException( "Could not replace " + file );
+        }
+        changed = false;
+    }
+
+    static class Entry {
+
+        final String                        smiles;
+        final BalloonException.FailureClass failureClass;
+        final int                           count;
+        final String                        version;
+        final String                        parameters;
+
+        Entry( String smiles, BalloonException.FailureClass failureClass,
+               int count, String version, String parameters ) {
+            this.smiles = smiles;
+            this.failureClass = failureClass;
+            this.count = count;
+            this.version = version;
+            this.parameters = parameters;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which input records went into a Balloon output file and where
+ * their results ended up. Stored next to the output file as
+ * <code>&lt;output&gt;.manifest</code> with one line per input record:
+ * the SHA-1 of the record, and the byte offset and length of its
+ * conformers in the output file. Records that failed have offset -1. The
+ * length and SHA-1 of the output file itself are stored too, so that the
+ * offsets are never used on an output file written or changed since.
+ */
+class RunManifest {
+
+    static final String SUFFIX = ".manifest";
+
+    private static final String HEADER = "# Balloon run manifest";
+    private static final String NUM_CONF = "numConformations=";
+    private static final String OUTPUT = "output=";
+
+    private final int numConformations;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Map<String, Entry> byHash = new HashMap<String, Entry>();
+    /** Length of the output file, -1 if not known */
+    private long   outputLength = -1;
+    /** SHA-1 of the output file, <code>null</code> if not known */
+    private String outputHash;
+
+    RunManifest( int numConformations ) {
+        this.numConformations = numConformations;
+    }
+
+    static File manifestFor( String outputFile ) {
+        return new File( outputFile + SUFFIX );
+    }
+
+    int getNumConformations() {
+        return numConformations;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    void add( Entry entry ) {
+        entries.add( entry );
+        if ( entry.succeeded() && !byHash.containsKey( entry.hash ) )
+            byHash.put( entry.hash, entry );
+    }
+
+    /**
+     * Sets the length and SHA-1 of the output file the entries are for.
+     */
+    void setOutput( long length, String hash ) {
+        outputLength = length;
+        outputHash = hash;
+    }
+
+    /**
+     * @return whether <code>output</code> is the file this manifest was
+     *         written with, byte for byte, so that its offsets can be used
+     */
+    boolean describes( File output ) throws IOException {
+        return outputHash != null
+               && output.length() == outputLength
+               && outputHash.equals( hash( output ) );
+    }
+
+    /**
+     * @return the earlier successful result for a record with this hash or
+     *         <code>null</code> if it has to be recomputed
+     */
+    Entry lookup( String hash ) {
+        return byHash.get( hash );
+    }
+
+    /**
+     * Reads a manifest, returns <code>null</code> if there is none.
+     */
+    static RunManifest read( File file ) throws IOException {
+        if ( !file.exists() )
+            return null;
+        BufferedReader reader = new BufferedReader(
+                           new InputStreamReader( new FileInputStream( file ),
+                                                  "UTF-8" ) );
+        try {
+            String line = reader.readLine();
+            if ( line == null || !line.equals( HEADER ) )
+                throw new IOException( "Not a Balloon run manifest: " + file );
+            line = reader.readLine();
+            if ( line == null || !line.startsWith( NUM_CONF ) )
+                throw new IOException( "Missing " + NUM_CONF + " in " + file );
+            RunManifest manifest = new RunManifest(
+                  Integer.parseInt( line.substring( NUM_CONF.length() ) ) );
+            line = reader.readLine();
+            // Missing in manifests of older versions, which then describe
+            // no output file
+            if ( line != null && line.startsWith( OUTPUT ) ) {
+                String[] output = line.substring( OUTPUT.length() )
+                                      .split( "\t" );
+                if ( output.length != 2 )
+                    throw new IOException( "Malformed manifest line: "
+                                           + line );
+                manifest.setOutput( Long.parseLong( output[0] ), output[1] );
+                line = reader.readLine();
+            }
+            for ( ; line != null; line = reader.readLine() ) {
+                String[] fields = line.split( "\t" );
+                if ( fields.length != 3 )
+                    throw new IOException( "Malformed manifest line: " + line );
+                manifest.add( new Entry( fields[0],
+                                         Long.parseLong( fields[1] ),
+                                         Long.parseLong( fields[2] ) ) );
+            }
+            return manifest;
+        } catch ( NumberFormatException e ) {
+            throw new IOException( "Malformed manifest " + file + ": "
+                                   + e.getMessage() );
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the manifest to a <code>.part</code> file first and renames it,
+     * so that <code>file</code> is never left half written.
+     */
+    void write( File file ) throws IOException {
+        File partial = new File( file.getPath() + ".part" );
+        BufferedWriter writer = new BufferedWriter(
+                           new OutputStreamWriter(
+                               new FileOutputStream( partial ), "UTF-8" ) );
+        try {
+            writer.write( HEADER );
+            writer.newLine();
+            writer.write( NUM_CONF + numConformations );
+            writer.newLine();
+            if ( outputHash != null ) {
+                writer.write( OUTPUT + outputLength + "\t" + outputHash );
+                writer.newLine();
+            }
+            for ( Entry e : entries ) {
+                writer.write( e.hash + "\t" + e.offset + "\t" + e.length );
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+        if ( (file.exists() && !file.delete()) || !partial.renameTo( file ) ) {
+            partial.delete();
+            throw new IOException( "Could not rename " + partial + " to "
+                                   + file );
+        }
+    }
+
+    /**
+     * @return hex encoded SHA-1 of the record with normalised line endings
+     */
+    static String hash( SDFRecordReader.SDFRecord record ) {
+        return hex( digest().digest( record.normalizedText()
+                        .getBytes( SDFRecordReader.CHARSET ) ) );
+    }
+
+    /**
+     * @return hex encoded SHA-1 of the contents of a file
+     */
+    static String hash( File file ) throws IOException {
+        MessageDigest digest = digest();
+        InputStream in = new FileInputStream( file );
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ( (n = in.read( buffer )) != -1 )
+                digest.update( buffer, 0, n );
+        } finally {
+            in.close();
+        }
+        return hex( digest.digest() );
+    }
+
+    /**
+     * @return a new SHA-1 digest, as used for records and output files
+     */
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance( "SHA-1" );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    static String hex( byte[] bytes ) {
+        StringBuilder hex = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+            hex.append( String.format( "%02x", b & 0xff ) );
+        return hex.toString();
+    }
+
+    static class Entry {
+
+        final String hash;
+        final long   offset;
+        final long   length;
+
+        Entry( String hash, long offset, long length ) {
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        static Entry failed( String hash ) {
+            return new Entry( hash, -1, 0 );
+        }
+
+        boolean succeeded() {
+            return offset >= 0;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.bioclipse.cdk.business.ICDKManager;
+import net.bioclipse.cdk.domain.ICDKMolecule;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.openscience.cdk.io.formats.IChemFormat;
+import org.openscience.cdk.io.formats.SDFFormat;
+
+/**
+ * Reads an SD file one record at a time without parsing it. Each record
+ * is returned with its byte offset and length in the underlying stream so
+ * that it can later be copied or looked up without scanning the file again.
+ * <p>
+ * Text is decoded as ISO-8859-1, which maps every byte to one char, so the
+ * length of a record string is also its length in bytes and writing it back
+ * with the same charset reproduces the input exactly.
+ */
+class SDFRecordReader {
+
+    static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    private static final String RECORD_END = "$$$$";
+
+    private final InputStream in;
+    private long offset = 0;
+    private boolean eof = false;
+
+    SDFRecordReader( InputStream in ) {
+        this.in = new BufferedInputStream( in, 1 << 16 );
+    }
+
+    /**
+     * @return the next record including its terminating <code>$$$$</code>
+     *         line, or <code>null</code> when the stream is exhausted
+     * @throws IOException
+     */
+    SDFRecord next() throws IOException {
+        if ( eof )
+            return null;
+        long start = offset;
+        StringBuilder record = new StringBuilder();
+        StringBuilder line = new StringBuilder();
+        while ( readLine( line ) ) {
+            record.append( line );
+            if ( isRecordEnd( line ) )
+                return new SDFRecord( record.toString(), start );
+            line.setLength( 0 );
+        }
+        eof = true;
+        // A trailing record without $$$$, e.g. a plain molfile
+        if ( record.toString().trim().length() == 0 )
+            return null;
+        return new SDFRecord( record.toString(), start );
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @return number of records in <code>in</code>, which is closed
+     */
+    static int count( InputStream in ) throws IOException {
+        SDFRecordReader reader = new SDFRecordReader( in );
+        try {
+            int records = 0;
+            while ( reader.next() != null )
+                records++;
+            return records;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The molecules of the records parsed one at a time, for streams CDK
+     * can not iterate itself. A record that can not be parsed throws an
+     * {@link IllegalStateException} from <code>next()</code>, after which
+     * the others can still be read. The stream is closed when the last
+     * molecule has been got.
+     *
+     * @param cdk parses every record
+     */
+    Iterator<ICDKMolecule> molecules( final ICDKManager cdk ) {
+        return new Iterator<ICDKMolecule>() {
+            private SDFRecord   record;
+            private IOException error;
+            private boolean     done;
+            private int         read;
+
+            public boolean hasNext() {
+                if ( record == null && error == null && !done ) {
+                    try {
+                        record = SDFRecordReader.this.next();
+                    } catch ( IOException e ) {
+                        error = e;
+                    }
+                    if ( record == null )
+                        finish();
+                }
+                return record != null || error != null;
+            }
+
+            public ICDKMolecule next() {
+                if ( !hasNext() )
+                    throw new NoSuchElementException();
+                if ( error != null ) {
+                    IOException e = error;
+                    error = null;
+                    throw new IllegalStateException( e.getMessage(), e );
+                }
+                SDFRecord current = record;
+                record = null;
+                read++;
+                List<ICDKMolecule> parsed;
+                try {
+                    parsed = cdk.loadMolecules(
+                                 new ByteArrayInputStream(
+                                     current.text.getBytes( CHARSET ) ),
+                                 (IChemFormat) SDFFormat.getInstance(),
+                                 new NullProgressMonitor() );
+                } catch ( Exception e ) {
+                    throw new IllegalStateException( "Could not parse record "
+                                                     + read + ": "
+                                                     + e.getMessage(), e );
+                }
+                if ( parsed.isEmpty() )
+                    throw new IllegalStateException( "No molecule in record "
+                                                     + read );
+                return parsed.get( 0 );
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private void finish() {
+                done = true;
+                try {
+                    close();
+                } catch ( IOException e ) {
+                    // Nothing more is read
+                }
+            }
+        };
+    }
+
+    private static boolean isRecordEnd( CharSequence line ) {
+        int end = line.length();
+        while ( end > 0 && Character.isWhitespace( line.charAt( end - 1 ) ) )
+            end--;
+        return end == RECORD_END.length()
+               && line.subSequence( 0, end ).toString().equals( RECORD_END );
+    }
+
+    /**
+     * Reads one line including its line terminator into <code>line</code>.
+     * @return false if nothing could be read
+     */
+    private boolean readLine( StringBuilder line ) throws IOException {
+        int b;
+        boolean read = false;
+        while ( (b = in.read()) != -1 ) {
+            read = true;
+            offset++;
+            line.append( (char) b );
+            if ( b == '\n' )
+                break;
+        }
+        return read;
+    }
+
+    /**
+     * One record of an SD file together with its position in the file.
+     */
+    static class SDFRecord {
+
+        final String text;
+        final long   offset;
+
+        SDFRecord( String text, long offset ) {
+            this.text = text;
+            this.offset = offset;
+        }
+
+        int length() {
+            return text.length();
+        }
+
+        /**
+         * @return the record with line endings normalised, suitable for
+         *         comparing content between files
+         */
+        String normalizedText() {
+            return text.replace( "\r", "" );
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.bioclipse.balloon.runner.NamedPipes;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Working space for the temporary files Balloon reads and writes. Every
+ * run gets its own job directory below a common root which is placed on
+ * <code>/dev/shm</code> when that is available, otherwise in
+ * <code>java.io.tmpdir</code>. Files that may be as large as a whole
+ * input library go to a second space that is always on disk.
+ * <p>
+ * Files are deleted as soon as they have been consumed and the total size
+ * of the files alive is kept below a quota by making writers wait. A job
+ * directory is locked while its job runs so that directories left behind
+ * by a crashed Bioclipse can be recognised and removed on the next start.
+ * <p>
+ * Writers run on virtual threads, so waiting for space uses a lock rather
+ * than a monitor to not pin their carrier threads.
+ */
+class ScratchSpace {
+
+    private static final Logger logger = Logger.getLogger( ScratchSpace.class );
+
+    private static final String SHM = "/dev/shm";
+    private static final String LOCK = ".lock";
+    private static final String JOB_PREFIX = "job-";
+
+    /** How long a writer waits for space before giving up */
+    private static final long QUOTA_WAIT_MS = 10 * 60 * 1000;
+
+    private static ScratchSpace instance;
+    private static ScratchSpace disk;
+
+    private final File root;
+    private final ReentrantLock quotaLock = new ReentrantLock();
+    private final Condition spaceFreed = quotaLock.newCondition();
+    private long quota;
+    private long used = 0;
+    private int jobCount = 0;
+
+    ScratchSpace( File root, long quota ) {
+        this.root = root;
+        this.quota = quota;
+    }
+
+    static synchronized ScratchSpace getDefault() {
+        if ( instance == null ) {
+            File shm = new File( SHM );
+            File base = shm.isDirectory() && shm.canWrite()
+                        ? shm
+                        : new File( System.getProperty( "java.io.tmpdir" ) );
+            instance = new ScratchSpace( new File( base, rootName() ),
+                                         readQuota() );
+            logger.debug( "Balloon scratch space in " + instance.root );
+        }
+        return instance;
+    }
+
+    /**
+     * @return the scratch space in <code>java.io.tmpdir</code>, which is
+     *         the default one unless that is on <code>/dev/shm</code>
+     */
+    static synchronized ScratchSpace getDisk() {
+        if ( disk == null ) {
+            File root = new File( System.getProperty( "java.io.tmpdir" ),
+                                  rootName() );
+            disk = root.equals( getDefault().root )
+                   ? instance
+                   : new ScratchSpace( root, readQuota() );
+        }
+        return disk;
+    }
+
+    private static String rootName() {
+        return "bioclipse-balloon-" + System.getProperty( "user.name" );
+    }
+
+    private static long readQuota() {
+        int mb = 0;
+        if ( Activator.getDefault() != null )
+            mb = Activator.getDefault().getPreferenceStore()
+                          .getInt( Activator.BALLOON_SCRATCH_QUOTA );
+        if ( mb <= 0 )
+            mb = Activator.DEFAULT_BALLOON_SCRATCH_QUOTA;
+        return mb * 1024L * 1024L;
+    }
+
+    File getRoot() {
+        return root;
+    }
+
+    void setQuota( long bytes ) {
+        quotaLock.lock();
+        try {
+            quota = bytes;
+            spaceFreed.signalAll();
+        } finally {
+            quotaLock.unlock();
+        }
+    }
+
+    /**
+     * Removes job directories whose owning process is gone.
+     */
+    void cleanStale() {
+        File[] dirs = root.listFiles();
+        if ( dirs == null )
+            return;
+        for ( File dir : dirs ) {
+            if ( !dir.isDirectory() || !dir.getName().startsWith( JOB_PREFIX ) )
+                continue;
+            if ( isStale( dir ) ) {
+                logger.info( "Removing stale Balloon scratch directory " + dir );
+                delete( dir );
+            }
+        }
+    }
+
+    private boolean isStale( File dir ) {
+        File lockFile = new File( dir, LOCK );
+        if ( !lockFile.exists() )
+            return true;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile( lockFile, "rw" );
+            FileLock lock = raf.getChannel().tryLock();
+            if ( lock == null )
+                return false;
+            lock.release();
+            return true;
+        } catch ( OverlappingFileLockException e ) {
+            // Held by a job in this JVM
+            return false;
+        } catch ( IOException e ) {
+            return false;
+        } finally {
+            if ( raf != null ) {
+                try {
+                    raf.close();
+                } catch ( IOException e ) {
+                    logger.debug( e.getMessage() );
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new job directory, close the job to remove it.
+     */
+    Job newJob() throws IOException {
+        if ( this == instance || this == disk )
+            setQuota( readQuota() );
+        File dir;
+        synchronized ( this ) {
+            if ( !root.isDirectory() && !root.mkdirs() )
+                throw new IOException( "Could not create scratch directory "
+                                       + root );
+            do {
+                dir = new File( root, JOB_PREFIX + System.currentTimeMillis()
+                                      + "-" + (++jobCount) );
+            } while ( dir.exists() );
+            if ( !dir.mkdir() )
+                throw new IOException( "Could not create scratch directory "
+                                       + dir );
+        }
+        return new Job( dir );
+    }
+
+    private void reserve( long bytes ) throws IOException {
+        reserve( bytes, 0 );
+    }
+
+    /**
+     * @param held bytes of the same file reserved before
+     */
+    private void reserve( long bytes, long held ) throws IOException {
+        long deadline = System.currentTimeMillis() + QUOTA_WAIT_MS;
+        quotaLock.lock();
+        try {
+            // A single file larger than the quota is let through when
+            // nothing else is using space, otherwise it would wait forever
+            while ( used > held && used + bytes > quota ) {
+                long left = deadline - System.currentTimeMillis();
+                if ( left <= 0 )
+                    throw new IOException( "Balloon scratch quota of "
+                                           + quota / (1024 * 1024)
+                                           + " MB exceeded" );
+                try {
+                    spaceFreed.await( left, TimeUnit.MILLISECONDS );
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException( "Interrupted while waiting for "
+                                           + "scratch space" );
+                }
+            }
+            used += bytes;
+        } finally {
+            quotaLock.unlock();
+        }
+    }
+
+    private void free( long bytes ) {
+        quotaLock.lock();
+        try {
+            used -= bytes;
+            if ( used < 0 )
+                used = 0;
+            spaceFreed.signalAll();
+        } finally {
+            quotaLock.unlock();
+        }
+    }
+
+    long getUsed() {
+        quotaLock.lock();
+        try {
+            return used;
+        } finally {
+            quotaLock.unlock();
+        }
+    }
+
+    private static void delete( File file ) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for ( File child : children )
+                delete( child );
+        }
+        if ( !file.delete() && file.exists() )
+            logger.warn( "Could not delete " + file );
+    }
+
+    /**
+     * A working directory for one run. All files created through it count
+     * against the quota until they are released.
+     */
+    class Job {
+
+        private final File dir;
+        private final RandomAccessFile lockFile;
+        private final FileLock lock;
+        private final Map<File, Long> sizes = new HashMap<File, Long>();
+
+        private Job( File dir ) throws IOException {
+            this.dir = dir;
+            this.lockFile = new RandomAccessFile( new File( dir, LOCK ), "rw" );
+            this.lock = lockFile.getChannel().lock();
+        }
+
+        File getDirectory() {
+            return dir;
+        }
+
+        /**
+         * Writes <code>content</code> to a new file in this job, waiting for
+         * space if the quota is used up.
+         */
+        File write( String prefix, String suffix, String content )
+             throws IOException {
+            byte[] bytes = content.getBytes( SDFRecordReader.CHARSET );
+            reserve( bytes.length );
+            File file;
+            try {
+                file = File.createTempFile( prefix, suffix, dir );
+                OutputStream os = new FileOutputStream( file );
+                try {
+                    os.write( bytes );
+                } finally {
+                    os.close();
+                }
+            } catch ( IOException e ) {
+                free( bytes.length );
+                throw e;
+            }
+            synchronized ( sizes ) {
+                sizes.put( file, Long.valueOf( bytes.length ) );
+            }
+            return file;
+        }
+
+        /**
+         * Writes what <code>content</code> writes to a new file in this
+         * job, for content that is made while it is written and need not
+         * fit in memory. Space is reserved as it is written, waiting when
+         * the quota is used up.
+         */
+        File write( String prefix, String suffix, NamedPipes.Feed content )
+             throws IOException {
+            File file = File.createTempFile( prefix, suffix, dir );
+            Reserving reserving = new Reserving( new FileOutputStream( file ) );
+            try {
+                OutputStream os = new BufferedOutputStream( reserving,
+                                                            1 << 16 );
+                try {
+                    content.writeTo( os );
+                } finally {
+                    os.close();
+                }
+            } catch ( IOException e ) {
+                file.delete();
+                free( reserving.written );
+                throw e;
+            }
+            synchronized ( sizes ) {
+                sizes.put( file, Long.valueOf( reserving.written ) );
+            }
+            return file;
+        }
+
+        /**
+         * Counts a file written by someone else, e.g. Balloon, against the
+         * quota.
+         */
+        void track( File file ) {
+            long length = file.length();
+            quotaLock.lock();
+            try {
+                used += length;
+            } finally {
+                quotaLock.unlock();
+            }
+            synchronized ( sizes ) {
+                sizes.put( file, Long.valueOf( length ) );
+            }
+        }
+
+        void track( String path ) {
+            track( new File( path ) );
+        }
+
+        /**
+         * Deletes a file that has been consumed and frees its space.
+         */
+        void release( File file ) {
+            Long size;
+            synchronized ( sizes ) {
+                size = sizes.remove( file );
+            }
+            if ( !file.delete() && file.exists() )
+                logger.warn( "Could not delete scratch file " + file );
+            if ( size != null )
+                free( size.longValue() );
+        }
+
+        void release( String path ) {
+            release( new File( path ) );
+        }
+
+        /**
+         * Reserves the bytes written to a stream before they are written.
+         */
+        private class Reserving extends FilterOutputStream {
+
+            long written = 0;
+
+            Reserving( OutputStream out ) {
+                super( out );
+            }
+
+            @Override
+            public void write( int b ) throws IOException {
+                write( new byte[] { (byte) b }, 0, 1 );
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len )
+                        throws IOException {
+                reserve( len, written );
+                written += len;
+                out.write( b, off, len );
+            }
+        }
+
+        /**
+         * Deletes the job directory with everything left in it.
+         */
+        void close() {
+            long total = 0;
+            synchronized ( sizes ) {
+                for ( Long size : sizes.values() )
+                    total += size.longValue();
+                sizes.clear();
+            }
+            free( total );
+            try {
+                lock.release();
+                lockFile.close();
+            } catch ( IOException e ) {
+                logger.debug( e.getMessage() );
+            }
+            delete( dir );
+        }
+    }
+}
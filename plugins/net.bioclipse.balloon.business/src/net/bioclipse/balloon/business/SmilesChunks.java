@@ -0,0 +1,175 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.business;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+/**
+ * Splits SMILES, one molecule per line, into chunks of lines for Balloon
+ * to read as they are. Every line is passed on unchanged, with the name
+ * after the SMILES if it has one, so Balloon writes the same titles. Blank
+ * lines are skipped. The chunks are returned in order, so the output of
+ * the chunks put together has the molecules in the order of the input.
+ */
+class SmilesChunks {
+
+    /** Most molecules in one chunk, about what one Balloon run does fast */
+    static final int MAX_LINES = 500;
+
+    /** Chunks per Balloon run at once, so slow chunks are evened out */
+    static final int CHUNKS_PER_RUN = 4;
+
+    /**
+     * Longest a chunk may run whatever its size, so that a molecule Balloon
+     * hangs on does not hold a whole chunk for hours before its molecules
+     * are run one by one
+     */
+    static final long MAX_TIMEOUT_MS = 2 * 60 * 60 * 1000L;
+
+    private final BufferedReader reader;
+    private final int            chunkLines;
+    /** Molecules returned so far */
+    private int                  read;
+    private int                  first;
+    private int                  size;
+    private int                  chunks;
+
+    /**
+     * @param reader SMILES, one molecule per line
+     * @param chunkLines number of molecules in every chunk but the last
+     */
+    SmilesChunks( BufferedReader reader, int chunkLines ) {
+        if ( chunkLines <= 0 )
+            throw new IllegalArgumentException( "Chunks must have lines, "
+                                                + "not " + chunkLines );
+        this.reader = reader;
+        this.chunkLines = chunkLines;
+    }
+
+    /**
+     * @param timeoutMs timeout for one molecule
+     * @param molecules number of molecules in the chunk
+     * @return timeout for the chunk, never less than for one molecule
+     */
+    static long timeoutMs( long timeoutMs, int molecules ) {
+        return Math.max( timeoutMs, Math.min( timeoutMs * molecules,
+                                              MAX_TIMEOUT_MS ) );
+    }
+
+    /**
+     * @param molecules number of molecules to split
+     * @param runs number of Balloon runs at once
+     * @return molecules per chunk to keep all runs busy
+     */
+    static int chunkLines( int molecules, int runs ) {
+        int chunks = Math.max( 1, runs ) * CHUNKS_PER_RUN;
+        int lines = (molecules + chunks - 1) / chunks;
+        return Math.max( 1, Math.min( MAX_LINES, lines ) );
+    }
+
+    /**
+     * @return number of molecules, that is lines that are not blank, in a
+     *         SMILES file
+     */
+    static int countMolecules( File smiles ) throws IOException {
+        BufferedReader reader = open( smiles );
+        try {
+            int molecules = 0;
+            String line;
+            while ( (line = reader.readLine()) != null )
+                if ( line.trim().length() > 0 )
+                    molecules++;
+            return molecules;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the lines of a SMILES file, decompressed if it is gzipped
+     */
+    static BufferedReader open( File smiles ) throws IOException {
+        return new BufferedReader(
+                   new InputStreamReader( Compression.open( smiles ),
+                                          SDFRecordReader.CHARSET ) );
+    }
+
+    /**
+     * @param smiles one molecule each, optionally followed by a name
+     * @return the molecules one per line
+     * @throws IllegalArgumentException if a SMILES is blank or has more
+     *                                  than one line
+     */
+    static String join( List<String> smiles ) {
+        StringBuilder lines = new StringBuilder();
+        for ( int i = 0; i < smiles.size(); i++ ) {
+            String s = smiles.get( i );
+            if ( s == null || s.trim().length() == 0 )
+                throw new IllegalArgumentException( "SMILES " + (i + 1)
+                                                    + " is empty" );
+            if ( s.indexOf( '\n' ) >= 0 || s.indexOf( '\r' ) >= 0 )
+                throw new IllegalArgumentException( "SMILES " + (i + 1)
+                                                    + " has a line break" );
+            lines.append( s.trim() ).append( '\n' );
+        }
+        return lines.toString();
+    }
+
+    /**
+     * @return the lines of the next chunk, <code>null</code> when all have
+     *         been returned
+     */
+    String next() throws IOException {
+        StringBuilder chunk = new StringBuilder();
+        int lines = 0;
+        String line;
+        while ( lines < chunkLines && (line = reader.readLine()) != null ) {
+            if ( line.trim().length() == 0 )
+                continue;
+            chunk.append( line ).append( '\n' );
+            lines++;
+        }
+        if ( lines == 0 )
+            return null;
+        first = read + 1;
+        size = lines;
+        read += lines;
+        chunks++;
+        return chunk.toString();
+    }
+
+    /**
+     * @return position of the first molecule of the chunk last returned,
+     *         counting from 1
+     */
+    int getFirst() {
+        return first;
+    }
+
+    /**
+     * @return number of molecules in the chunk last returned
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of chunks returned so far
+     */
+    int getChunks() {
+        return chunks;
+    }
+
+    void close() throws IOException {
+        reader.close();
+    }
+}
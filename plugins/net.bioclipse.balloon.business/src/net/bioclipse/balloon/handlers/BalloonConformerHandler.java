@@ -70,8 +70,14 @@ public class BalloonConformerHandler extends AbstractHandler{
         if (ret==Window.CANCEL) return null;
         
         final int numconf=dlg.getNumConformers();
+        final boolean adaptive=dlg.isAdaptive();
+        final int minconf=dlg.getMinConformers();
+        final int maxconf=dlg.getMaxConformers();
         
-        logger.debug("User selected: " + numconf + " confomers.");
+        if (adaptive)
+            logger.debug("User selected: " + minconf + "-" + maxconf + " confomers by flexibility.");
+        else
+            logger.debug("User selected: " + numconf + " confomers.");
         
         final List<String> final_fnames = filenames;
         final List<IResource> final_foldersToRefresh = foldersToRefresh;
@@ -80,14 +86,18 @@ public class BalloonConformerHandler extends AbstractHandler{
         Job job = new Job("Ballon 3D conformer generation") {
             protected IStatus run(IProgressMonitor monitor) {
 
-                monitor.beginTask( "Running Balloon 3D conformer generation: " + numconf + " conformers for " + final_fnames + " files", 2 );
+                String conformers = adaptive ? minconf + "-" + maxconf : Integer.toString( numconf );
+                monitor.beginTask( "Running Balloon 3D conformer generation: " + conformers + " conformers for " + final_fnames + " files", 2 );
                 monitor.worked( 1 );
 
                 //Run balloon on the files
                 IBalloonManager balloon = Activator.getDefault().getJavaBalloonManager();
                 List<String> ret=null;
                 try {
-                    ret = balloon.generate3Dconformations( final_fnames, numconf);
+                    if (adaptive)
+                        ret = balloon.generate3Dconformations( final_fnames, minconf, maxconf );
+                    else
+                        ret = balloon.generate3Dconformations( final_fnames, numconf);
                 } catch ( BioclipseException e ) {
                     logger.error("Balloon failed: " + e.getMessage());
                     return new Status(IStatus.ERROR,Activator.PLUGIN_ID,"Balloon failed: " + e.getMessage());
@@ -11,9 +11,13 @@
 package net.bioclipse.balloon.ui;
 
 import net.bioclipse.balloon.business.Activator;
+import net.bioclipse.balloon.runner.SchedulingPolicy;
 
+import org.eclipse.jface.preference.BooleanFieldEditor;
+import org.eclipse.jface.preference.ComboFieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
 import org.eclipse.jface.preference.IntegerFieldEditor;
+import org.eclipse.jface.preference.StringFieldEditor;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPreferencePage;
 
@@ -31,6 +35,83 @@ public class BallonPreferencePage extends FieldEditorPreferencePage implements I
         IntegerFieldEditor timeoutEditor=new IntegerFieldEditor(Activator.BALLOON_TIMEOUT, "Timeout (s)",getFieldEditorParent());
         timeoutEditor.setValidRange( 1, 999999999 );
         addField( timeoutEditor );
+
+        IntegerFieldEditor quotaEditor=new IntegerFieldEditor(Activator.BALLOON_SCRATCH_QUOTA, "Scratch space quota (MB)",getFieldEditorParent());
+        quotaEditor.setValidRange( 1, 999999999 );
+        addField( quotaEditor );
+
+        addField( new BooleanFieldEditor(Activator.BALLOON_PIPES, "Pass molecules to Balloon through pipes when possible",getFieldEditorParent()) );
+
+        addField( new BooleanFieldEditor(Activator.BALLOON_ADAPTIVE, "Adapt the number of Balloon processes to the throughput",getFieldEditorParent()) );
+
+        IntegerFieldEditor memoryEditor=new IntegerFieldEditor(Activator.BALLOON_MEMORY_LIMIT, "Memory limit per process (MB, 0 for none)",getFieldEditorParent());
+        memoryEditor.setValidRange( 0, 999999999 );
+        addField( memoryEditor );
+
+        IntegerFieldEditor cpuEditor=new IntegerFieldEditor(Activator.BALLOON_CPU_LIMIT, "CPU time limit per process (s, 0 for none)",getFieldEditorParent());
+        cpuEditor.setValidRange( 0, 999999999 );
+        addField( cpuEditor );
+
+        IntegerFieldEditor outputEditor=new IntegerFieldEditor(Activator.BALLOON_OUTPUT_LIMIT, "Output size limit per process (MB, 0 for none)",getFieldEditorParent());
+        outputEditor.setValidRange( 0, 999999999 );
+        addField( outputEditor );
+
+        IntegerFieldEditor niceEditor=new IntegerFieldEditor(Activator.BALLOON_NICE, "Nice level of bulk runs (0-19)",getFieldEditorParent());
+        niceEditor.setValidRange( 0, SchedulingPolicy.MAX_NICE );
+        addField( niceEditor );
+
+        StringFieldEditor cpuSetEditor=new StringFieldEditor(Activator.BALLOON_CPU_SET, "CPUs for bulk runs (e.g. 2-7, empty for all)",getFieldEditorParent()) {
+            @Override
+            protected boolean doCheckState() {
+                String value = getStringValue().trim();
+                return value.length() == 0 || SchedulingPolicy.isValidCpuSet( value );
+            }
+        };
+        cpuSetEditor.setErrorMessage( "CPUs must be a list like 2-7 or 0,2,4" );
+        addField( cpuSetEditor );
+
+        addField( new BooleanFieldEditor(Activator.BALLOON_PREFLIGHT, "Reject molecules Balloon can not handle before running it",getFieldEditorParent()) );
+
+        IntegerFieldEditor heavyAtomsEditor=new IntegerFieldEditor(Activator.BALLOON_MAX_HEAVY_ATOMS, "Most heavy atoms per molecule (0 for no limit)",getFieldEditorParent());
+        heavyAtomsEditor.setValidRange( 0, 999999999 );
+        addField( heavyAtomsEditor );
+
+        addField( new ComboFieldEditor(Activator.BALLOON_FRAGMENTS, "Molecules of several fragments",
+                                       new String[][] { { "Reject", "keep" },
+                                                        { "Strip salts", "strip" },
+                                                        { "Keep the largest fragment", "largest" } },
+                                       getFieldEditorParent()) );
+
+        addField( new ComboFieldEditor(Activator.BALLOON_QUARANTINE, "Molecules that failed repeatedly",
+                                       new String[][] { { "Skip", "skip" },
+                                                        { "Try with a short timeout", "fallback" },
+                                                        { "Run as usual", "off" } },
+                                       getFieldEditorParent()) );
+
+        addField( new BooleanFieldEditor(Activator.BALLOON_SALVAGE, "Keep the conformers generated before a timeout",getFieldEditorParent()) );
+
+        IntegerFieldEditor splitEditor=new IntegerFieldEditor(Activator.BALLOON_SPLIT, "Fewest conformers per parallel run of one molecule (0 to never split)",getFieldEditorParent());
+        splitEditor.setValidRange( 0, 999999999 );
+        addField( splitEditor );
+
+        StringFieldEditor pruneEditor=new StringFieldEditor(Activator.BALLOON_PRUNE_RMSD, "Drop conformers closer than this heavy atom RMSD (A, 0 to keep all)",getFieldEditorParent()) {
+            @Override
+            protected boolean doCheckState() {
+                try {
+                    return Double.parseDouble( getStringValue().trim() ) >= 0;
+                } catch ( NumberFormatException e ) {
+                    return false;
+                }
+            }
+        };
+        pruneEditor.setErrorMessage( "RMSD must be a number of at least 0" );
+        addField( pruneEditor );
+
+        addField( new BooleanFieldEditor(Activator.BALLOON_PRUNE_ENERGY, "Keep the conformer of lowest energy among close ones",getFieldEditorParent()) );
+
+        addField( new BooleanFieldEditor(Activator.BALLOON_STORE, "Also write a binary conformer store (.bcs) for fast random access",getFieldEditorParent()) );
+
+        addField( new BooleanFieldEditor(Activator.BALLOON_PATCH, "Keep the atoms of single molecules, only adding coordinates and hydrogens",getFieldEditorParent()) );
         
     }
 }
@@ -15,8 +15,11 @@ import org.eclipse.jface.dialogs.TitleAreaDialog;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.KeyEvent;
 import org.eclipse.swt.events.KeyListener;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Label;
@@ -32,10 +35,26 @@ public class BalloonDialog extends TitleAreaDialog{
 
     private static final String DEFAULT_NUM_CONFORMERS = "15";
 
+    private static final String DEFAULT_MIN_CONFORMERS = "5";
+
+    private static final String DEFAULT_MAX_CONFORMERS = "50";
+
     int numConformers = Integer.parseInt( DEFAULT_NUM_CONFORMERS );
+
+    int minConformers = Integer.parseInt( DEFAULT_MIN_CONFORMERS );
+
+    int maxConformers = Integer.parseInt( DEFAULT_MAX_CONFORMERS );
+
+    boolean adaptive = false;
     
     private Text txtNumConf;
 
+    private Button btnAdaptive;
+
+    private Text txtMinConf;
+
+    private Text txtMaxConf;
+
     public BalloonDialog(Shell parentShell) {
         super( parentShell );
     }
@@ -73,23 +92,74 @@ public class BalloonDialog extends TitleAreaDialog{
         txtNumConf.setLayoutData(gd);
         txtNumConf.setText( DEFAULT_NUM_CONFORMERS );
 
-        txtNumConf.addKeyListener( new KeyListener(){
+        KeyListener validator = new KeyListener(){
 
             public void keyPressed( KeyEvent e ) {
             }
 
             public void keyReleased( KeyEvent e ) {
                 updateStatus();
+            }};
+        txtNumConf.addKeyListener( validator );
+
+        btnAdaptive=new Button(composite, SWT.CHECK);
+        btnAdaptive.setText( "Adapt the number to the flexibility of each molecule" );
+        GridData gda=new GridData(SWT.LEFT, SWT.CENTER, true, false);
+        gda.horizontalSpan=2;
+        btnAdaptive.setLayoutData(gda);
+        btnAdaptive.addSelectionListener( new SelectionAdapter(){
+            @Override
+            public void widgetSelected( SelectionEvent e ) {
+                adaptive=btnAdaptive.getSelection();
+                txtNumConf.setEnabled( !adaptive );
+                txtMinConf.setEnabled( adaptive );
+                txtMaxConf.setEnabled( adaptive );
+                updateStatus();
             }} );
 
+        txtMinConf=createNumberField( composite, "Fewest conformations (rigid):  ", DEFAULT_MIN_CONFORMERS );
+        txtMinConf.addKeyListener( validator );
+        txtMaxConf=createNumberField( composite, "Most conformations (flexible):  ", DEFAULT_MAX_CONFORMERS );
+        txtMaxConf.addKeyListener( validator );
+        txtMinConf.setEnabled( false );
+        txtMaxConf.setEnabled( false );
+
         return composite;
     }
 
+    private Text createNumberField( Composite composite, String label, String value ) {
+        Label lbl=new Label(composite,SWT.NONE);
+        lbl.setText( label );
+        lbl.setLayoutData(new GridData(SWT.RIGHT, SWT.CENTER, true, false));
+
+        Text txt=new Text(composite, SWT.BORDER);
+        GridData gd=new GridData(SWT.LEFT, SWT.NONE, true, false);
+        gd.widthHint=100;
+        txt.setLayoutData(gd);
+        txt.setText( value );
+        return txt;
+    }
+
     protected void updateStatus() {
 
         setErrorMessage( null );
         getButton(IDialogConstants.OK_ID).setEnabled( true );
 
+        if (adaptive){
+            try{
+                minConformers=Integer.parseInt( txtMinConf.getText() );
+                maxConformers=Integer.parseInt( txtMaxConf.getText() );
+                if (minConformers<=0 || maxConformers<minConformers){
+                    setErrorMessage( "Conformers must be positive, with the fewest at most the most." );
+                    getButton(IDialogConstants.OK_ID).setEnabled( false );
+                }
+            }catch (NumberFormatException e){
+                setErrorMessage( "Cannot parse number of conformers to integer" );
+                getButton(IDialogConstants.OK_ID).setEnabled( false );
+            }
+            return;
+        }
+
         String numstr=txtNumConf.getText();
         if (numstr==null || numstr.length()<=0){
             setErrorMessage( "Number of conformers cannot be empty." );
@@ -116,4 +186,21 @@ public class BalloonDialog extends TitleAreaDialog{
         return numConformers;
     }
 
+    /**
+     * @return whether the number of conformers should be picked per
+     *         molecule between {@link #getMinConformers()} and
+     *         {@link #getMaxConformers()}
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public int getMinConformers() {
+        return minConformers;
+    }
+
+    public int getMaxConformers() {
+        return maxConformers;
+    }
+
 }
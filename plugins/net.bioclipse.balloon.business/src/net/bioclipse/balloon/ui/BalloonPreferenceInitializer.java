@@ -29,6 +29,24 @@ public class BalloonPreferenceInitializer extends AbstractPreferenceInitializer
 	public void initializeDefaultPreferences() {
 		Preferences node = DefaultScope.INSTANCE.getNode(Activator.PLUGIN_ID);
 		node.put(Activator.BALLOON_TIMEOUT,Integer.toString(Activator.DEFAULT_BALLOON_TIMEOUT));
+		node.put(Activator.BALLOON_SCRATCH_QUOTA,Integer.toString(Activator.DEFAULT_BALLOON_SCRATCH_QUOTA));
+		node.putBoolean(Activator.BALLOON_PIPES,true);
+		node.putBoolean(Activator.BALLOON_ADAPTIVE,true);
+		node.put(Activator.BALLOON_MEMORY_LIMIT,Integer.toString(Activator.DEFAULT_BALLOON_MEMORY_LIMIT));
+		node.put(Activator.BALLOON_CPU_LIMIT,Integer.toString(Activator.DEFAULT_BALLOON_CPU_LIMIT));
+		node.put(Activator.BALLOON_OUTPUT_LIMIT,Integer.toString(Activator.DEFAULT_BALLOON_OUTPUT_LIMIT));
+		node.put(Activator.BALLOON_NICE,Integer.toString(Activator.DEFAULT_BALLOON_NICE));
+		node.put(Activator.BALLOON_CPU_SET,"");
+		node.putBoolean(Activator.BALLOON_PREFLIGHT,true);
+		node.put(Activator.BALLOON_MAX_HEAVY_ATOMS,Integer.toString(Activator.DEFAULT_BALLOON_MAX_HEAVY_ATOMS));
+		node.put(Activator.BALLOON_FRAGMENTS,"strip");
+		node.put(Activator.BALLOON_QUARANTINE,"skip");
+		node.putBoolean(Activator.BALLOON_SALVAGE,false);
+		node.put(Activator.BALLOON_SPLIT,Integer.toString(Activator.DEFAULT_BALLOON_SPLIT));
+		node.put(Activator.BALLOON_PRUNE_RMSD,"0");
+		node.putBoolean(Activator.BALLOON_PRUNE_ENERGY,true);
+		node.putBoolean(Activator.BALLOON_STORE,false);
+		node.putBoolean(Activator.BALLOON_PATCH,false);
 	}
 
 }
@@ -14,12 +14,8 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-import net.sf.jnati.proc.ProcessMonitor;
-import net.sf.jnati.proc.ProcessOutput;
-
 import org.apache.log4j.Logger;
 import org.eclipse.core.runtime.FileLocator;
 import org.eclipse.core.runtime.Path;
@@ -48,22 +44,54 @@ public class BalloonRunner {
     //Constructed in constructor
     private File path;
 
+    //Result of the last run
+    private ProcessResult result;
+
+    //What a run through pipes wrote before it timed out
+    private String partialOutput;
+
+    //Operating system limits for each run
+    private ResourceLimits limits = ResourceLimits.NONE;
+
+    //Nice level and CPUs for each run
+    private SchedulingPolicy scheduling = SchedulingPolicy.NORMAL;
+
+    //Seed for Balloon's random number generator, null for its own
+    private Long randomSeed;
+
     
     /**
      * Overridden by platform specific fragments
      * @param inputfile
      * @param outputfile
      * @param numConf
-     * @return String errormessage or Null if success
+     * @return true if Balloon succeeded, see {@link #getResult()} for why not
      * @throws TimeoutException 
      * @throws InterruptedException 
      * @throws ExecutionException 
      */
     public boolean runBalloon(String inputfile, String outputfile, int numConf) throws ExecutionException, InterruptedException, TimeoutException{
 
-//            BalloonRunner b = new BalloonRunner();
-//            ProcessOutput output = b.convert( inputfile, outputfile, ""+numConf);
-            
+            ProcessResult output = run( inputfile, outputfile, numConf );
+
+            //React on result
+            if (output.isTimedOut())
+                throw new TimeoutException("Balloon " + output.describe());
+            return output.isSuccess();
+    }
+
+    /**
+     * Runs Balloon and returns how it went without treating a timeout as
+     * an error.
+     * @param inputfile
+     * @param outputfile
+     * @param numConf
+     * @return the exit value, timing and output tails of the Balloon run
+     * @throws InterruptedException 
+     * @throws ExecutionException if Balloon could not be started
+     */
+    public ProcessResult run(String inputfile, String outputfile, int numConf) throws ExecutionException, InterruptedException{
+
             if (inputfile == null) {
                 throw new NullPointerException("Null input file");
             }
@@ -76,42 +104,224 @@ public class BalloonRunner {
 
             logger.info("Running 'balloon -c " + numConf + " " + inputfile + " " + outputfile);
 
-            final ProcessMonitor runner = createProcessRunner("-c"+  numConf , inputfile, outputfile );
-            
-//            try{
-                //Run the Process
-                ProcessOutput output = runner.runProcess();
+            return launch( createCommand("-c"+  numConf , inputfile, outputfile ) );
+    }
+
+    /**
+     * Runs Balloon on MDL or SD formatted <code>input</code> passed through
+     * named pipes created in <code>workDir</code>, so that no data goes
+     * through regular files.
+     * @param input the molecules to generate conformations for
+     * @param workDir directory to create the pipes in
+     * @param numConf
+     * @return the SD formatted output, empty if Balloon failed
+     * @throws IOException if named pipes can not be used on this platform
+     * @throws TimeoutException 
+     * @throws InterruptedException 
+     * @throws ExecutionException 
+     */
+    public String runBalloon(String input, File workDir, int numConf) throws ExecutionException, InterruptedException, TimeoutException, IOException{
+
+            if (input == null) {
+                throw new NullPointerException("Null input");
+            }
+            if (numConf <=0) {
+                throw new IllegalArgumentException("NumConf must be >1");
+            }
+            if (!isPipeSupported()) {
+                throw new IOException("Named pipes are not supported on " + osarch);
+            }
+
+            partialOutput = null;
+            NamedPipes pipes = NamedPipes.create( workDir, ".sdf" );
+            try {
+                logger.info("Running 'balloon -c " + numConf + "' through pipes in " + workDir);
+
+                String[] command = createCommand("-c"+  numConf , pipes.getInput().getPath(), pipes.getOutput().getPath() );
+
+                //Feed and collect the pipes while Balloon runs
+                pipes.start( input );
+                ProcessResult output = null;
+                String sdf;
+                try {
+                    output = launch( command );
+                } finally {
+                    sdf = pipes.finish();
+                }
 
                 //React on result
-                if (output==null)
-                    return false;
-                if (output.getExitValue()==0)
-                    return true;
-                else
+                if (output.isTimedOut()) {
+                    partialOutput = sdf;
+                    throw new TimeoutException("Balloon " + output.describe());
+                }
+                if (!output.isSuccess())
+                    return "";
+                if (pipes.getFailure()!=null)
+                    logger.warn("Balloon pipe failed: " + pipes.getFailure().getMessage());
+                return sdf;
+            } finally {
+                pipes.delete();
+            }
+    }
+
+    /**
+     * Runs Balloon on MDL or SD formatted input written by <code>input</code>
+     * while Balloon reads it, passed through named pipes created in
+     * <code>workDir</code>, so that input made from another format or
+     * decompressed never goes to a file. The output is copied to
+     * <code>outputfile</code>.
+     * @param input writes the molecules to generate conformations for
+     * @param outputfile
+     * @param workDir directory to create the pipes in
+     * @param numConf
+     * @return true if Balloon succeeded, see {@link #getResult()} for why not
+     * @throws IOException if named pipes can not be used on this platform,
+     *                     or writing the input or copying the output failed
+     * @throws TimeoutException 
+     * @throws InterruptedException 
+     * @throws ExecutionException 
+     */
+    public boolean runBalloon(NamedPipes.Feed input, String outputfile, File workDir, int numConf) throws ExecutionException, InterruptedException, TimeoutException, IOException{
+
+            if (input == null) {
+                throw new NullPointerException("Null input");
+            }
+            if (outputfile == null) {
+                throw new NullPointerException("Null output file");
+            }
+            if (numConf <=0) {
+                throw new IllegalArgumentException("NumConf must be >1");
+            }
+            if (!isPipeSupported()) {
+                throw new IOException("Named pipes are not supported on " + osarch);
+            }
+
+            partialOutput = null;
+            NamedPipes pipes = NamedPipes.create( workDir, ".sdf" );
+            try {
+                logger.info("Running 'balloon -c " + numConf + "' through pipes in " + workDir + " to " + outputfile);
+
+                String[] command = createCommand("-c"+  numConf , pipes.getInput().getPath(), pipes.getOutput().getPath() );
+
+                //Feed the pipe and copy the output while Balloon runs
+                pipes.start( input, new File( outputfile ) );
+                ProcessResult output = null;
+                try {
+                    output = launch( command );
+                } finally {
+                    pipes.finish();
+                }
+
+                //React on result
+                if (output.isTimedOut())
+                    throw new TimeoutException("Balloon " + output.describe());
+                if (!output.isSuccess())
                     return false;
-//                    return "Balloon failed: " + output.getMessages();
-//            }catch (TimeoutException e){
-//                return "Balloon timed out: " + e.getMessage();
-//            } catch ( ExecutionException e ) {
-//                return "Balloon timed out: " + e.getMessage();
-//            } catch ( InterruptedException e ) {
-//                return "Balloon was interrupted: " + e.getMessage();
-//            }
+                //Balloon did well on what it got, but the input or the
+                //output was cut short
+                if (pipes.getFailure()!=null)
+                    throw pipes.getFailure();
+                return true;
+            } finally {
+                pipes.delete();
+            }
+    }
+
+    /**
+     * @return whether {@link #runBalloon(String, File, int)} and
+     *         {@link #runBalloon(NamedPipes.Feed, String, File, int)} can
+     *         be used
+     */
+    public static boolean isPipeSupported() {
+        return NamedPipes.isSupported();
+    }
+
+    /**
+     * @return the version of the bundled Balloon, "unknown" without OSGi
+     */
+    public static String getVersion() {
+        Bundle bundle = Platform.getBundle( FRAGMENT_ID );
+        return bundle == null ? "unknown" : bundle.getVersion().toString();
+    }
+
+    /**
+     * Sets the memory, CPU time and output size limits for the following
+     * runs. Applied where the platform supports it.
+     * @param limits
+     */
+    public void setLimits(ResourceLimits limits) {
+        this.limits = limits == null ? ResourceLimits.NONE : limits;
+    }
 
+    /**
+     * Sets the nice level and CPUs for the following runs. Applied where
+     * the platform supports it.
+     * @param scheduling
+     */
+    public void setScheduling(SchedulingPolicy scheduling) {
+        this.scheduling = scheduling == null ? SchedulingPolicy.NORMAL : scheduling;
     }
 
+    /**
+     * Sets the seed of Balloon's random number generator for the following
+     * runs, so that runs with different seeds explore different
+     * conformations of the same molecule.
+     * @param randomSeed the seed, <code>null</code> to let Balloon pick one
+     */
+    public void setRandomSeed(Long randomSeed) {
+        this.randomSeed = randomSeed;
+    }
 
+    /**
+     * @return how the last Balloon run went, <code>null</code> before the
+     *         first run
+     */
+    public ProcessResult getResult() {
+        return result;
+    }
 
     /**
-     * Set up a runner for Ballon on the current arch
+     * @return what Balloon wrote to the output pipe before the last run
+     *         through pipes timed out, possibly ending in an incomplete
+     *         record, <code>null</code> if it did not time out
+     */
+    public String getPartialOutput() {
+        return partialOutput;
+    }
+
+    /**
+     * Runs a Balloon command with the shared launcher
+     * @param command
+     * @return
+     * @throws ExecutionException if Balloon could not be started
+     * @throws InterruptedException 
+     */
+    private ProcessResult launch(String[] command) throws ExecutionException, InterruptedException {
+        try {
+            result = ProcessLauncher.getDefault().run( scheduling.wrap( command ), timeoutMs, limits );
+        } catch ( IOException e ) {
+            throw new ExecutionException( "Could not start Balloon: " + e.getMessage(), e );
+        }
+        if (!result.isSuccess())
+            logger.warn( "Balloon " + result.describe() );
+        return result;
+    }
+
+    /**
+     * Set up the command line for Ballon on the current arch
      * @param args
      * @return
      */
-    private ProcessMonitor createProcessRunner(final String... args) {
+    private String[] createCommand(final String... args) {
 
         // Generate command/args string for different archs
-        final String[] command = new String[args.length + 1];
-        System.arraycopy(args, 0, command, 1, args.length);
+        final int options = randomSeed == null ? 0 : 2;
+        final String[] command = new String[args.length + options + 1];
+        if (randomSeed != null) {
+            command[1] = "--randomSeed";
+            command[2] = randomSeed.toString();
+        }
+        System.arraycopy(args, 0, command, options + 1, args.length);
 
         String exe;
         if (osarch.startsWith("WINDOWS")) {
@@ -128,9 +338,7 @@ public class BalloonRunner {
         }
 
         command[0] = new File(path, exe).getPath();
-        final ProcessMonitor runner = new ProcessMonitor(command);
-        runner.setTimeout(timeoutMs, TimeUnit.MILLISECONDS);
-        return runner;
+        return command;
     }
 
     /**
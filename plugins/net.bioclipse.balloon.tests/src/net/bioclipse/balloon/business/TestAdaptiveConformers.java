@@ -0,0 +1,50 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import net.bioclipse.cdk.business.CDKManager;
+
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+public class TestAdaptiveConformers {
+
+	private static IAtomContainer smiles(String smiles) throws Exception {
+		return new CDKManager().fromSMILES(smiles).getAtomContainer();
+	}
+
+	@Test
+	public void testRotatableBonds() throws Exception {
+		assertEquals(0, AdaptiveConformers.rotatableBonds(smiles("CC")));
+		assertEquals(1, AdaptiveConformers.rotatableBonds(smiles("CCCC")));
+		// Ring bonds and the bond to a methyl do not count
+		assertEquals(1, AdaptiveConformers.rotatableBonds(smiles("CCc1ccccc1")));
+		assertEquals(0, AdaptiveConformers.rotatableBonds(smiles("C1CCCCC1")));
+		assertEquals(0, AdaptiveConformers.rotatableBonds(smiles("CC=CC")));
+		assertEquals(1, AdaptiveConformers.rotatableBonds(smiles("C=CC=C")));
+	}
+
+	@Test
+	public void testFlexibleRingAtoms() throws Exception {
+		assertEquals(6, AdaptiveConformers.flexibleRingAtoms(smiles("C1CCCCC1")));
+		assertEquals(0, AdaptiveConformers.flexibleRingAtoms(smiles("c1ccccc1")));
+		// Atoms next to the double bond are held in place
+		assertEquals(4, AdaptiveConformers.flexibleRingAtoms(smiles("C1=CCCCC1")));
+	}
+
+	@Test
+	public void testWithinBounds() throws Exception {
+		AdaptiveConformers target = new AdaptiveConformers(5, 50);
+		assertEquals(5, target.numConformations(smiles("c1ccccc1")));
+		assertEquals(50, target.numConformations(smiles("CCCCCCCCCCCCCCCCCCCC")));
+		int cyclohexane = target.numConformations(smiles("C1CCCCC1"));
+		assertTrue(cyclohexane > 5 && cyclohexane < 50);
+		assertEquals(15, AdaptiveConformers.fixed(15)
+		                 .numConformations(smiles("CCCCCCCCCCCCCCCCCCCC")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMinAboveMax() {
+		new AdaptiveConformers(20, 10);
+	}
+}
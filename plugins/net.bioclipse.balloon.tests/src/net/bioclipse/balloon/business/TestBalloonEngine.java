@@ -0,0 +1,130 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestBalloonEngine {
+
+	@Test
+	public void testTasksRunOnVirtualThreads() throws InterruptedException {
+		BalloonEngine engine = new BalloonEngine(2);
+		final boolean[] virtual = { false };
+		Thread t = engine.start("test", new Runnable() {
+			public void run() {
+				virtual[0] = Thread.currentThread().isVirtual();
+			}
+		});
+		t.join();
+		assertTrue(virtual[0]);
+	}
+
+	@Test
+	public void testNativeRunsAreLimited() throws InterruptedException {
+		final BalloonEngine engine = new BalloonEngine(2, 2, 0);
+		engine.acquire(BalloonEngine.Lane.BATCH);
+		engine.acquire(BalloonEngine.Lane.BATCH);
+		assertEquals(2, engine.getRunning());
+
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread third = engine.start("third", new Runnable() {
+			public void run() {
+				try {
+					engine.acquire(BalloonEngine.Lane.BATCH);
+					started.countDown();
+					engine.release(BalloonEngine.Lane.BATCH);
+				} catch (InterruptedException e) {
+					// test fails on the latch
+				}
+			}
+		});
+		assertFalse(started.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(1, engine.getWaiting());
+
+		engine.release(BalloonEngine.Lane.BATCH);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		third.join();
+		engine.release(BalloonEngine.Lane.BATCH);
+		assertEquals(0, engine.getRunning());
+		assertEquals(0, engine.getWaiting());
+	}
+
+	@Test
+	public void testLimitCanBeChanged() throws InterruptedException {
+		BalloonEngine engine = new BalloonEngine(2, 4, 0);
+		engine.acquire(BalloonEngine.Lane.BATCH);
+		engine.acquire(BalloonEngine.Lane.BATCH);
+		engine.setLimit(1);
+		assertEquals(1, engine.getNativeConcurrency());
+		// Both keep running until they finish
+		assertEquals(2, engine.getRunning());
+		engine.release(BalloonEngine.Lane.BATCH);
+		engine.release(BalloonEngine.Lane.BATCH);
+		assertEquals(0, engine.getRunning());
+
+		engine.setLimit(10);
+		assertEquals(4, engine.getNativeConcurrency());
+		assertEquals(2, engine.getCompleted());
+	}
+
+	@Test
+	public void testInteractiveRunStartsWhenBatchIsSaturated()
+	                throws InterruptedException {
+		BalloonEngine engine = new BalloonEngine(2, 2, 1);
+		engine.acquire(BalloonEngine.Lane.BATCH);
+		engine.acquire(BalloonEngine.Lane.BATCH);
+		// Does not block, the reserved slot is free
+		engine.acquire(BalloonEngine.Lane.INTERACTIVE);
+		assertEquals(3, engine.getRunning());
+		assertEquals(1, engine.getRunning(BalloonEngine.Lane.INTERACTIVE));
+		engine.release(BalloonEngine.Lane.INTERACTIVE);
+		engine.release(BalloonEngine.Lane.BATCH);
+		engine.release(BalloonEngine.Lane.BATCH);
+		assertEquals(0, engine.getRunning());
+	}
+
+	@Test
+	public void testBatchWaitsBehindInteractive() throws InterruptedException {
+		final BalloonEngine engine = new BalloonEngine(1, 1, 0);
+		engine.acquire(BalloonEngine.Lane.BATCH);
+
+		final CountDownLatch interactiveStarted = new CountDownLatch(1);
+		final CountDownLatch batchStarted = new CountDownLatch(1);
+		Thread interactive = engine.start("interactive", new Runnable() {
+			public void run() {
+				try {
+					engine.acquire(BalloonEngine.Lane.INTERACTIVE);
+					interactiveStarted.countDown();
+				} catch (InterruptedException e) {
+					// test fails on the latch
+				}
+			}
+		});
+		while (engine.getWaiting(BalloonEngine.Lane.INTERACTIVE) == 0)
+			Thread.sleep(10);
+		Thread batch = engine.start("batch", new Runnable() {
+			public void run() {
+				try {
+					engine.acquire(BalloonEngine.Lane.BATCH);
+					batchStarted.countDown();
+					engine.release(BalloonEngine.Lane.BATCH);
+				} catch (InterruptedException e) {
+					// test fails on the latch
+				}
+			}
+		});
+		while (engine.getWaiting(BalloonEngine.Lane.BATCH) == 0)
+			Thread.sleep(10);
+
+		engine.release(BalloonEngine.Lane.BATCH);
+		assertTrue(interactiveStarted.await(5, TimeUnit.SECONDS));
+		assertFalse(batchStarted.await(200, TimeUnit.MILLISECONDS));
+		interactive.join();
+		engine.release(BalloonEngine.Lane.INTERACTIVE);
+		assertTrue(batchStarted.await(5, TimeUnit.SECONDS));
+		batch.join();
+	}
+}
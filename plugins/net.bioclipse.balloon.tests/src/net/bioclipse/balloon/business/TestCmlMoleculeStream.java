@@ -0,0 +1,64 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class TestCmlMoleculeStream {
+
+	private static final String CML = "<?xml version=\"1.0\"?>\n"
+	        + "<cml xmlns=\"http://www.xml-cml.org/schema\" xmlns:b=\"urn:b\">\n"
+	        + " <list>\n"
+	        + "  <molecule id=\"m1\"><atomArray><atom id=\"a1\" elementType=\"C\"/>"
+	        + "</atomArray><molecule id=\"fragment\"/></molecule>\n"
+	        + "  <molecule id=\"m2\"><name b:type=\"trivial\">water</name></molecule>\n"
+	        + " </list>\n"
+	        + "</cml>\n";
+
+	private static InputStream stream(String xml) throws IOException {
+		return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testMoleculesOneAtATime() throws Exception {
+		CmlMoleculeStream molecules = new CmlMoleculeStream(stream(CML));
+		String first = molecules.next();
+		assertTrue(first.startsWith("<molecule"));
+		assertTrue(first.contains("xmlns=\"http://www.xml-cml.org/schema\""));
+		assertTrue(first.contains("id=\"fragment\""));
+		assertTrue(first.endsWith("</molecule>"));
+		String second = molecules.next();
+		assertTrue(second.contains("id=\"m2\""));
+		assertTrue(second.contains("xmlns:b=\"urn:b\""));
+		assertFalse(second.contains("m1"));
+		assertNull(molecules.next());
+		assertEquals(2, molecules.getRead());
+		molecules.close();
+	}
+
+	@Test
+	public void testCountSkipsNestedMolecules() throws Exception {
+		assertEquals(2, CmlMoleculeStream.count(stream(CML)));
+	}
+
+	@Test
+	public void testSingleMoleculeDocument() throws Exception {
+		String single = "<molecule xmlns=\"http://www.xml-cml.org/schema\" "
+		                + "id=\"m\"><atomArray/></molecule>";
+		assertEquals(1, CmlMoleculeStream.count(stream(single)));
+		CmlMoleculeStream molecules = new CmlMoleculeStream(stream(single));
+		assertTrue(molecules.next().contains("id=\"m\""));
+		assertNull(molecules.next());
+	}
+
+	@Test(expected = IOException.class)
+	public void testBrokenDocument() throws Exception {
+		CmlMoleculeStream molecules = new CmlMoleculeStream(
+		    stream("<cml><molecule id=\"m1\"><atomArray></cml>"));
+		molecules.next();
+	}
+}
@@ -0,0 +1,103 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestCompression {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] read(InputStream in) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			bytes.write(buffer, 0, read);
+		in.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] records(int n) {
+		StringBuilder sdf = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			sdf.append("mol" + i + "\n  Balloon\n\nM  END\n$$$$\n");
+		return sdf.toString().getBytes();
+	}
+
+	@Test
+	public void testNames() {
+		assertTrue(Compression.isGzip("mols.sdf.gz"));
+		assertTrue(Compression.isGzip("MOLS.SDF.GZ"));
+		assertFalse(Compression.isGzip("mols.sdf"));
+		assertEquals("mols.sdf", Compression.strip("mols.sdf.gz"));
+		assertEquals("mols.sdf", Compression.strip("mols.sdf"));
+	}
+
+	@Test
+	public void testBlocksAreReadAsOneStream() throws Exception {
+		byte[] data = records(1000);
+		File file = folder.newFile("out.sdf.gz");
+		OutputStream out = new Compression.ParallelGzipOutputStream(
+		    new FileOutputStream(file), Executors.newFixedThreadPool(3),
+		    1000, 2);
+		// Flushing must not end a block
+		for (int i = 0; i < data.length; i += 777) {
+			out.write(data, i, Math.min(777, data.length - i));
+			out.flush();
+		}
+		out.close();
+		assertArrayEquals(data, read(Compression.open(file)));
+	}
+
+	@Test
+	public void testEmptyOutputIsGzip() throws Exception {
+		File file = folder.newFile("empty.sdf.gz");
+		Compression.output(file, Executors.newSingleThreadExecutor()).close();
+		assertEquals(0, read(Compression.open(file)).length);
+	}
+
+	@Test
+	public void testPlainFilesAreLeftAlone() throws Exception {
+		byte[] data = records(3);
+		File plain = folder.newFile("mols.sdf");
+		OutputStream out = Compression.output(plain,
+		                                      Executors.newSingleThreadExecutor());
+		out.write(data);
+		out.close();
+		assertEquals(data.length, plain.length());
+		assertArrayEquals(data, read(Compression.open(plain)));
+	}
+
+	@Test
+	public void testCompressAndCountRecords() throws Exception {
+		File plain = folder.newFile("mols.sdf");
+		FileOutputStream out = new FileOutputStream(plain);
+		out.write(records(25));
+		out.close();
+		File gzipped = new File(folder.getRoot(), "mols.sdf.gz");
+		Compression.compress(plain, gzipped, Executors.newFixedThreadPool(2));
+		assertTrue(gzipped.length() < plain.length());
+		assertEquals(25, SDFRecordReader.count(Compression.open(gzipped)));
+	}
+
+	@Test
+	public void testReadsGzipFromOtherTools() throws Exception {
+		File file = folder.newFile("library.smi.gz");
+		GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+		out.write("CCO ethanol\nCC ethane\n".getBytes());
+		out.close();
+		assertEquals(2, SmilesChunks.countMolecules(file));
+	}
+}
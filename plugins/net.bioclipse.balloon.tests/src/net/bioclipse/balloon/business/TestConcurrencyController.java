@@ -0,0 +1,67 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestConcurrencyController {
+
+	private final BalloonEngine engine = new BalloonEngine(4, 8);
+
+	@Test
+	public void testIncreasesWhileThroughputHolds() {
+		ConcurrencyController c = new ConcurrencyController(engine, 4);
+		assertEquals(5, c.decide(4, 10.0, 2.0, 0, 0.5, true));
+		assertEquals(6, c.decide(5, 10.2, 2.0, 0, 0.5, true));
+		assertEquals(8, c.decide(8, 10.4, 2.0, 0, 0.5, true));
+	}
+
+	@Test
+	public void testDecreasesWhenThroughputDrops() {
+		ConcurrencyController c = new ConcurrencyController(engine, 4);
+		assertEquals(7, c.decide(6, 10.0, 2.0, 0, 0.5, true));
+		assertEquals(5, c.decide(7, 8.0, 2.0, 0, 0.5, true));
+		// The next interval is not compared with the one before the cut
+		assertEquals(6, c.decide(5, 6.0, 2.0, 0, 0.5, true));
+	}
+
+	@Test
+	public void testDecreasesUnderPressure() {
+		ConcurrencyController c = new ConcurrencyController(engine, 4);
+		assertEquals(6, c.decide(8, 10.0, 2.0, 0, 0.05, true));
+		assertEquals(3, c.decide(4, 10.0, 8.0, 0, 0.5, true));
+		assertEquals(1, c.decide(1, 10.0, 8.0, 0, 0.05, true));
+	}
+
+	@Test
+	public void testOwnProcessesDoNotOverload() {
+		ConcurrencyController c = new ConcurrencyController(engine, 4);
+		// Two Balloon processes per core, nothing else running
+		assertEquals(7, c.decide(6, 10.0, 8.0, 8.0, 0.5, true));
+		assertEquals(8, c.decide(7, 10.0, 8.5, 8.0, 0.5, true));
+		// Other jobs on top of them still count
+		assertEquals(6, c.decide(8, 10.0, 14.0, 8.0, 0.5, true));
+	}
+
+	@Test
+	public void testOwnLoadLagsAsTheLoadAverage() {
+		ConcurrencyController c = new ConcurrencyController(engine, 4);
+		double own = 0;
+		for (int i = 0; i < 120; i++)
+			own = c.trackOwnLoad(8);
+		assertEquals(8.0, own, 0.01);
+		// Cut to four, the load average takes a minute to follow
+		own = c.trackOwnLoad(4);
+		assertTrue(own > 7.5);
+		assertEquals(7, c.decide(6, 10.0, own + 0.5, own, 0.5, true));
+		for (int i = 0; i < 120; i++)
+			own = c.trackOwnLoad(4);
+		assertEquals(4.0, own, 0.01);
+	}
+
+	@Test
+	public void testHoldsWithoutWork() {
+		ConcurrencyController c = new ConcurrencyController(engine, 4);
+		assertEquals(4, c.decide(4, 0.0, -1, 0, -1, false));
+	}
+}
@@ -0,0 +1,55 @@
+package net.bioclipse.balloon.business;
+
+import static net.bioclipse.balloon.business.TestConformerMerge.*;
+import static net.bioclipse.balloon.business.TestConformerPruner.withEnergy;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import javax.vecmath.Point3d;
+
+import net.bioclipse.cdk.business.CDKManager;
+
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+public class TestConformerEnsemble {
+
+	private static IAtomContainer butane() throws Exception {
+		return new CDKManager().fromSMILES("CCCC").getAtomContainer();
+	}
+
+	@Test
+	public void testCoordinatesAndEnergies() throws Exception {
+		ConformerEnsemble ensemble = ConformerEnsemble.read(butane(),
+		    withEnergy(conformer("butane", ANTI), -3.5)
+		    + conformer("butane", GAUCHE));
+		assertEquals(2, ensemble.size());
+		assertEquals(4, ensemble.getAtomCount());
+		assertEquals(-3.5, ensemble.getEnergy(0), 0);
+		assertTrue(Double.isNaN(ensemble.getEnergy(1)));
+		double[] gauche = ensemble.getCoordinates(1);
+		assertEquals(12, gauche.length);
+		assertEquals(1.3, gauche[11], 1e-9);
+	}
+
+	@Test
+	public void testMaterialisedConformers() throws Exception {
+		ConformerEnsemble ensemble = ConformerEnsemble.read(butane(),
+		    conformer("butane", ANTI) + conformer("butane", GAUCHE));
+		IAtomContainer anti = ensemble.getConformer(0).getAtomContainer();
+		IAtomContainer gauche = ensemble.asMolecules().get(1)
+		                                .getAtomContainer();
+		assertNotSame(anti, gauche);
+		assertEquals(3, gauche.getBondCount());
+		assertEquals(new Point3d(3.59, 1.45, 0), anti.getAtom(3).getPoint3d());
+		assertEquals(new Point3d(2.5, 2.2, 1.3), gauche.getAtom(3).getPoint3d());
+	}
+
+	@Test(expected = IOException.class)
+	public void testOtherAtomsAreRejected() throws Exception {
+		ConformerEnsemble.read(new CDKManager().fromSMILES("CCC")
+		                                       .getAtomContainer(),
+		                       conformer("butane", ANTI));
+	}
+}
@@ -0,0 +1,74 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.Test;
+
+public class TestConformerMerge {
+
+	static String conformer(String title, double[][] atoms) {
+		StringBuilder sdf = new StringBuilder(title + "\n  Balloon\n\n");
+		sdf.append(String.format("%3d  0  0  0  0  0  0  0  0  0999 V2000\n",
+		                         atoms.length));
+		for (double[] a : atoms)
+			sdf.append(String.format(Locale.US,
+			           "%10.4f%10.4f%10.4f C   0  0  0  0  0  0  0  0  0  0  0  0\n",
+			           a[0], a[1], a[2]));
+		return sdf.append("M  END\n$$$$\n").toString();
+	}
+
+	/** Turns the points angle radians around z and moves them by dx */
+	static double[][] move(double[][] atoms, double angle, double dx) {
+		double[][] moved = new double[atoms.length][];
+		for (int i = 0; i < atoms.length; i++) {
+			double[] a = atoms[i];
+			moved[i] = new double[] {
+				Math.cos(angle) * a[0] - Math.sin(angle) * a[1] + dx,
+				Math.sin(angle) * a[0] + Math.cos(angle) * a[1],
+				a[2] };
+		}
+		return moved;
+	}
+
+	static final double[][] ANTI = { { 0, 0, 0 }, { 1.54, 0, 0 },
+	                                 { 2.05, 1.45, 0 }, { 3.59, 1.45, 0 } };
+	static final double[][] GAUCHE = { { 0, 0, 0 }, { 1.54, 0, 0 },
+	                                   { 2.05, 1.45, 0 }, { 2.5, 2.2, 1.3 } };
+
+	@Test
+	public void testRunsFor() {
+		assertEquals(1, ConformerMerge.runsFor(200, 0, 8));
+		assertEquals(1, ConformerMerge.runsFor(30, 20, 8));
+		assertEquals(2, ConformerMerge.runsFor(40, 20, 8));
+		assertEquals(8, ConformerMerge.runsFor(200, 20, 8));
+	}
+
+	@Test
+	public void testSplitAddsUp() {
+		assertArrayEquals(new int[] { 34, 33, 33 }, ConformerMerge.split(100, 3));
+		assertArrayEquals(new int[] { 5, 5 }, ConformerMerge.split(10, 2));
+	}
+
+	@Test
+	public void testRepeatedConformerIsDropped() throws Exception {
+		String merged = ConformerMerge.merge(
+		                Arrays.asList(conformer("p", ANTI),
+		                              conformer("p", ANTI)
+		                              + conformer("p", GAUCHE)),
+		                ConformerMerge.DUPLICATE_THRESHOLD);
+		assertEquals(2, PartialOutput.countRecords(merged));
+		assertTrue(merged.contains("    1.3000"));
+	}
+
+	@Test
+	public void testMovedConformerIsDuplicate() throws Exception {
+		String merged = ConformerMerge.merge(
+		                Arrays.asList(conformer("p", ANTI),
+		                              conformer("p", move(ANTI, 2.0, 5))),
+		                ConformerMerge.DUPLICATE_THRESHOLD);
+		assertEquals(1, PartialOutput.countRecords(merged));
+	}
+}
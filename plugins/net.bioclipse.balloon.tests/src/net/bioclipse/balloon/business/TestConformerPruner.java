@@ -0,0 +1,148 @@
+package net.bioclipse.balloon.business;
+
+import static net.bioclipse.balloon.business.TestConformerMerge.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestConformerPruner {
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private static double[] flat(double[][] atoms) {
+		double[] flat = new double[atoms.length * 3];
+		for (int i = 0; i < atoms.length; i++)
+			System.arraycopy(atoms[i], 0, flat, i * 3, 3);
+		return flat;
+	}
+
+	static String withEnergy(String conformer, double energy) {
+		return conformer.replace("M  END\n",
+		                         "M  END\n> <energy>\n" + energy + "\n\n");
+	}
+
+	static String withBonds(String conformer, String... bonds) {
+		StringBuilder block = new StringBuilder();
+		for (String bond : bonds)
+			block.append(bond).append('\n');
+		return conformer.replaceFirst("(?m)^(...)  0(.*V2000)$",
+		                              String.format("$1%3d$2", bonds.length))
+		                .replace("M  END\n", block + "M  END\n");
+	}
+
+	@Test
+	public void testRmsdAfterSuperposition() {
+		assertEquals(0, ConformerPruner.rmsd(flat(ANTI),
+		                                     flat(move(ANTI, 1.3, -4))),
+		             1e-6);
+		// Only the last atom differs
+		double rmsd = ConformerPruner.rmsd(flat(ANTI), flat(GAUCHE));
+		assertTrue(rmsd > 0.3 && rmsd < 1.5);
+	}
+
+	@Test
+	public void testKeepsLowestEnergyOfCluster() throws Exception {
+		String sdf = withEnergy(conformer("p", ANTI), 12.5)
+		             + withEnergy(conformer("p", GAUCHE), 11.0)
+		             + withEnergy(conformer("p", move(ANTI, 0.5, 1)), 10.0);
+		String first = new ConformerPruner(0.1, false).prune(sdf);
+		assertEquals(2, PartialOutput.countRecords(first));
+		assertTrue(first.contains("12.5"));
+
+		String lowest = new ConformerPruner(0.1, true).prune(sdf);
+		assertEquals(2, PartialOutput.countRecords(lowest));
+		assertFalse(lowest.contains("12.5"));
+		// Still in input order
+		assertTrue(lowest.indexOf("11.0") < lowest.indexOf("10.0"));
+	}
+
+	@Test
+	public void testMoleculesArePrunedApart() throws Exception {
+		String sdf = conformer("a", ANTI) + conformer("a", ANTI)
+		             + conformer("b", ANTI) + conformer("b", ANTI);
+		assertEquals(2, PartialOutput.countRecords(
+		                    new ConformerPruner(0.1, false).prune(sdf)));
+	}
+
+	@Test
+	public void testIsomersAreNotOneMolecule() throws Exception {
+		// Same untitled heavy atoms, bonded as butane and as isobutane
+		String butane = withBonds(conformer("", ANTI), "  1  2  1  0",
+		                          "  2  3  1  0", "  3  4  1  0");
+		String isobutane = withBonds(conformer("", ANTI), "  1  2  1  0",
+		                             "  2  3  1  0", "  2  4  1  0");
+		ConformerPruner pruner = new ConformerPruner(0.1, false);
+		assertEquals(2, PartialOutput.countRecords(pruner.prune(butane
+		                                                        + isobutane)));
+		assertEquals(1, PartialOutput.countRecords(pruner.prune(butane
+		                                                        + butane)));
+	}
+
+	@Test
+	public void testPruneFile() throws Exception {
+		StringBuilder sdf = new StringBuilder();
+		for (int i = 0; i < 20; i++)
+			sdf.append(conformer("m" + i, ANTI))
+			   .append(conformer("m" + i, move(ANTI, i, 0)))
+			   .append(conformer("m" + i, GAUCHE));
+		File in = testFolder.newFile("in.sdf");
+		FileOutputStream out = new FileOutputStream(in);
+		out.write(sdf.toString().getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		File pruned = new File(testFolder.getRoot(), "out.sdf");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			assertEquals(40, new ConformerPruner(0.1, false)
+			                     .pruneFile(in, pruned, executor, 3));
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(new ConformerPruner(0.1, false).prune(sdf.toString()),
+		             new String(java.nio.file.Files.readAllBytes(pruned.toPath()),
+		                        SDFRecordReader.CHARSET));
+	}
+
+	@Test
+	public void testPruneFileByIndex() throws Exception {
+		// Two untitled molecules whose records look the same, as those of
+		// stereoisomers do, with two conformers alike each
+		String sdf = conformer("", ANTI) + conformer("", move(ANTI, 1, 0))
+		             + conformer("", GAUCHE) + conformer("", ANTI);
+		File in = testFolder.newFile("in.sdf");
+		FileOutputStream out = new FileOutputStream(in);
+		out.write(sdf.getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		OutputIndex.Builder builder = new OutputIndex.Builder();
+		builder.add(1, 2);
+		builder.add(2, 2);
+		OutputIndex index = builder.locate(in);
+		ConformerPruner pruner = new ConformerPruner(0.1, false);
+		assertEquals(2, PartialOutput.countRecords(pruner.prune(sdf)));
+
+		File pruned = new File(testFolder.getRoot(), "out.sdf");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		OutputIndex written;
+		try {
+			written = pruner.pruneFile(in, index, pruned, executor, 1);
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(3, written.size());
+		assertEquals(1, written.getPosition(0));
+		assertEquals(2, written.getPosition(1));
+		assertEquals(2, written.getPosition(2));
+		assertEquals(2, written.getConformer(2));
+		assertEquals(conformer("", ANTI) + conformer("", GAUCHE)
+		             + conformer("", ANTI),
+		             new String(java.nio.file.Files.readAllBytes(pruned.toPath()),
+		                        SDFRecordReader.CHARSET));
+	}
+}
@@ -0,0 +1,178 @@
+package net.bioclipse.balloon.business;
+
+import static net.bioclipse.balloon.business.TestConformerMerge.*;
+import static net.bioclipse.balloon.business.TestConformerPruner.withEnergy;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestConformerStore {
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private static final String METHANOL =
+		"methanol\n  Balloon\n\n"
+		+ "  2  1  0  0  0  0  0  0  0  0999 V2000\n"
+		+ "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0  0  0  0  0  0  0\n"
+		+ "    1.4300    0.0000    0.0000 O   0  0  0  0  0  0  0  0  0  0  0  0\n"
+		+ "  1  2  1  0  0  0  0\n"
+		+ "M  END\n$$$$\n";
+
+	// Three atoms and one conformer, so its coordinates end off 8
+	private static final String WATER =
+		"w\n  Balloon\n\n"
+		+ "  3  2  0  0  0  0  0  0  0  0999 V2000\n"
+		+ "    0.0000    0.0000    0.0000 O   0  0  0  0  0  0  0  0  0  0  0  0\n"
+		+ "    0.9600    0.0000    0.0000 H   0  0  0  0  0  0  0  0  0  0  0  0\n"
+		+ "   -0.2400    0.9300    0.0000 H   0  0  0  0  0  0  0  0  0  0  0  0\n"
+		+ "  1  2  1  0  0  0  0\n"
+		+ "  1  3  1  0  0  0  0\n"
+		+ "M  END\n$$$$\n";
+
+	private File store(String sdf) throws Exception {
+		File in = testFolder.newFile("in.sdf");
+		FileOutputStream out = new FileOutputStream(in);
+		out.write(sdf.getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		File store = ConformerStore.storeFor(in.getPath());
+		assertEquals(new File(testFolder.getRoot(), "in.bcs"), store);
+		ConformerStore.write(in, store);
+		return store;
+	}
+
+	@Test
+	public void testReadsBackConformers() throws Exception {
+		ConformerStore store = new ConformerStore(store(
+		    withEnergy(conformer("butane", ANTI), -2.5)
+		    + conformer("butane", GAUCHE) + METHANOL));
+		try {
+			assertEquals(2, store.getMoleculeCount());
+			assertEquals("butane", store.getTitle(0));
+			assertEquals(2, store.getConformerCount(0));
+			assertEquals(4, store.getAtomCount(0));
+			assertEquals(-2.5, store.getEnergy(0, 0), 0);
+			assertTrue(Double.isNaN(store.getEnergy(0, 1)));
+			float[] gauche = store.getCoordinates(0, 1);
+			assertEquals(2.5f, gauche[9], 0);
+			assertEquals(1.3f, gauche[11], 0);
+
+			assertEquals("methanol", store.getTitle(1));
+			assertEquals(1, store.getConformerCount(1));
+			assertArrayEquals(new String[] { "C", "O" },
+			                  store.getAtomSymbols(1));
+			assertEquals(1, store.getBondCount(1));
+			int[] bonds = store.getBonds(1);
+			assertEquals(0, bonds[0]);
+			assertEquals(1, bonds[1]);
+			assertEquals(1, bonds[2]);
+			assertEquals(1.43f, store.getCoordinates(1, 0)[3], 0);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testOneMoleculePerInputPosition() throws Exception {
+		// Inputs 1 and 2 are the same molecule, 3 and 5 failed
+		File in = testFolder.newFile("in.sdf");
+		FileOutputStream out = new FileOutputStream(in);
+		out.write((conformer("", ANTI) + conformer("", GAUCHE)
+		           + conformer("", ANTI) + METHANOL)
+		          .getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		OutputIndex.Builder builder = new OutputIndex.Builder();
+		builder.add(1, 2);
+		builder.add(2, 1);
+		builder.add(4, 1);
+		File file = new File(testFolder.getRoot(), "in.bcs");
+		assertEquals(5, ConformerStore.write(in, builder.build(), 5, file));
+		ConformerStore store = new ConformerStore(file);
+		try {
+			assertEquals(5, store.getMoleculeCount());
+			assertEquals(2, store.getConformerCount(0));
+			assertEquals(1, store.getConformerCount(1));
+			assertEquals(4, store.getAtomCount(1));
+			assertEquals(0, store.getConformerCount(2));
+			assertEquals(0, store.getAtomCount(2));
+			assertEquals("methanol", store.getTitle(3));
+			assertEquals(0, store.getConformerCount(4));
+		} finally {
+			store.close();
+		}
+		// Without the index the first two are one molecule
+		assertEquals(2, ConformerStore.write(in, file));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRecordsMustBeThoseIndexed() throws Exception {
+		File in = testFolder.newFile("in.sdf");
+		FileOutputStream out = new FileOutputStream(in);
+		out.write((conformer("", ANTI) + METHANOL)
+		          .getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		OutputIndex.Builder builder = new OutputIndex.Builder();
+		builder.add(1, 2);
+		ConformerStore.write(in, builder.build(), -1,
+		                     new File(testFolder.getRoot(), "in.bcs"));
+	}
+
+	@Test
+	public void testRecordsAreAligned() throws Exception {
+		File file = store(withEnergy(WATER, -1.5)
+		                  + withEnergy(conformer("b", ANTI), 3) + METHANOL);
+		ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		ConformerStore store = new ConformerStore(file);
+		try {
+			assertEquals(3, bytes.getInt(8));
+			long index = bytes.getLong(16);
+			assertEquals(0, index % 8);
+			for (int m = 0; m < 3; m++) {
+				int at = (int) bytes.getLong((int) index + 8 * m);
+				assertEquals("molecule " + m, 0, at % 8);
+				int energies = at + 16 + ConformerStore.pad(bytes.getInt(at + 12))
+				               + ConformerStore.pad(4 * bytes.getInt(at))
+				               + ConformerStore.pad(12 * bytes.getInt(at + 4));
+				assertEquals("energies of molecule " + m, 0, energies % 8);
+				assertEquals(store.getEnergy(m, 0), bytes.getDouble(energies), 0);
+				assertEquals(store.getCoordinates(m, 0)[3],
+				             bytes.getFloat(energies + 8 + 12), 0);
+			}
+			assertEquals(-1.5, store.getEnergy(0, 0), 0);
+			assertArrayEquals(new String[] { "O", "H", "H" },
+			                  store.getAtomSymbols(0));
+			assertEquals(3, store.getEnergy(1, 0), 0);
+			assertArrayEquals(new int[] { 0, 1, 1, 0, 2, 1 }, store.getBonds(0));
+			assertEquals(0.96f, store.getCoordinates(0, 0)[3], 0);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testNoSuchConformer() throws Exception {
+		ConformerStore store = new ConformerStore(store(METHANOL));
+		try {
+			store.getCoordinates(0, 1);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAStore() throws Exception {
+		File file = testFolder.newFile("in.bcs");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(METHANOL.getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		new ConformerStore(file);
+	}
+}
@@ -0,0 +1,68 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import net.bioclipse.cdk.business.CDKManager;
+
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+public class TestCoordinatePatcher {
+
+	private static final String HYDROGEN =
+		"    0.0000    0.0000    0.0000 H   0  0  0  0  0  0  0  0  0  0  0  0\n";
+
+	/** Methanol as Balloon writes it, heavy atoms first */
+	private static String methanol(String first, String bond) {
+		return "methanol\n  Balloon\n\n"
+		       + "  6  5  0  0  0  0  0  0  0  0999 V2000\n"
+		       + "   -0.7000    0.0100    0.0200 " + first
+		       + "   0  0  0  0  0  0  0  0  0  0  0  0\n"
+		       + "    0.7000    0.0000    0.0000 O   0  0  0  0  0  0  0  0  0  0  0  0\n"
+		       + HYDROGEN + HYDROGEN + HYDROGEN + HYDROGEN
+		       + bond
+		       + "  1  3  1  0  0  0  0\n"
+		       + "  1  4  1  0  0  0  0\n"
+		       + "  1  5  1  0  0  0  0\n"
+		       + "  2  6  1  0  0  0  0\n"
+		       + "M  END\n> <energy>\n-12.5\n\n$$$$\n";
+	}
+
+	private static IAtomContainer input() throws Exception {
+		IAtomContainer input = new CDKManager().fromSMILES("CO")
+		                                       .getAtomContainer();
+		input.getAtom(0).setProperty("id", "carbon");
+		input.setProperty("name", "methanol");
+		return input;
+	}
+
+	@Test
+	public void testKeepsAtomsOfInput() throws Exception {
+		IAtomContainer input = input();
+		IAtomContainer patched = new CoordinatePatcher(input)
+		    .patch(methanol("C", "  1  2  1  0  0  0  0\n"));
+		assertNotNull(patched);
+		assertNotSame(input, patched);
+		assertEquals(6, patched.getAtomCount());
+		assertEquals(5, patched.getBondCount());
+		assertEquals("carbon", patched.getAtom(0).getProperty("id"));
+		assertEquals(-0.7, patched.getAtom(0).getPoint3d().x, 1e-9);
+		assertEquals("methanol", patched.getProperty("name"));
+		assertEquals("-12.5", patched.getProperty("energy"));
+		// The input is left as it was
+		assertEquals(2, input.getAtomCount());
+		assertNull(input.getAtom(0).getPoint3d());
+	}
+
+	@Test
+	public void testOtherElementIsNotPatched() throws Exception {
+		assertNull(new CoordinatePatcher(input())
+		    .patch(methanol("N", "  1  2  1  0  0  0  0\n")));
+	}
+
+	@Test
+	public void testMissingBondIsNotPatched() throws Exception {
+		assertNull(new CoordinatePatcher(input())
+		    .patch(methanol("C", "  3  6  1  0  0  0  0\n")));
+	}
+}
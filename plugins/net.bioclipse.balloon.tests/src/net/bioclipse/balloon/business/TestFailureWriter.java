@@ -0,0 +1,91 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFailureWriter {
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private static final String RECORD = "ethanol\n  test\n\n"
+	        + "  3  2  0  0  0  0  0  0  0  0999 V2000\n"
+	        + "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0\n"
+	        + "    0.0000    0.0000    0.0000 C   0  0  0  0  0  0\n"
+	        + "    0.0000    0.0000    0.0000 O   0  0  0  0  0  0\n"
+	        + "  1  2  1  0\n  2  3  1  0\nM  END\n"
+	        + "> <id>\n42\n\n"
+	        + "> <balloon.failure>\nTIMEOUT\n\n"
+	        + "$$$$\n";
+
+	private static String read(File file) throws IOException {
+		SDFRecordReader reader = new SDFRecordReader(new FileInputStream(file));
+		StringBuilder text = new StringBuilder();
+		SDFRecordReader.SDFRecord record;
+		while ((record = reader.next()) != null)
+			text.append(record.text);
+		reader.close();
+		return text.toString();
+	}
+
+	@Test
+	public void testFailuresFileName() {
+		assertEquals("mols_3d_failures.sdf",
+		             FailureWriter.failuresFor("/tmp/mols_3d.sdf").getName());
+		assertEquals("mols_3d_failures.sdf",
+		             FailureWriter.failuresFor("/tmp/mols_3d.sdf.gz").getName());
+	}
+
+	@Test
+	public void testNoFileWithoutFailures() throws IOException {
+		File file = new File(testFolder.getRoot(), "none_failures.sdf");
+		FailureWriter failures = new FailureWriter(file);
+		failures.close();
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void testRecordWithReasons() throws IOException {
+		File file = new File(testFolder.getRoot(), "mols_3d_failures.sdf");
+		FailureWriter failures = new FailureWriter(file);
+		Map<Object, Object> properties = new HashMap<Object, Object>();
+		properties.put("name", "ethanol");
+		failures.write(7, RECORD, properties, new BalloonException(
+		        BalloonException.FailureClass.REJECTED, "Molecule too big"));
+		failures.write(8, null, null, new BalloonException(
+		        BalloonException.FailureClass.PARSE, "Could not read\n\nit"));
+		failures.close();
+		assertEquals(2, failures.getCount());
+
+		String sdf = read(file);
+		assertTrue(sdf.startsWith("ethanol\n"));
+		assertTrue(sdf.contains("> <id>\n42\n\n"));
+		assertTrue(sdf.contains("> <name>\nethanol\n\n"));
+		assertTrue(sdf.contains("> <balloon.position>\n7\n\n"));
+		assertTrue(sdf.contains("> <balloon.failure>\nREJECTED\n\n"));
+		// The old failure class is replaced
+		assertFalse(sdf.contains("TIMEOUT"));
+		assertTrue(sdf.contains("> <balloon.failure>\nPARSE\n\n"));
+		assertTrue(sdf.contains("> <balloon.message>\nCould not read\nit\n\n"));
+		assertEquals(2, sdf.split("\\$\\$\\$\\$\n").length);
+	}
+
+	@Test
+	public void testClearTags() {
+		Map<Object, Object> properties = new HashMap<Object, Object>();
+		properties.put("name", "ethanol");
+		properties.put(FailureWriter.FAILURE, "TIMEOUT");
+		properties.put(FailureWriter.POSITION, "3");
+		FailureWriter.clearTags(properties);
+		assertEquals(1, properties.size());
+	}
+}
@@ -30,6 +30,13 @@ public class TestFileNaming {
 		testFileAsString(singleFile,"test_3d_3.mdl");
 	}
 	
+	@Test
+	public void testCompressedOutputKeepsExtension() throws IOException {
+		File compressed = testFolder.newFile("library.sdf.gz");
+		testFileAsPath(compressed, "library_3d.sdf.gz");
+		testFileAsString(compressed, "library_3d_2.sdf.gz");
+	}
+	
 	private void testFileAsPath(File file,String out) throws IOException {
 		File root = testFolder.getRoot();
 		IPath rootPath = new Path(root.getAbsolutePath());
@@ -0,0 +1,84 @@
+package net.bioclipse.balloon.business;
+
+import static net.bioclipse.balloon.business.TestConformerMerge.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.bioclipse.cdk.business.CDKManager;
+import net.bioclipse.cdk.domain.ICDKMolecule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestLazyMoleculeList {
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private LazyMoleculeList list(int molecules, int cacheSize,
+	                              List<Map<Object, Object>> properties)
+	                         throws Exception {
+		File file = testFolder.newFile("results.sdf");
+		FileOutputStream out = new FileOutputStream(file);
+		OutputIndex.Builder builder = new OutputIndex.Builder();
+		for (int i = 1; i <= molecules; i++) {
+			out.write((conformer("m" + i, ANTI) + conformer("m" + i, GAUCHE))
+			          .getBytes(SDFRecordReader.CHARSET));
+			builder.add(i, 2);
+		}
+		out.close();
+		return new LazyMoleculeList(file, builder.write(file),
+		                            new CDKManager(), properties, cacheSize);
+	}
+
+	@Test
+	public void testMoleculesAreReadWhenGot() throws Exception {
+		LazyMoleculeList list = list(5, 2, null);
+		assertEquals(10, list.size());
+		ICDKMolecule gauche = list.get(3);
+		assertEquals(4, gauche.getAtomContainer().getAtomCount());
+		assertEquals(1.3, gauche.getAtomContainer().getAtom(3)
+		                        .getPoint3d().z, 1e-9);
+		list.close();
+	}
+
+	@Test
+	public void testLeastRecentlyUsedAreDropped() throws Exception {
+		LazyMoleculeList list = list(3, 2, null);
+		ICDKMolecule first = list.get(0);
+		assertSame(first, list.get(0));
+		list.get(1);
+		list.get(2);
+		assertNotSame(first, list.get(0));
+		list.close();
+	}
+
+	@Test
+	public void testPropertiesOfEachPosition() throws Exception {
+		List<Map<Object, Object>> properties
+			= new ArrayList<Map<Object, Object>>();
+		properties.add(Collections.<Object, Object>singletonMap("name", "a"));
+		properties.add(Collections.<Object, Object>singletonMap("name", "b"));
+		LazyMoleculeList list = list(2, 4, properties);
+		assertEquals("a", list.get(1).getAtomContainer().getProperty("name"));
+		assertEquals("b", list.get(2).getAtomContainer().getProperty("name"));
+		list.close();
+	}
+
+	@Test
+	public void testCloseDeletesFile() throws Exception {
+		LazyMoleculeList list = list(1, 2, null);
+		File file = new File(testFolder.getRoot(), "results.sdf");
+		assertTrue(file.exists());
+		list.close();
+		assertFalse(file.exists());
+		assertFalse(OutputIndex.indexFor(file.getPath()).exists());
+	}
+}
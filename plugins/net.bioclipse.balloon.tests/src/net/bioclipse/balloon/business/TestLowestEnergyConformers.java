@@ -0,0 +1,115 @@
+package net.bioclipse.balloon.business;
+
+import static net.bioclipse.balloon.business.TestConformerMerge.*;
+import static net.bioclipse.balloon.business.TestConformerPruner.withEnergy;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestLowestEnergyConformers {
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private static String molecule(String title, double... energies) {
+		StringBuilder sdf = new StringBuilder();
+		for (int i = 0; i < energies.length; i++)
+			sdf.append(withEnergy(conformer(title, move(ANTI, i, 0)),
+			                      energies[i]));
+		return sdf.toString();
+	}
+
+	@Test
+	public void testKeepsLowestPerMolecule() throws Exception {
+		String sdf = molecule("a", 105.25, 101.25, 104.25, 102.25, 103.25)
+		             + molecule("b", 109.25, 108.25);
+		String kept = new LowestEnergyConformers(2).select(sdf);
+		assertEquals(4, PartialOutput.countRecords(kept));
+		assertTrue(kept.indexOf("101.25") < kept.indexOf("102.25"));
+		assertFalse(kept.contains("103.25"));
+		assertTrue(kept.contains("109.25") && kept.contains("108.25"));
+		assertTrue(kept.indexOf("108.25") < kept.indexOf("109.25"));
+	}
+
+	@Test
+	public void testConformersWithoutEnergyGoLast() throws Exception {
+		String sdf = conformer("a", ANTI) + withEnergy(conformer("a", GAUCHE), 107.25);
+		String kept = new LowestEnergyConformers(1).select(sdf);
+		assertEquals(1, PartialOutput.countRecords(kept));
+		assertTrue(kept.contains("107.25"));
+	}
+
+	@Test
+	public void testSelectFile() throws Exception {
+		StringBuilder sdf = new StringBuilder();
+		for (int i = 0; i < 10; i++)
+			sdf.append(molecule("m" + i, 3, 2, 1, 4));
+		File in = testFolder.newFile("in.sdf");
+		FileOutputStream out = new FileOutputStream(in);
+		out.write(sdf.toString().getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		File selected = new File(testFolder.getRoot(), "out.sdf");
+		assertEquals(30, new LowestEnergyConformers(3).selectFile(in, selected));
+		assertEquals(new LowestEnergyConformers(3).select(sdf.toString()),
+		             new String(java.nio.file.Files.readAllBytes(selected.toPath()),
+		                        SDFRecordReader.CHARSET));
+	}
+
+	@Test
+	public void testSelectFileByIndex() throws Exception {
+		// Two untitled molecules that look the same in their records, as
+		// stereoisomers do
+		String sdf = molecule("", 3, 1, 2) + molecule("", 5, 4);
+		File in = testFolder.newFile("in.sdf");
+		FileOutputStream out = new FileOutputStream(in);
+		out.write(sdf.getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		OutputIndex.Builder builder = new OutputIndex.Builder();
+		builder.add(1, 3);
+		builder.add(3, 2);
+		OutputIndex index = builder.locate(in);
+		assertEquals(1, PartialOutput.countRecords(
+		                    new LowestEnergyConformers(1).select(sdf)));
+
+		File selected = new File(testFolder.getRoot(), "out.sdf");
+		OutputIndex written = new LowestEnergyConformers(1)
+		                          .selectFile(in, index, selected);
+		assertEquals(2, written.size());
+		assertEquals(1, written.getPosition(0));
+		assertEquals(3, written.getPosition(1));
+		String kept = new String(java.nio.file.Files.readAllBytes(
+		                             selected.toPath()),
+		                         SDFRecordReader.CHARSET);
+		assertTrue(kept.contains("\n1.0\n") && kept.contains("\n4.0\n"));
+		assertEquals(written.getOffset(1), kept.indexOf("\n$$$$\n") + 6);
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void testIndexMustMatch() throws Exception {
+		String sdf = molecule("a", 3, 1, 2);
+		File in = testFolder.newFile("in.sdf");
+		FileOutputStream out = new FileOutputStream(in);
+		out.write(sdf.getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		OutputIndex.Builder builder = new OutputIndex.Builder();
+		builder.add(1, 3);
+		OutputIndex index = builder.locate(in);
+		File bigger = testFolder.newFile("bigger.sdf");
+		out = new FileOutputStream(bigger);
+		out.write((sdf + sdf).getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		new LowestEnergyConformers(1).selectFile(bigger, index,
+		                                         new File(testFolder.getRoot(),
+		                                                  "out.sdf"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testKeepsAtLeastOne() {
+		new LowestEnergyConformers(0);
+	}
+}
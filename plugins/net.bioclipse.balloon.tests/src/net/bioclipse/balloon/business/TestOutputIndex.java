@@ -0,0 +1,112 @@
+package net.bioclipse.balloon.business;
+
+import static net.bioclipse.balloon.business.TestConformerMerge.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestOutputIndex {
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private File output(String sdf) throws Exception {
+		File out = testFolder.newFile("out_3d.sdf");
+		FileOutputStream stream = new FileOutputStream(out);
+		stream.write(sdf.getBytes(SDFRecordReader.CHARSET));
+		stream.close();
+		return out;
+	}
+
+	private static String read(File file, long offset, long length)
+	                      throws Exception {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) length];
+			in.seek(offset);
+			in.readFully(bytes);
+			return new String(bytes, SDFRecordReader.CHARSET);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testRecordsOfEachPosition() throws Exception {
+		// Molecule 2 failed
+		File out = output(conformer("a", ANTI) + conformer("a", GAUCHE)
+		                  + conformer("c", ANTI));
+		OutputIndex.Builder builder = new OutputIndex.Builder();
+		builder.add(1, 2);
+		builder.add(2, 0);
+		builder.add(3, 1);
+		builder.write(out);
+
+		OutputIndex index = OutputIndex.read(OutputIndex.indexFor(out.getPath()));
+		assertEquals(3, index.size());
+		assertEquals(-1, index.firstRecordOf(2));
+		int c = index.firstRecordOf(3);
+		assertEquals(2, c);
+		assertEquals(1, index.getConformer(c));
+		assertEquals(conformer("c", ANTI),
+		             read(out, index.getOffset(c), index.getLength(c)));
+		assertEquals(2, index.getConformer(1));
+		assertEquals(conformer("a", GAUCHE),
+		             read(out, index.getOffset(1), index.getLength(1)));
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongRecordCount() throws Exception {
+		File out = output(conformer("a", ANTI));
+		OutputIndex.Builder builder = new OutputIndex.Builder();
+		builder.add(1, 2);
+		builder.write(out);
+	}
+
+	@Test
+	public void testSplitKeepsMoleculesTogether() throws Exception {
+		StringBuilder sdf = new StringBuilder();
+		OutputIndex.Builder builder = new OutputIndex.Builder();
+		for (int i = 1; i <= 10; i++) {
+			for (int c = 0; c < 3; c++)
+				sdf.append(conformer("m" + i, ANTI));
+			builder.add(i, 3);
+		}
+		File out = output(sdf.toString());
+		OutputIndex index = builder.write(out);
+		long[] split = index.split(4);
+		assertEquals(5, split.length);
+		assertEquals(0, split[0]);
+		assertEquals(out.length(), split[4]);
+		for (int b = 1; b < 4; b++) {
+			int record = -1;
+			for (int i = 0; i < index.size(); i++)
+				if (index.getOffset(i) == split[b])
+					record = i;
+			assertEquals(1, index.getConformer(record));
+		}
+	}
+
+	@Test
+	public void testFromManifest() throws Exception {
+		String first = conformer("a", ANTI) + conformer("a", GAUCHE);
+		File out = output(first + conformer("c", ANTI));
+		RunManifest manifest = new RunManifest(2);
+		manifest.add(new RunManifest.Entry("1", 0, first.length()));
+		manifest.add(RunManifest.Entry.failed("2"));
+		manifest.add(new RunManifest.Entry("3", first.length(),
+		                                   out.length() - first.length()));
+		OutputIndex index = OutputIndex.write(out, manifest);
+		assertEquals(3, index.size());
+		assertEquals(1, index.getPosition(1));
+		assertEquals(3, index.getPosition(2));
+		assertEquals(first.length(), index.getOffset(2));
+	}
+}
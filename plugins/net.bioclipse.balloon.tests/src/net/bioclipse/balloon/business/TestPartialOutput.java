@@ -0,0 +1,31 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestPartialOutput {
+
+	private static final String CONFORMER = "ethanol\n  Balloon\n\n"
+	        + "  1  0  0  0  0  0  0  0  0  0999 V2000\n"
+	        + "    0.1000    0.2000    0.3000 C   0  0  0  0  0  0\n"
+	        + "M  END\n"
+	        + "> <energy>\n12.5\n\n"
+	        + "$$$$\n";
+
+	@Test
+	public void testIncompleteRecordIsDropped() {
+		String killed = CONFORMER + CONFORMER + "ethanol\n  Balloon\n\n  1  0";
+		String salvaged = PartialOutput.salvage(killed, 10);
+		assertEquals(2, PartialOutput.countRecords(salvaged));
+		assertTrue(salvaged.endsWith("> <balloon.conformers>\n2/10\n\n$$$$\n"));
+		assertTrue(salvaged.contains("> <energy>\n12.5\n\n> <balloon.conformers>"));
+	}
+
+	@Test
+	public void testNothingToSalvage() {
+		assertNull(PartialOutput.salvage("ethanol\n  Balloon\n", 10));
+		assertNull(PartialOutput.salvage("", 10));
+		assertNull(PartialOutput.salvage(null, 10));
+	}
+}
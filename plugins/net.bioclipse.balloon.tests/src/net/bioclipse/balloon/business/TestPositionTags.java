@@ -0,0 +1,103 @@
+package net.bioclipse.balloon.business;
+
+import static net.bioclipse.balloon.business.TestConformerMerge.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestPositionTags {
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	@Test
+	public void testTagAndUntag() {
+		assertEquals("[12]aspirin", PositionTags.tag(12, "aspirin"));
+		assertEquals(12, PositionTags.position("[12]aspirin"));
+		assertEquals(3, PositionTags.position("[3]"));
+		assertEquals("aspirin\nrest", PositionTags.untag("[12]aspirin\nrest"));
+		assertEquals(-1, PositionTags.position("aspirin"));
+		assertEquals(-1, PositionTags.position("[]aspirin"));
+		assertEquals(-1, PositionTags.position("[1a]aspirin"));
+		assertEquals("[x]aspirin", PositionTags.untag("[x]aspirin"));
+	}
+
+	@Test
+	public void testTagSmiles() {
+		assertEquals("CCO [5]ethanol\nc1ccccc1 [6]\nCC [7]two words\n",
+		             PositionTags.tagSmiles(5, "CCO ethanol\nc1ccccc1\n\n"
+		                                       + "CC\ttwo words\n"));
+	}
+
+	@Test
+	public void testSmilesLines() {
+		assertEquals(7, PositionTags.smilesPosition("CC [7]two words"));
+		assertEquals("CC two words", PositionTags.untagSmiles("CC [7]two words"));
+		assertEquals(6, PositionTags.smilesPosition("c1ccccc1 [6]"));
+		assertEquals("c1ccccc1", PositionTags.untagSmiles("c1ccccc1 [6]"));
+		assertEquals(-1, PositionTags.smilesPosition("CCO"));
+	}
+
+	@Test
+	public void testTaggingFeed() throws Exception {
+		String sdf = conformer("a", ANTI) + conformer("", GAUCHE);
+		File gzipped = testFolder.newFile("in.sdf.gz");
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(gzipped));
+		out.write(sdf.getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		ByteArrayOutputStream fed = new ByteArrayOutputStream();
+		PositionTags.tagging(gzipped).writeTo(fed);
+		assertEquals("[1]" + conformer("a", ANTI) + "[2]" + conformer("", GAUCHE),
+		             fed.toString(SDFRecordReader.CHARSET));
+	}
+
+	@Test
+	public void testUntagIndexesByPosition() throws Exception {
+		// Molecule 2 failed, 1 and 3 look the same
+		String tagged = conformer("[1]", ANTI) + conformer("[1]", GAUCHE)
+		                + conformer("[3]", ANTI);
+		File in = write("tagged.sdf", tagged);
+		File out = new File(testFolder.getRoot(), "out.sdf");
+		OutputIndex index = PositionTags.untag(in, out).locate(out);
+		assertEquals(conformer("", ANTI) + conformer("", GAUCHE)
+		             + conformer("", ANTI),
+		             new String(java.nio.file.Files.readAllBytes(out.toPath()),
+		                        SDFRecordReader.CHARSET));
+		assertEquals(3, index.size());
+		assertEquals(1, index.getPosition(1));
+		assertEquals(2, index.getConformer(1));
+		assertEquals(3, index.getPosition(2));
+		assertEquals(conformer("", ANTI).length()
+		             + conformer("", GAUCHE).length(), index.getOffset(2));
+	}
+
+	@Test
+	public void testUntaggedRecordsAreNotIndexed() throws Exception {
+		File out = new File(testFolder.getRoot(), "out.sdf");
+		assertNull(PositionTags.untag(write("a.sdf", conformer("[1]", ANTI)
+		                                             + conformer("b", ANTI)),
+		                              out));
+		assertNull(PositionTags.untag(write("b.sdf", conformer("[2]", ANTI)
+		                                             + conformer("[1]", ANTI)),
+		                              out));
+		assertEquals(conformer("", ANTI) + conformer("", ANTI),
+		             new String(java.nio.file.Files.readAllBytes(out.toPath()),
+		                        SDFRecordReader.CHARSET));
+	}
+
+	private File write(String name, String sdf) throws Exception {
+		File file = testFolder.newFile(name);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(sdf.getBytes(SDFRecordReader.CHARSET));
+		out.close();
+		return file;
+	}
+}
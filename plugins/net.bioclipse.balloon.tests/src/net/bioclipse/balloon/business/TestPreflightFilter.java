@@ -0,0 +1,79 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import net.bioclipse.cdk.business.CDKManager;
+
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+public class TestPreflightFilter {
+
+	private static IAtomContainer smiles(String smiles) throws Exception {
+		return new CDKManager().fromSMILES(smiles).getAtomContainer();
+	}
+
+	private static BalloonException.FailureClass rejection(
+	                PreflightFilter filter, String smiles) throws Exception {
+		try {
+			filter.check(smiles(smiles));
+			return null;
+		} catch (BalloonException e) {
+			return e.getFailureClass();
+		}
+	}
+
+	@Test
+	public void testPlainMoleculePasses() throws Exception {
+		PreflightFilter filter = new PreflightFilter(
+		                150, PreflightFilter.Fragments.KEEP);
+		IAtomContainer ethanol = smiles("CCO");
+		assertSame(ethanol, filter.check(ethanol));
+	}
+
+	@Test
+	public void testElementsWithoutParameters() throws Exception {
+		PreflightFilter filter = new PreflightFilter(
+		                150, PreflightFilter.Fragments.KEEP);
+		assertEquals(BalloonException.FailureClass.REJECTED,
+		             rejection(filter, "C[Sn](C)(C)C"));
+		assertNull(rejection(filter, "C[Si](C)(C)C"));
+	}
+
+	@Test
+	public void testTooManyHeavyAtoms() throws Exception {
+		PreflightFilter filter = new PreflightFilter(
+		                5, PreflightFilter.Fragments.KEEP);
+		assertNull(rejection(filter, "CCCCC"));
+		assertEquals(BalloonException.FailureClass.REJECTED,
+		             rejection(filter, "CCCCCC"));
+	}
+
+	@Test
+	public void testMixtures() throws Exception {
+		String salt = "CC(=O)Oc1ccccc1C(=O)O.[Na+].[Cl-]";
+		assertEquals(BalloonException.FailureClass.REJECTED,
+		             rejection(new PreflightFilter(
+		                 0, PreflightFilter.Fragments.KEEP), salt));
+
+		IAtomContainer stripped = new PreflightFilter(
+		                0, PreflightFilter.Fragments.STRIP_SALTS)
+		                .check(smiles(salt));
+		assertEquals(13, stripped.getAtomCount());
+
+		// Two drugs are not a salt
+		String mixture = "CC(=O)Oc1ccccc1C(=O)O.CC(C)Cc1ccc(cc1)C(C)C(=O)O";
+		assertEquals(BalloonException.FailureClass.REJECTED,
+		             rejection(new PreflightFilter(
+		                 0, PreflightFilter.Fragments.STRIP_SALTS), mixture));
+		assertEquals(15, new PreflightFilter(
+		                0, PreflightFilter.Fragments.LARGEST)
+		                .check(smiles(mixture)).getAtomCount());
+	}
+
+	@Test
+	public void testFragmentsAreNumberedInAtomOrder() throws Exception {
+		assertArrayEquals(new int[] { 0, 0, 1, 2, 2 },
+		                  PreflightFilter.partition(smiles("CC.[Na+].OO")));
+	}
+}
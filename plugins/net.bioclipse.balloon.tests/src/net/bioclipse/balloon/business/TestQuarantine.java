@@ -0,0 +1,79 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.bioclipse.balloon.business.BalloonException.FailureClass;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestQuarantine {
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private static final String SMILES = "CC(=O)Oc1ccccc1C(=O)O";
+
+	@Test
+	public void testQuarantinedAfterRepeatedFailures() {
+		Quarantine quarantine = new Quarantine(new File("unused"));
+		quarantine.recordFailure(SMILES, FailureClass.TIMEOUT, "1.0", "c=1");
+		assertNull(quarantine.lookup(SMILES, "1.0", "c=1"));
+		quarantine.recordFailure(SMILES, FailureClass.TIMEOUT, "1.0", "c=1");
+		Quarantine.Entry entry = quarantine.lookup(SMILES, "1.0", "c=1");
+		assertNotNull(entry);
+		assertEquals(2, entry.count);
+		assertEquals(FailureClass.TIMEOUT, entry.failureClass);
+
+		quarantine.recordSuccess(SMILES);
+		assertNull(quarantine.lookup(SMILES, "1.0", "c=1"));
+	}
+
+	@Test
+	public void testFailuresOfTheRunDoNotCount() {
+		Quarantine quarantine = new Quarantine(new File("unused"));
+		for (int i = 0; i < 3; i++) {
+			quarantine.recordFailure(SMILES, FailureClass.INTERRUPTED,
+			                         "1.0", "c=1");
+			quarantine.recordFailure(SMILES, FailureClass.EXECUTION,
+			                         "1.0", "c=1");
+		}
+		assertEquals(0, quarantine.size());
+	}
+
+	@Test
+	public void testEntriesExpire() {
+		Quarantine quarantine = new Quarantine(new File("unused"));
+		quarantine.recordFailure(SMILES, FailureClass.MEMORY_LIMIT, "1.0", "c=1");
+		quarantine.recordFailure(SMILES, FailureClass.MEMORY_LIMIT, "1.0", "c=1");
+		assertNull(quarantine.lookup(SMILES, "1.0", "c=5"));
+		assertEquals(0, quarantine.size());
+
+		quarantine.recordFailure(SMILES, FailureClass.MEMORY_LIMIT, "1.0", "c=1");
+		quarantine.recordFailure(SMILES, FailureClass.MEMORY_LIMIT, "1.0", "c=1");
+		assertNull(quarantine.lookup(SMILES, "1.1", "c=1"));
+	}
+
+	@Test
+	public void testSaveAndRead() throws IOException {
+		File file = new File(testFolder.getRoot(), Quarantine.FILE_NAME);
+		Quarantine quarantine = new Quarantine(file);
+		quarantine.recordFailure(SMILES, FailureClass.FAILED, "1.0",
+		                         "c=1, timeout 600 s, no limits");
+		quarantine.recordFailure(SMILES, FailureClass.CPU_LIMIT, "1.0",
+		                         "c=1, timeout 600 s, no limits");
+		quarantine.save();
+
+		Quarantine read = new Quarantine(file);
+		read.read();
+		Quarantine.Entry entry = read.lookup(SMILES, "1.0",
+		                                     "c=1, timeout 600 s, no limits");
+		assertNotNull(entry);
+		assertEquals(FailureClass.CPU_LIMIT, entry.failureClass);
+		assertEquals(2, entry.count);
+	}
+}
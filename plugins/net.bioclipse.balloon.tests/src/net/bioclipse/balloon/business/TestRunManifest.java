@@ -0,0 +1,114 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import net.bioclipse.balloon.business.SDFRecordReader.SDFRecord;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestRunManifest {
+
+	private static final String RECORD_1 = "mol1\n\n\n  0  0  0  0  0  0  0  0  0  0999 V2000\nM  END\n$$$$\n";
+	private static final String RECORD_2 = "mol2\r\n\r\n\r\n  0  0  0  0  0  0  0  0  0  0999 V2000\r\nM  END\r\n$$$$\r\n";
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	@Test
+	public void testRecordOffsets() throws IOException {
+		SDFRecordReader reader = reader(RECORD_1 + RECORD_2);
+		SDFRecord first = reader.next();
+		SDFRecord second = reader.next();
+		assertNull(reader.next());
+
+		assertEquals(0, first.offset);
+		assertEquals(RECORD_1, first.text);
+		assertEquals(RECORD_1.length(), second.offset);
+		assertEquals(RECORD_2.length(), second.length());
+	}
+
+	@Test
+	public void testTrailingRecordWithoutTerminator() throws IOException {
+		SDFRecordReader reader = reader("mol\n\n\nM  END\n");
+		assertEquals("mol\n\n\nM  END\n", reader.next().text);
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void testHashIgnoresLineEndings() throws IOException {
+		SDFRecord unix = reader(RECORD_2.replace("\r", "")).next();
+		SDFRecord windows = reader(RECORD_2).next();
+		assertEquals(RunManifest.hash(unix), RunManifest.hash(windows));
+		assertFalse(RunManifest.hash(unix).equals(
+				RunManifest.hash(reader(RECORD_1).next())));
+	}
+
+	@Test
+	public void testReadWrite() throws IOException {
+		RunManifest manifest = new RunManifest(5);
+		manifest.add(new RunManifest.Entry("aa", 0, 120));
+		manifest.add(RunManifest.Entry.failed("bb"));
+		manifest.add(new RunManifest.Entry("cc", 120, 80));
+
+		File file = RunManifest.manifestFor(testFolder.getRoot() + "/out_3d.sdf");
+		manifest.write(file);
+		RunManifest read = RunManifest.read(file);
+
+		assertEquals(5, read.getNumConformations());
+		assertEquals(3, read.getEntries().size());
+		assertEquals(120, read.lookup("cc").offset);
+		assertEquals(80, read.lookup("cc").length);
+		assertNull("failed records are recomputed", read.lookup("bb"));
+		assertNull(RunManifest.read(new File(testFolder.getRoot(), "none")));
+	}
+
+	@Test
+	public void testOutputFingerprint() throws IOException {
+		File output = new File(testFolder.getRoot(), "out_3d.sdf");
+		write(output, RECORD_1 + RECORD_1);
+		RunManifest manifest = new RunManifest(1);
+		manifest.add(new RunManifest.Entry("aa", 0, RECORD_1.length()));
+		manifest.setOutput(output.length(), RunManifest.hash(output));
+		File file = RunManifest.manifestFor(output.getPath());
+		manifest.write(file);
+		assertFalse(new File(file.getPath() + ".part").exists());
+
+		RunManifest read = RunManifest.read(file);
+		assertTrue(read.describes(output));
+		write(output, RECORD_1 + RECORD_1.replace("mol1", "mol9"));
+		assertFalse("same length, other bytes", read.describes(output));
+		write(output, RECORD_1);
+		assertFalse(read.describes(output));
+	}
+
+	@Test
+	public void testManifestWithoutFingerprintDescribesNothing()
+	                                                   throws IOException {
+		File output = new File(testFolder.getRoot(), "out_3d.sdf");
+		write(output, RECORD_1);
+		File file = RunManifest.manifestFor(output.getPath());
+		write(file, "# Balloon run manifest\nnumConformations=1\naa\t0\t"
+		            + RECORD_1.length() + "\n");
+		RunManifest read = RunManifest.read(file);
+		assertEquals(1, read.getEntries().size());
+		assertFalse(read.describes(output));
+	}
+
+	private static void write(File file, String content) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		writer.write(content);
+		writer.close();
+	}
+
+	private SDFRecordReader reader(String content) throws IOException {
+		return new SDFRecordReader(new ByteArrayInputStream(
+				content.getBytes(SDFRecordReader.CHARSET)));
+	}
+}
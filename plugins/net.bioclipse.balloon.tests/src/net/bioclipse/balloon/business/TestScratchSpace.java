@@ -0,0 +1,100 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.bioclipse.balloon.runner.NamedPipes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestScratchSpace {
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	@Test
+	public void testReleaseFreesSpace() throws IOException {
+		ScratchSpace scratch = new ScratchSpace(testFolder.getRoot(), 1024);
+		ScratchSpace.Job job = scratch.newJob();
+		File file = job.write("balloon", ".mol", "0123456789");
+		assertTrue(file.exists());
+		assertEquals(10, scratch.getUsed());
+
+		job.release(file);
+		assertFalse(file.exists());
+		assertEquals(0, scratch.getUsed());
+		job.close();
+	}
+
+	@Test
+	public void testWriteFromFeed() throws IOException {
+		ScratchSpace scratch = new ScratchSpace(testFolder.getRoot(), 1024);
+		ScratchSpace.Job job = scratch.newJob();
+		// Larger than the quota, let through as nothing else uses space
+		File file = job.write("balloon", ".sdf", feed(3000, false));
+		assertEquals(3000, file.length());
+		assertEquals(3000, scratch.getUsed());
+
+		job.release(file);
+		assertFalse(file.exists());
+		assertEquals(0, scratch.getUsed());
+		job.close();
+	}
+
+	@Test
+	public void testFailedFeedFreesSpace() throws IOException {
+		ScratchSpace scratch = new ScratchSpace(testFolder.getRoot(), 1 << 20);
+		ScratchSpace.Job job = scratch.newJob();
+		try {
+			job.write("balloon", ".sdf", feed(200000, true));
+			fail("the feed failed");
+		} catch (IOException e) {
+			assertEquals("feed failed", e.getMessage());
+		}
+		assertEquals(0, scratch.getUsed());
+		assertEquals("only the lock is left", 1,
+		             job.getDirectory().list().length);
+		job.close();
+	}
+
+	@Test
+	public void testCloseRemovesJobDirectory() throws IOException {
+		ScratchSpace scratch = new ScratchSpace(testFolder.getRoot(), 1024);
+		ScratchSpace.Job job = scratch.newJob();
+		job.write("balloon", ".mol", "0123456789");
+		File dir = job.getDirectory();
+		job.close();
+		assertFalse(dir.exists());
+		assertEquals(0, scratch.getUsed());
+	}
+
+	private static NamedPipes.Feed feed(final int bytes, final boolean fail) {
+		return new NamedPipes.Feed() {
+			public void writeTo(OutputStream out) throws IOException {
+				for (int i = 0; i < bytes; i++)
+					out.write('x');
+				if (fail)
+					throw new IOException("feed failed");
+			}
+		};
+	}
+
+	@Test
+	public void testCleanStaleKeepsLiveJobs() throws IOException {
+		ScratchSpace scratch = new ScratchSpace(testFolder.getRoot(), 1024);
+		ScratchSpace.Job live = scratch.newJob();
+		File stale = new File(testFolder.getRoot(), "job-0-0");
+		assertTrue(stale.mkdir());
+		assertTrue(new File(stale, "balloon1.mol").createNewFile());
+
+		scratch.cleanStale();
+		assertFalse(stale.exists());
+		assertTrue(live.getDirectory().exists());
+		live.close();
+	}
+}
@@ -0,0 +1,91 @@
+package net.bioclipse.balloon.business;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSmilesChunks {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static SmilesChunks chunks(String smiles, int lines) {
+		return new SmilesChunks(new BufferedReader(new StringReader(smiles)),
+		                        lines);
+	}
+
+	@Test
+	public void testChunksKeepLinesAndOrder() throws Exception {
+		SmilesChunks chunks = chunks("CCO ethanol\r\nCC ethane\n\nC\nCCC propane\n", 2);
+		assertEquals("CCO ethanol\nCC ethane\n", chunks.next());
+		assertEquals(1, chunks.getFirst());
+		assertEquals(2, chunks.getSize());
+		assertEquals("C\nCCC propane\n", chunks.next());
+		assertEquals(3, chunks.getFirst());
+		assertEquals(2, chunks.getSize());
+		assertNull(chunks.next());
+		assertEquals(2, chunks.getChunks());
+	}
+
+	@Test
+	public void testLastChunkIsShorter() throws Exception {
+		SmilesChunks chunks = chunks("C\nCC\nCCC\n", 2);
+		chunks.next();
+		assertEquals("CCC\n", chunks.next());
+		assertEquals(3, chunks.getFirst());
+		assertEquals(1, chunks.getSize());
+		assertNull(chunks.next());
+	}
+
+	@Test
+	public void testChunkLines() {
+		assertEquals(1, SmilesChunks.chunkLines(0, 4));
+		assertEquals(1, SmilesChunks.chunkLines(10, 4));
+		assertEquals(7, SmilesChunks.chunkLines(100, 4));
+		assertEquals(SmilesChunks.MAX_LINES,
+		             SmilesChunks.chunkLines(1000000, 4));
+	}
+
+	@Test
+	public void testTimeoutIsCapped() {
+		assertEquals(3000, SmilesChunks.timeoutMs(1000, 3));
+		assertEquals(SmilesChunks.MAX_TIMEOUT_MS,
+		             SmilesChunks.timeoutMs(600 * 1000, SmilesChunks.MAX_LINES));
+		// One molecule always gets its whole timeout
+		assertEquals(SmilesChunks.MAX_TIMEOUT_MS * 2,
+		             SmilesChunks.timeoutMs(SmilesChunks.MAX_TIMEOUT_MS * 2, 1));
+	}
+
+	@Test
+	public void testCountMolecules() throws Exception {
+		File file = folder.newFile("library.smi");
+		FileWriter writer = new FileWriter(file);
+		writer.write("CCO ethanol\n\nCC\n  \nC methane");
+		writer.close();
+		assertEquals(3, SmilesChunks.countMolecules(file));
+	}
+
+	@Test
+	public void testJoin() {
+		assertEquals("CCO ethanol\nCC\n",
+		             SmilesChunks.join(Arrays.asList("CCO ethanol", " CC ")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testJoinRejectsLineBreaks() {
+		SmilesChunks.join(Arrays.asList("CC\nCCO"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testJoinRejectsEmpty() {
+		SmilesChunks.join(Arrays.asList("CC", ""));
+	}
+}
@@ -0,0 +1,128 @@
+package net.bioclipse.balloon.runner;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestNamedPipes {
+
+	private static final String SDF = "mol\u00e5\n\n\n  0  0  0  0  0  0  0  0  0  0999 V2000\nM  END\n$$$$\n";
+
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	@Before
+	public void needsPipes() {
+		Assume.assumeTrue(NamedPipes.isSupported());
+	}
+
+	@Test
+	public void testPassesDataThrough() throws IOException, InterruptedException {
+		NamedPipes pipes = NamedPipes.create(testFolder.getRoot(), ".sdf");
+		assertTrue(pipes.getInput().getName().endsWith(".sdf"));
+		pipes.start(SDF);
+		ProcessResult result = run(pipes, "cat \"$0\" > \"$1\"");
+		assertTrue(result.describe(), result.isSuccess());
+		assertEquals(SDF, pipes.finish());
+		assertNull(pipes.getFailure());
+		pipes.delete();
+	}
+
+	@Test
+	public void testFeedsIntoFile() throws IOException, InterruptedException {
+		NamedPipes pipes = NamedPipes.create(testFolder.getRoot(), ".sdf");
+		File output = new File(testFolder.getRoot(), "out.sdf");
+		pipes.start(new NamedPipes.Feed() {
+			public void writeTo(OutputStream out) throws IOException {
+				for (int i = 0; i < 1000; i++)
+					out.write(SDF.getBytes(NamedPipes.CHARSET));
+			}
+		}, output);
+		assertTrue(run(pipes, "cat \"$0\" > \"$1\"").isSuccess());
+		assertEquals("", pipes.finish());
+		assertNull(pipes.getFailure());
+		assertEquals(1000 * SDF.length(), output.length());
+		pipes.delete();
+	}
+
+	@Test
+	public void testFeedFailure() throws IOException, InterruptedException {
+		NamedPipes pipes = NamedPipes.create(testFolder.getRoot(), ".sdf");
+		File output = new File(testFolder.getRoot(), "out.sdf");
+		pipes.start(new NamedPipes.Feed() {
+			public void writeTo(OutputStream out) throws IOException {
+				out.write(SDF.getBytes(NamedPipes.CHARSET));
+				throw new IOException("Unreadable input");
+			}
+		}, output);
+		// Balloon sees the input end early
+		assertTrue(run(pipes, "cat \"$0\" > \"$1\"").isSuccess());
+		pipes.finish();
+		assertEquals("Unreadable input", pipes.getFailure().getMessage());
+		assertEquals(SDF.length(), output.length());
+		pipes.delete();
+	}
+
+	@Test
+	public void testPipesNeverOpened() throws IOException, InterruptedException {
+		// Balloon failing before it opens its files must not leave the
+		// feeder and collector blocked
+		NamedPipes pipes = NamedPipes.create(testFolder.getRoot(), ".sdf");
+		pipes.start(SDF);
+		assertFalse(run(pipes, "exit 1").isSuccess());
+		long start = System.currentTimeMillis();
+		assertEquals("", pipes.finish());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		pipes.delete();
+	}
+
+	@Test
+	public void testOutputNeverOpened() throws IOException, InterruptedException {
+		NamedPipes pipes = NamedPipes.create(testFolder.getRoot(), ".sdf");
+		pipes.start(SDF);
+		assertTrue(run(pipes, "cat \"$0\" > /dev/null").isSuccess());
+		assertEquals("", pipes.finish());
+		pipes.delete();
+	}
+
+	@Test
+	public void testInputNeverOpened() throws IOException, InterruptedException {
+		NamedPipes pipes = NamedPipes.create(testFolder.getRoot(), ".sdf");
+		pipes.start(SDF);
+		assertTrue(run(pipes, "echo written > \"$1\"").isSuccess());
+		assertEquals("written\n", pipes.finish());
+		pipes.delete();
+	}
+
+	@Test
+	public void testDeleteRemovesDirectory() throws IOException {
+		NamedPipes pipes = NamedPipes.create(testFolder.getRoot(), ".sdf");
+		File dir = pipes.getInput().getParentFile();
+		assertTrue(pipes.getInput().exists());
+		assertTrue(pipes.getOutput().exists());
+		pipes.delete();
+		assertFalse(dir.exists());
+		assertEquals(0, testFolder.getRoot().list().length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingParent() throws IOException {
+		NamedPipes.create(new File(testFolder.getRoot(), "missing"), ".sdf");
+	}
+
+	private static ProcessResult run(NamedPipes pipes, String script)
+	                            throws IOException, InterruptedException {
+		return ProcessLauncher.getDefault().run(
+				new String[] { "/bin/sh", "-c", script,
+				               pipes.getInput().getPath(),
+				               pipes.getOutput().getPath() }, 10000);
+	}
+}
@@ -0,0 +1,94 @@
+package net.bioclipse.balloon.runner;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestProcessLauncher {
+
+	private final ProcessLauncher launcher = ProcessLauncher.getDefault();
+
+	@Before
+	public void needsShell() {
+		Assume.assumeTrue(new File("/bin/sh").exists());
+	}
+
+	@Test
+	public void testExitValue() throws IOException, InterruptedException {
+		ProcessResult result = launcher.run(sh("exit 3"), 10000);
+		assertEquals(3, result.getExitValue());
+		assertFalse(result.isSuccess());
+		assertFalse(result.isTimedOut());
+		assertNull(result.getBreach());
+		assertTrue(result.describe().startsWith("exit value 3"));
+
+		assertTrue(launcher.run(sh("exit 0"), 10000).isSuccess());
+	}
+
+	@Test
+	public void testCapturesOutput() throws IOException, InterruptedException {
+		ProcessResult result = launcher.run(sh("echo out; echo err >&2"),
+		                                    10000);
+		assertTrue(result.isSuccess());
+		assertEquals("out\n", result.getStdout());
+		assertEquals("err\n", result.getStderr());
+		assertTrue(result.describe().endsWith(": err"));
+	}
+
+	@Test
+	public void testKeepsOnlyTheTail() throws IOException, InterruptedException {
+		ProcessResult result = launcher.run(
+				sh("i=0; while [ $i -lt 100 ]; do echo line $i; i=$((i+1)); done;"
+				   + " printf 0123456789 >&2"), 10000, 8);
+		assertTrue(result.isSuccess());
+		assertEquals("line 99\n", result.getStdout());
+		assertEquals("23456789", result.getStderr());
+	}
+
+	@Test
+	public void testCpuTimeOfShortRun() throws IOException,
+	                                           InterruptedException {
+		ProcessResult result = launcher.run(
+				sh("i=0; while [ $i -lt 100000 ]; do i=$((i+1)); done"), 10000);
+		assertTrue(result.isSuccess());
+		assertTrue("read when the process closes its output",
+		           result.getCpuTimeMs() > 0);
+	}
+
+	@Test
+	public void testKillsOnTimeout() throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		ProcessResult result = launcher.run(sh("echo started; sleep 30; "
+		                                       + "echo done"), 300);
+		assertTrue(System.currentTimeMillis() - start < 10000);
+		assertTrue(result.isTimedOut());
+		assertFalse(result.isSuccess());
+		assertNull("a timeout is not a breach", result.getBreach());
+		assertEquals("started\n", result.getStdout());
+		assertTrue(result.describe().startsWith("timed out"));
+		assertEquals(0, launcher.getRunningCount());
+	}
+
+	@Test
+	public void testKillsChildren() throws IOException, InterruptedException {
+		// The shell waits for a child, both have to go for the run to end
+		long start = System.currentTimeMillis();
+		ProcessResult result = launcher.run(sh("sleep 30 & wait"), 300);
+		assertTrue(result.isTimedOut());
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingCommand() throws IOException, InterruptedException {
+		launcher.run(new String[] { "/no/such/balloon" }, 10000);
+	}
+
+	static String[] sh(String script) {
+		return new String[] { "/bin/sh", "-c", script };
+	}
+}
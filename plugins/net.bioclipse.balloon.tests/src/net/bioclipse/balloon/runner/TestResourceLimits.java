@@ -0,0 +1,132 @@
+package net.bioclipse.balloon.runner;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class TestResourceLimits {
+
+	private static final String[] COMMAND = { "/opt/balloon", "-c5", "in.sdf",
+	                                          "out.sdf" };
+
+	private final ResourceLimits all = new ResourceLimits(1024 * 1024, 10,
+	                                                      512 * 1024);
+
+	@Test
+	public void testClassifiesSignals() {
+		// Deaths by signal show as 128 + the signal number
+		assertEquals(ResourceLimits.Breach.CPU_TIME,
+		             all.classify(128 + 24, false, ""));
+		assertEquals(ResourceLimits.Breach.FILE_SIZE,
+		             all.classify(128 + 25, false, ""));
+		assertNull("an abort is not taken for running out of memory",
+		           all.classify(128 + 6, false, ""));
+		assertNull("nor is a segmentation fault",
+		           all.classify(128 + 11, false, ""));
+		assertEquals("the hard CPU limit kills",
+		             ResourceLimits.Breach.CPU_TIME,
+		             all.classify(128 + 9, false, ""));
+		assertNull(all.classify(1, false, ""));
+		assertNull(all.classify(0, false, ""));
+	}
+
+	@Test
+	public void testClassifiesOutOfMemoryMessages() {
+		assertEquals(ResourceLimits.Breach.MEMORY,
+		             all.classify(1, false, "terminate called after throwing "
+		                                    + "an instance of 'std::bad_alloc'"));
+		assertEquals(ResourceLimits.Breach.MEMORY,
+		             all.classify(2, false, "Cannot allocate memory"));
+		assertEquals(ResourceLimits.Breach.MEMORY,
+		             all.classify(128 + 6, false, "std::bad_alloc"));
+	}
+
+	@Test
+	public void testOnlyLimitsSetAreBreached() {
+		ResourceLimits cpu = new ResourceLimits(0, 10, 0);
+		assertNull(cpu.classify(128 + 25, false, ""));
+		assertNull(cpu.classify(128 + 11, false, "bad_alloc"));
+		ResourceLimits memory = new ResourceLimits(1024 * 1024, 0, 0);
+		assertNull(memory.classify(128 + 24, false, ""));
+		assertNull(memory.classify(128 + 9, false, ""));
+		assertNull(ResourceLimits.NONE.classify(128 + 24, false, ""));
+	}
+
+	@Test
+	public void testTimeoutIsNoBreach() {
+		assertNull(all.classify(128 + 9, true, ""));
+	}
+
+	@Test
+	public void testNoLimitsLeavesCommand() {
+		assertSame(COMMAND, ResourceLimits.NONE.wrap(COMMAND));
+		assertSame(COMMAND, ResourceLimits.NONE.wrap(COMMAND, "/usr/bin/prlimit",
+		                                             true));
+	}
+
+	@Test
+	public void testWrapsInPrlimit() {
+		String[] wrapped = all.wrap(COMMAND, "/usr/bin/prlimit", true);
+		assertEquals(Arrays.asList("/usr/bin/prlimit", "--as=1048576",
+		                           "--cpu=10:15", "--fsize=524288", "--",
+		                           "/opt/balloon", "-c5", "in.sdf", "out.sdf"),
+		             Arrays.asList(wrapped));
+
+		wrapped = new ResourceLimits(0, 10, 0).wrap(COMMAND, "/bin/prlimit",
+		                                             false);
+		assertEquals(Arrays.asList("/bin/prlimit", "--cpu=10:15", "--",
+		                           "/opt/balloon", "-c5", "in.sdf", "out.sdf"),
+		             Arrays.asList(wrapped));
+	}
+
+	@Test
+	public void testWrapsInUlimitWithoutPrlimit() {
+		String[] wrapped = all.wrap(COMMAND, null, true);
+		assertEquals(7, wrapped.length);
+		assertEquals("/bin/sh", wrapped[0]);
+		assertEquals("-c", wrapped[1]);
+		// Kilobytes and 512 byte blocks
+		assertEquals("ulimit -v 1024 2>/dev/null; ulimit -t 10 2>/dev/null; "
+		             + "ulimit -f 1024 2>/dev/null; exec \"$0\" \"$@\"",
+		             wrapped[2]);
+		assertEquals(Arrays.asList(COMMAND),
+		             Arrays.asList(wrapped).subList(3, 7));
+	}
+
+	@Test
+	public void testNothingToWrapWith() {
+		assertSame(COMMAND, all.wrap(COMMAND, null, false));
+	}
+
+	@Test
+	public void testUlimitAppliesToCommand()
+	                                  throws IOException, InterruptedException {
+		Assume.assumeTrue(new File("/bin/sh").exists());
+		String[] command = new ResourceLimits(0, 7, 0).wrap(
+				TestProcessLauncher.sh("ulimit -t; echo \"$@\""), null, true);
+		String[] withArguments = Arrays.copyOf(command, command.length + 2);
+		withArguments[command.length] = "balloon";
+		withArguments[command.length + 1] = "a b";
+		ProcessResult result = ProcessLauncher.getDefault()
+		                                      .run(withArguments, 10000);
+		assertTrue(result.describe(), result.isSuccess());
+		assertEquals("7\na b\n", result.getStdout());
+	}
+
+	@Test
+	public void testBreachFromProcess() throws IOException, InterruptedException {
+		Assume.assumeTrue(ResourceLimits.isSupported());
+		ProcessResult result = ProcessLauncher.getDefault().run(
+				TestProcessLauncher.sh("kill -s XFSZ $$"), 10000,
+				new ResourceLimits(0, 0, 1024 * 1024));
+		assertEquals(128 + 25, result.getExitValue());
+		assertEquals(ResourceLimits.Breach.FILE_SIZE, result.getBreach());
+		assertTrue(result.describe().startsWith("exceeded the output size "
+		                                        + "limit"));
+	}
+}
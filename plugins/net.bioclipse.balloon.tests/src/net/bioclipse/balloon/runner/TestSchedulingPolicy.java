@@ -0,0 +1,76 @@
+package net.bioclipse.balloon.runner;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestSchedulingPolicy {
+
+	private static final String[] COMMAND = { "/opt/balloon", "in.sdf" };
+
+	@Test
+	public void testNormalLeavesCommand() {
+		assertSame(COMMAND, SchedulingPolicy.NORMAL.wrap(COMMAND));
+		assertSame(COMMAND, SchedulingPolicy.NORMAL.wrap(COMMAND, "/usr/bin/nice",
+		                                                 "/usr/bin/taskset"));
+	}
+
+	@Test
+	public void testWrapsInNiceAndTaskset() {
+		SchedulingPolicy policy = new SchedulingPolicy(10, "2-3");
+		assertEquals(Arrays.asList("/usr/bin/nice", "-n", "10",
+		                           "/usr/bin/taskset", "-c", "2-3",
+		                           "/opt/balloon", "in.sdf"),
+		             Arrays.asList(policy.wrap(COMMAND, "/usr/bin/nice",
+		                                       "/usr/bin/taskset")));
+	}
+
+	@Test
+	public void testSkipsMissingTools() {
+		SchedulingPolicy policy = new SchedulingPolicy(10, "2-3");
+		// Mac OS X has nice but no taskset
+		assertEquals(Arrays.asList("/usr/bin/nice", "-n", "10",
+		                           "/opt/balloon", "in.sdf"),
+		             Arrays.asList(policy.wrap(COMMAND, "/usr/bin/nice", null)));
+		assertEquals(Arrays.asList("/bin/taskset", "-c", "2-3",
+		                           "/opt/balloon", "in.sdf"),
+		             Arrays.asList(policy.wrap(COMMAND, null, "/bin/taskset")));
+		assertSame(COMMAND, policy.wrap(COMMAND, null, null));
+	}
+
+	@Test
+	public void testOnlyWhatIsSetIsApplied() {
+		assertEquals(Arrays.asList("/usr/bin/taskset", "-c", "0,2",
+		                           "/opt/balloon", "in.sdf"),
+		             Arrays.asList(new SchedulingPolicy(0, "0, 2")
+		                               .wrap(COMMAND, "/usr/bin/nice",
+		                                     "/usr/bin/taskset")));
+		assertEquals(Arrays.asList("/usr/bin/nice", "-n", "19",
+		                           "/opt/balloon", "in.sdf"),
+		             Arrays.asList(new SchedulingPolicy(19, "")
+		                               .wrap(COMMAND, "/usr/bin/nice",
+		                                     "/usr/bin/taskset")));
+	}
+
+	@Test
+	public void testCpuSets() {
+		assertTrue(SchedulingPolicy.isValidCpuSet("0"));
+		assertTrue(SchedulingPolicy.isValidCpuSet("0-3,6, 8-9"));
+		assertFalse(SchedulingPolicy.isValidCpuSet("0-"));
+		assertFalse(SchedulingPolicy.isValidCpuSet("a"));
+		assertNull(new SchedulingPolicy(5, " ").getCpuSet());
+		assertEquals("0-3,6", new SchedulingPolicy(5, "0-3, 6").getCpuSet());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNiceLevelOutOfRange() {
+		new SchedulingPolicy(SchedulingPolicy.MAX_NICE + 1, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformedCpuSet() {
+		new SchedulingPolicy(0, "1;2");
+	}
+}
@@ -0,0 +1,253 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.runner;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A pair of named pipes (FIFOs) that Balloon can be given instead of an
+ * input and an output file. The input is fed to one pipe and the output
+ * collected from the other while Balloon runs, so no molecule data is
+ * written to disk. Shared by the platform specific runners.
+ * <p>
+ * Only available where <code>mkfifo</code> exists, i.e. not on Windows.
+ */
+public class NamedPipes {
+
+    /** Charset used for the data in the pipes, one byte per char */
+    public static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    private static final String[] MKFIFO = { "/usr/bin/mkfifo",
+                                             "/bin/mkfifo" };
+
+    private static final long JOIN_TIMEOUT_MS = 5000;
+
+    private final File dir;
+    private final File input;
+    private final File output;
+
+    private Thread feeder;
+    private Thread collector;
+    private final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    private volatile IOException failure;
+
+    /**
+     * Writes the input of a Balloon run, for input that is made while it
+     * is read rather than held in memory.
+     */
+    public interface Feed {
+
+        /**
+         * Writes all of the input to <code>out</code>, which is closed
+         * afterwards by the caller.
+         */
+        void writeTo( OutputStream out ) throws IOException;
+    }
+
+    private NamedPipes( File dir, String suffix ) {
+        this.dir = dir;
+        // Balloon decides the format from the file extension
+        this.input = new File( dir, "in" + suffix );
+        this.output = new File( dir, "out" + suffix );
+    }
+
+    /**
+     * @return whether named pipes can be created on this platform
+     */
+    public static boolean isSupported() {
+        return mkfifo() != null;
+    }
+
+    private static String mkfifo() {
+        for ( String path : MKFIFO ) {
+            if ( new File( path ).exists() )
+                return path;
+        }
+        return null;
+    }
+
+    /**
+     * Creates the input and output pipes in a new directory below
+     * <code>parent</code>.
+     *
+     * @param suffix file extension telling Balloon the format, e.g. ".sdf"
+     */
+    public static NamedPipes create( File parent, String suffix )
+                             throws IOException {
+        String mkfifo = mkfifo();
+        if ( mkfifo == null )
+            throw new IOException( "mkfifo is not available" );
+        File dir = File.createTempFile( "pipes", "", parent );
+        if ( !dir.delete() || !dir.mkdir() )
+            throw new IOException( "Could not create directory " + dir );
+        NamedPipes pipes = new NamedPipes( dir, suffix );
+        Process process = new ProcessBuilder( mkfifo,
+                                              pipes.input.getPath(),
+                                              pipes.output.getPath() )
+                              .redirectErrorStream( true )
+                              .start();
+        try {
+            drain( process.getInputStream() );
+            if ( process.waitFor() != 0 ) {
+                pipes.delete();
+                throw new IOException( "mkfifo failed in " + dir );
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            pipes.delete();
+            throw new IOException( "Interrupted while creating pipes" );
+        }
+        return pipes;
+    }
+
+    public File getInput() {
+        return input;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    /**
+     * Starts feeding <code>data</code> into the input pipe and collecting
+     * the output pipe. Must be called before Balloon is started since
+     * Balloon blocks until both ends of a pipe are open.
+     */
+    public void start( String data ) throws IOException {
+        final byte[] bytes = data.getBytes( CHARSET );
+        start( new Feed() {
+            public void writeTo( OutputStream out ) throws IOException {
+                out.write( bytes );
+            }
+        }, result );
+    }
+
+    /**
+     * Starts feeding the input pipe from <code>feed</code> and copying the
+     * output pipe to the file <code>to</code>, so that neither has to fit
+     * in memory. As {@link #start(String)} otherwise, and
+     * {@link #finish()} returns an empty string.
+     */
+    public void start( Feed feed, File to ) throws IOException {
+        start( feed, new FileOutputStream( to ) );
+    }
+
+    private void start( final Feed feed, final OutputStream sink ) {
+        feeder = new Thread( new Runnable() {
+            public void run() {
+                try {
+                    OutputStream os = new BufferedOutputStream(
+                                          new FileOutputStream( input ),
+                                          1 << 16 );
+                    try {
+                        feed.writeTo( os );
+                    } finally {
+                        os.close();
+                    }
+                } catch ( IOException e ) {
+                    failure = e;
+                }
+            }
+        }, "Balloon pipe feeder" );
+        collector = new Thread( new Runnable() {
+            public void run() {
+                try {
+                    InputStream is = new FileInputStream( output );
+                    try {
+                        byte[] buffer = new byte[1 << 16];
+                        int n;
+                        while ( (n = is.read( buffer )) != -1 ) {
+                            synchronized ( result ) {
+                                sink.write( buffer, 0, n );
+                            }
+                        }
+                    } finally {
+                        is.close();
+                        if ( sink != result )
+                            sink.close();
+                    }
+                } catch ( IOException e ) {
+                    failure = e;
+                }
+            }
+        }, "Balloon pipe collector" );
+        // Platform threads on purpose, opening a FIFO blocks in the kernel
+        // until the other end is opened and would hold on to the carrier
+        // of a virtual thread. There are only two per running Balloon.
+        feeder.setDaemon( true );
+        collector.setDaemon( true );
+        feeder.start();
+        collector.start();
+    }
+
+    /**
+     * Waits for the pipes to drain after Balloon has exited and returns
+     * what Balloon wrote. Pipe ends that Balloon never opened are opened
+     * here so that the feeding and collecting threads are not left blocked.
+     */
+    public String finish() throws IOException, InterruptedException {
+        if ( feeder.isAlive() )
+            touch( input );
+        if ( collector.isAlive() )
+            touch( output );
+        feeder.join( JOIN_TIMEOUT_MS );
+        collector.join( JOIN_TIMEOUT_MS );
+        synchronized ( result ) {
+            return result.toString( CHARSET );
+        }
+    }
+
+    /**
+     * @return the error from feeding or collecting, if any
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Removes the pipes and their directory.
+     */
+    public void delete() {
+        input.delete();
+        output.delete();
+        dir.delete();
+    }
+
+    /**
+     * Opens and closes the other end of a pipe. Opening read-write never
+     * blocks and lets a thread blocked in opening its own end through.
+     */
+    private static void touch( File pipe ) {
+        try {
+            new RandomAccessFile( pipe, "rw" ).close();
+        } catch ( IOException e ) {
+            // Nothing more we can do, the thread is a daemon
+        }
+    }
+
+    private static void drain( InputStream in ) throws IOException {
+        byte[] buffer = new byte[1024];
+        try {
+            while ( in.read( buffer ) != -1 ) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.runner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts native processes and collects their output. A virtual thread per
+ * stream reads the stdout and stderr of a process with blocking reads into
+ * bounded {@link RingBuffer}s, so that nothing polls while a process is
+ * quiet, and one shared scheduler kills processes that run past their
+ * timeout. The calling thread waits for the exit. The CPU time is read
+ * when the process starts and when it closes its output on exit, as it can
+ * not be read once the process has been reaped, so it is the time up to
+ * the last read that made it.
+ * <p>
+ * Shared by the platform specific Balloon runners.
+ */
+public class ProcessLauncher {
+
+    /** Default size of the stdout and stderr tails kept per process */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Longest to wait for the output of a process that has exited, which
+     * is only left open by a child it left running
+     */
+    private static final long DRAIN_TIMEOUT_MS = 2000;
+
+    private static final ProcessLauncher instance = new ProcessLauncher();
+
+    private final List<Running> running = new CopyOnWriteArrayList<Running>();
+    private final ScheduledExecutorService scheduler;
+
+    private ProcessLauncher() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "Balloon process timeouts" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+    }
+
+    public static ProcessLauncher getDefault() {
+        return instance;
+    }
+
+    /**
+     * @return number of processes currently running
+     */
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * Runs <code>command</code> and waits for it to exit or to be killed
+     * after <code>timeoutMs</code>.
+     *
+     * @param bufferSize bytes of stdout and stderr to keep
+     * @param limits operating system limits to run the process with
+     * @throws IOException if the process could not be started
+     * @throws InterruptedException if the calling thread is interrupted,
+     *                              the process is killed in that case
+     */
+    public ProcessResult run( String[] command, long timeoutMs, int bufferSize,
+                              ResourceLimits limits )
+                         throws IOException, InterruptedException {
+
+        long start = System.nanoTime();
+        final Process process = new ProcessBuilder( limits.wrap( command ) )
+                                    .start();
+        process.getOutputStream().close();
+        final Running r = new Running( process, bufferSize );
+        running.add( r );
+        r.start();
+        ScheduledFuture<?> timeout = scheduler.schedule( new Runnable() {
+            public void run() {
+                r.timedOut = true;
+                r.sampleCpu();
+                kill( process );
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS );
+        try {
+            // Parks rather than blocks so it is cheap on any kind of thread
+            process.onExit().get();
+        } catch ( ExecutionException e ) {
+            throw new IOException( "Waiting for process failed", e );
+        } catch ( InterruptedException e ) {
+            kill( process );
+            throw e;
+        } finally {
+            timeout.cancel( false );
+            running.remove( r );
+            r.finish();
+        }
+        long wallTimeMs = (System.nanoTime() - start) / 1000000;
+        int exitValue = process.exitValue();
+        return new ProcessResult( exitValue, r.timedOut, wallTimeMs,
+                                  r.cpuTimeMs, r.stdout, r.stderr,
+                                  limits.classify( exitValue, r.timedOut,
+                                                   r.stderr.toString() ) );
+    }
+
+    public ProcessResult run( String[] command, long timeoutMs, int bufferSize )
+                         throws IOException, InterruptedException {
+        return run( command, timeoutMs, bufferSize, ResourceLimits.NONE );
+    }
+
+    public ProcessResult run( String[] command, long timeoutMs,
+                              ResourceLimits limits )
+                         throws IOException, InterruptedException {
+        return run( command, timeoutMs, DEFAULT_BUFFER_SIZE, limits );
+    }
+
+    public ProcessResult run( String[] command, long timeoutMs )
+                         throws IOException, InterruptedException {
+        return run( command, timeoutMs, DEFAULT_BUFFER_SIZE,
+                    ResourceLimits.NONE );
+    }
+
+    /**
+     * Kills a process and its children. The process goes first so that it
+     * does not carry on when a child it waits for dies.
+     */
+    private static void kill( Process process ) {
+        List<ProcessHandle> children = new ArrayList<ProcessHandle>();
+        Iterator<ProcessHandle> i = process.descendants().iterator();
+        while ( i.hasNext() )
+            children.add( i.next() );
+        process.destroyForcibly();
+        for ( ProcessHandle child : children )
+            child.destroyForcibly();
+    }
+
+    /**
+     * Book keeping for one running process.
+     */
+    private static class Running {
+
+        final Process process;
+        final RingBuffer stdout;
+        final RingBuffer stderr;
+        volatile boolean timedOut = false;
+        volatile long cpuTimeMs = -1;
+        private Thread stdoutReader;
+        private Thread stderrReader;
+
+        Running( Process process, int bufferSize ) {
+            this.process = process;
+            this.stdout = new RingBuffer( bufferSize );
+            this.stderr = new RingBuffer( bufferSize );
+        }
+
+        /**
+         * Starts reading stdout and stderr.
+         */
+        void start() {
+            sampleCpu();
+            stdoutReader = read( process.getInputStream(), stdout,
+                                 "Balloon stdout" );
+            stderrReader = read( process.getErrorStream(), stderr,
+                                 "Balloon stderr" );
+        }
+
+        /**
+         * Reads <code>in</code> to its end on a virtual thread. Reading
+         * a pipe holds on to the carrier, which the scheduler makes up
+         * for with another one while the read blocks.
+         */
+        private Thread read( final InputStream in, final RingBuffer to,
+                             String name ) {
+            return Thread.ofVirtual().name( name ).start( new Runnable() {
+                public void run() {
+                    byte[] chunk = new byte[8192];
+                    try {
+                        int n;
+                        while ( (n = in.read( chunk )) != -1 )
+                            to.write( chunk, 0, n );
+                    } catch ( IOException e ) {
+                        // Closed by finish, or output lost. The exit value
+                        // still counts
+                    }
+                    // The end of the output is the exit, before the
+                    // process is reaped
+                    sampleCpu();
+                }
+            } );
+        }
+
+        void sampleCpu() {
+            Optional<Duration> cpu = process.info().totalCpuDuration();
+            if ( cpu.isPresent() )
+                cpuTimeMs = Math.max( cpuTimeMs, cpu.get().toMillis() );
+        }
+
+        /**
+         * Waits for the output to be read after the process has exited and
+         * closes the streams. Output a child of the process keeps open is
+         * only waited for a while.
+         */
+        void finish() {
+            try {
+                stdoutReader.join( DRAIN_TIMEOUT_MS );
+                stderrReader.join( DRAIN_TIMEOUT_MS );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close( process.getInputStream() );
+                close( process.getErrorStream() );
+            }
+        }
+
+        private static void close( InputStream in ) {
+            try {
+                in.close();
+            } catch ( IOException e ) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.runner;
+
+/**
+ * The outcome of one process run by the {@link ProcessLauncher}.
+ */
+public class ProcessResult {
+
+    private final int exitValue;
+    private final boolean timedOut;
+    private final long wallTimeMs;
+    private final long cpuTimeMs;
+    private final RingBuffer stdout;
+    private final RingBuffer stderr;
+    private final ResourceLimits.Breach breach;
+
+    ProcessResult( int exitValue, boolean timedOut, long wallTimeMs,
+                   long cpuTimeMs, RingBuffer stdout, RingBuffer stderr,
+                   ResourceLimits.Breach breach ) {
+        this.exitValue = exitValue;
+        this.timedOut = timedOut;
+        this.wallTimeMs = wallTimeMs;
+        this.cpuTimeMs = cpuTimeMs;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.breach = breach;
+    }
+
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * @return whether the process was killed for running too long
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return the resource limit the process was stopped by,
+     *         <code>null</code> if none
+     */
+    public ResourceLimits.Breach getBreach() {
+        return breach;
+    }
+
+    /**
+     * @return whether the process exited by itself with exit value 0
+     */
+    public boolean isSuccess() {
+        return !timedOut && exitValue == 0;
+    }
+
+    public long getWallTimeMs() {
+        return wallTimeMs;
+    }
+
+    /**
+     * @return user plus system CPU time as last sampled while the process
+     *         ran, -1 if the platform does not report it
+     */
+    public long getCpuTimeMs() {
+        return cpuTimeMs;
+    }
+
+    /**
+     * @return the tail of standard output
+     */
+    public String getStdout() {
+        return stdout.toString();
+    }
+
+    /**
+     * @return the tail of standard error
+     */
+    public String getStderr() {
+        return stderr.toString();
+    }
+
+    /**
+     * @return a one line summary for log messages
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        if ( timedOut )
+            sb.append( "timed out" );
+        else if ( breach != null )
+            sb.append( "exceeded " ).append( breach )
+              .append( " with exit value " ).append( exitValue );
+        else
+            sb.append( "exit value " ).append( exitValue );
+        sb.append( " after " ).append( wallTimeMs ).append( " ms" );
+        if ( cpuTimeMs >= 0 )
+            sb.append( " (" ).append( cpuTimeMs ).append( " ms CPU)" );
+        String err = getStderr().trim();
+        if ( err.length() > 0 )
+            sb.append( ": " ).append( err.replace( '\n', ' ' ) );
+        return sb.toString();
+    }
+}
@@ -0,0 +1,219 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.runner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Operating system limits put on one Balloon process: address space, CPU
+ * seconds and the size of files it writes. Without them one pathological
+ * molecule can make Balloon eat all memory and get Bioclipse killed by the
+ * OOM killer.
+ * <p>
+ * The limits are applied by starting Balloon through <code>prlimit</code>
+ * on Linux, or through <code>ulimit</code> in a shell where
+ * <code>prlimit</code> is missing. On Windows they are not applied.
+ */
+public class ResourceLimits {
+
+    /**
+     * The limit a process ran into.
+     */
+    public enum Breach {
+        CPU_TIME( "the CPU time limit" ),
+        MEMORY( "the memory limit" ),
+        FILE_SIZE( "the output size limit" );
+
+        private final String description;
+
+        private Breach( String description ) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    /** No limits at all */
+    public static final ResourceLimits NONE = new ResourceLimits( 0, 0, 0 );
+
+    private static final String[] PRLIMIT = { "/usr/bin/prlimit",
+                                              "/bin/prlimit" };
+    private static final String SH = "/bin/sh";
+
+    /** Seconds between the CPU soft limit signal and the hard kill */
+    private static final long CPU_GRACE_SECONDS = 5;
+
+    // Exit values for deaths by signal, 128 + signal number
+    private static final int SIGKILL = 128 + 9;
+    private static final int SIGXCPU = 128 + 24;
+    private static final int SIGXFSZ = 128 + 25;
+
+    private static final String[] OUT_OF_MEMORY = { "bad_alloc",
+                                                    "out of memory",
+                                                    "cannot allocate memory",
+                                                    "memory exhausted",
+                                                    "memoryerror" };
+
+    private final long memoryBytes;
+    private final long cpuSeconds;
+    private final long fileSizeBytes;
+
+    /**
+     * @param memoryBytes largest address space, 0 for no limit
+     * @param cpuSeconds most CPU time, 0 for no limit
+     * @param fileSizeBytes largest file written, 0 for no limit
+     */
+    public ResourceLimits( long memoryBytes, long cpuSeconds,
+                           long fileSizeBytes ) {
+        this.memoryBytes = Math.max( 0, memoryBytes );
+        this.cpuSeconds = Math.max( 0, cpuSeconds );
+        this.fileSizeBytes = Math.max( 0, fileSizeBytes );
+    }
+
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public long getCpuSeconds() {
+        return cpuSeconds;
+    }
+
+    public long getFileSizeBytes() {
+        return fileSizeBytes;
+    }
+
+    /**
+     * @return whether any limit is set
+     */
+    public boolean isLimited() {
+        return memoryBytes > 0 || cpuSeconds > 0 || fileSizeBytes > 0;
+    }
+
+    /**
+     * @return whether limits can be applied on this platform
+     */
+    public static boolean isSupported() {
+        return prlimit() != null || new File( SH ).exists();
+    }
+
+    private static String prlimit() {
+        if ( !System.getProperty( "os.name", "" ).toLowerCase( Locale.ENGLISH )
+                    .startsWith( "linux" ) )
+            return null;
+        for ( String path : PRLIMIT ) {
+            if ( new File( path ).exists() )
+                return path;
+        }
+        return null;
+    }
+
+    /**
+     * @return <code>command</code> wrapped so that it runs with these
+     *         limits, or <code>command</code> itself if there are none or
+     *         they can not be applied here
+     */
+    public String[] wrap( String[] command ) {
+        return wrap( command, prlimit(), new File( SH ).exists() );
+    }
+
+    /**
+     * @param prlimit path of <code>prlimit</code>, <code>null</code> if
+     *                it is missing
+     * @param shell whether a shell is there to run <code>ulimit</code> in
+     */
+    String[] wrap( String[] command, String prlimit, boolean shell ) {
+        if ( !isLimited() )
+            return command;
+        List<String> wrapped = new ArrayList<String>();
+        if ( prlimit != null ) {
+            wrapped.add( prlimit );
+            if ( memoryBytes > 0 )
+                wrapped.add( "--as=" + memoryBytes );
+            if ( cpuSeconds > 0 )
+                wrapped.add( "--cpu=" + cpuSeconds + ":"
+                             + (cpuSeconds + CPU_GRACE_SECONDS) );
+            if ( fileSizeBytes > 0 )
+                wrapped.add( "--fsize=" + fileSizeBytes );
+            wrapped.add( "--" );
+        } else if ( shell ) {
+            // ulimit counts memory in KB and file size in 512 byte blocks.
+            // Limits the shell does not support are skipped.
+            StringBuilder script = new StringBuilder();
+            if ( memoryBytes > 0 )
+                script.append( "ulimit -v " )
+                      .append( Math.max( 1, memoryBytes / 1024 ) )
+                      .append( " 2>/dev/null; " );
+            if ( cpuSeconds > 0 )
+                script.append( "ulimit -t " ).append( cpuSeconds )
+                      .append( " 2>/dev/null; " );
+            if ( fileSizeBytes > 0 )
+                script.append( "ulimit -f " )
+                      .append( Math.max( 1, fileSizeBytes / 512 ) )
+                      .append( " 2>/dev/null; " );
+            script.append( "exec \"$0\" \"$@\"" );
+            wrapped.add( SH );
+            wrapped.add( "-c" );
+            wrapped.add( script.toString() );
+        } else {
+            return command;
+        }
+        wrapped.addAll( Arrays.asList( command ) );
+        return wrapped.toArray( new String[wrapped.size()] );
+    }
+
+    /**
+     * Tells which limit, if any, made a process fail. Running out of
+     * memory is only told by the message of the process, an abort or a
+     * segmentation fault without one is a failure of its own.
+     *
+     * @param timedOut whether the process was killed for running too long,
+     *                 then the kill is not taken for a breach
+     */
+    Breach classify( int exitValue, boolean timedOut, String stderr ) {
+        if ( exitValue == 0 || timedOut || !isLimited() )
+            return null;
+        if ( cpuSeconds > 0 && exitValue == SIGXCPU )
+            return Breach.CPU_TIME;
+        if ( fileSizeBytes > 0 && exitValue == SIGXFSZ )
+            return Breach.FILE_SIZE;
+        if ( memoryBytes > 0 ) {
+            String err = stderr.toLowerCase( Locale.ENGLISH );
+            for ( String message : OUT_OF_MEMORY ) {
+                if ( err.contains( message ) )
+                    return Breach.MEMORY;
+            }
+        }
+        if ( cpuSeconds > 0 && exitValue == SIGKILL )
+            return Breach.CPU_TIME;
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        if ( !isLimited() )
+            return "no limits";
+        StringBuilder sb = new StringBuilder();
+        if ( memoryBytes > 0 )
+            sb.append( "memory " ).append( memoryBytes / (1024 * 1024) )
+              .append( " MB" );
+        if ( cpuSeconds > 0 )
+            sb.append( sb.length() > 0 ? ", " : "" ).append( "CPU " )
+              .append( cpuSeconds ).append( " s" );
+        if ( fileSizeBytes > 0 )
+            sb.append( sb.length() > 0 ? ", " : "" ).append( "output " )
+              .append( fileSizeBytes / (1024 * 1024) ).append( " MB" );
+        return sb.toString();
+    }
+}
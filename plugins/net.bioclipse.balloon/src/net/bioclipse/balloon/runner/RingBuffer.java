@@ -0,0 +1,73 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.runner;
+
+/**
+ * A byte buffer of fixed size that keeps the last bytes written to it.
+ * Used to hold the tail of a process output stream without letting a
+ * chatty process fill the heap.
+ */
+public class RingBuffer {
+
+    private final byte[] buffer;
+    private long total = 0;
+
+    public RingBuffer( int capacity ) {
+        if ( capacity <= 0 )
+            throw new IllegalArgumentException( "Capacity must be positive" );
+        buffer = new byte[capacity];
+    }
+
+    public synchronized void write( byte[] bytes, int offset, int length ) {
+        if ( length >= buffer.length ) {
+            offset += length - buffer.length;
+            total += length - buffer.length;
+            length = buffer.length;
+        }
+        int start = (int) (total % buffer.length);
+        int first = Math.min( length, buffer.length - start );
+        System.arraycopy( bytes, offset, buffer, start, first );
+        System.arraycopy( bytes, offset + first, buffer, 0, length - first );
+        total += length;
+    }
+
+    /**
+     * @return number of bytes ever written
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return whether bytes have been dropped from the start
+     */
+    public synchronized boolean isTruncated() {
+        return total > buffer.length;
+    }
+
+    /**
+     * @return the bytes held, oldest first
+     */
+    public synchronized byte[] toByteArray() {
+        if ( total <= buffer.length ) {
+            byte[] result = new byte[(int) total];
+            System.arraycopy( buffer, 0, result, 0, result.length );
+            return result;
+        }
+        byte[] result = new byte[buffer.length];
+        int start = (int) (total % buffer.length);
+        System.arraycopy( buffer, start, result, 0, buffer.length - start );
+        System.arraycopy( buffer, 0, result, buffer.length - start, start );
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return new String( toByteArray(), NamedPipes.CHARSET );
+    }
+}
@@ -0,0 +1,125 @@
+/* *****************************************************************************
+ * Copyright (c) 2026 The Bioclipse Project and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package net.bioclipse.balloon.runner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The nice level and the CPUs a Balloon process runs with, so that bulk
+ * runs in the background leave the user interface and interactive runs
+ * some room.
+ * <p>
+ * The nice level is applied with <code>nice</code> on Linux and Mac OS X,
+ * the CPU set with <code>taskset</code> on Linux only. On Windows nothing
+ * is applied.
+ */
+public class SchedulingPolicy {
+
+    /** Normal priority on all CPUs */
+    public static final SchedulingPolicy NORMAL = new SchedulingPolicy( 0, null );
+
+    public static final int MAX_NICE = 19;
+
+    private static final Pattern CPU_SET
+        = Pattern.compile( "\\d+(-\\d+)?(,\\d+(-\\d+)?)*" );
+
+    private static final String[] NICE = { "/usr/bin/nice", "/bin/nice" };
+    private static final String[] TASKSET = { "/usr/bin/taskset",
+                                              "/bin/taskset" };
+
+    private final int niceLevel;
+    private final String cpuSet;
+
+    /**
+     * @param niceLevel 0 for normal priority up to {@value #MAX_NICE} for
+     *                  the lowest
+     * @param cpuSet CPUs in <code>taskset -c</code> list form, e.g.
+     *               <code>2-7</code> or <code>0,2,4</code>, or
+     *               <code>null</code> or empty for all CPUs
+     * @throws IllegalArgumentException for a nice level out of range or a
+     *                                  malformed CPU set
+     */
+    public SchedulingPolicy( int niceLevel, String cpuSet ) {
+        if ( niceLevel < 0 || niceLevel > MAX_NICE )
+            throw new IllegalArgumentException( "Nice level must be between "
+                                                + "0 and " + MAX_NICE );
+        if ( cpuSet != null )
+            cpuSet = cpuSet.replace( " ", "" );
+        if ( cpuSet != null && cpuSet.length() > 0 && !isValidCpuSet( cpuSet ) )
+            throw new IllegalArgumentException( "Not a CPU list: " + cpuSet );
+        this.niceLevel = niceLevel;
+        this.cpuSet = cpuSet == null || cpuSet.length() == 0 ? null : cpuSet;
+    }
+
+    /**
+     * @return whether <code>cpuSet</code> is a list of CPUs and ranges
+     */
+    public static boolean isValidCpuSet( String cpuSet ) {
+        return CPU_SET.matcher( cpuSet.replace( " ", "" ) ).matches();
+    }
+
+    public int getNiceLevel() {
+        return niceLevel;
+    }
+
+    /**
+     * @return the CPU list, <code>null</code> for all CPUs
+     */
+    public String getCpuSet() {
+        return cpuSet;
+    }
+
+    /**
+     * @return <code>command</code> wrapped to run with this policy where
+     *         the platform supports it
+     */
+    public String[] wrap( String[] command ) {
+        return wrap( command, find( NICE ), find( TASKSET ) );
+    }
+
+    /**
+     * @param nice path of <code>nice</code>, <code>null</code> if missing
+     * @param taskset path of <code>taskset</code>, <code>null</code> if
+     *                missing
+     */
+    String[] wrap( String[] command, String nice, String taskset ) {
+        List<String> wrapped = new ArrayList<String>();
+        if ( niceLevel > 0 && nice != null ) {
+            wrapped.add( nice );
+            wrapped.add( "-n" );
+            wrapped.add( Integer.toString( niceLevel ) );
+        }
+        if ( cpuSet != null && taskset != null ) {
+            wrapped.add( taskset );
+            wrapped.add( "-c" );
+            wrapped.add( cpuSet );
+        }
+        if ( wrapped.isEmpty() )
+            return command;
+        wrapped.addAll( Arrays.asList( command ) );
+        return wrapped.toArray( new String[wrapped.size()] );
+    }
+
+    private static String find( String[] paths ) {
+        for ( String path : paths ) {
+            if ( new File( path ).exists() )
+                return path;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "nice " + niceLevel
+               + ( cpuSet == null ? " on all CPUs" : " on CPUs " + cpuSet );
+    }
+}